@@ -0,0 +1,137 @@
+package com.JasonRoth.bench;
+
+import com.JasonRoth.ServerConfig;
+import com.JasonRoth.util.ExecutorFactory;
+import com.JasonRoth.util.HttpUtils;
+import com.sun.net.httpserver.HttpServer;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Compares throughput and tail latency of the execution models as the number of concurrent clients grows.
+ * The handler mimics the quorum write path of PutHandler: it parks its thread on a CountDownLatch until simulated
+ * replica acks arrive after a network round trip, which is what ties up HTTP threads on a real node.
+ *
+ * Run with:
+ * mvn -Pbenchmark compile exec:java -Dexec.mainClass="com.JasonRoth.bench.ExecutionModelBenchmark"
+ * Optional system properties: bench.models, bench.concurrency, bench.seconds, bench.ackDelayMillis, dkv.fixedPoolThreads
+ */
+public class ExecutionModelBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        //headers and body are written separately, without TCP_NODELAY every response waits on a delayed ACK
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        List<ServerConfig.ExecutionModel> models = Arrays.stream(System.getProperty("bench.models", "FIXED,VIRTUAL").split(","))
+                .map(String::trim).map(ServerConfig.ExecutionModel::valueOf).toList();
+        int[] concurrencyLevels = Arrays.stream(System.getProperty("bench.concurrency", "8,32,128,512,1024").split(","))
+                .map(String::trim).mapToInt(Integer::parseInt).toArray();
+        int seconds = Integer.getInteger("bench.seconds", 5);
+        int ackDelayMillis = Integer.getInteger("bench.ackDelayMillis", 2);
+        int fixedThreads = ServerConfig.fromSystemProperties().getFixedPoolThreads();
+
+        System.out.printf("Simulated replica ack delay %d ms, %d s per run, fixed pool size %d%n", ackDelayMillis, seconds, fixedThreads);
+        System.out.printf("%-8s %12s %14s %10s %10s %10s%n", "model", "concurrency", "throughput/s", "p50 ms", "p99 ms", "max ms");
+        for (ServerConfig.ExecutionModel model : models) {
+            for (int concurrency : concurrencyLevels) {
+                Result result = run(model, fixedThreads, concurrency, seconds, ackDelayMillis);
+                System.out.printf("%-8s %12d %14.0f %10.2f %10.2f %10.2f%n", model, concurrency, result.throughput, result.p50Millis, result.p99Millis, result.maxMillis);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static Result run(ServerConfig.ExecutionModel model, int fixedThreads, int concurrency, int seconds, int ackDelayMillis) throws Exception {
+        ScheduledExecutorService network = Executors.newScheduledThreadPool(4);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), concurrency);
+        ExecutorService httpExecutor = ExecutorFactory.create(model, "bench-http", fixedThreads);
+        server.setExecutor(httpExecutor);
+        server.createContext("/put", exchange -> {
+            //one ack from each of the two followers, like a replication factor of 3
+            CountDownLatch latch = new CountDownLatch(2);
+            network.schedule(latch::countDown, ackDelayMillis, TimeUnit.MILLISECONDS);
+            network.schedule(latch::countDown, ackDelayMillis, TimeUnit.MILLISECONDS);
+            try {
+                latch.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            HttpUtils.sendResponse(exchange, 200, "{\"status\":\"Success\"}");
+        });
+        server.start();
+
+        URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/put");
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+                .executor(Executors.newVirtualThreadPerTaskExecutor()).build();
+        HttpRequest request = HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.ofString("{}")).build();
+
+        long warmupEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        long end = warmupEnd + TimeUnit.SECONDS.toNanos(seconds);
+        List<long[]> perClientLatencies = new ArrayList<>();
+        List<Future<Integer>> counts = new ArrayList<>();
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < concurrency; i++) {
+                long[] latencies = new long[1 << 16];
+                perClientLatencies.add(latencies);
+                counts.add(clients.submit(() -> {
+                    int count = 0;
+                    long now;
+                    while ((now = System.nanoTime()) < end) {
+                        client.send(request, HttpResponse.BodyHandlers.discarding());
+                        long finished = System.nanoTime();
+                        if (now >= warmupEnd && count < latencies.length) {
+                            latencies[count++] = finished - now;
+                        }
+                    }
+                    return count;
+                }));
+            }
+        }
+
+        int total = 0;
+        for (Future<Integer> count : counts) {
+            total += count.get();
+        }
+        long[] all = new long[total];
+        int offset = 0;
+        for (int i = 0; i < counts.size(); i++) {
+            int count = counts.get(i).get();
+            System.arraycopy(perClientLatencies.get(i), 0, all, offset, count);
+            offset += count;
+        }
+        Arrays.sort(all);
+
+        server.stop(0);
+        httpExecutor.shutdownNow();
+        network.shutdownNow();
+
+        Result result = new Result();
+        result.throughput = total / (double) seconds;
+        result.p50Millis = percentile(all, 0.50);
+        result.p99Millis = percentile(all, 0.99);
+        result.maxMillis = all.length == 0 ? 0 : all[all.length - 1] / 1_000_000.0;
+        return result;
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1_000_000.0;
+    }
+
+    private static class Result {
+        double throughput;
+        double p50Millis;
+        double p99Millis;
+        double maxMillis;
+    }
+}
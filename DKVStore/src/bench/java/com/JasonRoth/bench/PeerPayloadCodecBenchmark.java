@@ -0,0 +1,101 @@
+package com.JasonRoth.bench;
+
+import com.JasonRoth.Messaging.KeyValue;
+import com.JasonRoth.Messaging.PeerMessageFramer;
+import com.JasonRoth.Messaging.PeerPayloadCodec;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares encoding and decoding a KeyValue payload three ways:
+ * perMessageJson - what peers did before protocol version 3, a new ObjectMapper per message and a JSON String in between
+ * sharedJson - the JSON encoding PeerPayloadCodec still uses for version 2 peers
+ * binary - the protocol version 3 encoding
+ * The GC profiler reports the allocation rate, gc.alloc.rate.norm is the bytes allocated per operation.
+ *
+ * Run with:
+ * mvn -Pbenchmark compile exec:java -Dexec.mainClass="com.JasonRoth.bench.PeerPayloadCodecBenchmark"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeerPayloadCodecBenchmark {
+
+    @Param({"16", "1024"})
+    public int valueBytes;
+
+    private KeyValue keyValue;
+    private PeerMessageFramer.FramedMessage jsonMessage;
+    private PeerMessageFramer.FramedMessage binaryMessage;
+
+    @Setup
+    public void setup() {
+        keyValue = new KeyValue("user:1234567", "v".repeat(valueBytes));
+        jsonMessage = new PeerMessageFramer.FramedMessage((byte) 0, 0,
+                PeerPayloadCodec.encode(PeerMessageFramer.PROTOCOL_V2, keyValue), PeerMessageFramer.PROTOCOL_V2);
+        binaryMessage = new PeerMessageFramer.FramedMessage((byte) 0, 0,
+                PeerPayloadCodec.encode(PeerMessageFramer.PROTOCOL_V3, keyValue), PeerMessageFramer.PROTOCOL_V3);
+    }
+
+    @Benchmark
+    public byte[] encodePerMessageJson() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        return mapper.writeValueAsString(keyValue).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] encodeSharedJson() {
+        return PeerPayloadCodec.encode(PeerMessageFramer.PROTOCOL_V2, keyValue);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return PeerPayloadCodec.encode(PeerMessageFramer.PROTOCOL_V3, keyValue);
+    }
+
+    @Benchmark
+    public KeyValue decodePerMessageJson() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        return mapper.readValue(jsonMessage.getPayloadAsString(), KeyValue.class);
+    }
+
+    @Benchmark
+    public KeyValue decodeSharedJson() throws Exception {
+        return PeerPayloadCodec.decodeKeyValue(jsonMessage);
+    }
+
+    @Benchmark
+    public KeyValue decodeBinary() throws Exception {
+        return PeerPayloadCodec.decodeKeyValue(binaryMessage);
+    }
+
+    public static void main(String[] args) throws Exception {
+        //exec:java runs this in Maven's JVM, the forked benchmark JVMs need the project classpath instead of Maven's
+        if (Thread.currentThread().getContextClassLoader() instanceof URLClassLoader loader) {
+            StringJoiner classpath = new StringJoiner(File.pathSeparator);
+            for (URL url : loader.getURLs()) {
+                classpath.add(new File(url.toURI()).getPath());
+            }
+            System.setProperty("java.class.path", classpath.toString());
+        }
+        Options options = new OptionsBuilder()
+                .include(PeerPayloadCodecBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
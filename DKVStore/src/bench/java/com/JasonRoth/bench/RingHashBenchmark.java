@@ -0,0 +1,116 @@
+package com.JasonRoth.bench;
+
+import com.JasonRoth.ConsistentHashingManager;
+import com.JasonRoth.RingHashFunction;
+import com.JasonRoth.RingPlacement;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the ring hash functions on a ring of NODES nodes with 64 virtual nodes each, like a new cluster builds:
+ * hash - the token of a key
+ * lookup - the replicas of a key, what every request does before anything else
+ * Before the benchmarks main prints the skew of each function with 10 and 64 virtual nodes, with and without a load
+ * bound: the largest share of keys and of the token space any node is primary for relative to the mean, where 1.00
+ * is a perfectly even ring.
+ *
+ * Run with:
+ * mvn -Pbenchmark compile exec:java -Dexec.mainClass="com.JasonRoth.bench.RingHashBenchmark"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RingHashBenchmark {
+    private static final int NODES = 5;
+    private static final int VIRTUAL_NODES = 64;
+    private static final int KEYS = 4096; //a power of two, so the next key is a mask away
+    private static final int SKEW_KEYS = 1_000_000;
+
+    @Param({"MD5", "MURMUR3"})
+    public RingHashFunction hashFunction;
+
+    private ConsistentHashingManager ring;
+    private String[] keys;
+    private int next;
+
+    @Setup
+    public void setup() {
+        ring = ring(new RingPlacement(hashFunction, VIRTUAL_NODES, 0));
+        keys = new String[KEYS];
+        Random random = new Random(42);
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "user:" + random.nextInt(10_000_000);
+        }
+    }
+
+    @Benchmark
+    public long hash() {
+        return hashFunction.hash(keys[next++ & (KEYS - 1)]);
+    }
+
+    @Benchmark
+    public List<String> lookup() {
+        return ring.getNodesForKey(keys[next++ & (KEYS - 1)], 3);
+    }
+
+    private static ConsistentHashingManager ring(RingPlacement placement) {
+        ConsistentHashingManager ring = new ConsistentHashingManager(placement);
+        List<String> nodes = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            nodes.add("127.0.0.1:" + (9001 + i));
+        }
+        ring.updateNodes(nodes);
+        return ring;
+    }
+
+    private static void printSkew() {
+        System.out.println("Skew over " + NODES + " nodes, largest share / mean share");
+        for (RingHashFunction hashFunction : RingHashFunction.values()) {
+            for (int virtualNodes : new int[]{10, VIRTUAL_NODES}) {
+                for (double loadBound : new double[]{0, 1.1}) {
+                    ConsistentHashingManager ring = ring(new RingPlacement(hashFunction, virtualNodes, loadBound));
+                    Map<String, Integer> keyCounts = new HashMap<>();
+                    for (int i = 0; i < SKEW_KEYS; i++) {
+                        keyCounts.merge(ring.getNodeForKey("user:" + i), 1, Integer::sum);
+                    }
+                    int maxKeys = keyCounts.values().stream().mapToInt(Integer::intValue).max().orElse(0);
+                    double maxOwned = ring.getOwnership().values().stream().mapToDouble(Double::doubleValue).max().orElse(0);
+                    System.out.printf("%-8s %2d vnodes load bound %.1f: keys %.2f  token space %.2f%n", hashFunction, virtualNodes,
+                            loadBound, maxKeys / (SKEW_KEYS / (double) NODES), maxOwned * NODES);
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        printSkew();
+        //exec:java runs this in Maven's JVM, the forked benchmark JVMs need the project classpath instead of Maven's
+        if (Thread.currentThread().getContextClassLoader() instanceof URLClassLoader loader) {
+            StringJoiner classpath = new StringJoiner(File.pathSeparator);
+            for (URL url : loader.getURLs()) {
+                classpath.add(new File(url.toURI()).getPath());
+            }
+            System.setProperty("java.class.path", classpath.toString());
+        }
+        Options options = new OptionsBuilder()
+                .include(RingHashBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,382 @@
+package com.JasonRoth;
+
+import com.JasonRoth.Messaging.KeyResult;
+import com.JasonRoth.Messaging.PeerConnectionPool;
+import com.JasonRoth.Messaging.PeerMessageFramer;
+import com.JasonRoth.Messaging.PeerMessageHandler;
+import com.JasonRoth.Messaging.PeerPayloadCodec;
+import com.JasonRoth.Messaging.ReplicationBatcher;
+import com.JasonRoth.metrics.MetricsRegistry;
+import com.JasonRoth.storage.merkle.MerkleTrackingStorageEngine;
+import com.JasonRoth.storage.merkle.MerkleTree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background repair of replicas that drifted apart, after writes they missed for longer than hinted handoff covers or
+ * lost in a restart. Every node keeps a Merkle tree per token range of the ring, see
+ * {@link MerkleTrackingStorageEngine}, and every intervalSeconds the primary of each range compares its tree with the
+ * other replicas of the range.
+ *
+ * A comparison starts at the root and only asks for the children of nodes whose hashes differ, so ranges that agree
+ * cost one small round trip and the leaves that differ are found in one round trip per level. Only the keys and entry
+ * hashes of those leaves are then exchanged, and only the keys that actually differ are sent, so the traffic grows
+ * with the divergence rather than with the data. Leaf entries are found by scanning the store, the trees hold hashes
+ * only.
+ *
+ * For each differing key the value most of its replicas hold wins, ties going to the earlier replica in the preference
+ * list, so a primary that was down and came back with stale values is outvoted rather than spreading them. The primary
+ * copies the winning value if it doesn't have it, and resends it through the replication batcher to the replicas that
+ * don't, queued behind the writes they already have. Without tombstones a replica that missed a delete looks the same
+ * as one that missed a write, so a missing key doesn't vote and such a delete is undone, losing a write would be worse.
+ */
+public class AntiEntropyService implements Closeable {
+    private static final int REPLICATION_FACTOR = 3;
+    private static final long REQUEST_TIMEOUT_SECONDS = 30;
+
+    private final String selfAddressString;
+    private final MerkleTrackingStorageEngine dataStore;
+    private final ConsistentHashingManager hashingManager;
+    private final PeerConnectionPool connectionPool;
+    private final ReplicationBatcher replicator;
+    private final long intervalSeconds;
+    private final MetricsRegistry metrics;
+    private final Logger logger;
+    private final ScheduledExecutorService roundTimer;
+
+    /**
+     * @param selfAddressString this node's internode address
+     * @param dataStore this node's storage engine and its trees
+     * @param hashingManager the ring that decides the ranges and their replicas
+     * @param connectionPool connections to the other nodes
+     * @param replicator sends the primary's values to replicas that differ
+     * @param intervalSeconds seconds between comparisons of this node's ranges, 0 disables them
+     * @param metrics where comparisons and repairs are counted
+     * @param logger the logger of this node
+     */
+    public AntiEntropyService(String selfAddressString, MerkleTrackingStorageEngine dataStore, ConsistentHashingManager hashingManager,
+                              PeerConnectionPool connectionPool, ReplicationBatcher replicator, long intervalSeconds,
+                              MetricsRegistry metrics, Logger logger) {
+        this.selfAddressString = selfAddressString;
+        this.dataStore = dataStore;
+        this.hashingManager = hashingManager;
+        this.connectionPool = connectionPool;
+        this.replicator = replicator;
+        this.intervalSeconds = intervalSeconds;
+        this.metrics = metrics;
+        this.logger = logger;
+        this.roundTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "anti-entropy");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Starts comparing this node's ranges every intervalSeconds
+     */
+    public void start() {
+        if (intervalSeconds > 0) {
+            roundTimer.scheduleWithFixedDelay(this::runRound, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Rebuilds the trees for the ring's current ranges, called whenever the ring changes
+     */
+    public void membershipChanged() {
+        long start = System.nanoTime();
+        List<ConsistentHashingManager.TokenRange> ranges = hashingManager.getTokenRanges(REPLICATION_FACTOR);
+        dataStore.rebuild(ranges == null ? List.of() : ranges.stream().map(ConsistentHashingManager.TokenRange::end).toList());
+        metrics.timer("antiEntropy.treeRebuild").recordSince(start);
+    }
+
+    /**
+     * Answers a peer's MERKLE_TREE_REQUEST
+     * @return the hashes of the requested nodes, null if this node doesn't know the range
+     */
+    public long[] treeHashes(PeerPayloadCodec.TreeRequest request) throws IOException {
+        for (int node : request.nodes()) {
+            if (!MerkleTree.isNode(node)) {
+                throw new IOException("Invalid Merkle tree node " + node);
+            }
+        }
+        return dataStore.hashes(request.start(), request.end(), request.nodes());
+    }
+
+    /**
+     * Answers a peer's MERKLE_ENTRIES_REQUEST
+     * @param leaves the leaves wanted, by the end token of their range
+     * @return the hash of every entry in those leaves, by key
+     */
+    public Map<String, Long> entryHashes(Map<Long, BitSet> leaves) {
+        return dataStore.entryHashes(leaves);
+    }
+
+    @Override
+    public void close() {
+        roundTimer.shutdownNow();
+    }
+
+    /**
+     * Compares every range this node is primary for with its other replicas
+     */
+    private void runRound() {
+        long start = System.nanoTime();
+        try {
+            List<ConsistentHashingManager.TokenRange> ranges = hashingManager.getTokenRanges(REPLICATION_FACTOR);
+            if (ranges == null) {
+                return;
+            }
+            //the leaves of each range that differ on any replica
+            NavigableMap<Long, ConsistentHashingManager.TokenRange> primaryRanges = new TreeMap<>();
+            Map<Long, BitSet> differing = new LinkedHashMap<>();
+            for (ConsistentHashingManager.TokenRange range : ranges) {
+                if (!range.replicas().get(0).equals(selfAddressString)) {
+                    continue;
+                }
+                primaryRanges.put(range.end(), range);
+                for (String replica : range.replicas().subList(1, range.replicas().size())) {
+                    BitSet leaves = compare(replica, range);
+                    if (leaves != null && !leaves.isEmpty()) {
+                        differing.computeIfAbsent(range.end(), end -> new BitSet(MerkleTree.LEAVES)).or(leaves);
+                    }
+                }
+            }
+            if (!differing.isEmpty()) {
+                metrics.counter("antiEntropy.rangesDiffering").add(differing.size());
+                metrics.counter("antiEntropy.leavesDiffering").add(differing.values().stream().mapToLong(BitSet::cardinality).sum());
+                repair(primaryRanges, differing);
+            }
+            metrics.counter("antiEntropy.rounds").increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Anti-entropy round failed", e);
+        } finally {
+            metrics.timer("antiEntropy.round").recordSince(start);
+        }
+    }
+
+    /**
+     * @return the leaves of a range that differ on a replica, null if it can't be compared this round
+     */
+    private BitSet compare(String replica, ConsistentHashingManager.TokenRange range) throws InterruptedException {
+        try {
+            if (connectionPool.protocolVersion(replica) < PeerMessageFramer.PROTOCOL_V8) {
+                return null; //predates anti-entropy
+            }
+            metrics.counter("antiEntropy.rangesCompared").increment();
+            return differingLeaves(replica, range);
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            logger.log(Level.WARNING, "Anti-entropy comparison with " + replica + " failed", e);
+            metrics.counter("antiEntropy.failures").increment();
+            return null;
+        }
+    }
+
+    /**
+     * Fetches the entries of the differing leaves from every replica, decides each key's value and sends it to the
+     * replicas that don't have it
+     */
+    private void repair(NavigableMap<Long, ConsistentHashingManager.TokenRange> primaryRanges, Map<Long, BitSet> differing)
+            throws InterruptedException {
+        Map<String, Map<Long, BitSet>> leavesByReplica = new LinkedHashMap<>();
+        for (Map.Entry<Long, BitSet> leaves : differing.entrySet()) {
+            List<String> replicas = primaryRanges.get(leaves.getKey()).replicas();
+            for (String replica : replicas.subList(1, replicas.size())) {
+                leavesByReplica.computeIfAbsent(replica, r -> new LinkedHashMap<>()).put(leaves.getKey(), leaves.getValue());
+            }
+        }
+        Map<String, Map<String, Long>> remote = new HashMap<>();
+        for (Map.Entry<String, Map<Long, BitSet>> replica : leavesByReplica.entrySet()) {
+            try {
+                PeerMessageFramer.FramedMessage response = request(replica.getKey(), PeerMessageHandler.MessageType.MERKLE_ENTRIES_REQUEST,
+                        PeerPayloadCodec.encodeEntriesRequest(replica.getValue()), PeerMessageHandler.MessageType.MERKLE_ENTRIES_RESPONSE);
+                remote.put(replica.getKey(), PeerPayloadCodec.decodeEntryHashes(response));
+            } catch (IOException | ExecutionException | TimeoutException e) {
+                //decided without it, it is compared again next round
+                logger.log(Level.WARNING, "Failed to fetch Merkle entries from " + replica.getKey(), e);
+                metrics.counter("antiEntropy.failures").increment();
+            }
+        }
+        Map<String, Long> local = dataStore.entryHashes(differing);
+
+        Set<String> keys = new LinkedHashSet<>(local.keySet());
+        remote.values().forEach(entries -> keys.addAll(entries.keySet()));
+        Map<String, List<String>> pulls = new LinkedHashMap<>(); //keys to copy from each replica
+        Map<String, Long> winners = new HashMap<>();
+        for (String key : keys) {
+            List<String> replicas = rangeOf(primaryRanges, key).replicas();
+            Long winner = decide(key, replicas, local, remote);
+            winners.put(key, winner);
+            if (!winner.equals(local.get(key))) {
+                for (String replica : replicas.subList(1, replicas.size())) {
+                    if (remote.containsKey(replica) && winner.equals(remote.get(replica).get(key))) {
+                        pulls.computeIfAbsent(replica, r -> new ArrayList<>()).add(key);
+                        break;
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String, List<String>> pull : pulls.entrySet()) {
+            pull(pull.getKey(), pull.getValue(), local, winners);
+        }
+
+        Map<String, List<String>> pushes = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, Long>> replica : remote.entrySet()) {
+            for (String key : keys) {
+                Long winner = winners.get(key);
+                //only keys this node has the winning value of, a pull that failed is retried next round
+                if (winner.equals(local.get(key)) && !winner.equals(replica.getValue().get(key))
+                        && leavesByReplica.get(replica.getKey()).containsKey(rangeOf(primaryRanges, key).end())) {
+                    pushes.computeIfAbsent(replica.getKey(), r -> new ArrayList<>()).add(key);
+                }
+            }
+        }
+        logger.log(Level.INFO, "Anti-entropy: {0} ranges differ, pulled keys from {1} and pushed keys to {2}",
+                new Object[]{differing.size(), pulls.keySet(), pushes.keySet()});
+        for (Map.Entry<String, List<String>> push : pushes.entrySet()) {
+            push(push.getKey(), push.getValue());
+        }
+    }
+
+    /**
+     * @return the entry hash most of the replicas that have the key agree on, ties going to the earlier replica in
+     * the preference list. A replica missing the key doesn't vote, without tombstones it can't be told apart from one
+     * that missed the write.
+     */
+    private static Long decide(String key, List<String> replicas, Map<String, Long> local, Map<String, Map<String, Long>> remote) {
+        Map<Long, Integer> votes = new HashMap<>();
+        Long winner = null;
+        int winnerVotes = 0;
+        for (String replica : replicas) {
+            Map<String, Long> entries = replica.equals(replicas.get(0)) ? local : remote.get(replica);
+            Long hash = entries == null ? null : entries.get(key);
+            if (hash == null) {
+                continue;
+            }
+            int count = votes.merge(hash, 1, Integer::sum);
+            if (count > winnerVotes) {
+                winner = hash;
+                winnerVotes = count;
+            }
+        }
+        return winner;
+    }
+
+    /**
+     * @return the range the key's token falls in, wrapping around to the first range
+     */
+    private ConsistentHashingManager.TokenRange rangeOf(NavigableMap<Long, ConsistentHashingManager.TokenRange> ranges, String key) {
+        Map.Entry<Long, ConsistentHashingManager.TokenRange> range = ranges.ceilingEntry(hashingManager.tokenOf(key));
+        return (range == null ? ranges.firstEntry() : range).getValue();
+    }
+
+    /**
+     * Walks down both trees of a range from the root, asking only for the children of nodes that differ
+     * @return the leaves that differ, null if the replica or this node no longer has the range
+     */
+    private BitSet differingLeaves(String replica, ConsistentHashingManager.TokenRange range)
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        BitSet leaves = new BitSet(MerkleTree.LEAVES);
+        int[] level = {MerkleTree.ROOT};
+        while (level.length > 0) {
+            PeerPayloadCodec.TreeRequest treeRequest = new PeerPayloadCodec.TreeRequest(range.start(), range.end(), level);
+            PeerMessageFramer.FramedMessage response = request(replica, PeerMessageHandler.MessageType.MERKLE_TREE_REQUEST,
+                    PeerPayloadCodec.encodeTreeRequest(treeRequest), PeerMessageHandler.MessageType.MERKLE_TREE_RESPONSE);
+            long[] remote = PeerPayloadCodec.decodeTreeHashes(response, level.length);
+            long[] local = dataStore.hashes(range.start(), range.end(), level);
+            if (remote == null || local == null) {
+                return null; //the ring is changing, the range is compared again next round
+            }
+            List<Integer> next = new ArrayList<>();
+            for (int i = 0; i < level.length; i++) {
+                if (remote[i] == local[i]) {
+                    continue;
+                }
+                if (MerkleTree.isLeaf(level[i])) {
+                    leaves.set(level[i] - MerkleTree.LEAVES);
+                } else {
+                    next.add(2 * level[i]);
+                    next.add(2 * level[i] + 1);
+                }
+            }
+            level = next.stream().mapToInt(Integer::intValue).toArray();
+        }
+        return leaves;
+    }
+
+    private void push(String replica, List<String> keys) throws InterruptedException {
+        List<CompletableFuture<Boolean>> acks = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            //the current value, a write since the scan has a newer one
+            String value = dataStore.get(key);
+            acks.add(value == null ? replicator.replicateDelete(replica, key) : replicator.replicatePut(replica, key, value));
+        }
+        try {
+            CompletableFuture.allOf(acks.toArray(new CompletableFuture<?>[0])).get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            metrics.counter("antiEntropy.keysPushed").add(acks.stream().filter(CompletableFuture::join).count());
+        } catch (ExecutionException | TimeoutException e) {
+            logger.log(Level.WARNING, "Anti-entropy push to " + replica + " failed", e);
+            metrics.counter("antiEntropy.failures").increment();
+        }
+    }
+
+    /**
+     * Copies the winning values of keys from a replica, each only if this node's entry is still the one compared
+     */
+    private void pull(String replica, List<String> keys, Map<String, Long> local, Map<String, Long> winners) throws InterruptedException {
+        try {
+            PeerMessageFramer.FramedMessage response = request(replica, PeerMessageHandler.MessageType.MULTI_GET_REQUEST,
+                    PeerPayloadCodec.encodeKeys(keys), PeerMessageHandler.MessageType.MULTI_RESPONSE);
+            long pulled = 0;
+            for (KeyResult result : PeerPayloadCodec.decodeKeyResults(response, keys)) {
+                String key = result.getKey();
+                if (result.getStatus() != KeyResult.Status.SUCCESS
+                        || MerkleTrackingStorageEngine.entryHash(key, result.getValue()) != winners.get(key)) {
+                    continue; //written on the replica since
+                }
+                if (dataStore.putIfUnchanged(key, local.get(key), result.getValue())) {
+                    local.put(key, winners.get(key));
+                    pulled++;
+                }
+            }
+            metrics.counter("antiEntropy.keysPulled").add(pulled);
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            logger.log(Level.WARNING, "Anti-entropy pull from " + replica + " failed", e);
+            metrics.counter("antiEntropy.failures").increment();
+        }
+    }
+
+    private PeerMessageFramer.FramedMessage request(String replica, PeerMessageHandler.MessageType type, byte[] payload,
+                                                    PeerMessageHandler.MessageType expected)
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        PeerMessageFramer.FramedMessage response = connectionPool.sendRequestAsync(replica, type, payload)
+                .get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (response.messageType != expected.getByteCode()) {
+            throw new IOException("Unexpected response " + PeerMessageHandler.MessageType.fromByteCode(response.messageType)
+                    + " to " + type + " from " + replica);
+        }
+        return response;
+    }
+}
@@ -2,8 +2,25 @@ package com.JasonRoth;
 
 import com.JasonRoth.handlers.DeleteHandler;
 import com.JasonRoth.handlers.GetHandler;
+import com.JasonRoth.handlers.MetricsHandler;
+import com.JasonRoth.handlers.MultiDeleteHandler;
+import com.JasonRoth.handlers.MultiGetHandler;
+import com.JasonRoth.handlers.MultiPutHandler;
 import com.JasonRoth.handlers.PutHandler;
+import com.JasonRoth.handlers.RingHandler;
 import com.JasonRoth.Logging.LoggingServer;
+import com.JasonRoth.Messaging.PeerConnectionPool;
+import com.JasonRoth.Messaging.PeerMessageProcessor;
+import com.JasonRoth.Messaging.ReplicationBatcher;
+import com.JasonRoth.metrics.MetricsRegistry;
+import com.JasonRoth.storage.LoggedStorageEngine;
+import com.JasonRoth.storage.StorageEngineFactory;
+import com.JasonRoth.storage.WriteAheadLog;
+import com.JasonRoth.storage.merkle.MerkleTrackingStorageEngine;
+import com.JasonRoth.storage.snapshot.RecoveringStorageEngine;
+import com.JasonRoth.storage.snapshot.SnapshotManager;
+import com.JasonRoth.storage.ttl.ExpiryTrackingStorageEngine;
+import com.JasonRoth.util.ExecutorFactory;
 import com.sun.net.httpserver.HttpServer;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
@@ -11,9 +28,12 @@ import org.apache.zookeeper.Watcher;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,44 +41,125 @@ import java.util.logging.Logger;
  * Basic Http server to handle the Key Value Stores endpoints
  */
 public class BasicServer implements LoggingServer, Watcher {
-    private Map<String, String> dataStore; //Hashmap acts as a basic in-memory key value store
+    private LoggedStorageEngine dataStore; //this node's share of the key value pairs, every write is logged before it is applied
+    private ExpiryTrackingStorageEngine expiringStore; //the dataStore, deleting the keys whose values expired
+    private MerkleTrackingStorageEngine trackedStore; //the dataStore as every request sees it, with a Merkle tree per token range
+    private WriteAheadLog writeAheadLog;
+    private SnapshotManager snapshotManager; //restores the dataStore on startup and keeps the log short
+    private MetricsRegistry metrics = new MetricsRegistry();
     private Logger logger;
-    private TCPServer tcpServer;
+    private PeerServer tcpServer;
     private HttpServer server;
+    private ExecutorService httpExecutor;
+    private RespServer respServer; //the Redis protocol listener, null unless dkv.respPortOffset is set
+    private ExecutorService respExecutor;
+    private ExecutorService peerRequestExecutor;
     private String selfAddressString;
 
     private ZooKeeperManager zkManager;
     private ConsistentHashingManager hashingManager;
+    private PeerConnectionPool connectionPool; //long-lived connections to the other nodes, shared by all handlers
+    private ReplicationBatcher replicator;
+    private HintedHandoff hintedHandoff; //writes replicas missed, replayed once they are back
+    private BatchCoordinator batchCoordinator; //write path of every PUT and DELETE, and scatter-gather for the multi-key endpoints
+    private ReplicaReader replicaReader; //reads keys from their replicas at a consistency level
+    private NearCacheService nearCache; //caches values read from other nodes, and invalidates them in other nodes' caches
+    private AntiEntropyService antiEntropy; //compares the Merkle trees of replicas and repairs what differs
+    private Rebalancer rebalancer; //streams the ranges that changed hands to their new replicas
+    private volatile List<String> currentNodes = new ArrayList<>();
+    private RingPlacement ringPlacement; //this node's choice, only used if it creates the cluster
+    private double weight; //this node's capacity relative to the others
 
     public BasicServer(InetSocketAddress serverAddress, int tcpPort) throws IOException {
+        this(serverAddress, tcpPort, ServerConfig.fromSystemProperties());
+    }
+
+    public BasicServer(InetSocketAddress serverAddress, int tcpPort, ServerConfig config) throws IOException {
         this.selfAddressString = serverAddress.getHostString() + ":" + tcpPort;
-        dataStore = new ConcurrentHashMap<>();
         logger = initializeLogging(this.getClass().getCanonicalName() + ":" + serverAddress.getPort());
-
-        tcpServer = new TCPServer(tcpPort, dataStore);
+        //each node keeps its files in its own directory so several nodes can share a data directory
+        Path nodeDirectory = Path.of(config.getDataDirectory(), serverAddress.getHostString() + "_" + tcpPort);
+        RecoveringStorageEngine recoveringStore = new RecoveringStorageEngine(StorageEngineFactory.create(config, nodeDirectory, logger));
+        writeAheadLog = new WriteAheadLog(nodeDirectory, config.getWalDurability(), config.getWalSyncIntervalMillis(), logger);
+        dataStore = new LoggedStorageEngine(recoveringStore, writeAheadLog);
+        snapshotManager = new SnapshotManager(nodeDirectory, dataStore, recoveringStore, writeAheadLog, config.getSnapshotIntervalSeconds(), metrics, logger);
 
         zkManager = new ZooKeeperManager();
-        hashingManager = new ConsistentHashingManager(10);//10 virtual nodes per server
+        ringPlacement = config.getRingPlacement();
+        weight = config.getWeight();
+        hashingManager = new ConsistentHashingManager(ringPlacement);
+        expiringStore = new ExpiryTrackingStorageEngine(dataStore, config.getTtlTickMillis(), metrics, logger);
+        trackedStore = new MerkleTrackingStorageEngine(expiringStore, hashingManager::tokenOf);
+        peerRequestExecutor = ExecutorFactory.create(config.getExecutionModel(), "peer-client-" + tcpPort, config.getFixedPoolThreads());
+        connectionPool = new PeerConnectionPool(selfAddressString, peerRequestExecutor, logger);
+        replicator = new ReplicationBatcher(connectionPool, config.getReplicationBatchMaxEntries(), config.getReplicationBatchMaxBytes(),
+                config.getReplicationLingerMicros(), peerRequestExecutor, metrics, logger);
+        rebalancer = new Rebalancer(selfAddressString, trackedStore, hashingManager, connectionPool, config.getRebalanceChunkBytes(),
+                config.getRebalanceRateBytesPerSecond(), metrics, logger);
+        hintedHandoff = new HintedHandoff(nodeDirectory, trackedStore, replicator, config.getHintMaxBytes(), config.getHintReplayRatePerSecond(), metrics, logger);
+        replicaReader = new ReplicaReader(selfAddressString, trackedStore, hashingManager, connectionPool, replicator, rebalancer, metrics, logger);
+        nearCache = new NearCacheService(selfAddressString, config.getNearCacheMaxBytes(), config.getNearCacheTtlMillis(), hashingManager,
+                connectionPool, replicaReader, rebalancer, peerRequestExecutor, metrics, logger);
+        batchCoordinator = new BatchCoordinator(selfAddressString, trackedStore, hashingManager, connectionPool, hintedHandoff, rebalancer,
+                nearCache, peerRequestExecutor, metrics, logger);
+        antiEntropy = new AntiEntropyService(selfAddressString, trackedStore, hashingManager, connectionPool, replicator,
+                config.getAntiEntropyIntervalSeconds(), metrics, logger);
+
+        PeerMessageProcessor processor = new PeerMessageProcessor(logger, trackedStore, batchCoordinator, replicaReader, antiEntropy, rebalancer, nearCache);
+        if(config.getPeerServerType() == ServerConfig.PeerServerType.NIO){
+            tcpServer = new NioTCPServer(tcpPort, processor, config);
+        }else{
+            tcpServer = new TCPServer(tcpPort, processor, config);
+        }
 
         try{
-             server = HttpServer.create(serverAddress, 0);
+             if(config.getHttpServerType() == ServerConfig.HttpServerType.NIO){
+                 server = new NioHttpServer(serverAddress, config.getHttpEventLoopThreads());
+             }else{
+                 server = HttpServer.create(serverAddress, 0);
+             }
+             //without an executor every request would run on the server's single dispatcher thread
+             httpExecutor = ExecutorFactory.create(config.getExecutionModel(), "http-" + serverAddress.getPort(), config.getFixedPoolThreads());
+             server.setExecutor(httpExecutor);
         }catch (IOException ioe){
             System.err.println("Could not create HttpServer: " + ioe.getMessage());
             System.exit(1);
         }
 
         //Create server contexts
-        server.createContext("/put", new PutHandler(selfAddressString, dataStore, hashingManager, logger)); //endpoint for putting a new key value pair into the datastore
-        server.createContext("/get", new GetHandler(selfAddressString, dataStore, hashingManager, logger)); //endpoint for getting a value for a key
-        server.createContext("/delete", new DeleteHandler(selfAddressString, dataStore, hashingManager, logger)); //endpoint for deleting a key value pair from the datastore
+        server.createContext("/put", new PutHandler(batchCoordinator, config.getWriteConsistency(), logger)); //endpoint for putting a new key value pair into the datastore
+        server.createContext("/get", new GetHandler(nearCache, config.getReadConsistency(), logger)); //endpoint for getting a value for a key
+        server.createContext("/delete", new DeleteHandler(batchCoordinator, config.getWriteConsistency(), logger)); //endpoint for deleting a key value pair from the datastore
+        server.createContext("/mget", new MultiGetHandler(batchCoordinator, logger)); //endpoint for getting the values of several keys
+        server.createContext("/mput", new MultiPutHandler(batchCoordinator, config.getWriteConsistency(), logger)); //endpoint for putting several key value pairs
+        server.createContext("/mdelete", new MultiDeleteHandler(batchCoordinator, config.getWriteConsistency(), logger)); //endpoint for deleting several keys
+        server.createContext("/metrics", new MetricsHandler(metrics)); //endpoint for the node's counters and timers
+        server.createContext("/ring", new RingHandler(hashingManager)); //endpoint for the ring's placement and each node's share of it
+
+        if(config.getRespPortOffset() > 0){
+            InetSocketAddress respAddress = new InetSocketAddress(serverAddress.getHostString(), serverAddress.getPort() + config.getRespPortOffset());
+            respExecutor = ExecutorFactory.create(config.getExecutionModel(), "resp-" + respAddress.getPort(), config.getFixedPoolThreads());
+            respServer = new RespServer(respAddress, batchCoordinator, replicaReader, config, respExecutor);
+        }
     }
 
     public void start() throws IOException, InterruptedException {
+        //Restore the dataStore from the latest snapshot and the log before this node becomes visible to the rest of the ring
+        snapshotManager.recover();
+        snapshotManager.start();
+        expiringStore.start(trackedStore);
+
         //Connect to zookeeper and register this node
         zkManager.connect();
         try{
-            //register and set a watch
-            zkManager.registerNode(selfAddressString, this);
+            //every node must place keys the same way, so the cluster's placement wins over this node's
+            RingPlacement clusterPlacement = zkManager.ensureRingPlacement(ringPlacement, this);
+            if(!clusterPlacement.equals(ringPlacement)){
+                logger.log(Level.WARNING, "Using the cluster''s ring placement {0} instead of the configured {1}", new Object[]{clusterPlacement, ringPlacement});
+            }
+            hashingManager.updateNodes(Map.of(), clusterPlacement);
+            //register with this node's weight and set a watch
+            zkManager.registerNode(selfAddressString, weight, this);
             logger.log(Level.INFO, "Node " + selfAddressString + " registered with ZooKeeper");
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Failed to register with ZooKeeper", e);
@@ -77,23 +178,58 @@ public class BasicServer implements LoggingServer, Watcher {
 
         //build the initial hash ring
         try{
-            List<String> liveNodes = zkManager.getLiveNodes(this);
-            hashingManager.updateNodes(liveNodes);
-            logger.log(Level.INFO, "Initial ring built with " + liveNodes.size() + " nodes: " + liveNodes);
+            Map<String, Double> liveWeights = zkManager.getLiveNodeWeights(this);
+            List<String> liveNodes = List.copyOf(liveWeights.keySet());
+            hashingManager.updateNodes(liveWeights);
+            hintedHandoff.membershipChanged(liveNodes);
+            antiEntropy.membershipChanged();
+            //the rest of the ring streams this node the ranges it takes over from them
+            Map<String, Double> previousWeights = new TreeMap<>(liveWeights);
+            previousWeights.remove(selfAddressString);
+            rebalancer.membershipChanged(previousWeights, liveWeights);
+            currentNodes = liveNodes;
+            logger.log(Level.INFO, "Initial ring built with " + liveNodes.size() + " nodes, ownership: " + hashingManager.getOwnership());
         } catch (KeeperException e) {
             logger.log(Level.SEVERE, "Failed to build initial ring", e);
             throw new IOException("Could not start server, failed to build ZK ring", e);
         }
 
         server.start(); // starts the server that handles basic http endpoints
+        if(respServer != null){
+            respServer.start(); // starts the listener for Redis protocol clients
+        }
         tcpServer.start(); // starts the tcp server that handles internode communication on tcpPort
+        antiEntropy.start();
         logger.log(Level.INFO, "Server started on " + selfAddressString);
     }
 
     public void stop() throws InterruptedException {
         server.stop(0);
+        httpExecutor.shutdownNow();
+        if(respServer != null){
+            respServer.shutdown();
+            respExecutor.shutdownNow();
+        }
         tcpServer.shutdown();
+        antiEntropy.close();
+        nearCache.close();
+        rebalancer.close();
+        hintedHandoff.close();
+        replicator.close();
+        connectionPool.close();
+        peerRequestExecutor.shutdownNow();
         zkManager.close();
+        snapshotManager.close();
+        try{
+            writeAheadLog.close();
+        }catch (IOException e){
+            logger.log(Level.WARNING, "Failed to close write-ahead log", e);
+        }
+        try{
+            expiringStore.close();
+        }catch (IOException e){
+            logger.log(Level.WARNING, "Failed to close storage engine", e);
+        }
         logger.log(Level.INFO, "Server stopped.");
     }
 
@@ -103,12 +239,48 @@ public class BasicServer implements LoggingServer, Watcher {
         if(event.getType() == Event.EventType.NodeChildrenChanged && event.getPath().equals(ZooKeeperManager.ZK_NODES_PATH)) {
             try{
                 logger.log(Level.INFO, "Node membership changed. Rebuilding hashing ring...");
-                List<String> liveNodes = zkManager.getLiveNodes(this);
-                hashingManager.updateNodes(liveNodes); //Re-fetch and update the ring
-                logger.log(Level.INFO, "New ring nodes: " + liveNodes);
+                Map<String, Double> previousWeights = hashingManager.getWeights();
+                Map<String, Double> liveWeights = zkManager.getLiveNodeWeights(this);
+                List<String> liveNodes = List.copyOf(liveWeights.keySet());
+                hashingManager.updateNodes(liveWeights); //Re-fetch and update the ring
+                //drop pooled connections to nodes that left the ring
+                for(String node : currentNodes){
+                    if(!liveNodes.contains(node)){
+                        replicator.evict(node);
+                        connectionPool.evict(node);
+                    }
+                }
+                //replicas that are back get the writes they missed
+                hintedHandoff.membershipChanged(liveNodes);
+                //the ranges moved, so the trees are rebuilt for the new ones
+                antiEntropy.membershipChanged();
+                //data of the ranges that changed hands is streamed to their new replicas
+                rebalancer.membershipChanged(previousWeights, liveWeights);
+                //new primaries don't know which values this node caches, and nodes that left no longer cache any
+                nearCache.membershipChanged(liveNodes);
+                currentNodes = liveNodes;
+                logger.log(Level.INFO, "New ring ownership: " + hashingManager.getOwnership());
             }catch (Exception e){
                 logger.log(Level.SEVERE, "Error updating node list from ZooKeeper", e);
             }
+        } else if(event.getType() == Event.EventType.NodeDataChanged && event.getPath().equals(ZooKeeperManager.ZK_RING_PATH)) {
+            try{
+                RingPlacement placement = zkManager.getRingPlacement(this);
+                if(placement.equals(hashingManager.getPlacement())){
+                    return;
+                }
+                logger.log(Level.INFO, "Ring placement changed to " + placement + ". Rebuilding hashing ring...");
+                Map<String, Double> liveWeights = hashingManager.getWeights();
+                ConsistentHashingManager before = hashingManager.withNodes(liveWeights);
+                hashingManager.updateNodes(liveWeights, placement);
+                //the tokens moved, so the trees are rebuilt
+                antiEntropy.membershipChanged();
+                //the keys that changed replicas are streamed over by their old ones
+                rebalancer.placementChanged(before, liveWeights);
+                nearCache.clear();
+            }catch (Exception e){
+                logger.log(Level.SEVERE, "Error updating ring placement from ZooKeeper", e);
+            }
         }
     }
 }
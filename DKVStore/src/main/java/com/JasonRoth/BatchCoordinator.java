@@ -0,0 +1,513 @@
+package com.JasonRoth;
+
+import com.JasonRoth.Messaging.KeyResult;
+import com.JasonRoth.Messaging.KeyValue;
+import com.JasonRoth.Messaging.PeerConnectionPool;
+import com.JasonRoth.Messaging.PeerMessageFramer;
+import com.JasonRoth.Messaging.PeerMessageHandler;
+import com.JasonRoth.Messaging.PeerPayloadCodec;
+import com.JasonRoth.metrics.MetricsRegistry;
+import com.JasonRoth.storage.PartialWriteException;
+import com.JasonRoth.storage.StorageEngine;
+import com.JasonRoth.storage.WriteBatch;
+import com.JasonRoth.storage.ttl.ExpiringValues;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Scatter-gather behind the multi-key endpoints, and the write path of single PUTs and DELETEs as batches of one.
+ * The keys of a request are grouped by their primary node, each group is sent to its primary as a single
+ * MULTI_GET_REQUEST or MULTI_WRITE_REQUEST, all groups in parallel, and the per-key results are merged back into
+ * request order. A group whose primary can't be reached fails only its own keys.
+ *
+ * The primary of a write group applies it with one log sync and replicates every key. Each key succeeds once as many
+ * of its replicas have it as the request's consistency level asks for, independently of the other keys in the group.
+ * At ONE that is the primary's own write, and the replicas catch up in the background.
+ *
+ * Values are encoded with their expiry, see {@link ExpiringValues}, when a write is scattered, and decoded when the
+ * results of a read are merged, so everything in between moves them as they are stored.
+ */
+public class BatchCoordinator {
+    private static final int REPLICATION_FACTOR = 3;
+    private static final long QUORUM_TIMEOUT_SECONDS = 5;
+
+    private final String selfAddressString;
+    private final StorageEngine dataStore;
+    private final ConsistentHashingManager hashingManager;
+    private final PeerConnectionPool connectionPool;
+    private final HintedHandoff hintedHandoff;
+    private final Rebalancer rebalancer;
+    private final NearCacheService nearCache; //null without a near cache
+    private final ExecutorService executor;
+    private final MetricsRegistry metrics;
+    private final Logger logger;
+
+    /**
+     * @param selfAddressString this node's internode address
+     * @param dataStore this node's storage engine
+     * @param hashingManager the ring the keys are grouped by
+     * @param connectionPool connections to the other nodes
+     * @param hintedHandoff replicates the writes this node is primary for, hinting the ones a replica misses
+     * @param rebalancer reads the keys this node is primary for whose range is still streaming in
+     * @param nearCache invalidates the keys written in this node's near cache and in the coordinators caching the
+     *                  keys this node is primary for, null if there is no near cache
+     * @param executor runs the protocol negotiation with a peer the first time a group is sent to it
+     * @param metrics where write latencies are recorded per consistency level
+     * @param logger the logger of this node
+     */
+    public BatchCoordinator(String selfAddressString, StorageEngine dataStore, ConsistentHashingManager hashingManager,
+                            PeerConnectionPool connectionPool, HintedHandoff hintedHandoff, Rebalancer rebalancer,
+                            NearCacheService nearCache, ExecutorService executor, MetricsRegistry metrics, Logger logger) {
+        this.selfAddressString = selfAddressString;
+        this.dataStore = dataStore;
+        this.hashingManager = hashingManager;
+        this.connectionPool = connectionPool;
+        this.hintedHandoff = hintedHandoff;
+        this.rebalancer = rebalancer;
+        this.nearCache = nearCache;
+        this.executor = executor;
+        this.metrics = metrics;
+        this.logger = logger;
+    }
+
+    /**
+     * Reads several keys from their primaries
+     * @param keys the keys to read, may repeat
+     * @return a future completed with one result per key in request order, keys that expired are not found. It
+     * never completes exceptionally.
+     */
+    public CompletableFuture<List<KeyResult>> get(List<String> keys) {
+        KeyResult[] results = new KeyResult[keys.size()];
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            String owner = hashingManager.getNodeForKey(keys.get(i));
+            if (owner == null) {
+                results[i] = KeyResult.failed(keys.get(i), "No nodes available");
+            } else {
+                groups.computeIfAbsent(owner, o -> new ArrayList<>()).add(i);
+            }
+        }
+        return scatter(keys, results, groups, (owner, indexes) -> {
+            List<String> groupKeys = indexes.stream().map(keys::get).toList();
+            return owner.equals(selfAddressString)
+                    ? rebalancer.get(groupKeys)
+                    : getRemote(owner, groupKeys);
+        }).thenApply(stored -> stored.stream().map(BatchCoordinator::decode).toList());
+    }
+
+    /**
+     * @param key a key to write
+     * @param level the consistency level of the write
+     * @return true if the ring has enough nodes for the key to be written at the level
+     */
+    public boolean hasEnoughReplicas(String key, ConsistencyLevel level) {
+        List<String> responsibleNodes = hashingManager.getNodesForKey(key, REPLICATION_FACTOR);
+        return responsibleNodes != null && responsibleNodes.size() >= level.requiredReplicas(REPLICATION_FACTOR);
+    }
+
+    /**
+     * Applies several PUTs and DELETEs through their primaries
+     * @param batch the writes, writes to the same key are applied in order
+     * @param level how many replicas of each key must have a write before it succeeds
+     * @return a future completed with one result per write in batch order, it never completes exceptionally
+     */
+    public CompletableFuture<List<KeyResult>> write(WriteBatch batch, ConsistencyLevel level) {
+        return write(batch, level, 0);
+    }
+
+    /**
+     * Applies several PUTs and DELETEs through their primaries, the keys PUT expire after a time to live
+     * @param batch the writes, writes to the same key are applied in order
+     * @param level how many replicas of each key must have a write before it succeeds
+     * @param ttlMillis how long the values PUT are kept from now, 0 keeps them until they are replaced or deleted
+     * @return a future completed with one result per write in batch order, it never completes exceptionally
+     */
+    public CompletableFuture<List<KeyResult>> write(WriteBatch batch, ConsistencyLevel level, long ttlMillis) {
+        long start = System.nanoTime();
+        //the expiry is an absolute time, so every replica expires the key at the same time however late it applies it
+        long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0;
+        List<WriteBatch.Operation> operations = batch.getOperations().stream()
+                .map(operation -> operation.isDelete() ? operation : new WriteBatch.Operation(operation.key(), ExpiringValues.encode(operation.value(), expiresAt)))
+                .toList();
+        List<String> keys = operations.stream().map(WriteBatch.Operation::key).toList();
+        if (nearCache != null) {
+            //the primary's invalidations may arrive after the response, so a read through this node after the write
+            //can't be served a value cached before it
+            nearCache.invalidate(keys);
+        }
+        return outdatedReplicas(operations).thenCompose(outdated -> {
+            KeyResult[] results = new KeyResult[operations.size()];
+            Map<String, List<Integer>> groups = new LinkedHashMap<>();
+            for (int i = 0; i < operations.size(); i++) {
+                WriteBatch.Operation operation = operations.get(i);
+                String owner = hashingManager.getNodeForKey(operation.key());
+                String unsupported = outdated.isEmpty() ? null : unsupportedReplica(operation, outdated);
+                if (owner == null) {
+                    results[i] = KeyResult.failed(operation.key(), "No nodes available");
+                } else if (unsupported != null) {
+                    results[i] = KeyResult.failed(operation.key(), "Replica " + unsupported + " uses protocol version "
+                            + outdated.get(unsupported) + ", which can't store a value with an expiry");
+                } else {
+                    groups.computeIfAbsent(owner, o -> new ArrayList<>()).add(i);
+                }
+            }
+            return scatter(keys, results, groups, (owner, indexes) -> {
+                WriteBatch group = new WriteBatch();
+                for (int index : indexes) {
+                    WriteBatch.Operation operation = operations.get(index);
+                    if (operation.isDelete()) {
+                        group.delete(operation.key());
+                    } else {
+                        group.put(operation.key(), operation.value());
+                    }
+                }
+                return owner.equals(selfAddressString) ? writeAsPrimary(group, level) : writeRemote(owner, group, level);
+            });
+        }).whenComplete((written, error) -> {
+            if (nearCache != null) {
+                //values read while the write was in flight may predate it
+                nearCache.invalidate(keys);
+            }
+            metrics.timer("write." + level.name().toLowerCase()).recordSince(start);
+        });
+    }
+
+    /**
+     * Finds the replicas of the values with an expiry header that speak a protocol version too old to know it. A
+     * replica that can't be reached isn't counted, it negotiates again once it is back and may have been upgraded.
+     * Writes without a header don't look up any version.
+     * @return a future completed with the outdated replicas and their versions
+     */
+    private CompletableFuture<Map<String, Integer>> outdatedReplicas(List<WriteBatch.Operation> operations) {
+        Map<String, CompletableFuture<Integer>> versions = new HashMap<>();
+        for (WriteBatch.Operation operation : operations) {
+            if (operation.isDelete() || !ExpiringValues.isEncoded(operation.value())) {
+                continue;
+            }
+            List<String> replicas = hashingManager.getNodesForKey(operation.key(), REPLICATION_FACTOR);
+            for (String replica : replicas == null ? List.<String>of() : replicas) {
+                if (!replica.equals(selfAddressString)) {
+                    versions.computeIfAbsent(replica, r -> withProtocolVersion(r)
+                            .exceptionally(error -> PeerMessageFramer.CURRENT_PROTOCOL_VERSION));
+                }
+            }
+        }
+        if (versions.isEmpty()) {
+            return CompletableFuture.completedFuture(Map.of());
+        }
+        return CompletableFuture.allOf(versions.values().toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            Map<String, Integer> outdated = new HashMap<>();
+            versions.forEach((replica, version) -> {
+                if (version.join() < PeerMessageFramer.PROTOCOL_V11) {
+                    outdated.put(replica, version.join());
+                }
+            });
+            return outdated;
+        });
+    }
+
+    /**
+     * @return an outdated replica of the write's key if its value has an expiry header, null otherwise
+     */
+    private String unsupportedReplica(WriteBatch.Operation operation, Map<String, Integer> outdated) {
+        if (operation.isDelete() || !ExpiringValues.isEncoded(operation.value())) {
+            return null;
+        }
+        List<String> replicas = hashingManager.getNodesForKey(operation.key(), REPLICATION_FACTOR);
+        if (replicas == null) {
+            return null;
+        }
+        return replicas.stream().filter(outdated::containsKey).findFirst().orElse(null);
+    }
+
+    /**
+     * Reads keys from this node's data store, used for the keys this node is primary for
+     * @param keys the keys to read
+     * @return one result per key in request order
+     */
+    public List<KeyResult> getLocal(List<String> keys) {
+        List<KeyResult> results = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            String value = dataStore.get(key);
+            results.add(value == null ? KeyResult.notFound(key) : KeyResult.success(key, value));
+        }
+        return results;
+    }
+
+    /**
+     * Applies writes this node is primary for. They are logged and applied locally as one batch, then replicated,
+     * and each write succeeds once enough of its replicas for the level have acknowledged it. Deleting a key that
+     * isn't stored is reported as not found and not replicated.
+     * @param batch the writes
+     * @param level how many replicas of each key must have a write before it succeeds, this node's write included
+     * @return a future completed with one result per write in batch order, within the quorum timeout
+     */
+    public CompletableFuture<List<KeyResult>> writeAsPrimary(WriteBatch batch, ConsistencyLevel level) {
+        int required = level.requiredReplicas(REPLICATION_FACTOR);
+        List<WriteBatch.Operation> operations = batch.getOperations();
+        List<CompletableFuture<KeyResult>> results = new ArrayList<>(operations.size());
+        List<List<String>> replicasPerWrite = new ArrayList<>(operations.size());
+        WriteBatch local = new WriteBatch();
+        //whether each key exists once the earlier writes of the batch are applied
+        Map<String, Boolean> present = new HashMap<>();
+        for (WriteBatch.Operation operation : operations) {
+            String key = operation.key();
+            List<String> responsibleNodes = hashingManager.getNodesForKey(key, REPLICATION_FACTOR);
+            replicasPerWrite.add(null);
+            if (responsibleNodes == null || responsibleNodes.size() < required) {
+                results.add(CompletableFuture.completedFuture(KeyResult.failed(key, "Not enough nodes available for a " + level + " write")));
+                continue;
+            }
+            if (operation.isDelete()) {
+                Boolean exists = present.get(key);
+                //a key that expired is deleted as if it wasn't stored, its timer reclaims it
+                if (exists == null ? ExpiringValues.live(dataStore.get(key)) == null : !exists) {
+                    results.add(CompletableFuture.completedFuture(KeyResult.notFound(key)));
+                    continue;
+                }
+                local.delete(key);
+                present.put(key, false);
+            } else {
+                local.put(key, operation.value());
+                present.put(key, true);
+            }
+            replicasPerWrite.set(replicasPerWrite.size() - 1, responsibleNodes.stream().filter(n -> !n.equals(selfAddressString)).toList());
+            results.add(null); //filled in once the write is replicated
+        }
+
+        //how many writes at the start of the local batch were applied
+        int applied;
+        try {
+            //one log sync for the whole batch
+            dataStore.write(local);
+            applied = local.size();
+        } catch (PartialWriteException e) {
+            logger.log(Level.SEVERE, "Failed to write batch of " + local.size() + " writes after applying " + e.getApplied(), e);
+            applied = e.getApplied();
+        } catch (UncheckedIOException e) {
+            logger.log(Level.SEVERE, "Failed to write batch of " + local.size() + " writes", e);
+            applied = 0;
+        }
+        if (applied > 0 && nearCache != null) {
+            nearCache.keysWritten(local.getOperations().subList(0, applied).stream().map(WriteBatch.Operation::key).toList());
+        }
+
+        //the writes that were applied are replicated even if a later one failed, the rest fail
+        int localIndex = 0;
+        for (int i = 0; i < operations.size(); i++) {
+            if (results.get(i) != null) {
+                continue;
+            }
+            WriteBatch.Operation operation = operations.get(i);
+            String key = operation.key();
+            if (localIndex++ >= applied) {
+                results.set(i, CompletableFuture.completedFuture(KeyResult.failed(key, "Server error during write operation")));
+                continue;
+            }
+            //writes to the same follower are coalesced into batches, a follower that misses one gets it once it is back
+            List<CompletableFuture<Boolean>> acks = new ArrayList<>();
+            for (String replicaAddress : replicasPerWrite.get(i)) {
+                acks.add(hintedHandoff.replicate(replicaAddress, key, operation.value()));
+            }
+            //this node's own write counts towards the level, at ONE the replicas are only waited for by the batcher
+            results.set(i, awaitAcks(acks, required - 1).thenApply(met -> met
+                    ? KeyResult.success(key, null)
+                    : KeyResult.failed(key, "Write failed, " + level + " not met")));
+        }
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> results.stream().map(CompletableFuture::join).toList());
+    }
+
+    private CompletableFuture<List<KeyResult>> getRemote(String owner, List<String> keys) {
+        return withProtocolVersion(owner).thenCompose(version -> {
+            if (version >= PeerMessageFramer.PROTOCOL_V5) {
+                return connectionPool.sendRequestAsync(owner, PeerMessageHandler.MessageType.MULTI_GET_REQUEST, PeerPayloadCodec.encodeKeys(keys))
+                        .thenApply(response -> decodeResults(owner, response, keys));
+            }
+            //peers that predate multi-key requests get one forwarded GET per key
+            List<CompletableFuture<KeyResult>> results = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                results.add(connectionPool.sendRequestAsync(owner, PeerMessageHandler.MessageType.FORWARD_GET_REQUEST, key.getBytes(StandardCharsets.UTF_8))
+                        .thenApply(response -> {
+                            PeerMessageHandler.MessageType type = PeerMessageHandler.MessageType.fromByteCode(response.messageType);
+                            if (type == PeerMessageHandler.MessageType.VALUE_RESPONSE) {
+                                try {
+                                    return KeyResult.success(key, PeerPayloadCodec.decodeKeyValue(response).getValue());
+                                } catch (IOException e) {
+                                    throw new CompletionException(e);
+                                }
+                            }
+                            return type == PeerMessageHandler.MessageType.KEY_NOT_FOUND_RESPONSE
+                                    ? KeyResult.notFound(key)
+                                    : KeyResult.failed(key, "Unexpected response " + type + " from " + owner);
+                        })
+                        .exceptionally(error -> failed(owner, key, error)));
+            }
+            return joinAll(results);
+        });
+    }
+
+    private CompletableFuture<List<KeyResult>> writeRemote(String owner, WriteBatch batch, ConsistencyLevel level) {
+        List<WriteBatch.Operation> operations = batch.getOperations();
+        List<String> keys = operations.stream().map(WriteBatch.Operation::key).toList();
+        return withProtocolVersion(owner).thenCompose(version -> {
+            if (version >= PeerMessageFramer.PROTOCOL_V5) {
+                return connectionPool.sendRequestAsync(owner, PeerMessageHandler.MessageType.MULTI_WRITE_REQUEST, v -> PeerPayloadCodec.encodeWriteBatch(v, batch, level))
+                        .thenApply(response -> decodeResults(owner, response, keys));
+            }
+            //peers that predate multi-key requests get one forwarded PUT or DELETE per key, which they don't replicate
+            List<CompletableFuture<KeyResult>> results = new ArrayList<>(operations.size());
+            for (WriteBatch.Operation operation : operations) {
+                String key = operation.key();
+                CompletableFuture<PeerMessageFramer.FramedMessage> response = operation.isDelete()
+                        ? connectionPool.sendRequestAsync(owner, PeerMessageHandler.MessageType.FORWARD_DELETE_REQUEST, key.getBytes(StandardCharsets.UTF_8))
+                        : connectionPool.sendRequestAsync(owner, PeerMessageHandler.MessageType.FORWARD_PUT_REQUEST,
+                                v -> PeerPayloadCodec.encode(v, new KeyValue(key, operation.value())));
+                results.add(response.thenApply(message -> {
+                            PeerMessageHandler.MessageType type = PeerMessageHandler.MessageType.fromByteCode(message.messageType);
+                            if (type == PeerMessageHandler.MessageType.OPERATION_SUCCESS_RESPONSE) {
+                                return KeyResult.success(key, null);
+                            }
+                            return type == PeerMessageHandler.MessageType.KEY_NOT_FOUND_RESPONSE
+                                    ? KeyResult.notFound(key)
+                                    : KeyResult.failed(key, "Unexpected response " + type + " from " + owner);
+                        })
+                        .exceptionally(error -> failed(owner, key, error)));
+            }
+            return joinAll(results);
+        });
+    }
+
+    /**
+     * Sends every group, then fills in the results of each one as it arrives
+     * @param keys the key of every result slot
+     * @param results the merged results, already holding the keys that couldn't be grouped
+     * @param groups the indexes into results of each primary's keys
+     * @param send sends one group and returns its results in the order of its indexes
+     */
+    private CompletableFuture<List<KeyResult>> scatter(List<String> keys, KeyResult[] results, Map<String, List<Integer>> groups,
+                                                       BiFunction<String, List<Integer>, CompletableFuture<List<KeyResult>>> send) {
+        List<CompletableFuture<Void>> gathered = new ArrayList<>(groups.size());
+        for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+            String owner = group.getKey();
+            List<Integer> indexes = group.getValue();
+            CompletableFuture<List<KeyResult>> sent;
+            try {
+                sent = send.apply(owner, indexes);
+            } catch (RuntimeException e) {
+                sent = CompletableFuture.failedFuture(e);
+            }
+            gathered.add(sent.handle((groupResults, error) -> {
+                for (int i = 0; i < indexes.size(); i++) {
+                    //slots are disjoint, allOf below publishes them to the thread that reads the array
+                    int index = indexes.get(i);
+                    results[index] = error == null ? groupResults.get(i) : failed(owner, keys.get(index), error);
+                }
+                return null;
+            }));
+        }
+        return CompletableFuture.allOf(gathered.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> Arrays.asList(results));
+    }
+
+    private CompletableFuture<Integer> withProtocolVersion(String peerAddress) {
+        int version = connectionPool.connectedProtocolVersion(peerAddress);
+        if (version != PeerConnectionPool.VERSION_UNKNOWN) {
+            return CompletableFuture.completedFuture(version);
+        }
+        //negotiating the first time may block on connecting, so it runs on the executor rather than the caller
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return connectionPool.protocolVersion(peerAddress);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private static List<KeyResult> decodeResults(String owner, PeerMessageFramer.FramedMessage response, List<String> keys) {
+        if (response.messageType != PeerMessageHandler.MessageType.MULTI_RESPONSE.getByteCode()) {
+            throw new CompletionException(new IOException("Unexpected response "
+                    + PeerMessageHandler.MessageType.fromByteCode(response.messageType) + " from " + owner));
+        }
+        try {
+            return PeerPayloadCodec.decodeKeyResults(response, keys);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * @return the result with its value as the client gave it, not found if it expired
+     */
+    private static KeyResult decode(KeyResult result) {
+        if (result.getStatus() != KeyResult.Status.SUCCESS || result.getValue() == null) {
+            return result;
+        }
+        String value = ExpiringValues.decode(result.getValue());
+        return value == null ? KeyResult.notFound(result.getKey()) : KeyResult.success(result.getKey(), value);
+    }
+
+    private KeyResult failed(String owner, String key, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        logger.log(Level.WARNING, "Multi-key request to " + owner + " failed for key " + key, cause);
+        return KeyResult.failed(key, "Request to " + owner + " failed: " + cause.getMessage());
+    }
+
+    private static CompletableFuture<List<KeyResult>> joinAll(List<CompletableFuture<KeyResult>> results) {
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> results.stream().map(CompletableFuture::join).toList());
+    }
+
+    /**
+     * @param acks the replicas' acknowledgements
+     * @param needed how many of them must succeed
+     * @return a future completed with true as soon as enough acks succeeded, with false once too many failed or the
+     * quorum timeout passed. Acks arriving after that are only counted if they failed.
+     */
+    private CompletableFuture<Boolean> awaitAcks(List<CompletableFuture<Boolean>> acks, int needed) {
+        CompletableFuture<Boolean> quorum = new CompletableFuture<>();
+        for (CompletableFuture<Boolean> ack : acks) {
+            ack.thenAccept(acked -> {
+                if (!acked) {
+                    metrics.counter("write.replicaFailures").increment();
+                }
+            });
+        }
+        if (needed <= 0) {
+            quorum.complete(true);
+            return quorum;
+        }
+        AtomicInteger successes = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        int allowedFailures = acks.size() - needed;
+        for (CompletableFuture<Boolean> ack : acks) {
+            ack.thenAccept(acked -> {
+                if (acked) {
+                    if (successes.incrementAndGet() >= needed) {
+                        quorum.complete(true);
+                    }
+                } else if (failures.incrementAndGet() > allowedFailures) {
+                    quorum.complete(false);
+                }
+            });
+        }
+        return quorum.completeOnTimeout(false, QUORUM_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,31 @@
+package com.JasonRoth;
+
+/**
+ * How many replicas of a key take part in a request before it is answered
+ */
+public enum ConsistencyLevel {
+    ONE, //a single replica
+    QUORUM, //a majority of the replicas
+    ALL; //every replica
+
+    /**
+     * @param replicationFactor the number of replicas a key has
+     * @return how many of them must answer
+     */
+    public int requiredReplicas(int replicationFactor) {
+        return switch (this) {
+            case ONE -> 1;
+            case QUORUM -> (replicationFactor / 2) + 1;
+            case ALL -> replicationFactor;
+        };
+    }
+
+    /**
+     * @param value a level name in any case, e.g. "quorum"
+     * @return the level
+     * @throws IllegalArgumentException if the name isn't a level
+     */
+    public static ConsistencyLevel parse(String value) {
+        return valueOf(value.trim().toUpperCase());
+    }
+}
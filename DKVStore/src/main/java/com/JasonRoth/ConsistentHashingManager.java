@@ -1,82 +1,293 @@
 package com.JasonRoth;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
+/**
+ * The consistent hashing ring. Every change publishes a new immutable {@link Ring} through a volatile reference, so
+ * lookups take no lock and see either the old ring or the new one, never a ring being rebuilt. Changes are rare and
+ * copy the whole ring, lookups are a binary search over its sorted tokens. The ring also carries the
+ * {@link RingPlacement} its tokens were placed with, so changing the placement is a change like any other.
+ *
+ * Each node gets virtual nodes in proportion to its weight, so a node of weight 2 is primary for about twice the
+ * token space. With a load bound, a range that would take its node past loadBound times its weighted share of the
+ * token space goes to the next node clockwise that has room, which evens out the ownership that a few random tokens
+ * leave uneven. The bound is applied to whole ranges in token order, so every node computes the same owners.
+ */
 public class ConsistentHashingManager {
-    final SortedMap<Long, String> ring = new TreeMap<>();
-    private final int numberOfReplicas; //number of virtual nodes
+    //how many nodes the preference list of every token holds, the replication factor of every caller
+    private static final int PRECOMPUTED_REPLICAS = 3;
 
-    public ConsistentHashingManager(int numberOfReplicas) {
-        this.numberOfReplicas = numberOfReplicas;
+    /**
+     * The tokens from start, exclusive, to end, inclusive, owned by the virtual node at end. The range of the first
+     * virtual node wraps around past the largest token, and with a single virtual node it covers the whole ring.
+     * @param replicas the nodes that store the range's keys, its primary first
+     */
+    public record TokenRange(long start, long end, List<String> replicas) {
+        public boolean contains(long token) {
+            if (start < end) {
+                return token > start && token <= end;
+            }
+            return token > start || token <= end;
+        }
+    }
+
+    /**
+     * A snapshot of the ring. The virtual node at index i has token tokens[i] and belongs to nodes[owners[i]], and
+     * preferences[i] holds the distinct nodes that store the keys of its range, its primary first.
+     */
+    private record Ring(RingPlacement placement, Map<String, Double> weights, long[] tokens, int[] owners, String[] nodes,
+                        List<String>[] preferences) {
+        private static Ring empty(RingPlacement placement) {
+            return new Ring(placement, Map.of(), new long[0], new int[0], new String[0], emptyPreferences());
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static List<String>[] emptyPreferences() {
+            return new List[0];
+        }
+
+        /**
+         * @return the index of the first virtual node at or after the token, wrapping around to the first one
+         */
+        private int indexOf(long token) {
+            int index = Arrays.binarySearch(tokens, token);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return index == tokens.length ? 0 : index;
+        }
+    }
+
+    private volatile Ring ring;
+
+    /**
+     * @param placement places keys and virtual nodes until the ring is updated with another one
+     */
+    public ConsistentHashingManager(RingPlacement placement) {
+        this.ring = Ring.empty(placement);
+    }
+
+    /**
+     * Replaces the ring with one over the given nodes, each with weight 1
+     */
+    public void updateNodes(Collection<String> nodes){
+        Map<String, Double> weights = new LinkedHashMap<>();
+        nodes.forEach(node -> weights.put(node, 1.0));
+        updateNodes(weights);
+    }
+
+    /**
+     * Replaces the ring with one over the given nodes
+     * @param weights the weight of every node by address
+     */
+    public synchronized void updateNodes(Map<String, Double> weights){
+        updateNodes(weights, ring.placement);
+    }
+
+    /**
+     * Replaces the ring with one over the given nodes, placed another way. Lookups see the new nodes and the new
+     * placement together.
+     * @param weights the weight of every node by address
+     */
+    public synchronized void updateNodes(Map<String, Double> weights, RingPlacement placement){
+        ring = build(placement, Map.copyOf(weights));
+    }
+
+    /**
+     * @param weights the weight of every node by address
+     * @return a separate ring over other nodes with the same placement
+     */
+    public ConsistentHashingManager withNodes(Map<String, Double> weights){
+        Ring current = ring;
+        ConsistentHashingManager other = new ConsistentHashingManager(current.placement);
+        other.updateNodes(weights);
+        return other;
+    }
+
+    /**
+     * @return how the current ring places keys
+     */
+    public RingPlacement getPlacement(){
+        return ring.placement;
     }
 
-    public synchronized void updateNodes(Collection<String> nodes){
-        ring.clear();
-        for(String node : nodes){
-            addNode(node);
+    /**
+     * @return the weight of every node of the ring by address
+     */
+    public Map<String, Double> getWeights(){
+        return ring.weights;
+    }
+
+    /**
+     * @return the share of the token space every node of the ring is primary for, by address
+     */
+    public Map<String, Double> getOwnership(){
+        Ring current = ring;
+        Map<String, Double> ownership = new TreeMap<>();
+        current.weights.keySet().forEach(node -> ownership.put(node, 0.0));
+        for(int i = 0; i < current.tokens.length; i++){
+            ownership.merge(current.nodes[current.owners[i]], rangeFraction(current, i), Double::sum);
+        }
+        return ownership;
+    }
+
+    public String getNodeForKey(String key){
+        Ring current = ring;
+        if(current.tokens.length == 0){
+            return null;
         }
+        return current.nodes[current.owners[current.indexOf(current.placement.hashFunction().hash(key))]];
     }
 
-    private void addNode(String node){
-        for(int i = 0; i < numberOfReplicas; i++){
-            ring.put(hash(node + i), node);
+    /**
+     * @param key the key to look up
+     * @param replicas how many nodes to return
+     * @return the nodes that store the key, its primary first, or null if the ring is empty. The list must not be
+     * modified, it is shared by every lookup of the key's range.
+     */
+    public List<String> getNodesForKey(String key, int replicas){
+        Ring current = ring;
+        if(current.tokens.length == 0){
+            return null;
         }
+        //hashed with the function of the same snapshot, a lookup racing a switch still gets a consistent answer
+        return preferences(current, current.indexOf(current.placement.hashFunction().hash(key)), replicas);
     }
 
-    public synchronized String getNodeForKey(String key){
-        if(ring.isEmpty()){
-            System.out.println("Ring is empty");
+    /**
+     * @param replicas how many nodes store each range
+     * @return every range of the ring in token order, null if the ring is empty
+     */
+    public List<TokenRange> getTokenRanges(int replicas){
+        Ring current = ring;
+        if(current.tokens.length == 0){
             return null;
         }
-        long hash = hash(key);
-        if(!ring.containsKey(hash)){
-            //find the next node on the ring clockwise
-            SortedMap<Long, String> tailMap = ring.tailMap(hash);
-            hash = tailMap.isEmpty() ? ring.firstKey() : tailMap.firstKey();
+        List<TokenRange> ranges = new ArrayList<>(current.tokens.length);
+        long start = current.tokens[current.tokens.length - 1];
+        for(int i = 0; i < current.tokens.length; i++){
+            ranges.add(new TokenRange(start, current.tokens[i], preferences(current, i, replicas)));
+            start = current.tokens[i];
         }
-        return ring.get(hash);
+        return ranges;
     }
 
-    public synchronized List<String> getNodesForKey(String key, int replicas){
-        System.out.println("Getting nodes for key: " + key);
-        if(ring.isEmpty()){
-            System.out.println("Ring is empty");
+    /**
+     * @param token a position on the ring
+     * @param replicas how many nodes to return
+     * @return the nodes that store the keys at the token, its primary first, or null if the ring is empty
+     */
+    public List<String> getNodesForToken(long token, int replicas){
+        Ring current = ring;
+        if(current.tokens.length == 0){
             return null;
         }
+        return preferences(current, current.indexOf(token), replicas);
+    }
 
-        List<String> nodes = new ArrayList<>();
-        Set<String> uniqueNodes = new LinkedHashSet<>();
-        long hash = hash(key);
+    /**
+     * @return the token of a key, the position on the ring that decides its nodes
+     */
+    public long tokenOf(String key){
+        return ring.placement.hashFunction().hash(key);
+    }
 
-        Iterator<Long> it = ring.tailMap(hash).keySet().iterator();
-        while(uniqueNodes.size() < replicas && uniqueNodes.size() < ring.values().stream().distinct().count()){
-            //if we run out of nodes in the tail map, then wrap around
-            if(!it.hasNext()){
-                it = ring.keySet().iterator();
+    /**
+     * @return the first replicas nodes of a virtual node's preference list, without copying it for the usual sizes
+     */
+    private static List<String> preferences(Ring ring, int index, int replicas){
+        List<String> precomputed = ring.preferences[index];
+        if(replicas == precomputed.size() || (replicas > precomputed.size() && precomputed.size() == ring.nodes.length)){
+            return precomputed;
+        }
+        if(replicas < precomputed.size()){
+            return precomputed.subList(0, replicas);
+        }
+        return walk(ring, index, replicas);
+    }
+
+    private static Ring build(RingPlacement placement, Map<String, Double> weights){
+        //built in a sorted map first so a token two virtual nodes share goes to a single node
+        TreeMap<Long, String> sorted = new TreeMap<>();
+        for(String node : new TreeSet<>(weights.keySet())){
+            int virtualNodes = placement.virtualNodes(weights.get(node));
+            for(int i = 0; i < virtualNodes; i++){
+                sorted.put(placement.hashFunction().hash(node + i), node);
             }
-            uniqueNodes.add(ring.get(it.next()));
         }
+        if(sorted.isEmpty()){
+            return Ring.empty(placement);
+        }
+        long[] tokens = new long[sorted.size()];
+        int[] owners = new int[sorted.size()];
+        Map<String, Integer> indexes = new LinkedHashMap<>();
+        int i = 0;
+        for(Map.Entry<Long, String> entry : sorted.entrySet()){
+            tokens[i] = entry.getKey();
+            owners[i++] = indexes.computeIfAbsent(entry.getValue(), node -> indexes.size());
+        }
+        Ring ring = new Ring(placement, weights, tokens, owners, indexes.keySet().toArray(new String[0]), Ring.emptyPreferences());
+        if(placement.loadBound() > 0){
+            boundLoads(ring);
+        }
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        List<String>[] preferences = new List[tokens.length];
+        for(i = 0; i < tokens.length; i++){
+            preferences[i] = walk(ring, i, PRECOMPUTED_REPLICAS);
+        }
+        return new Ring(placement, weights, tokens, owners, ring.nodes, preferences);
+    }
+
+    /**
+     * Gives every range in token order to the first node clockwise from it, starting with its own, that stays within
+     * the load bound with it. A range no node has room for stays with its own node.
+     */
+    private static void boundLoads(Ring ring){
+        double totalWeight = ring.weights.values().stream().mapToDouble(Double::doubleValue).sum();
+        double[] capacity = new double[ring.nodes.length];
+        double[] load = new double[ring.nodes.length];
+        for(int n = 0; n < ring.nodes.length; n++){
+            capacity[n] = ring.placement.loadBound() * ring.weights.get(ring.nodes[n]) / totalWeight;
+        }
+        int[] natural = ring.owners.clone();
+        for(int i = 0; i < ring.tokens.length; i++){
+            double length = rangeFraction(ring, i);
+            int owner = natural[i];
+            for(int step = 0; step < ring.tokens.length; step++){
+                int candidate = natural[(i + step) % ring.tokens.length];
+                if(load[candidate] + length <= capacity[candidate]){
+                    owner = candidate;
+                    break;
+                }
+            }
+            ring.owners[i] = owner;
+            load[owner] += length;
+        }
+    }
 
-        nodes.addAll(uniqueNodes);
-        return nodes;
+    /**
+     * @return the share of the token space in the range of a virtual node
+     */
+    private static double rangeFraction(Ring ring, int index){
+        long start = ring.tokens[(index + ring.tokens.length - 1) % ring.tokens.length];
+        return ring.placement.hashFunction().fraction(start, ring.tokens[index]);
     }
 
-    //using a simple long hash
-    //consider using more robust hash function
-    private long hash(String key){
-        try{
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            byte[] digest = md.digest(key.getBytes());
-            long h = 0;
-            for(int i = 0; i < 4; i++){
-                h <<= 8;
-                h |= ((int) digest[i]) & 0xFF;
+    /**
+     * Walks the ring clockwise from a virtual node, skipping nodes already seen
+     * @return up to replicas distinct nodes
+     */
+    private static List<String> walk(Ring ring, int index, int replicas){
+        int wanted = Math.min(replicas, ring.nodes.length);
+        boolean[] seen = new boolean[ring.nodes.length];
+        List<String> nodes = new ArrayList<>(wanted);
+        for(int i = index; nodes.size() < wanted; i = (i + 1) % ring.tokens.length){
+            int owner = ring.owners[i];
+            if(!seen[owner]){
+                seen[owner] = true;
+                nodes.add(ring.nodes[owner]);
             }
-            return h;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("MD5 not found", e);
         }
+        return List.copyOf(nodes);
     }
 }
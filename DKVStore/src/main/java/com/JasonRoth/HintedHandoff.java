@@ -0,0 +1,462 @@
+package com.JasonRoth;
+
+import com.JasonRoth.Messaging.ReplicationBatcher;
+import com.JasonRoth.metrics.MetricsRegistry;
+import com.JasonRoth.storage.StorageEngine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Hinted handoff for the writes this node is primary for. A write that a replica doesn't acknowledge is remembered
+ * as a hint in a file per replica, and once the replica is back the hinted keys are replicated to it again.
+ *
+ * A hint only holds the key. A replay sends the key's current value, or a delete if it is no longer stored, through
+ * the replication batcher, so it is queued behind every write already sent to the replica and can't overwrite a
+ * newer value. Replaying a hint twice is harmless, which is why hint files aren't synced on every append and a
+ * replay interrupted by a restart simply starts over.
+ *
+ * Once a replica missed a write it is considered down and its writes are hinted without being sent, so writes don't
+ * wait on connecting to a node that isn't there. Replays run when ZooKeeper reports the replica live again and are
+ * retried every few seconds while it is in the ring, at most replayRatePerSecond keys per second each. The first
+ * replay the replica acknowledges marks it up again, new writes are then sent to it directly while the rest of its
+ * hints drain in the background. Hints don't count towards a write's consistency level, the level promises copies on
+ * distinct replicas. The hints of a replica that leaves the ring are dropped, its ranges move to other replicas and
+ * it is streamed the ranges it takes over when it joins again.
+ *
+ * A record with a bad checksum is skipped during a replay, its key is left to anti-entropy. If the records after a
+ * point can't be read at all the file is kept and the replay retried, rather than dropping the hints behind it.
+ *
+ * Hint files are bounded by maxBytes in total, hints beyond that are dropped and counted. Records are framed as:
+ * 4 bytes - length of the key
+ * 4 bytes - CRC32 of the key
+ * key
+ */
+public class HintedHandoff implements Closeable {
+    private static final String FILE_PREFIX = "hints-";
+    private static final String FILE_SUFFIX = ".log";
+    private static final int HEADER_SIZE = 8;
+    private static final long TICK_MILLIS = 100;
+    private static final long RETRY_MILLIS = 5000;
+    private static final long REPLAY_TIMEOUT_SECONDS = 10;
+
+    private final Path directory;
+    private final StorageEngine dataStore;
+    private final ReplicationBatcher replicator;
+    private final long maxBytes;
+    private final int keysPerTick;
+    private final MetricsRegistry metrics;
+    private final Logger logger;
+    private final Map<String, Hints> hints = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final ScheduledExecutorService replayTimer;
+    private volatile Set<String> liveNodes = Set.of();
+
+    /**
+     * Opens the hint files left behind by a previous run
+     * @param directory the node's data directory, hints are kept in a subdirectory
+     * @param dataStore this node's storage engine, hinted keys are replayed with their current value
+     * @param replicator sends the replayed keys
+     * @param maxBytes most bytes of hint files, hints beyond that are dropped
+     * @param replayRatePerSecond most hinted keys replayed to one replica per second
+     * @param metrics where hints are counted
+     * @param logger the logger of this node
+     * @throws IOException if the hint directory can't be read
+     */
+    public HintedHandoff(Path directory, StorageEngine dataStore, ReplicationBatcher replicator, long maxBytes,
+                         int replayRatePerSecond, MetricsRegistry metrics, Logger logger) throws IOException {
+        this.directory = directory.resolve("hints");
+        this.dataStore = dataStore;
+        this.replicator = replicator;
+        this.maxBytes = maxBytes;
+        this.keysPerTick = Math.max(1, (int) (replayRatePerSecond * TICK_MILLIS / 1000));
+        this.metrics = metrics;
+        this.logger = logger;
+        Files.createDirectories(this.directory);
+        try (Stream<Path> files = Files.list(this.directory)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX)) {
+                    String replica = replicaOf(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+                    Hints replicaHints = new Hints(replica, file);
+                    hints.put(replica, replicaHints);
+                    logger.log(Level.INFO, "Loaded {0} hinted keys for {1}", new Object[]{replicaHints.pendingKeys.size(), replica});
+                }
+            }
+        }
+        metrics.gauge("hints.pendingBytes", totalBytes::get);
+        this.replayTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "hint-replay");
+            t.setDaemon(true);
+            return t;
+        });
+        replayTimer.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Replicates a write to a replica, or hints it if the replica has hints or doesn't acknowledge it
+     * @param replica the replica's internode address
+     * @param key the key written
+     * @param value the value written, null for a delete
+     * @return a future completed with true once the replica acknowledged the write, false if it was hinted
+     */
+    public CompletableFuture<Boolean> replicate(String replica, String key, String value) {
+        Hints replicaHints = hints.get(replica);
+        if (replicaHints != null && replicaHints.addIfDown(key)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        CompletableFuture<Boolean> ack = value == null ? replicator.replicateDelete(replica, key) : replicator.replicatePut(replica, key, value);
+        return ack.thenApply(acked -> {
+            if (!acked) {
+                hint(replica, key);
+            }
+            return acked;
+        });
+    }
+
+    /**
+     * Called with the ring's nodes whenever ZooKeeper reports a change, replicas that rejoined are replayed right away
+     * and the hints of replicas that left are dropped
+     * @param nodes the live nodes
+     */
+    public void membershipChanged(List<String> nodes) {
+        Set<String> previous = liveNodes;
+        liveNodes = Set.copyOf(nodes);
+        for (Hints replicaHints : hints.values()) {
+            if (!liveNodes.contains(replicaHints.replica)) {
+                replicaHints.discard();
+            } else if (!previous.contains(replicaHints.replica)) {
+                logger.log(Level.INFO, "Node {0} is live again, replaying its hints", replicaHints.replica);
+                replicaHints.retryAt = 0;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        replayTimer.shutdownNow();
+        for (Hints replicaHints : hints.values()) {
+            replicaHints.close();
+        }
+    }
+
+    private void hint(String replica, String key) {
+        //a file that was just drained and closed is replaced by a new one
+        while (true) {
+            Hints replicaHints = hints.computeIfAbsent(replica, r -> {
+                try {
+                    logger.log(Level.WARNING, "Node {0} missed a write, hinting its writes until it is back", r);
+                    return new Hints(r, directory.resolve(FILE_PREFIX + r.replace(':', '_') + FILE_SUFFIX));
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Failed to open hint file for " + r, e);
+                    return null;
+                }
+            });
+            if (replicaHints == null) {
+                metrics.counter("hints.dropped").increment();
+                return;
+            }
+            if (replicaHints.add(key)) {
+                return;
+            }
+        }
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        for (Hints replicaHints : hints.values()) {
+            try {
+                replicaHints.flush();
+                if (!replicaHints.replaying && replicaHints.retryAt <= now && liveNodes.contains(replicaHints.replica)) {
+                    replicaHints.replayNext();
+                }
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Failed to replay hints for " + replicaHints.replica, e);
+            }
+        }
+    }
+
+    /**
+     * @return the replica address of a hint file name, host_port
+     */
+    private static String replicaOf(String fileName) {
+        int separator = fileName.lastIndexOf('_');
+        return fileName.substring(0, separator) + ":" + fileName.substring(separator + 1);
+    }
+
+    /**
+     * The hint file of one replica. Keys already in the file after the replay position aren't appended again.
+     */
+    private class Hints {
+        private final String replica;
+        private final Path file;
+        private final FileChannel channel;
+        private final Set<String> pendingKeys = new HashSet<>(); //guarded by this
+        private long writeOffset; //guarded by this
+        private long replayOffset = 0; //only touched by the replay timer and the callback of the replay it started
+        private long nextOffset; //end of the record last read, only used by the reader
+        private boolean dirty = false; //guarded by this
+        private boolean closed = false; //guarded by this
+        private boolean down = true; //guarded by this
+        private volatile boolean replaying = false;
+        private volatile long retryAt = 0;
+
+        private Hints(String replica, Path file) throws IOException {
+            this.replica = replica;
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            //rebuild the pending keys, discarding a record torn by a crash, a corrupt key is skipped by the replay
+            long valid = 0;
+            List<String> keys = new ArrayList<>();
+            while (true) {
+                String key = read(valid, keys);
+                if (key == null && nextOffset == valid) {
+                    break;
+                }
+                valid = nextOffset;
+            }
+            if (valid < channel.size()) {
+                logger.log(Level.WARNING, "Discarding {0} bytes of incomplete hints at the end of {1}", new Object[]{channel.size() - valid, file});
+                channel.truncate(valid);
+            }
+            pendingKeys.addAll(keys);
+            writeOffset = valid;
+            totalBytes.addAndGet(valid);
+        }
+
+        /**
+         * Hints a write the replica didn't acknowledge, marking it down
+         * @return false if the file was drained and closed, the caller then opens a new one
+         */
+        private synchronized boolean add(String key) {
+            if (closed) {
+                return false;
+            }
+            down = true;
+            return append(key);
+        }
+
+        /**
+         * @return true if the replica is down and the write was hinted instead of sent
+         */
+        private synchronized boolean addIfDown(String key) {
+            return !closed && down && append(key);
+        }
+
+        private boolean append(String key) {
+            if (!pendingKeys.add(key)) {
+                return true; //already hinted, the replay sends its current value
+            }
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            if (totalBytes.get() + HEADER_SIZE + keyBytes.length > maxBytes) {
+                pendingKeys.remove(key);
+                metrics.counter("hints.dropped").increment();
+                return true;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(keyBytes);
+            ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length);
+            record.putInt(keyBytes.length).putInt((int) crc.getValue()).put(keyBytes).flip();
+            try {
+                while (record.hasRemaining()) {
+                    writeOffset += channel.write(record, writeOffset);
+                }
+            } catch (IOException e) {
+                pendingKeys.remove(key);
+                logger.log(Level.SEVERE, "Failed to write hint for " + replica, e);
+                metrics.counter("hints.dropped").increment();
+                return true;
+            }
+            totalBytes.addAndGet(HEADER_SIZE + keyBytes.length);
+            dirty = true;
+            metrics.counter("hints.stored").increment();
+            return true;
+        }
+
+        private synchronized void flush() {
+            if (dirty && !closed) {
+                try {
+                    channel.force(false);
+                    dirty = false;
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to sync hint file " + file, e);
+                }
+            }
+        }
+
+        /**
+         * Sends the next keys of the file, the replay position only moves once the replica acknowledged all of them
+         */
+        private void replayNext() {
+            List<String> keys = new ArrayList<>(keysPerTick);
+            long end = replayOffset;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                while (keys.size() < keysPerTick && end < writeOffset) {
+                    String key = read(end, keys);
+                    if (key == null && nextOffset > end) {
+                        logger.log(Level.WARNING, "Skipping corrupt hint at offset {0} of {1}", new Object[]{end, file});
+                        metrics.counter("hints.corrupt").increment();
+                        end = nextOffset;
+                        continue;
+                    }
+                    if (key == null) {
+                        break;
+                    }
+                    end = nextOffset;
+                    //a write from here on is hinted again, its value may be newer than the one about to be sent
+                    pendingKeys.remove(key);
+                }
+                if (keys.isEmpty()) {
+                    if (end < writeOffset) {
+                        //the hints behind an unreadable record would be lost with the file, so it is kept
+                        logger.log(Level.SEVERE, "Failed to read hints for {0} at offset {1} of {2}, retrying in {3} ms",
+                                new Object[]{replica, end, file, RETRY_MILLIS});
+                        replayOffset = end;
+                        retryAt = System.currentTimeMillis() + RETRY_MILLIS;
+                        return;
+                    }
+                    delete();
+                    logger.log(Level.INFO, "Replayed every hint for {0}", replica);
+                    return;
+                }
+            }
+            replaying = true;
+            List<CompletableFuture<Boolean>> acks = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                String value = dataStore.get(key);
+                acks.add(value == null ? replicator.replicateDelete(replica, key) : replicator.replicatePut(replica, key, value));
+            }
+            long replayedTo = end;
+            CompletableFuture.allOf(acks.toArray(new CompletableFuture<?>[0]))
+                    .thenApply(ignored -> acks.stream().allMatch(CompletableFuture::join))
+                    .completeOnTimeout(false, REPLAY_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .whenComplete((acked, error) -> {
+                        if (error == null && acked) {
+                            replayOffset = replayedTo;
+                            markUp();
+                            metrics.counter("hints.replayed").add(keys.size());
+                        } else {
+                            logger.log(Level.WARNING, "Replay of hints to {0} failed, retrying in {1} ms", new Object[]{replica, RETRY_MILLIS});
+                            retryAt = System.currentTimeMillis() + RETRY_MILLIS;
+                        }
+                        replaying = false;
+                    });
+        }
+
+        private synchronized void markUp() {
+            if (down) {
+                down = false;
+                logger.log(Level.INFO, "Node {0} acknowledged replayed hints, replicating to it directly again", replica);
+            }
+        }
+
+        /**
+         * Drops the hints of a replica that left the ring
+         */
+        private synchronized void discard() {
+            if (!closed) {
+                metrics.counter("hints.dropped").add(pendingKeys.size());
+                delete();
+                logger.log(Level.INFO, "Node {0} left the ring, dropped its hints", replica);
+            }
+        }
+
+        /**
+         * Closes and deletes the file, the caller holds the lock
+         */
+        private void delete() {
+            closed = true;
+            hints.remove(replica, this);
+            try {
+                channel.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to delete hint file " + file, e);
+            }
+            totalBytes.addAndGet(-writeOffset);
+        }
+
+        /**
+         * Reads the record at an offset and adds its key to keys, setting nextOffset to the end of the record
+         * @return the key, or null at the end of the file or at a torn record. A record whose key fails its checksum
+         * also returns null but still sets nextOffset past it, anything else leaves nextOffset at offset.
+         */
+        private String read(long offset, List<String> keys) {
+            nextOffset = offset;
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                if (readFully(header, offset) < HEADER_SIZE) {
+                    return null;
+                }
+                int length = header.getInt(0);
+                int checksum = header.getInt(4);
+                if (length <= 0 || offset + HEADER_SIZE + length > channel.size()) {
+                    return null;
+                }
+                ByteBuffer body = ByteBuffer.allocate(length);
+                readFully(body, offset + HEADER_SIZE);
+                CRC32 crc = new CRC32();
+                crc.update(body.array());
+                if ((int) crc.getValue() != checksum) {
+                    nextOffset = offset + HEADER_SIZE + length;
+                    return null;
+                }
+                String key = new String(body.array(), StandardCharsets.UTF_8);
+                keys.add(key);
+                nextOffset = offset + HEADER_SIZE + length;
+                return key;
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failed to read hint file " + file, e);
+                return null;
+            }
+        }
+
+        private int readFully(ByteBuffer buffer, long offset) throws IOException {
+            int read = 0;
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, offset + read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            return read;
+        }
+
+        private synchronized void close() {
+            if (!closed) {
+                closed = true;
+                try {
+                    channel.force(false);
+                    channel.close();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to close hint file " + file, e);
+                }
+            }
+        }
+    }
+}
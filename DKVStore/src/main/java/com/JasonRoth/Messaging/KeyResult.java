@@ -0,0 +1,96 @@
+package com.JasonRoth.Messaging;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.util.List;
+
+/**
+ * Outcome for one key of a multi-key request. The value is only set for reads that found the key, the error only
+ * for keys that failed.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class KeyResult {
+
+    public enum Status {
+        SUCCESS("Success"),
+        NOT_FOUND("Not Found"),
+        FAILED("Failed");
+
+        private final String label;
+
+        Status(String label) {
+            this.label = label;
+        }
+
+        @JsonValue
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private String key;
+    private Status status;
+    private String value;
+    private String error;
+
+    public KeyResult() {}
+
+    public KeyResult(String key, Status status, String value, String error) {
+        this.key = key;
+        this.status = status;
+        this.value = value;
+        this.error = error;
+    }
+
+    public static KeyResult success(String key, String value) {
+        return new KeyResult(key, Status.SUCCESS, value, null);
+    }
+
+    public static KeyResult notFound(String key) {
+        return new KeyResult(key, Status.NOT_FOUND, null, null);
+    }
+
+    public static KeyResult failed(String key, String error) {
+        return new KeyResult(key, Status.FAILED, null, error);
+    }
+
+    /**
+     * @return true if any key of a multi-key request failed, its response is then sent as 207 Multi-Status
+     */
+    public static boolean anyFailed(List<KeyResult> results) {
+        return results.stream().anyMatch(result -> result.getStatus() == Status.FAILED);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public void setValue(String value) {
+        this.value = value;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
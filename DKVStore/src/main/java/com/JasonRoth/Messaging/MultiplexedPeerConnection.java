@@ -0,0 +1,129 @@
+package com.JasonRoth.Messaging;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A protocol version 2 connection to a peer. Every request is tagged with a request id, so any number of requests
+ * can be in flight at once and the peer may answer them in any order. A reader thread matches each response to the
+ * future of the request it answers.
+ */
+public class MultiplexedPeerConnection implements Closeable {
+    private final PeerConnection connection;
+    private final int protocolVersion;
+    private final long requestTimeoutMillis;
+    private final Logger logger;
+    private final DataOutputStream dos;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final Map<Integer, CompletableFuture<PeerMessageFramer.FramedMessage>> inFlight = new ConcurrentHashMap<>();
+    private volatile boolean open = true;
+
+    /**
+     * Takes over a connection that has already negotiated version 2 or above
+     * @param connection the negotiated connection
+     * @param protocolVersion the agreed protocol version
+     * @param requestTimeoutMillis how long a request may wait for its response
+     * @param logger the logger of this node
+     * @throws IOException if the connection can't be configured
+     */
+    public MultiplexedPeerConnection(PeerConnection connection, int protocolVersion, long requestTimeoutMillis, Logger logger) throws IOException {
+        this.connection = connection;
+        this.protocolVersion = protocolVersion;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        this.logger = logger;
+        this.dos = connection.getOutputStream();
+        //the reader waits for responses indefinitely, each request enforces its own timeout instead
+        connection.getSocket().setSoTimeout(0);
+        Thread reader = new Thread(this::readResponses, "peer-reader-" + connection.getPeerAddress());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends a request without waiting for the response
+     * @param messageType the type of message being sent
+     * @param payload the message payload, may be null
+     * @return a future completed with the peer's response, or exceptionally if the connection fails or the request times out
+     */
+    public CompletableFuture<PeerMessageFramer.FramedMessage> send(PeerMessageHandler.MessageType messageType, byte[] payload) {
+        if (!open) {
+            return CompletableFuture.failedFuture(new IOException("Connection to " + connection.getPeerAddress() + " is closed"));
+        }
+        int requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<PeerMessageFramer.FramedMessage> future = new CompletableFuture<>();
+        inFlight.put(requestId, future);
+        //a response arriving after the timeout finds no future and is dropped
+        future.orTimeout(requestTimeoutMillis, TimeUnit.MILLISECONDS).whenComplete((response, error) -> inFlight.remove(requestId));
+        try {
+            synchronized (dos) {
+                PeerMessageFramer.writeMessage(dos, protocolVersion, messageType.getByteCode(), requestId, payload);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        return future;
+    }
+
+    private void readResponses() {
+        DataInputStream dis = connection.getInputStream();
+        try {
+            while (open) {
+                PeerMessageFramer.FramedMessage response = PeerMessageFramer.readNextMessage(dis, protocolVersion);
+                CompletableFuture<PeerMessageFramer.FramedMessage> future = inFlight.remove(response.requestId);
+                if (future != null) {
+                    future.complete(response);
+                }
+            }
+        } catch (IOException e) {
+            if (open && !(e instanceof SocketException)) {
+                logger.log(Level.WARNING, "Multiplexed connection to " + connection.getPeerAddress() + " failed", e);
+            }
+            fail(e);
+        }
+    }
+
+    /**
+     * Closes the connection and fails every request still waiting for a response
+     */
+    private void fail(IOException cause) {
+        open = false;
+        connection.close();
+        for (Integer requestId : inFlight.keySet()) {
+            CompletableFuture<PeerMessageFramer.FramedMessage> future = inFlight.remove(requestId);
+            if (future != null) {
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public String getPeerAddress() {
+        return connection.getPeerAddress();
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        fail(new IOException("Connection to " + connection.getPeerAddress() + " was closed"));
+    }
+}
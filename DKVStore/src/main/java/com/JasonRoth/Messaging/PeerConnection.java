@@ -0,0 +1,133 @@
+package com.JasonRoth.Messaging;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A single long-lived TCP connection to a peer node. Connections are owned by a {@link PeerConnectionPool}
+ * and carry one request-response exchange at a time, once a connection has negotiated protocol version 2 it is
+ * handed over to a {@link MultiplexedPeerConnection}.
+ */
+public class PeerConnection implements Closeable {
+    private final String peerAddress;
+    private final Socket socket;
+    private final DataInputStream dis;
+    private final DataOutputStream dos;
+    private volatile long lastUsedMillis;
+    private volatile long requestCount = 0;
+
+    /**
+     * Opens a new connection to the peer
+     * @param peerAddress the peer's internode address in the form host:port
+     * @param connectTimeoutMillis timeout for establishing the connection
+     * @param readTimeoutMillis timeout for waiting on a response
+     * @throws IOException if the connection could not be established
+     */
+    public PeerConnection(String peerAddress, int connectTimeoutMillis, int readTimeoutMillis) throws IOException {
+        this.peerAddress = peerAddress;
+        String[] parts = peerAddress.split(":");
+        this.socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(parts[0], Integer.parseInt(parts[1])), connectTimeoutMillis);
+            socket.setSoTimeout(readTimeoutMillis);
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            this.dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        this.lastUsedMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Writes a message to the peer and blocks until its response is read
+     * @param messageType the message type as a byte
+     * @param payload the payload of the message, may be null
+     * @return the response from the peer
+     * @throws IOException if the exchange fails, the connection should be discarded afterwards
+     */
+    public PeerMessageFramer.FramedMessage request(byte messageType, byte[] payload) throws IOException {
+        PeerMessageFramer.FramedMessage response = exchange(messageType, payload);
+        lastUsedMillis = System.currentTimeMillis();
+        return response;
+    }
+
+    /**
+     * Offers this node's highest protocol version to the peer with a HELLO message. Peers that predate version
+     * negotiation answer with UNKNOWN, in which case the connection stays on version 1.
+     * @param selfAddress this node's internode address, sent so the peer knows who is connecting
+     * @return the protocol version both sides agreed on
+     * @throws IOException if the exchange fails
+     */
+    public int negotiate(String selfAddress) throws IOException {
+        PeerMessageFramer.FramedMessage response = exchange(PeerMessageHandler.MessageType.HELLO.getByteCode(),
+                PeerMessageFramer.helloPayload(PeerMessageFramer.CURRENT_PROTOCOL_VERSION, selfAddress));
+        if (response.messageType == PeerMessageHandler.MessageType.HELLO.getByteCode() && response.payload.length > 0) {
+            return response.payload[0];
+        }
+        return PeerMessageFramer.PROTOCOL_V1;
+    }
+
+    /**
+     * Health checks the connection with a PING, this does not count as using the connection
+     * @return true if the peer answered with a PONG
+     */
+    public boolean ping() {
+        try {
+            PeerMessageFramer.FramedMessage response = exchange(PeerMessageHandler.MessageType.PING.getByteCode(), null);
+            return response.messageType == PeerMessageHandler.MessageType.PONG.getByteCode();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private PeerMessageFramer.FramedMessage exchange(byte messageType, byte[] payload) throws IOException {
+        PeerMessageFramer.writeMessage(dos, messageType, payload);
+        PeerMessageFramer.FramedMessage response = PeerMessageFramer.readNextMessage(dis);
+        requestCount++;
+        return response;
+    }
+
+    Socket getSocket() {
+        return socket;
+    }
+
+    DataInputStream getInputStream() {
+        return dis;
+    }
+
+    DataOutputStream getOutputStream() {
+        return dos;
+    }
+
+    public String getPeerAddress() {
+        return peerAddress;
+    }
+
+    public long getLastUsedMillis() {
+        return lastUsedMillis;
+    }
+
+    /**
+     * @return true if at least one exchange has completed on this connection
+     */
+    public boolean hasBeenUsed() {
+        return requestCount > 0;
+    }
+
+    public boolean isOpen() {
+        return !socket.isClosed() && socket.isConnected();
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            //nothing useful to do if the socket fails to close
+        }
+    }
+}
@@ -0,0 +1,466 @@
+package com.JasonRoth.Messaging;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps long-lived, health-checked connections to every peer node so that forwarded requests and
+ * replication writes don't pay for a new TCP connection each time.
+ * The protocol version is negotiated with each peer on its first connection. Peers that speak version 2 get a few
+ * multiplexed connections that carry any number of pipelined requests. Older peers fall back to a capped pool of
+ * version 1 connections where callers block for a free connection once the cap is reached.
+ */
+public class PeerConnectionPool implements Closeable {
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_PEER = 8;
+    private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int DEFAULT_READ_TIMEOUT_MILLIS = 6000; //must outlast the 5-second quorum wait on the owner
+    private static final int MULTIPLEXED_CONNECTIONS_PER_PEER = 2;
+    private static final long BORROW_TIMEOUT_MILLIS = 5000;
+    private static final long HEALTH_CHECK_INTERVAL_MILLIS = 10_000; //idle connections are pinged this often
+    private static final long MAX_IDLE_MILLIS = 60_000; //idle connections are closed after this long
+    public static final int VERSION_UNKNOWN = 0;
+
+    private final String selfAddress;
+    private final int maxConnectionsPerPeer;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final Logger logger;
+    private final Map<String, PeerPool> pools = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService maintenanceExecutor;
+    private final ExecutorService legacyExecutor; //runs async requests to version 1 peers, connects for async requests and pings idle connections
+    private volatile boolean closed = false;
+
+    /**
+     * @param selfAddress this node's internode address
+     * @param legacyExecutor runs async requests to version 1 peers, which block a thread for the whole exchange, opens
+     *                       the connections async requests need and health checks idle version 1 connections
+     * @param logger the logger of this node
+     */
+    public PeerConnectionPool(String selfAddress, ExecutorService legacyExecutor, Logger logger) {
+        this(selfAddress, DEFAULT_MAX_CONNECTIONS_PER_PEER, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS, legacyExecutor, logger);
+    }
+
+    public PeerConnectionPool(String selfAddress, int maxConnectionsPerPeer, int connectTimeoutMillis, int readTimeoutMillis, ExecutorService legacyExecutor, Logger logger) {
+        this.selfAddress = selfAddress;
+        this.maxConnectionsPerPeer = maxConnectionsPerPeer;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.logger = logger;
+        this.maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "peer-pool-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+        this.legacyExecutor = legacyExecutor;
+        maintenanceExecutor.scheduleWithFixedDelay(this::checkIdleConnections, HEALTH_CHECK_INTERVAL_MILLIS, HEALTH_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends a message to a peer and waits for the response.
+     * @param peerAddress the peer's internode address in the form host:port
+     * @param messageType the type of message being sent
+     * @param payload the message payload, may be null
+     * @return the peer's response
+     * @throws IOException if no connection could be obtained or the exchange failed
+     */
+    public PeerMessageFramer.FramedMessage sendRequest(String peerAddress, PeerMessageHandler.MessageType messageType, byte[] payload) throws IOException {
+        return sendRequest(peerAddress, messageType, version -> payload);
+    }
+
+    /**
+     * Sends a message whose payload encoding depends on the protocol version, see {@link PeerPayloadCodec}
+     * @param peerAddress the peer's internode address in the form host:port
+     * @param messageType the type of message being sent
+     * @param payloadEncoder builds the payload for the version negotiated with the peer
+     * @return the peer's response
+     * @throws IOException if no connection could be obtained or the exchange failed
+     */
+    public PeerMessageFramer.FramedMessage sendRequest(String peerAddress, PeerMessageHandler.MessageType messageType, IntFunction<byte[]> payloadEncoder) throws IOException {
+        PeerPool pool = pools.computeIfAbsent(peerAddress, PeerPool::new);
+        MultiplexedPeerConnection multiplexed = pool.multiplexedConnection();
+        if (multiplexed != null) {
+            try {
+                return multiplexed.send(messageType, payloadEncoder.apply(multiplexed.getProtocolVersion())).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a response from " + peerAddress, e);
+            } catch (ExecutionException e) {
+                throw asIOException(peerAddress, e.getCause());
+            }
+        }
+        return pool.sendBlocking(messageType, payloadEncoder.apply(PeerMessageFramer.PROTOCOL_V1));
+    }
+
+    /**
+     * Sends a message to a peer without blocking the caller. Requests to version 2 peers are pipelined over a
+     * shared connection, requests to older peers run on a pooled connection in the background. A request that needs a
+     * connection opened first, and the protocol negotiated if it is the first to the peer, does that in the background
+     * too.
+     * @param peerAddress the peer's internode address in the form host:port
+     * @param messageType the type of message being sent
+     * @param payload the message payload, may be null
+     * @return a future completed with the peer's response, or exceptionally with an IOException
+     */
+    public CompletableFuture<PeerMessageFramer.FramedMessage> sendRequestAsync(String peerAddress, PeerMessageHandler.MessageType messageType, byte[] payload) {
+        return sendRequestAsync(peerAddress, messageType, version -> payload);
+    }
+
+    /**
+     * Sends a message without blocking the caller, with a payload encoding that depends on the protocol version
+     * @param peerAddress the peer's internode address in the form host:port
+     * @param messageType the type of message being sent
+     * @param payloadEncoder builds the payload for the version negotiated with the peer
+     * @return a future completed with the peer's response, or exceptionally with an IOException
+     */
+    public CompletableFuture<PeerMessageFramer.FramedMessage> sendRequestAsync(String peerAddress, PeerMessageHandler.MessageType messageType, IntFunction<byte[]> payloadEncoder) {
+        PeerPool pool = pools.computeIfAbsent(peerAddress, PeerPool::new);
+        int version = pool.connectedProtocolVersion();
+        if (version >= PeerMessageFramer.PROTOCOL_V2) {
+            try {
+                MultiplexedPeerConnection multiplexed = pool.multiplexedConnection();
+                if (multiplexed != null) {
+                    return multiplexed.send(messageType, payloadEncoder.apply(multiplexed.getProtocolVersion()));
+                }
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        if (version == VERSION_UNKNOWN) {
+            //connecting may wait for the connect and HELLO timeouts, so it isn't done on the caller's thread
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return pool.multiplexedConnection();
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, legacyExecutor).thenCompose(multiplexed -> multiplexed != null
+                    ? multiplexed.send(messageType, payloadEncoder.apply(multiplexed.getProtocolVersion()))
+                    : sendLegacy(pool, messageType, payloadEncoder));
+        }
+        return sendLegacy(pool, messageType, payloadEncoder);
+    }
+
+    private CompletableFuture<PeerMessageFramer.FramedMessage> sendLegacy(PeerPool pool, PeerMessageHandler.MessageType messageType, IntFunction<byte[]> payloadEncoder) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.sendBlocking(messageType, payloadEncoder.apply(PeerMessageFramer.PROTOCOL_V1));
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, legacyExecutor);
+    }
+
+    /**
+     * Negotiates with the peer if that hasn't happened yet
+     * @param peerAddress the peer's internode address in the form host:port
+     * @return the protocol version agreed with the peer
+     * @throws IOException if the peer can't be reached
+     */
+    public int protocolVersion(String peerAddress) throws IOException {
+        PeerPool pool = pools.computeIfAbsent(peerAddress, PeerPool::new);
+        MultiplexedPeerConnection multiplexed = pool.multiplexedConnection();
+        return multiplexed == null ? PeerMessageFramer.PROTOCOL_V1 : multiplexed.getProtocolVersion();
+    }
+
+    /**
+     * The protocol version agreed with the peer, looked up without connecting or negotiating, so callers on latency
+     * sensitive paths only hand off to another thread when {@link #protocolVersion} would block
+     * @param peerAddress the peer's internode address in the form host:port
+     * @return the protocol version agreed with the peer, or VERSION_UNKNOWN if it hasn't been negotiated yet or a
+     * request to the peer would have to open a connection first
+     */
+    public int connectedProtocolVersion(String peerAddress) {
+        PeerPool pool = pools.get(peerAddress);
+        return pool == null ? VERSION_UNKNOWN : pool.connectedProtocolVersion();
+    }
+
+    private static IOException asIOException(String peerAddress, Throwable cause) {
+        if (cause instanceof IOException ioe) {
+            return ioe;
+        }
+        if (cause instanceof TimeoutException) {
+            return new IOException("Timed out waiting for a response from " + peerAddress, cause);
+        }
+        return new IOException("Request to " + peerAddress + " failed", cause);
+    }
+
+    /**
+     * Closes all connections to a peer, used when a node leaves the ring. The protocol version is negotiated again
+     * if the node comes back, since it may have been upgraded in the meantime.
+     * @param peerAddress the peer's internode address
+     */
+    public void evict(String peerAddress) {
+        PeerPool pool = pools.remove(peerAddress);
+        if (pool != null) {
+            pool.closeAll();
+        }
+    }
+
+    /**
+     * Pings idle connections and closes the ones that have been idle too long or failed the health check. The idle
+     * version 1 connections are pinged all at once on the legacy executor, so a dead peer only holds up the sweep for
+     * one read timeout however many connections it has.
+     */
+    private void checkIdleConnections() {
+        long now = System.currentTimeMillis();
+        List<CompletableFuture<Void>> pings = new ArrayList<>();
+        for (PeerPool pool : pools.values()) {
+            for (MultiplexedPeerConnection multiplexed : pool.multiplexed) {
+                if (multiplexed != null && multiplexed.isOpen()) {
+                    multiplexed.send(PeerMessageHandler.MessageType.PING, null).whenComplete((response, error) -> {
+                        if (error != null || response.messageType != PeerMessageHandler.MessageType.PONG.getByteCode()) {
+                            logger.log(Level.FINE, "Closing unhealthy multiplexed connection to {0}", multiplexed.getPeerAddress());
+                            multiplexed.close();
+                        }
+                    });
+                }
+            }
+            int idleCount = pool.idle.size();
+            for (int i = 0; i < idleCount; i++) {
+                //take from the cold end so that hot connections stay at the front
+                PeerConnection connection = pool.idle.pollLast();
+                if (connection == null) {
+                    break;
+                }
+                if (now - connection.getLastUsedMillis() >= MAX_IDLE_MILLIS) {
+                    logger.log(Level.FINE, "Closing idle connection to {0}", connection.getPeerAddress());
+                    pool.discard(connection);
+                    continue;
+                }
+                try {
+                    pings.add(CompletableFuture.supplyAsync(connection::ping, legacyExecutor).thenAccept(healthy -> {
+                        if (healthy) {
+                            pool.idle.offerLast(connection);
+                        } else {
+                            logger.log(Level.FINE, "Closing idle connection to {0}", connection.getPeerAddress());
+                            pool.discard(connection);
+                        }
+                    }));
+                } catch (RejectedExecutionException e) {
+                    //checked again on the next sweep
+                    pool.idle.offerLast(connection);
+                }
+            }
+        }
+        //the next sweep starts once these pings are answered or timed out
+        CompletableFuture.allOf(pings.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        maintenanceExecutor.shutdownNow();
+        for (PeerPool pool : pools.values()) {
+            pool.closeAll();
+        }
+        pools.clear();
+    }
+
+    /**
+     * The connections to a single peer. For version 1 peers the semaphore bounds the total number of open
+     * connections, idle connections hold their permit until they are discarded.
+     */
+    private class PeerPool {
+        private final String peerAddress;
+        private volatile int protocolVersion = VERSION_UNKNOWN;
+        private final MultiplexedPeerConnection[] multiplexed = new MultiplexedPeerConnection[MULTIPLEXED_CONNECTIONS_PER_PEER];
+        private final AtomicInteger nextMultiplexed = new AtomicInteger();
+        private final LinkedBlockingDeque<PeerConnection> idle = new LinkedBlockingDeque<>();
+        private final Semaphore permits = new Semaphore(maxConnectionsPerPeer);
+
+        private PeerPool(String peerAddress) {
+            this.peerAddress = peerAddress;
+        }
+
+        /**
+         * @return the negotiated version if every multiplexed connection is open, so picking one can't block, and
+         * VERSION_UNKNOWN otherwise. Requests to version 1 peers never block the caller.
+         */
+        private int connectedProtocolVersion() {
+            int version = protocolVersion;
+            if (version == PeerMessageFramer.PROTOCOL_V1) {
+                return version;
+            }
+            for (MultiplexedPeerConnection connection : multiplexed) {
+                if (connection == null || !connection.isOpen()) {
+                    return VERSION_UNKNOWN;
+                }
+            }
+            return version;
+        }
+
+        /**
+         * Picks one of the multiplexed connections round robin, opening it if needed.
+         * @return the connection, or null if the peer only speaks version 1
+         */
+        private MultiplexedPeerConnection multiplexedConnection() throws IOException {
+            if (protocolVersion == PeerMessageFramer.PROTOCOL_V1) {
+                return null;
+            }
+            int slot = Math.floorMod(nextMultiplexed.getAndIncrement(), multiplexed.length);
+            MultiplexedPeerConnection connection = multiplexed[slot];
+            if (connection != null && connection.isOpen()) {
+                return connection;
+            }
+            synchronized (this) {
+                connection = multiplexed[slot];
+                if (connection != null && connection.isOpen()) {
+                    return connection;
+                }
+                if (closed) {
+                    throw new IOException("Connection pool is closed");
+                }
+                PeerConnection negotiating = new PeerConnection(peerAddress, connectTimeoutMillis, readTimeoutMillis);
+                int version;
+                try {
+                    version = negotiating.negotiate(selfAddress);
+                } catch (IOException e) {
+                    negotiating.close();
+                    throw e;
+                }
+                if (version < PeerMessageFramer.PROTOCOL_V2) {
+                    logger.log(Level.INFO, "Peer {0} does not support pipelining, using protocol version 1", peerAddress);
+                    protocolVersion = PeerMessageFramer.PROTOCOL_V1;
+                    if (permits.tryAcquire()) {
+                        release(negotiating, true);
+                    } else {
+                        negotiating.close();
+                    }
+                    return null;
+                }
+                protocolVersion = version;
+                connection = new MultiplexedPeerConnection(negotiating, version, readTimeoutMillis, logger);
+                multiplexed[slot] = connection;
+                logger.log(Level.INFO, "Opened multiplexed connection to {0} using protocol version {1}", new Object[]{peerAddress, version});
+                return connection;
+            }
+        }
+
+        /**
+         * Sends a request over a version 1 connection and waits for the response.
+         * A request that fails on a reused connection is retried once on a fresh connection, since the peer may have
+         * closed it while it sat idle.
+         */
+        private PeerMessageFramer.FramedMessage sendBlocking(PeerMessageHandler.MessageType messageType, byte[] payload) throws IOException {
+            PeerConnection connection = borrow();
+            boolean reused = connection.hasBeenUsed();
+            try {
+                PeerMessageFramer.FramedMessage response = connection.request(messageType.getByteCode(), payload);
+                release(connection, true);
+                return response;
+            } catch (IOException e) {
+                release(connection, false);
+                if (!reused) {
+                    throw e;
+                }
+                logger.log(Level.FINE, "Pooled connection to {0} failed, retrying on a new connection", peerAddress);
+            }
+            connection = borrowNew();
+            try {
+                PeerMessageFramer.FramedMessage response = connection.request(messageType.getByteCode(), payload);
+                release(connection, true);
+                return response;
+            } catch (IOException e) {
+                release(connection, false);
+                throw e;
+            }
+        }
+
+        private PeerConnection borrow() throws IOException {
+            long deadline = System.currentTimeMillis() + BORROW_TIMEOUT_MILLIS;
+            try {
+                while (!closed) {
+                    PeerConnection connection = idle.pollFirst();
+                    if (connection != null) {
+                        if (connection.isOpen()) {
+                            return connection;
+                        }
+                        discard(connection);
+                        continue;
+                    }
+                    if (permits.tryAcquire()) {
+                        return open();
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new IOException("Timed out waiting for a connection to " + peerAddress);
+                    }
+                    //wait for a connection to be returned, re-check the permits periodically in case one was discarded
+                    connection = idle.pollFirst(Math.min(remaining, 50), TimeUnit.MILLISECONDS);
+                    if (connection != null) {
+                        idle.offerFirst(connection);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a connection to " + peerAddress, e);
+            }
+            throw new IOException("Connection pool is closed");
+        }
+
+        /**
+         * Opens a connection without reusing an idle one
+         */
+        private PeerConnection borrowNew() throws IOException {
+            try {
+                if (!permits.tryAcquire(BORROW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Timed out waiting for a connection to " + peerAddress);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a connection to " + peerAddress, e);
+            }
+            return open();
+        }
+
+        /**
+         * Opens a new connection, the caller must already hold a permit
+         */
+        private PeerConnection open() throws IOException {
+            try {
+                PeerConnection connection = new PeerConnection(peerAddress, connectTimeoutMillis, readTimeoutMillis);
+                logger.log(Level.INFO, "Opened pooled connection to {0}", peerAddress);
+                return connection;
+            } catch (IOException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        private void release(PeerConnection connection, boolean healthy) {
+            if (healthy && !closed && connection.isOpen()) {
+                idle.offerFirst(connection);
+            } else {
+                discard(connection);
+            }
+        }
+
+        private void discard(PeerConnection connection) {
+            connection.close();
+            permits.release();
+        }
+
+        private void closeAll() {
+            synchronized (this) {
+                for (int i = 0; i < multiplexed.length; i++) {
+                    if (multiplexed[i] != null) {
+                        multiplexed[i].close();
+                        multiplexed[i] = null;
+                    }
+                }
+            }
+            PeerConnection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                discard(connection);
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -14,16 +15,42 @@ public class PeerMessageFramer {
     //Maximum message size default is 4MB
     private static final int MAX_ALLOWED_MESSAGE_SIZE = 4 * 1024 * 1024;
 
+    //Protocol versions, negotiated per connection with a HELLO message
+    public static final int PROTOCOL_V1 = 1; //one request-response exchange at a time
+    public static final int PROTOCOL_V2 = 2; //frames carry a request id so requests can be pipelined and answered out of order
+    public static final int PROTOCOL_V3 = 3; //version 2 frames with binary instead of JSON payloads, see PeerPayloadCodec
+    public static final int PROTOCOL_V4 = 4; //adds REPLICATE_BATCH_REQUEST
+    public static final int PROTOCOL_V5 = 5; //adds MULTI_GET_REQUEST, MULTI_WRITE_REQUEST and MULTI_RESPONSE
+    public static final int PROTOCOL_V6 = 6; //adds READ_REPAIR_REQUEST
+    public static final int PROTOCOL_V7 = 7; //MULTI_WRITE_REQUEST carries the write consistency level
+    public static final int PROTOCOL_V8 = 8; //adds the Merkle tree exchange of anti-entropy
+    public static final int PROTOCOL_V9 = 9; //adds REBALANCE_CHUNK_REQUEST
+    public static final int PROTOCOL_V10 = 10; //adds NEAR_CACHE_GET_REQUEST and CACHE_INVALIDATE_REQUEST
+    public static final int PROTOCOL_V11 = 11; //values may carry an expiry header, see ExpiringValues
+    public static final int CURRENT_PROTOCOL_VERSION = PROTOCOL_V11;
+
     /**
      * Inner class to hold de-framed messages
      */
     public static class FramedMessage{
         public final byte messageType;
+        public final int requestId; //always 0 for version 1 frames
         public final byte[] payload;
+        public final int protocolVersion; //version of the connection the message was read from, decides the payload encoding
 
         public FramedMessage(byte messageType, byte[] payload) {
+            this(messageType, 0, payload);
+        }
+
+        public FramedMessage(byte messageType, int requestId, byte[] payload) {
+            this(messageType, requestId, payload, PROTOCOL_V1);
+        }
+
+        public FramedMessage(byte messageType, int requestId, byte[] payload, int protocolVersion) {
             this.messageType = messageType;
+            this.requestId = requestId;
             this.payload = payload;
+            this.protocolVersion = protocolVersion;
         }
 
 
@@ -46,6 +73,21 @@ public class PeerMessageFramer {
      * @throws IOException
      */
     public static FramedMessage readNextMessage(DataInputStream dis) throws IOException {
+        return readNextMessage(dis, PROTOCOL_V1);
+    }
+
+    /**
+     * Reads a message in the given protocol version. Version 2 messages are framed as:
+     * 4 bytes - length of the message type, request id and payload in bytes
+     * 1 byte - corresponds to a message type
+     * 4 bytes - request id, a response carries the id of the request it answers
+     * n bytes - length of the payload
+     * @param dis the data input stream where messages are being read
+     * @param protocolVersion the version negotiated for this connection
+     * @return FramedMessage object representing the message that was read
+     * @throws IOException
+     */
+    public static FramedMessage readNextMessage(DataInputStream dis, int protocolVersion) throws IOException {
         int length;
         try{
             length = dis.readInt();
@@ -63,6 +105,14 @@ public class PeerMessageFramer {
 
         byte messageType = dis.readByte();
         int payloadLength = length - 1; //the length in bytes minus 1 byte used for a message type
+        int requestId = 0;
+        if(protocolVersion >= PROTOCOL_V2){
+            if(payloadLength < 4){
+                throw new IOException("Invalid message length, version 2 messages must include a request id");
+            }
+            requestId = dis.readInt();
+            payloadLength -= 4;
+        }
         if(payloadLength < 0){
             throw new IOException("Invalid message length, payload length must not be a negative number");
         }
@@ -72,7 +122,7 @@ public class PeerMessageFramer {
         }
 
         //if the payload length is 0, then nothing is read
-        return new FramedMessage(messageType, payload);
+        return new FramedMessage(messageType, requestId, payload, protocolVersion);
     }
 
     /**
@@ -83,14 +133,131 @@ public class PeerMessageFramer {
      * @throws IOException if an i/o error occurs when trying to write to the stream
      */
     public static void writeMessage(DataOutputStream dos, byte messageType, byte[] payload) throws IOException {
+        writeMessage(dos, PROTOCOL_V1, messageType, 0, payload);
+    }
+
+    /**
+     * writes a message in the given protocol version and flushes the output
+     * @param dos - the DataOutputStream for the connection
+     * @param protocolVersion - the version negotiated for this connection
+     * @param messageType - the message type as a byte
+     * @param requestId - the id correlating a request and its response, ignored for version 1
+     * @param payload - the payload of the message as a byte array
+     * @throws IOException if an i/o error occurs when trying to write to the stream
+     */
+    public static void writeMessage(DataOutputStream dos, int protocolVersion, byte messageType, int requestId, byte[] payload) throws IOException {
         int payloadLength = (payload == null ? 0 : payload.length);
         int messageLength = payloadLength + 1;
+        if(protocolVersion >= PROTOCOL_V2){
+            messageLength += 4;
+        }
         dos.writeInt(messageLength);
         dos.writeByte(messageType);
+        if(protocolVersion >= PROTOCOL_V2){
+            dos.writeInt(requestId);
+        }
         if(payloadLength > 0){
             dos.write(payload);
         }
         //flush any buffered output bytes to the data stream
         dos.flush();
     }
+
+    /**
+     * Decodes one complete frame from a buffer, used by the non-blocking server which reads into ByteBuffers
+     * instead of streams. The buffer position is advanced past the frame only if a complete frame was available.
+     * @param buffer a buffer in read mode
+     * @param protocolVersion the version negotiated for this connection
+     * @return the decoded message, or null if the buffer doesn't hold a complete frame yet
+     * @throws IOException if the frame length is invalid
+     */
+    public static FramedMessage decodeFrame(ByteBuffer buffer, int protocolVersion) throws IOException {
+        if(buffer.remaining() < 4){
+            return null;
+        }
+        int length = peekFrameLength(buffer);
+        if(buffer.remaining() < 4 + length){
+            return null;
+        }
+        buffer.getInt();
+        byte messageType = buffer.get();
+        int payloadLength = length - 1;
+        int requestId = 0;
+        if(protocolVersion >= PROTOCOL_V2){
+            if(payloadLength < 4){
+                throw new IOException("Invalid message length, version 2 messages must include a request id");
+            }
+            requestId = buffer.getInt();
+            payloadLength -= 4;
+        }
+        byte[] payload = new byte[payloadLength];
+        buffer.get(payload);
+        return new FramedMessage(messageType, requestId, payload, protocolVersion);
+    }
+
+    /**
+     * Reads the length prefix of the next frame without consuming it
+     * @param buffer a buffer in read mode with at least 4 bytes remaining
+     * @return the length of the frame after the prefix
+     * @throws IOException if the length is invalid
+     */
+    public static int peekFrameLength(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt(buffer.position());
+        if(length <= 0){
+            throw new IOException("Invalid message length, must be greater than 0 for message type");
+        }
+        if(length > MAX_ALLOWED_MESSAGE_SIZE){
+            throw new IOException("Message length: " + length + " exceeds maximum allowed length: " + MAX_ALLOWED_MESSAGE_SIZE );
+        }
+        return length;
+    }
+
+    /**
+     * Encodes a message into a buffer ready to be written to a channel
+     * @param protocolVersion the version negotiated for this connection
+     * @param messageType the message type as a byte
+     * @param requestId the id correlating a request and its response, ignored for version 1
+     * @param payload the payload of the message, may be null
+     * @return a buffer in read mode holding the whole frame
+     */
+    public static ByteBuffer encodeFrame(int protocolVersion, byte messageType, int requestId, byte[] payload) {
+        int payloadLength = (payload == null ? 0 : payload.length);
+        int messageLength = payloadLength + 1 + (protocolVersion >= PROTOCOL_V2 ? 4 : 0);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + messageLength);
+        buffer.putInt(messageLength);
+        buffer.put(messageType);
+        if(protocolVersion >= PROTOCOL_V2){
+            buffer.putInt(requestId);
+        }
+        if(payloadLength > 0){
+            buffer.put(payload);
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Builds the payload of a HELLO message
+     * 1 byte - highest protocol version the sender supports
+     * n bytes - the sender's node address, may be empty
+     * @param protocolVersion the highest version the sender supports
+     * @param nodeAddress the sender's internode address, may be null
+     * @return the HELLO payload
+     */
+    public static byte[] helloPayload(int protocolVersion, String nodeAddress) {
+        byte[] address = nodeAddress == null ? new byte[0] : nodeAddress.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[address.length + 1];
+        payload[0] = (byte) protocolVersion;
+        System.arraycopy(address, 0, payload, 1, address.length);
+        return payload;
+    }
+
+    /**
+     * Picks the protocol version to use in response to a HELLO, the highest version both sides support
+     * @param helloPayload the payload of the HELLO that was received
+     * @return the agreed protocol version
+     */
+    public static int agreeOnVersion(byte[] helloPayload) {
+        int offeredVersion = helloPayload.length > 0 ? helloPayload[0] : PROTOCOL_V1;
+        return Math.max(PROTOCOL_V1, Math.min(offeredVersion, CURRENT_PROTOCOL_VERSION));
+    }
 }
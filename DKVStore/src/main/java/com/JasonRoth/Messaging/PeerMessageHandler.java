@@ -1,13 +1,13 @@
 package com.JasonRoth.Messaging;
 
 import com.JasonRoth.util.HttpUtils;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.*;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,6 +36,26 @@ public class PeerMessageHandler implements Runnable {
         REPLICATE_DELETE_REQUEST((byte) 0x0B), // Leader telling follower to delete data
         REPLICATION_ACK((byte) 0x0C),          // Follower acknowledging a replication request
 
+        HELLO((byte) 0x0D), // Protocol version negotiation, the first message on a connection
+
+        REPLICATE_BATCH_REQUEST((byte) 0x0E), // Leader sending a batch of writes, answered with one REPLICATION_ACK
+
+        MULTI_GET_REQUEST((byte) 0x0F),   // Reads of several keys the receiver is primary for
+        MULTI_WRITE_REQUEST((byte) 0x10), // PUTs and DELETEs of several keys the receiver is primary for
+        MULTI_RESPONSE((byte) 0x11),      // Per-key results of a multi-key request, in request order
+
+        READ_REPAIR_REQUEST((byte) 0x12), // Asks the primary of a key to resend its value to stale replicas
+
+        MERKLE_TREE_REQUEST((byte) 0x13),     // Hashes of some nodes of the Merkle tree of a token range
+        MERKLE_TREE_RESPONSE((byte) 0x14),    // The requested node hashes, or that the range is unknown
+        MERKLE_ENTRIES_REQUEST((byte) 0x15),  // Keys and entry hashes of some Merkle tree leaves
+        MERKLE_ENTRIES_RESPONSE((byte) 0x16), // The entries of the requested leaves
+
+        REBALANCE_CHUNK_REQUEST((byte) 0x17), // Pairs of token ranges that moved to the receiver, streamed by their old owner
+
+        NEAR_CACHE_GET_REQUEST((byte) 0x18),  // Read of a key the receiver is primary for by a coordinator that caches it
+        CACHE_INVALIDATE_REQUEST((byte) 0x19), // Keys written on their primary, to drop from the receiver's near cache
+
         UNKNOWN((byte) 0xFF);
 
         private final byte byteCode;
@@ -69,19 +89,22 @@ public class PeerMessageHandler implements Runnable {
 
     private Socket socket;
     private Logger logger;
-    private Map<String, String> dataStore;
+    private PeerMessageProcessor processor;
+    private ExecutorService requestExecutor;
 
     /**
      * Constructor for peer message handler
      * @param socket the socket for the current peer to peer communication
      * @param logger the logger of this node
-     * @param dataStore a reference to this node's in-memory database
+     * @param processor applies the requests to this node's data store
+     * @param requestExecutor executor that pipelined (version 2) requests are processed on
      */
-    public PeerMessageHandler(Socket socket, Logger logger, Map<String, String> dataStore) {
+    public PeerMessageHandler(Socket socket, Logger logger, PeerMessageProcessor processor, ExecutorService requestExecutor) {
         this.socket = socket;
         //logger coming from tcp server
         this.logger = logger;
-        this.dataStore = dataStore;
+        this.processor = processor;
+        this.requestExecutor = requestExecutor;
     }
 
 
@@ -90,82 +113,45 @@ public class PeerMessageHandler implements Runnable {
         Thread currentHandlerThread = Thread.currentThread();
         logger.log(Level.INFO, "PeerMessageHandler ({0}) started for {1}", new Object[]{currentHandlerThread.getName(), socket.getRemoteSocketAddress()});
         try(Socket clientSocket = this.socket;
-            DataInputStream dis = new DataInputStream(clientSocket.getInputStream());
-            DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream())) {
-
-            if (currentHandlerThread.isInterrupted()) {
-                logger.log(Level.INFO, "Handler thread interrupted before reading message.");
-                return;
-            }
-
-            //read a completed framed message from the input stream
-            PeerMessageFramer.FramedMessage framedMessage = PeerMessageFramer.readNextMessage(dis);
-            MessageType messageType = MessageType.fromByteCode(framedMessage.messageType);
-            String payloadJson = framedMessage.getPayloadAsString();
-
-            logger.log(Level.INFO, "Received Message - Type: {0}, Payload: {1}", new Object[]{messageType, payloadJson});
-            ObjectMapper mapper = new ObjectMapper();
-            //Switch statement to handle different message types
-            switch (messageType) {
-                case PING:
-                    //write a PONG message back
-                    PeerMessageFramer.writeMessage(dos, MessageType.PONG.getByteCode(), null);
-                    logger.log(Level.INFO, "Pong sent to {0}.", new Object[]{clientSocket.getRemoteSocketAddress()});
-                    break;
-                case FORWARD_PUT_REQUEST:
-                    KeyValue kv = mapper.readValue(payloadJson, KeyValue.class);
-                    dataStore.put(kv.getKey(), kv.getValue());
-                    ResponseMessage success = new ResponseMessage("Success", kv.getKey());
-                    String message = mapper.writeValueAsString(success);
-                    PeerMessageFramer.writeMessage(dos, MessageType.OPERATION_SUCCESS_RESPONSE.getByteCode(), message.getBytes(StandardCharsets.UTF_8));
-                    break;
-                case FORWARD_GET_REQUEST:
-                    logger.log(Level.INFO, "FORWARD_GET_REQUEST received. Payload: {0}.", new Object[]{payloadJson});
-                    String key = payloadJson;
-
-                    //message should come in as the message type and then the payload is just the key
-                    String value = dataStore.get(key);
-                    if (value != null) {
-                        kv = new KeyValue(key, value);
-                        message = mapper.writeValueAsString(kv);
-                        PeerMessageFramer.writeMessage(dos, MessageType.VALUE_RESPONSE.getByteCode(), message.getBytes(StandardCharsets.UTF_8));
-                    }else{
-                        PeerMessageFramer.writeMessage(dos, MessageType.KEY_NOT_FOUND_RESPONSE.getByteCode(), null);
-                    }
-                    
-                    break;
-                case FORWARD_DELETE_REQUEST:
-                    logger.log(Level.INFO, "FORWARD_DELETE_REQUEST received. Payload {0}.", new Object[]{payloadJson});
-                    key = payloadJson;
-
-                    //Message comes in as the message type and the payload is the key we want to delete
-                    boolean exists = dataStore.containsKey(key);
-                    if(exists){
-                        dataStore.remove(key);
-                        PeerMessageFramer.writeMessage(dos, MessageType.OPERATION_SUCCESS_RESPONSE.getByteCode(), null);
-                    }else{
-                        PeerMessageFramer.writeMessage(dos, MessageType.KEY_NOT_FOUND_RESPONSE.getByteCode(), null);
-                    }
-                    break;
-                case REPLICATE_PUT_REQUEST:
-                    KeyValue kvToReplicate = mapper.readValue(payloadJson, KeyValue.class);
-                    dataStore.put(kvToReplicate.getKey(), kvToReplicate.getValue());
-                    logger.log(Level.INFO, "Replicated PUT for key: {0}", kvToReplicate.getKey());
-                    // Send an acknowledgment back to the leader
-                    PeerMessageFramer.writeMessage(dos, MessageType.REPLICATION_ACK.getByteCode(), null);
-                    break;
-                case REPLICATE_DELETE_REQUEST:
-                    String keyToDelete = payloadJson;
-                    dataStore.remove(keyToDelete);
-                    logger.log(Level.INFO, "Replicated DELETE for key: {0}", keyToDelete);
-                    // Send an acknowledgment back to the leader
-                    PeerMessageFramer.writeMessage(dos, MessageType.REPLICATION_ACK.getByteCode(), null);
-                    break;
-                default:
-                    logger.log(Level.WARNING, "Received UNKNOWN or unhandled message type {0}.", new Object[]{messageType});
-
-                    PeerMessageFramer.writeMessage(dos, MessageType.UNKNOWN.getByteCode(), null);
-                    break;
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()))) {
+
+            int protocolVersion = PeerMessageFramer.PROTOCOL_V1; //peers that never send a HELLO speak version 1
+            //connections are long-lived and pooled by the sender, keep serving messages until the peer closes it
+            while (!currentHandlerThread.isInterrupted()) {
+                //read a completed framed message from the input stream
+                PeerMessageFramer.FramedMessage framedMessage = PeerMessageFramer.readNextMessage(dis, protocolVersion);
+                MessageType messageType = MessageType.fromByteCode(framedMessage.messageType);
+
+                if(messageType == MessageType.HELLO && protocolVersion == PeerMessageFramer.PROTOCOL_V1){
+                    //agree on the highest version both sides support, the reply is still a version 1 frame
+                    int agreedVersion = PeerMessageFramer.agreeOnVersion(framedMessage.payload);
+                    PeerMessageFramer.writeMessage(dos, MessageType.HELLO.getByteCode(), PeerMessageFramer.helloPayload(agreedVersion, null));
+                    protocolVersion = agreedVersion;
+                    String peerNode = new String(framedMessage.payload, 1, Math.max(0, framedMessage.payload.length - 1), StandardCharsets.UTF_8);
+                    logger.log(Level.INFO, "Negotiated protocol version {0} with {1} ({2})", new Object[]{agreedVersion, peerNode, clientSocket.getRemoteSocketAddress()});
+                    continue;
+                }
+
+                if(protocolVersion >= PeerMessageFramer.PROTOCOL_V2){
+                    //pipelined requests are processed concurrently and answered in completion order, the request id
+                    //lets the sender match each response to its request. Requests that wait on other nodes don't hold
+                    //a thread, their response is written by whichever callback completes them. A request that fails is
+                    //still answered, with an error, since the connection stays open for the other requests
+                    final int version = protocolVersion;
+                    requestExecutor.execute(() -> processor.processOrError(framedMessage).thenAccept(response -> {
+                        try {
+                            synchronized (dos) {
+                                PeerMessageFramer.writeMessage(dos, version, response.messageType, framedMessage.requestId, response.payload);
+                            }
+                        } catch (IOException e) {
+                            logger.log(Level.WARNING, "Failed to write response to " + clientSocket.getRemoteSocketAddress(), e);
+                        }
+                    }));
+                }else{
+                    PeerMessageFramer.FramedMessage response = processor.processOrError(framedMessage).join();
+                    PeerMessageFramer.writeMessage(dos, response.messageType, response.payload);
+                }
             }
 
         } catch (EOFException e) {
@@ -178,9 +164,9 @@ public class PeerMessageHandler implements Runnable {
             // Catch any other unexpected runtime exceptions to prevent the thread from dying silently.
             logger.log(Level.SEVERE, "Unexpected Exception in PeerMessageHandler for " + socket.getRemoteSocketAddress(), e);
         } finally {
-            // The try-with-resources statement automatically handles closing the socket and streams,
+            // The try-with-resources statement automatically handles closing the socket and streams once the loop ends,
             // so no manual close is needed here.
             logger.log(Level.INFO, "PeerMessageHandler ({0}) finished for {1}", new Object[]{currentHandlerThread.getName(), socket.getRemoteSocketAddress()});
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,252 @@
+package com.JasonRoth.Messaging;
+
+import com.JasonRoth.AntiEntropyService;
+import com.JasonRoth.BatchCoordinator;
+import com.JasonRoth.ConsistencyLevel;
+import com.JasonRoth.NearCacheService;
+import com.JasonRoth.Rebalancer;
+import com.JasonRoth.ReplicaReader;
+import com.JasonRoth.storage.StorageEngine;
+import com.JasonRoth.storage.WriteBatch;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Applies internode requests to this node's data store. Shared by every connection of both the blocking and the
+ * NIO peer servers, so it must be thread safe.
+ */
+public class PeerMessageProcessor {
+    private final Logger logger;
+    private final StorageEngine dataStore;
+    private final BatchCoordinator batchCoordinator;
+    private final ReplicaReader replicaReader;
+    private final AntiEntropyService antiEntropy;
+    private final Rebalancer rebalancer;
+    private final NearCacheService nearCache;
+
+    /**
+     * @param logger the logger of this node
+     * @param dataStore this node's storage engine
+     * @param batchCoordinator applies the multi-key requests this node is primary for
+     * @param replicaReader repairs stale replicas of the keys this node is primary for
+     * @param antiEntropy answers the Merkle tree comparisons of the primaries of this node's ranges
+     * @param rebalancer applies the ranges streamed to this node and reads the keys of those still streaming in
+     * @param nearCache reads keys for the coordinators that cache them and drops the keys their primaries invalidate
+     */
+    public PeerMessageProcessor(Logger logger, StorageEngine dataStore, BatchCoordinator batchCoordinator, ReplicaReader replicaReader,
+                                AntiEntropyService antiEntropy, Rebalancer rebalancer, NearCacheService nearCache) {
+        this.logger = logger;
+        this.dataStore = dataStore;
+        this.batchCoordinator = batchCoordinator;
+        this.replicaReader = replicaReader;
+        this.antiEntropy = antiEntropy;
+        this.rebalancer = rebalancer;
+        this.nearCache = nearCache;
+    }
+
+    /**
+     * Applies a single request without holding the calling thread while it waits on other nodes. Multi-key writes
+     * complete once their replicas have acknowledged them, and reads of keys whose range is still streaming in once
+     * their old replica answered. Every other request is answered right away.
+     * @param framedMessage the request that was read
+     * @return a future completed with the response to send back, the request id is filled in by the caller
+     */
+    public CompletableFuture<PeerMessageFramer.FramedMessage> processAsync(PeerMessageFramer.FramedMessage framedMessage) {
+        if (framedMessage.messageType == PeerMessageHandler.MessageType.MULTI_WRITE_REQUEST.getByteCode()) {
+            return processMultiWrite(framedMessage);
+        }
+        if (framedMessage.messageType == PeerMessageHandler.MessageType.FORWARD_GET_REQUEST.getByteCode()) {
+            return processGet(framedMessage);
+        }
+        if (framedMessage.messageType == PeerMessageHandler.MessageType.NEAR_CACHE_GET_REQUEST.getByteCode()) {
+            return processNearCacheGet(framedMessage);
+        }
+        return CompletableFuture.completedFuture(process(framedMessage));
+    }
+
+    /**
+     * Like {@link #processAsync}, but a request that fails in any way, by throwing or by completing exceptionally, is
+     * answered with an ERROR_RESPONSE, so the sender isn't left waiting for a response until it times out
+     * @param framedMessage the request that was read
+     * @return a future completed with the response to send back, it never completes exceptionally
+     */
+    public CompletableFuture<PeerMessageFramer.FramedMessage> processOrError(PeerMessageFramer.FramedMessage framedMessage) {
+        CompletableFuture<PeerMessageFramer.FramedMessage> response;
+        try {
+            response = processAsync(framedMessage);
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        return response.exceptionally(error -> {
+            logger.log(Level.SEVERE, "Failed to process " + PeerMessageHandler.MessageType.fromByteCode(framedMessage.messageType) + " message", error);
+            return new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.ERROR_RESPONSE.getByteCode(), null);
+        });
+    }
+
+    /**
+     * Applies a single request to this node's data store, waiting for it if it involves other nodes
+     * @param framedMessage the request that was read
+     * @return the response to send back, the request id is filled in by the caller
+     */
+    public PeerMessageFramer.FramedMessage process(PeerMessageFramer.FramedMessage framedMessage) {
+        PeerMessageHandler.MessageType messageType = PeerMessageHandler.MessageType.fromByteCode(framedMessage.messageType);
+        int version = framedMessage.protocolVersion;
+
+        logger.log(Level.INFO, "Received Message - Type: {0}, Payload bytes: {1}", new Object[]{messageType, framedMessage.payload.length});
+        try {
+            //Switch statement to handle different message types
+            switch (messageType) {
+                case PING:
+                    //write a PONG message back
+                    return new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.PONG.getByteCode(), null);
+                case FORWARD_PUT_REQUEST:
+                    KeyValue kv = PeerPayloadCodec.decodeKeyValue(framedMessage);
+                    dataStore.put(kv.getKey(), kv.getValue());
+                    ResponseMessage success = new ResponseMessage("Success", kv.getKey());
+                    return new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.OPERATION_SUCCESS_RESPONSE.getByteCode(), PeerPayloadCodec.encode(version, success));
+                case FORWARD_GET_REQUEST:
+                    //only reached from version 1 connections, which answer one request at a time anyway
+                    return processGet(framedMessage).join();
+                case FORWARD_DELETE_REQUEST:
+                    String key = framedMessage.getPayloadAsString();
+                    logger.log(Level.INFO, "FORWARD_DELETE_REQUEST received. Payload {0}.", new Object[]{key});
+
+                    //Message comes in as the message type and the payload is the key we want to delete
+                    boolean exists = dataStore.containsKey(key);
+                    if(exists){
+                        dataStore.delete(key);
+                        return new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.OPERATION_SUCCESS_RESPONSE.getByteCode(), null);
+                    }
+                    return new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.KEY_NOT_FOUND_RESPONSE.getByteCode(), null);
+                case REPLICATE_PUT_REQUEST:
+                    KeyValue kvToReplicate = PeerPayloadCodec.decodeKeyValue(framedMessage);
+                    dataStore.put(kvToReplicate.getKey(), kvToReplicate.getValue());
+                    logger.log(Level.INFO, "Replicated PUT for key: {0}", kvToReplicate.getKey());
+                    // Send an acknowledgment back to the leader
+                    return new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.REPLICATION_ACK.getByteCode(), null);
+                case REPLICATE_DELETE_REQUEST:
+                    String keyToDelete = framedMessage.getPayloadAsString();
+                    dataStore.delete(keyToDelete);
+                    logger.log(Level.INFO, "Replicated DELETE for key: {0}", keyToDelete);
+                    // Send an acknowledgment back to the leader
+                    return new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.REPLICATION_ACK.getByteCode(), null);
+                case REPLICATE_BATCH_REQUEST:
+                    WriteBatch batch = new WriteBatch();
+                    long lastSequence = PeerPayloadCodec.decodeReplicationBatch(framedMessage, batch);
+                    //applied in order with a single log sync, the ack covers every write in the batch
+                    dataStore.write(batch);
+                    logger.log(Level.INFO, "Replicated batch of {0} writes up to sequence {1}", new Object[]{batch.size(), lastSequence});
+                    return new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.REPLICATION_ACK.getByteCode(), PeerPayloadCodec.encodeReplicationAck(lastSequence));
+                case MULTI_GET_REQUEST:
+                    List<String> keys = PeerPayloadCodec.decodeKeys(framedMessage);
+                    return new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.MULTI_RESPONSE.getByteCode(), PeerPayloadCodec.encodeKeyResults(batchCoordinator.getLocal(keys)));
+                case MULTI_WRITE_REQUEST:
+                    //only reached from version 1 connections, which answer one request at a time anyway
+                    return processMultiWrite(framedMessage).join();
+                case READ_REPAIR_REQUEST:
+                    //the key followed by the replicas that answered a read with a stale value
+                    List<String> repair = PeerPayloadCodec.decodeKeys(framedMessage);
+                    if (repair.isEmpty()) {
+                        throw new IOException("Read repair request without a key");
+                    }
+                    replicaReader.repairAsPrimary(repair.get(0), repair.subList(1, repair.size()));
+                    return new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.OPERATION_SUCCESS_RESPONSE.getByteCode(), null);
+                case MERKLE_TREE_REQUEST:
+                    PeerPayloadCodec.TreeRequest treeRequest = PeerPayloadCodec.decodeTreeRequest(framedMessage);
+                    return new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.MERKLE_TREE_RESPONSE.getByteCode(), PeerPayloadCodec.encodeTreeHashes(antiEntropy.treeHashes(treeRequest)));
+                case MERKLE_ENTRIES_REQUEST:
+                    //scans the store, but only the primary of a range that differs asks for it
+                    Map<Long, BitSet> leaves = PeerPayloadCodec.decodeEntriesRequest(framedMessage);
+                    return new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.MERKLE_ENTRIES_RESPONSE.getByteCode(), PeerPayloadCodec.encodeEntryHashes(antiEntropy.entryHashes(leaves)));
+                case REBALANCE_CHUNK_REQUEST:
+                    //a chunk that fails its checksum is answered with an error and resent
+                    rebalancer.receive(PeerPayloadCodec.decodeStreamChunk(framedMessage));
+                    return new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.OPERATION_SUCCESS_RESPONSE.getByteCode(), null);
+                case NEAR_CACHE_GET_REQUEST:
+                    //only sent on connections of version 10 and up, which are answered through processAsync
+                    return processNearCacheGet(framedMessage).join();
+                case CACHE_INVALIDATE_REQUEST:
+                    nearCache.invalidate(PeerPayloadCodec.decodeKeys(framedMessage));
+                    return new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.OPERATION_SUCCESS_RESPONSE.getByteCode(), null);
+                default:
+                    logger.log(Level.WARNING, "Received UNKNOWN or unhandled message type {0}.", new Object[]{messageType});
+                    return new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.UNKNOWN.getByteCode(), null);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            logger.log(Level.SEVERE, "Failed to process " + messageType + " message", e);
+            return new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.ERROR_RESPONSE.getByteCode(), null);
+        }
+    }
+
+    /**
+     * @return a future completed with the VALUE_RESPONSE or KEY_NOT_FOUND_RESPONSE
+     */
+    private CompletableFuture<PeerMessageFramer.FramedMessage> processGet(PeerMessageFramer.FramedMessage framedMessage) {
+        int version = framedMessage.protocolVersion;
+        //key only payloads are the UTF-8 key in every version
+        String key = framedMessage.getPayloadAsString();
+        logger.log(Level.INFO, "FORWARD_GET_REQUEST received. Payload: {0}.", new Object[]{key});
+
+        //message should come in as the message type and then the payload is just the key
+        return rebalancer.get(key).thenApply(value -> {
+            if (value != null) {
+                KeyValue kv = new KeyValue(key, value);
+                return new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.VALUE_RESPONSE.getByteCode(), PeerPayloadCodec.encode(version, kv));
+            }
+            return new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.KEY_NOT_FOUND_RESPONSE.getByteCode(), null);
+        });
+    }
+
+    /**
+     * @return a future completed with the VALUE_RESPONSE or KEY_NOT_FOUND_RESPONSE, once the coordinator is registered
+     * to be told when the key is written
+     */
+    private CompletableFuture<PeerMessageFramer.FramedMessage> processNearCacheGet(PeerMessageFramer.FramedMessage framedMessage) {
+        int version = framedMessage.protocolVersion;
+        List<String> request;
+        long cacheTtlMillis;
+        try {
+            //the key, the coordinator's internode address and how long it caches the value
+            request = PeerPayloadCodec.decodeKeys(framedMessage);
+            if (request.size() != 3) {
+                throw new IOException("Near cache read with " + request.size() + " fields instead of 3");
+            }
+            cacheTtlMillis = Long.parseLong(request.get(2));
+        } catch (IOException | NumberFormatException e) {
+            logger.log(Level.SEVERE, "Failed to process NEAR_CACHE_GET_REQUEST message", e);
+            return CompletableFuture.completedFuture(new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.ERROR_RESPONSE.getByteCode(), null));
+        }
+        String key = request.get(0);
+        return nearCache.readForCache(key, request.get(1), cacheTtlMillis).thenApply(value -> {
+            if (value != null) {
+                return new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.VALUE_RESPONSE.getByteCode(), PeerPayloadCodec.encode(version, new KeyValue(key, value)));
+            }
+            return new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.KEY_NOT_FOUND_RESPONSE.getByteCode(), null);
+        });
+    }
+
+    /**
+     * @return a future completed with the MULTI_RESPONSE once every write met its consistency level or failed, within
+     * the quorum timeout
+     */
+    private CompletableFuture<PeerMessageFramer.FramedMessage> processMultiWrite(PeerMessageFramer.FramedMessage framedMessage) {
+        WriteBatch writes = new WriteBatch();
+        ConsistencyLevel level;
+        try {
+            level = PeerPayloadCodec.decodeWriteBatch(framedMessage, writes);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to process MULTI_WRITE_REQUEST message", e);
+            return CompletableFuture.completedFuture(new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.ERROR_RESPONSE.getByteCode(), null));
+        }
+        logger.log(Level.INFO, "MULTI_WRITE_REQUEST received with {0} writes at {1}", new Object[]{writes.size(), level});
+        return batchCoordinator.writeAsPrimary(writes, level).thenApply(results ->
+                new PeerMessageFramer.FramedMessage(PeerMessageHandler.MessageType.MULTI_RESPONSE.getByteCode(), PeerPayloadCodec.encodeKeyResults(results)));
+    }
+}
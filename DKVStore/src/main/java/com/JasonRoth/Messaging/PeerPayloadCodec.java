@@ -0,0 +1,584 @@
+package com.JasonRoth.Messaging;
+
+import com.JasonRoth.ConsistencyLevel;
+import com.JasonRoth.storage.WriteBatch;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Encodes and decodes the structured payloads of internode messages. Connections that negotiated protocol version 3
+ * or above use a compact binary encoding, older peers get JSON.
+ *
+ * In the binary encoding every string is written as a 4 byte length followed by its UTF-8 bytes, a length of -1
+ * stands for null:
+ * KeyValue - key, value
+ * ResponseMessage - status, key
+ * WriteBatch - 4 byte count, then key and value of every write, a null value is a delete
+ * MultiWrite - from protocol version 7 a byte with the consistency level's ordinal, then a WriteBatch
+ * ReplicationBatch - 8 byte sequence number of the first write, then a WriteBatch
+ * ReplicationAck - 8 byte sequence number of the last write applied
+ * Keys - 4 byte count, then every key
+ * ReadRepair - a Keys payload holding the key, then the replicas to repair
+ * TreeRequest - 8 byte start and end token of a range, 4 byte count, then every 4 byte node number
+ * TreeHashes - a byte that is 0 if the range is unknown, else 1 followed by a 4 byte count and every 8 byte hash
+ * EntriesRequest - 4 byte count, then per range its 8 byte end token, a 4 byte count and the leaves as the 8 byte
+ *                  words of a bit set
+ * EntryHashes - 4 byte count, then per entry its key and 8 byte hash
+ * StreamChunk - 8 byte CRC32 of the rest of the payload, a WriteBatch of the streamed pairs, then a 4 byte count and
+ *               the 8 byte start and end token of every range the chunk completes
+ * KeyResults - 4 byte count, then per key a status byte and the value or error, keys aren't repeated since the
+ *              results are in request order
+ * The messages from protocol version 4 on are always binary.
+ * Strings are decoded straight out of the frame's payload array, and neither direction needs a mapper or an
+ * intermediate JSON string. Encoding goes through String.getBytes, whose intrinsic is many times faster than copying
+ * UTF-8 by hand, at the cost of one short-lived array per string.
+ */
+public final class PeerPayloadCodec {
+    //ObjectMapper is thread safe once configured, one instance serves every connection
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final int NULL_LENGTH = -1;
+
+    private PeerPayloadCodec() {
+    }
+
+    /**
+     * @param protocolVersion the version negotiated for the connection the payload is sent on
+     * @param keyValue the pair to encode
+     * @return the payload
+     */
+    public static byte[] encode(int protocolVersion, KeyValue keyValue) {
+        if (protocolVersion < PeerMessageFramer.PROTOCOL_V3) {
+            return toJson(keyValue);
+        }
+        return encodeStrings(keyValue.getKey(), keyValue.getValue());
+    }
+
+    /**
+     * @param protocolVersion the version negotiated for the connection the payload is sent on
+     * @param response the response to encode
+     * @return the payload
+     */
+    public static byte[] encode(int protocolVersion, ResponseMessage response) {
+        if (protocolVersion < PeerMessageFramer.PROTOCOL_V3) {
+            return toJson(response);
+        }
+        return encodeStrings(response.getStatus(), response.getKey());
+    }
+
+    /**
+     * @param message a message with a KeyValue payload
+     * @return the decoded pair
+     * @throws IOException if the payload is malformed
+     */
+    public static KeyValue decodeKeyValue(PeerMessageFramer.FramedMessage message) throws IOException {
+        if (message.protocolVersion < PeerMessageFramer.PROTOCOL_V3) {
+            return JSON.readValue(message.payload, KeyValue.class);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(message.payload);
+        return new KeyValue(readString(buffer), readString(buffer));
+    }
+
+    /**
+     * @param message a message with a ResponseMessage payload
+     * @return the decoded response
+     * @throws IOException if the payload is malformed
+     */
+    public static ResponseMessage decodeResponseMessage(PeerMessageFramer.FramedMessage message) throws IOException {
+        if (message.protocolVersion < PeerMessageFramer.PROTOCOL_V3) {
+            return JSON.readValue(message.payload, ResponseMessage.class);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(message.payload);
+        return new ResponseMessage(readString(buffer), readString(buffer));
+    }
+
+    /**
+     * @param firstSequence the sequence number of the batch's first write, the others follow consecutively
+     * @param batch the writes
+     * @return the REPLICATE_BATCH_REQUEST payload
+     */
+    public static byte[] encodeReplicationBatch(long firstSequence, WriteBatch batch) {
+        return encodeWrites(8, batch).putLong(0, firstSequence).array();
+    }
+
+    /**
+     * Decodes a REPLICATE_BATCH_REQUEST payload
+     * @param message the request
+     * @param batch receives the writes in order
+     * @return the sequence number of the last write in the batch
+     * @throws IOException if the payload is malformed
+     */
+    public static long decodeReplicationBatch(PeerMessageFramer.FramedMessage message, WriteBatch batch) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(message.payload);
+        if (buffer.remaining() < 8) {
+            throw new IOException("Truncated replication batch");
+        }
+        long firstSequence = buffer.getLong();
+        int count = decodeWrites(buffer, batch);
+        return firstSequence + count - 1;
+    }
+
+    /**
+     * @param protocolVersion the version negotiated for the connection the payload is sent on
+     * @param batch the writes
+     * @param level the consistency level of the writes, peers before version 7 always write at QUORUM
+     * @return the MULTI_WRITE_REQUEST payload
+     */
+    public static byte[] encodeWriteBatch(int protocolVersion, WriteBatch batch, ConsistencyLevel level) {
+        if (protocolVersion < PeerMessageFramer.PROTOCOL_V7) {
+            return encodeWrites(0, batch).array();
+        }
+        return encodeWrites(1, batch).put(0, (byte) level.ordinal()).array();
+    }
+
+    /**
+     * Decodes a MULTI_WRITE_REQUEST payload
+     * @param message the request
+     * @param batch receives the writes in order
+     * @return the consistency level of the writes
+     * @throws IOException if the payload is malformed
+     */
+    public static ConsistencyLevel decodeWriteBatch(PeerMessageFramer.FramedMessage message, WriteBatch batch) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(message.payload);
+        ConsistencyLevel level = ConsistencyLevel.QUORUM;
+        if (message.protocolVersion >= PeerMessageFramer.PROTOCOL_V7) {
+            ConsistencyLevel[] levels = ConsistencyLevel.values();
+            int ordinal = buffer.hasRemaining() ? buffer.get() : -1;
+            if (ordinal < 0 || ordinal >= levels.length) {
+                throw new IOException("Invalid consistency level " + ordinal + " in payload");
+            }
+            level = levels[ordinal];
+        }
+        decodeWrites(buffer, batch);
+        return level;
+    }
+
+    /**
+     * @param keys the keys to read
+     * @return the MULTI_GET_REQUEST payload
+     */
+    public static byte[] encodeKeys(List<String> keys) {
+        List<byte[]> encoded = new ArrayList<>(keys.size());
+        int length = 4;
+        for (String key : keys) {
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            encoded.add(bytes);
+            length += 4 + bytes.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length).putInt(keys.size());
+        for (byte[] bytes : encoded) {
+            writeBytes(buffer, bytes);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @param message a MULTI_GET_REQUEST
+     * @return the keys in request order
+     * @throws IOException if the payload is malformed
+     */
+    public static List<String> decodeKeys(PeerMessageFramer.FramedMessage message) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(message.payload);
+        int count = readCount(buffer);
+        List<String> keys = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String key = readString(buffer);
+            if (key == null) {
+                throw new IOException("Multi-key request with a null key");
+            }
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    /**
+     * @param results the results in request order
+     * @return the MULTI_RESPONSE payload
+     */
+    public static byte[] encodeKeyResults(List<KeyResult> results) {
+        List<byte[]> details = new ArrayList<>(results.size());
+        int length = 4;
+        for (KeyResult result : results) {
+            String detail = result.getStatus() == KeyResult.Status.FAILED ? result.getError() : result.getValue();
+            byte[] bytes = detail == null ? null : detail.getBytes(StandardCharsets.UTF_8);
+            details.add(bytes);
+            length += 1 + 4 + (bytes == null ? 0 : bytes.length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length).putInt(results.size());
+        for (int i = 0; i < results.size(); i++) {
+            buffer.put((byte) results.get(i).getStatus().ordinal());
+            writeBytes(buffer, details.get(i));
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @param message a MULTI_RESPONSE
+     * @param keys the keys of the request it answers, in request order
+     * @return a result per key
+     * @throws IOException if the payload is malformed or doesn't match the request
+     */
+    public static List<KeyResult> decodeKeyResults(PeerMessageFramer.FramedMessage message, List<String> keys) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(message.payload);
+        int count = readCount(buffer);
+        if (count != keys.size()) {
+            throw new IOException("Multi-key response has " + count + " results for " + keys.size() + " keys");
+        }
+        KeyResult.Status[] statuses = KeyResult.Status.values();
+        List<KeyResult> results = new ArrayList<>(count);
+        for (String key : keys) {
+            if (!buffer.hasRemaining()) {
+                throw new IOException("Truncated payload");
+            }
+            int status = buffer.get();
+            if (status < 0 || status >= statuses.length) {
+                throw new IOException("Invalid key status " + status + " in payload");
+            }
+            String detail = readString(buffer);
+            results.add(statuses[status] == KeyResult.Status.FAILED
+                    ? KeyResult.failed(key, detail)
+                    : new KeyResult(key, statuses[status], detail, null));
+        }
+        return results;
+    }
+
+    /**
+     * The nodes of a range's Merkle tree an anti-entropy exchange asks for
+     */
+    public record TreeRequest(long start, long end, int[] nodes) {
+    }
+
+    public static byte[] encodeTreeRequest(TreeRequest request) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 8 + 4 + 4 * request.nodes().length)
+                .putLong(request.start()).putLong(request.end()).putInt(request.nodes().length);
+        for (int node : request.nodes()) {
+            buffer.putInt(node);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @param message a MERKLE_TREE_REQUEST
+     * @throws IOException if the payload is malformed
+     */
+    public static TreeRequest decodeTreeRequest(PeerMessageFramer.FramedMessage message) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(message.payload);
+        if (buffer.remaining() < 16) {
+            throw new IOException("Truncated payload");
+        }
+        long start = buffer.getLong();
+        long end = buffer.getLong();
+        int[] nodes = new int[readCount(buffer)];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = buffer.getInt();
+        }
+        return new TreeRequest(start, end, nodes);
+    }
+
+    /**
+     * @param hashes the hashes of the requested nodes, null if the range is unknown
+     * @return the MERKLE_TREE_RESPONSE payload
+     */
+    public static byte[] encodeTreeHashes(long[] hashes) {
+        if (hashes == null) {
+            return new byte[]{0};
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + 8 * hashes.length).put((byte) 1).putInt(hashes.length);
+        for (long hash : hashes) {
+            buffer.putLong(hash);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @param message a MERKLE_TREE_RESPONSE
+     * @param count how many nodes were requested
+     * @return the hash of each node, null if the peer doesn't know the range
+     * @throws IOException if the payload is malformed or doesn't match the request
+     */
+    public static long[] decodeTreeHashes(PeerMessageFramer.FramedMessage message, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(message.payload);
+        if (!buffer.hasRemaining()) {
+            throw new IOException("Truncated payload");
+        }
+        if (buffer.get() == 0) {
+            return null;
+        }
+        if (buffer.remaining() != 4 + 8L * count || buffer.getInt() != count) {
+            throw new IOException("Merkle tree response doesn't hold " + count + " hashes");
+        }
+        long[] hashes = new long[count];
+        for (int i = 0; i < count; i++) {
+            hashes[i] = buffer.getLong();
+        }
+        return hashes;
+    }
+
+    /**
+     * @param leaves the leaves wanted, by the end token of their range
+     * @return the MERKLE_ENTRIES_REQUEST payload
+     */
+    public static byte[] encodeEntriesRequest(Map<Long, BitSet> leaves) {
+        int length = 4;
+        for (BitSet set : leaves.values()) {
+            length += 8 + 4 + 8 * set.toLongArray().length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length).putInt(leaves.size());
+        for (Map.Entry<Long, BitSet> range : leaves.entrySet()) {
+            long[] words = range.getValue().toLongArray();
+            buffer.putLong(range.getKey()).putInt(words.length);
+            for (long word : words) {
+                buffer.putLong(word);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @param message a MERKLE_ENTRIES_REQUEST
+     * @return the leaves wanted, by the end token of their range
+     * @throws IOException if the payload is malformed
+     */
+    public static Map<Long, BitSet> decodeEntriesRequest(PeerMessageFramer.FramedMessage message) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(message.payload);
+        int count = readCount(buffer);
+        Map<Long, BitSet> leaves = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < 8) {
+                throw new IOException("Truncated payload");
+            }
+            long end = buffer.getLong();
+            long[] words = new long[readCount(buffer)];
+            if (buffer.remaining() < 8L * words.length) {
+                throw new IOException("Truncated payload");
+            }
+            for (int w = 0; w < words.length; w++) {
+                words[w] = buffer.getLong();
+            }
+            leaves.put(end, BitSet.valueOf(words));
+        }
+        return leaves;
+    }
+
+    /**
+     * @param entries the hash of every entry, by key
+     * @return the MERKLE_ENTRIES_RESPONSE payload
+     */
+    public static byte[] encodeEntryHashes(Map<String, Long> entries) {
+        List<byte[]> keys = new ArrayList<>(entries.size());
+        int length = 4;
+        for (String key : entries.keySet()) {
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            keys.add(bytes);
+            length += 4 + bytes.length + 8;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length).putInt(entries.size());
+        int i = 0;
+        for (long hash : entries.values()) {
+            writeBytes(buffer, keys.get(i++));
+            buffer.putLong(hash);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @param message a MERKLE_ENTRIES_RESPONSE
+     * @return the hash of every entry, by key
+     * @throws IOException if the payload is malformed
+     */
+    public static Map<String, Long> decodeEntryHashes(PeerMessageFramer.FramedMessage message) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(message.payload);
+        int count = readCount(buffer);
+        Map<String, Long> entries = new LinkedHashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            String key = readString(buffer);
+            if (key == null || buffer.remaining() < 8) {
+                throw new IOException("Malformed Merkle entry");
+            }
+            entries.put(key, buffer.getLong());
+        }
+        return entries;
+    }
+
+    /**
+     * A chunk of the pairs a node streams to the new owner of token ranges
+     * @param pairs the streamed pairs, all PUTs
+     * @param completed the ranges whose pairs have all been sent once this chunk is applied
+     */
+    public record StreamChunk(WriteBatch pairs, List<StreamedRange> completed) {
+    }
+
+    /**
+     * The tokens from start, exclusive, to end, inclusive
+     */
+    public record StreamedRange(long start, long end) {
+    }
+
+    public static byte[] encodeStreamChunk(StreamChunk chunk) {
+        ByteBuffer buffer = encodeWrites(8, chunk.pairs(), 4 + 16 * chunk.completed().size());
+        buffer.putInt(chunk.completed().size());
+        for (StreamedRange range : chunk.completed()) {
+            buffer.putLong(range.start()).putLong(range.end());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 8, buffer.capacity() - 8);
+        return buffer.putLong(0, crc.getValue()).array();
+    }
+
+    /**
+     * @param message a REBALANCE_CHUNK_REQUEST
+     * @throws IOException if the payload is malformed or fails its checksum
+     */
+    public static StreamChunk decodeStreamChunk(PeerMessageFramer.FramedMessage message) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(message.payload);
+        if (buffer.remaining() < 8) {
+            throw new IOException("Truncated payload");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(message.payload, 8, message.payload.length - 8);
+        if (buffer.getLong() != crc.getValue()) {
+            throw new IOException("Rebalance chunk failed its checksum");
+        }
+        WriteBatch pairs = new WriteBatch();
+        decodeWrites(buffer, pairs);
+        int count = readCount(buffer);
+        if (buffer.remaining() != 16L * count) {
+            throw new IOException("Malformed completed ranges in rebalance chunk");
+        }
+        List<StreamedRange> completed = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            completed.add(new StreamedRange(buffer.getLong(), buffer.getLong()));
+        }
+        return new StreamChunk(pairs, completed);
+    }
+
+    public static byte[] encodeReplicationAck(long lastSequence) {
+        return ByteBuffer.allocate(8).putLong(lastSequence).array();
+    }
+
+    /**
+     * @param message a REPLICATION_ACK answering a batch
+     * @return the sequence number of the last write the follower applied
+     * @throws IOException if the payload is malformed
+     */
+    public static long decodeReplicationAck(PeerMessageFramer.FramedMessage message) throws IOException {
+        if (message.payload.length != 8) {
+            throw new IOException("Invalid replication ack");
+        }
+        return ByteBuffer.wrap(message.payload).getLong();
+    }
+
+    /**
+     * Encodes the writes of a batch after a header the caller fills in
+     * @return a buffer holding the whole payload, its first headerBytes bytes left zero
+     */
+    private static ByteBuffer encodeWrites(int headerBytes, WriteBatch batch) {
+        return encodeWrites(headerBytes, batch, 0);
+    }
+
+    /**
+     * @return a buffer positioned at the trailerBytes bytes left free after the writes
+     */
+    private static ByteBuffer encodeWrites(int headerBytes, WriteBatch batch, int trailerBytes) {
+        List<byte[]> strings = new ArrayList<>(batch.size() * 2);
+        int length = headerBytes + 4 + trailerBytes;
+        for (WriteBatch.Operation operation : batch.getOperations()) {
+            byte[] key = operation.key().getBytes(StandardCharsets.UTF_8);
+            byte[] value = operation.isDelete() ? null : operation.value().getBytes(StandardCharsets.UTF_8);
+            strings.add(key);
+            strings.add(value);
+            length += 8 + key.length + (value == null ? 0 : value.length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.position(headerBytes);
+        buffer.putInt(batch.size());
+        for (byte[] string : strings) {
+            writeBytes(buffer, string);
+        }
+        return buffer;
+    }
+
+    /**
+     * @return the number of writes decoded
+     */
+    private static int decodeWrites(ByteBuffer buffer, WriteBatch batch) throws IOException {
+        int count = readCount(buffer);
+        for (int i = 0; i < count; i++) {
+            String key = readString(buffer);
+            String value = readString(buffer);
+            if (key == null) {
+                throw new IOException("Write batch entry without a key");
+            }
+            if (value == null) {
+                batch.delete(key);
+            } else {
+                batch.put(key, value);
+            }
+        }
+        return count;
+    }
+
+    private static int readCount(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 4) {
+            throw new IOException("Truncated payload");
+        }
+        int count = buffer.getInt();
+        //every entry takes at least 4 bytes, a larger count can only come from a corrupt frame
+        if (count < 0 || count > buffer.remaining() / 4) {
+            throw new IOException("Invalid entry count " + count + " in payload");
+        }
+        return count;
+    }
+
+    private static byte[] toJson(Object value) {
+        try {
+            return JSON.writeValueAsBytes(value);
+        } catch (IOException e) {
+            //only thrown for types Jackson can't serialize, which the payload classes aren't
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] encodeStrings(String first, String second) {
+        byte[] firstBytes = first == null ? null : first.getBytes(StandardCharsets.UTF_8);
+        byte[] secondBytes = second == null ? null : second.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[8 + (firstBytes == null ? 0 : firstBytes.length) + (secondBytes == null ? 0 : secondBytes.length)];
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        writeBytes(buffer, firstBytes);
+        writeBytes(buffer, secondBytes);
+        return payload;
+    }
+
+    private static void writeBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(NULL_LENGTH);
+        } else {
+            buffer.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 4) {
+            throw new IOException("Truncated payload");
+        }
+        int length = buffer.getInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Invalid string length " + length + " in payload");
+        }
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
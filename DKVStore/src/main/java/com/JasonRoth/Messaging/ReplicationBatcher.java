@@ -0,0 +1,328 @@
+package com.JasonRoth.Messaging;
+
+import com.JasonRoth.metrics.MetricsRegistry;
+import com.JasonRoth.storage.WriteBatch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends replicated writes to followers in batches. Each follower has a queue, and concurrent writes for it are
+ * coalesced into a single REPLICATE_BATCH_REQUEST frame that the follower applies in order and answers with one
+ * cumulative ack carrying the sequence number of the last write it applied.
+ *
+ * At most one batch per follower is in flight, which keeps batches in order without the follower tracking sequence
+ * numbers. Writes that arrive meanwhile wait for the ack, so batches grow with load by themselves. An idle follower's
+ * batch is sent once it reaches maxEntries or maxBytes, or lingerMicros after its first write was queued. A follower
+ * that is evicted and added again gets a new queue, which waits for the batch the old queue still has in flight.
+ * Followers that predate protocol version 4 get one REPLICATE_PUT_REQUEST or REPLICATE_DELETE_REQUEST per write, each
+ * sent once the previous one was answered so they are applied in order too.
+ */
+public class ReplicationBatcher implements Closeable {
+    private final PeerConnectionPool connectionPool;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long lingerNanos;
+    private final ExecutorService sendExecutor;
+    private final MetricsRegistry metrics;
+    private final Logger logger;
+    private final ScheduledExecutorService lingerTimer;
+    private final Map<String, FollowerQueue> queues = new ConcurrentHashMap<>();
+    //evicted queues whose last batch is still in flight
+    private final Map<String, FollowerQueue> retiring = new ConcurrentHashMap<>();
+
+    /**
+     * @param connectionPool connections to the followers
+     * @param maxEntries most writes in one batch
+     * @param maxBytes most bytes of keys and values in one batch, a single larger write is still sent alone
+     * @param lingerMicros how long a write waits for others to share its batch, 0 sends right away
+     * @param sendExecutor runs the sends, which may block while a connection is opened
+     * @param metrics where batch counts are recorded
+     * @param logger the logger of this node
+     */
+    public ReplicationBatcher(PeerConnectionPool connectionPool, int maxEntries, long maxBytes, long lingerMicros,
+                              ExecutorService sendExecutor, MetricsRegistry metrics, Logger logger) {
+        this.connectionPool = connectionPool;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+        this.sendExecutor = sendExecutor;
+        this.metrics = metrics;
+        this.logger = logger;
+        this.lingerTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replication-linger");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return a future completed with true once the follower acknowledged the write
+     */
+    public CompletableFuture<Boolean> replicatePut(String followerAddress, String key, String value) {
+        return queues.computeIfAbsent(followerAddress, this::newQueue).add(key, value);
+    }
+
+    /**
+     * @return a future completed with true once the follower acknowledged the delete
+     */
+    public CompletableFuture<Boolean> replicateDelete(String followerAddress, String key) {
+        return queues.computeIfAbsent(followerAddress, this::newQueue).add(key, null);
+    }
+
+    /**
+     * Drops the queue of a node that left the ring, its queued writes complete as not acknowledged
+     */
+    public void evict(String followerAddress) {
+        FollowerQueue queue = queues.get(followerAddress);
+        if (queue != null) {
+            //retired while still in the map, so a queue that replaces it finds it among the retiring ones
+            queue.retire();
+            queues.remove(followerAddress, queue);
+            queue.failPending();
+        }
+    }
+
+    private FollowerQueue newQueue(String followerAddress) {
+        FollowerQueue queue = new FollowerQueue(followerAddress);
+        FollowerQueue previous = retiring.get(followerAddress);
+        if (previous != null) {
+            previous.handOver(queue);
+        }
+        return queue;
+    }
+
+    @Override
+    public void close() {
+        lingerTimer.shutdownNow();
+        for (FollowerQueue queue : queues.values()) {
+            queue.failPending();
+        }
+        queues.clear();
+    }
+
+    /**
+     * A queued write, a null value is a delete
+     */
+    private record Entry(String key, String value, long sequence, long bytes, CompletableFuture<Boolean> future) {
+    }
+
+    private class FollowerQueue {
+        private final String followerAddress;
+        private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+        private long pendingBytes = 0;
+        private long nextSequence = 1;
+        private boolean inFlight = false;
+        private boolean lingerScheduled = false;
+        private boolean retired = false;
+        //the queue that replaced this one, waiting for its batch in flight
+        private FollowerQueue successor;
+
+        private FollowerQueue(String followerAddress) {
+            this.followerAddress = followerAddress;
+        }
+
+        private CompletableFuture<Boolean> add(String key, String value) {
+            CompletableFuture<Boolean> future = new CompletableFuture<>();
+            //chars rather than encoded bytes, close enough to bound the frame size
+            long bytes = 8 + key.length() + (value == null ? 0 : value.length());
+            synchronized (this) {
+                if (retired) {
+                    //the follower was evicted after this queue was looked up
+                    future.complete(false);
+                    return future;
+                }
+                pending.add(new Entry(key, value, nextSequence++, bytes, future));
+                pendingBytes += bytes;
+                if (!inFlight) {
+                    if (lingerNanos == 0 || pending.size() >= maxEntries || pendingBytes >= maxBytes) {
+                        dispatch();
+                    } else if (!lingerScheduled) {
+                        lingerScheduled = true;
+                        try {
+                            lingerTimer.schedule(this::lingerExpired, lingerNanos, TimeUnit.NANOSECONDS);
+                        } catch (RejectedExecutionException e) {
+                            lingerScheduled = false;
+                            dispatch(); //closing, send what there is
+                        }
+                    }
+                }
+            }
+            return future;
+        }
+
+        private synchronized void lingerExpired() {
+            lingerScheduled = false;
+            if (!inFlight && !pending.isEmpty()) {
+                dispatch();
+            }
+        }
+
+        /**
+         * Takes the next batch off the queue and sends it, the caller holds the lock
+         */
+        private void dispatch() {
+            List<Entry> batch = new ArrayList<>();
+            long bytes = 0;
+            while (!pending.isEmpty() && batch.size() < maxEntries && (batch.isEmpty() || bytes + pending.peek().bytes() <= maxBytes)) {
+                Entry entry = pending.poll();
+                bytes += entry.bytes();
+                batch.add(entry);
+            }
+            pendingBytes -= bytes;
+            inFlight = true;
+            try {
+                sendExecutor.execute(() -> send(batch));
+            } catch (RejectedExecutionException e) {
+                complete(batch, -1, e);
+            }
+        }
+
+        private void send(List<Entry> batch) {
+            int version;
+            try {
+                version = connectionPool.protocolVersion(followerAddress);
+            } catch (IOException e) {
+                complete(batch, -1, e);
+                return;
+            }
+            if (version < PeerMessageFramer.PROTOCOL_V4) {
+                sendIndividually(batch);
+                return;
+            }
+            WriteBatch writes = new WriteBatch();
+            for (Entry entry : batch) {
+                if (entry.value() == null) {
+                    writes.delete(entry.key());
+                } else {
+                    writes.put(entry.key(), entry.value());
+                }
+            }
+            long start = System.nanoTime();
+            byte[] payload = PeerPayloadCodec.encodeReplicationBatch(batch.get(0).sequence(), writes);
+            connectionPool.sendRequestAsync(followerAddress, PeerMessageHandler.MessageType.REPLICATE_BATCH_REQUEST, payload)
+                    .whenComplete((response, error) -> {
+                        metrics.timer("replication.batchRoundTrip").recordSince(start);
+                        if (error != null) {
+                            complete(batch, -1, error);
+                        } else if (response.messageType != PeerMessageHandler.MessageType.REPLICATION_ACK.getByteCode()) {
+                            complete(batch, -1, new IOException("Unexpected response " + PeerMessageHandler.MessageType.fromByteCode(response.messageType)));
+                        } else {
+                            try {
+                                complete(batch, PeerPayloadCodec.decodeReplicationAck(response), null);
+                            } catch (IOException e) {
+                                complete(batch, -1, e);
+                            }
+                        }
+                    });
+        }
+
+        /**
+         * Sends the writes of a batch one at a time, each once the previous one was answered. Sent concurrently they
+         * could take different connections and two writes of a key be applied in the wrong order.
+         */
+        private void sendIndividually(List<Entry> batch) {
+            CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+            for (Entry entry : batch) {
+                chain = chain.thenCompose(ignored -> sendOne(entry));
+            }
+            chain.whenComplete((ignored, error) -> batchDone());
+        }
+
+        /**
+         * @return a future completed once the write was answered, it never completes exceptionally
+         */
+        private CompletableFuture<Void> sendOne(Entry entry) {
+            CompletableFuture<PeerMessageFramer.FramedMessage> response = entry.value() == null
+                    ? connectionPool.sendRequestAsync(followerAddress, PeerMessageHandler.MessageType.REPLICATE_DELETE_REQUEST, entry.key().getBytes(StandardCharsets.UTF_8))
+                    : connectionPool.sendRequestAsync(followerAddress, PeerMessageHandler.MessageType.REPLICATE_PUT_REQUEST,
+                            version -> PeerPayloadCodec.encode(version, new KeyValue(entry.key(), entry.value())));
+            return response.handle((message, error) -> {
+                boolean acked = error == null && message.messageType == PeerMessageHandler.MessageType.REPLICATION_ACK.getByteCode();
+                if (error != null) {
+                    logger.log(Level.SEVERE, "Failed to replicate to node " + followerAddress, error);
+                }
+                entry.future().complete(acked);
+                return null;
+            });
+        }
+
+        /**
+         * Completes every write of a batch, the ones up to the cumulative ack as acknowledged
+         */
+        private void complete(List<Entry> batch, long ackedSequence, Throwable error) {
+            if (error != null) {
+                logger.log(Level.SEVERE, "Failed to replicate batch of " + batch.size() + " writes to node " + followerAddress, error);
+            } else {
+                logger.log(Level.INFO, "Replicated batch of {0} writes to {1}", new Object[]{batch.size(), followerAddress});
+                metrics.counter("replication.batches").increment();
+                metrics.counter("replication.batchedWrites").add(batch.size());
+            }
+            for (Entry entry : batch) {
+                entry.future().complete(entry.sequence() <= ackedSequence);
+            }
+            batchDone();
+        }
+
+        private void batchDone() {
+            FollowerQueue next;
+            synchronized (this) {
+                inFlight = false;
+                if (!retired) {
+                    if (!pending.isEmpty()) {
+                        //these writes already waited a round trip, send them without lingering
+                        dispatch();
+                    }
+                    return;
+                }
+                retiring.remove(followerAddress, this);
+                next = successor;
+                successor = null;
+            }
+            if (next != null) {
+                next.batchDone();
+            }
+        }
+
+        /**
+         * Stops taking writes, a batch still in flight is waited for by the queue that replaces this one
+         */
+        private synchronized void retire() {
+            retired = true;
+            if (inFlight) {
+                retiring.put(followerAddress, this);
+            }
+        }
+
+        /**
+         * Holds back the first batch of the queue that replaces this one until this queue's batch is answered
+         */
+        private synchronized void handOver(FollowerQueue next) {
+            if (inFlight) {
+                //next isn't shared yet, its first add finds it in flight and queues the write
+                next.inFlight = true;
+                successor = next;
+            }
+        }
+
+        private void failPending() {
+            List<Entry> dropped;
+            synchronized (this) {
+                dropped = new ArrayList<>(pending);
+                pending.clear();
+                pendingBytes = 0;
+            }
+            for (Entry entry : dropped) {
+                entry.future().complete(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package com.JasonRoth;
+
+import com.JasonRoth.Messaging.PeerConnectionPool;
+import com.JasonRoth.Messaging.PeerMessageFramer;
+import com.JasonRoth.Messaging.PeerMessageHandler;
+import com.JasonRoth.Messaging.PeerPayloadCodec;
+import com.JasonRoth.cache.NearCache;
+import com.JasonRoth.metrics.MetricsRegistry;
+import com.JasonRoth.storage.ttl.ExpiringValues;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Near caching of the values a node reads from other nodes, kept coherent by the keys' primaries.
+ *
+ * As a coordinator, a node with a {@link NearCache} serves ONE reads of keys it holds no replica of from the cache.
+ * A miss is read from the key's primary with a NEAR_CACHE_GET_REQUEST, and concurrent misses of a key share one
+ * request. Reads at QUORUM and ALL, and reads of keys this node holds, always go to the replicas.
+ *
+ * As a primary, every node remembers which coordinators read each key through a NEAR_CACHE_GET_REQUEST. Once a write
+ * of the key is applied it sends each of them a CACHE_INVALIDATE_REQUEST and forgets them, they register again with
+ * their next miss. A coordinator is registered before the value is read, so a write applied after the read always
+ * finds the registration, and a value whose fetch was overtaken by an invalidation isn't cached. Invalidations that
+ * get lost, or writes the primary doesn't see because the ring changed, are bounded by the entries' time to live,
+ * and a coordinator drops its whole cache when the ring changes.
+ *
+ * Values are cached as they are stored, with their expiry, and a value that expired is never served from the cache.
+ */
+public class NearCacheService {
+    private static final int REPLICATION_FACTOR = 3;
+
+    private final String selfAddressString;
+    private final NearCache cache; //null if this node doesn't cache, it still tracks the coordinators of its keys
+    private final long ttlMillis;
+    private final ConsistentHashingManager hashingManager;
+    private final PeerConnectionPool connectionPool;
+    private final ReplicaReader replicaReader;
+    private final Rebalancer rebalancer;
+    private final ExecutorService executor;
+    private final MetricsRegistry metrics;
+    private final Logger logger;
+    private final Map<String, CompletableFuture<String>> fetches = new ConcurrentHashMap<>(); //misses being read from their primary
+    private final Map<String, Map<String, Long>> coordinators = new ConcurrentHashMap<>(); //key -> coordinator -> registration expiry millis
+    private final ScheduledExecutorService sweepTimer;
+
+    /**
+     * @param selfAddressString this node's internode address
+     * @param maxBytes most bytes this node caches, 0 disables its cache
+     * @param ttlMillis how long a cached value is served
+     * @param hashingManager the ring that decides a key's replicas
+     * @param connectionPool connections to the other nodes
+     * @param replicaReader reads the keys that aren't cached
+     * @param rebalancer reads this node's keys for the coordinators that cache them
+     * @param executor runs the protocol negotiation with a primary the first time a miss is read from it, and sends
+     *                 invalidations
+     * @param metrics where hits, misses and invalidations are counted
+     * @param logger the logger of this node
+     */
+    public NearCacheService(String selfAddressString, long maxBytes, long ttlMillis, ConsistentHashingManager hashingManager,
+                            PeerConnectionPool connectionPool, ReplicaReader replicaReader, Rebalancer rebalancer,
+                            ExecutorService executor, MetricsRegistry metrics, Logger logger) {
+        this.selfAddressString = selfAddressString;
+        this.cache = maxBytes > 0 ? new NearCache(maxBytes, ttlMillis) : null;
+        this.ttlMillis = ttlMillis;
+        this.hashingManager = hashingManager;
+        this.connectionPool = connectionPool;
+        this.replicaReader = replicaReader;
+        this.rebalancer = rebalancer;
+        this.executor = executor;
+        this.metrics = metrics;
+        this.logger = logger;
+        this.sweepTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "near-cache-sweep");
+            t.setDaemon(true);
+            return t;
+        });
+        sweepTimer.scheduleWithFixedDelay(this::sweepRegistrations, 1, 1, TimeUnit.SECONDS);
+        if (cache != null) {
+            metrics.gauge("nearCache.entries", cache::size);
+            metrics.gauge("nearCache.bytes", cache::weightedSize);
+            metrics.gauge("nearCache.evictions", cache::evictions);
+        }
+        metrics.gauge("nearCache.trackedKeys", coordinators::size);
+    }
+
+    /**
+     * Reads a key, from the near cache if the level and the key allow it and from its replicas otherwise
+     * @return a future completed like {@link ReplicaReader#read(String, ConsistencyLevel)}
+     */
+    public CompletableFuture<String> read(String key, ConsistencyLevel level) {
+        if (cache == null || level != ConsistencyLevel.ONE) {
+            return replicaReader.read(key, level);
+        }
+        List<String> replicas = hashingManager.getNodesForKey(key, REPLICATION_FACTOR);
+        if (replicas == null || replicas.isEmpty() || replicas.contains(selfAddressString)) {
+            return replicaReader.read(key, level);
+        }
+        String stored = cache.get(key);
+        String value = ExpiringValues.decode(stored);
+        if (value != null) {
+            metrics.counter("nearCache.hits").increment();
+            return CompletableFuture.completedFuture(value);
+        }
+        if (stored != null) {
+            cache.invalidate(key); //expired
+        }
+        metrics.counter("nearCache.misses").increment();
+        CompletableFuture<String> fetch = new CompletableFuture<>();
+        CompletableFuture<String> running = fetches.putIfAbsent(key, fetch);
+        if (running != null) {
+            return running;
+        }
+        fetchFromPrimary(replicas.get(0), key).whenComplete((fetched, error) -> {
+            //an invalidation removes the fetch, the value is only cached if none arrived while it was read
+            fetches.computeIfPresent(key, (k, current) -> {
+                if (current == fetch && error == null && fetched.cacheable() && fetched.value() != null) {
+                    cache.put(key, fetched.value());
+                }
+                return current == fetch ? null : current;
+            });
+            if (error != null) {
+                fetch.completeExceptionally(error);
+            } else {
+                fetch.complete(ExpiringValues.decode(fetched.value()));
+            }
+        });
+        return fetch;
+    }
+
+    /**
+     * Drops keys from the near cache, for a primary's CACHE_INVALIDATE_REQUEST and for the writes this node
+     * coordinates
+     */
+    public void invalidate(List<String> keys) {
+        if (cache == null) {
+            return;
+        }
+        for (String key : keys) {
+            //under the fetch's lock, so a fetch that is completing either sees it gone or is invalidated after
+            fetches.compute(key, (k, fetch) -> {
+                if (cache.invalidate(key)) {
+                    metrics.counter("nearCache.invalidations").increment();
+                }
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Empties the near cache, called whenever the ring changes since the new primaries don't know who caches
+     */
+    public void clear() {
+        if (cache != null) {
+            fetches.clear();
+            cache.clear();
+        }
+    }
+
+    /**
+     * Empties the near cache and forgets the coordinators that left the ring, called whenever the ring's members
+     * change
+     * @param liveNodes the internode addresses of the nodes in the ring
+     */
+    public void membershipChanged(List<String> liveNodes) {
+        clear();
+        Set<String> live = new HashSet<>(liveNodes);
+        for (String key : coordinators.keySet()) {
+            coordinators.computeIfPresent(key, (k, registered) -> {
+                registered.keySet().retainAll(live);
+                return registered.isEmpty() ? null : registered;
+            });
+        }
+    }
+
+    /**
+     * Answers a coordinator's NEAR_CACHE_GET_REQUEST for a key this node is primary for, remembering the coordinator
+     * until the key is written or the registration expires
+     * @param key the key to read
+     * @param coordinator the coordinator's internode address
+     * @param cacheTtlMillis how long the coordinator serves the value
+     * @return a future completed with the value, or null if the key isn't stored
+     */
+    public CompletableFuture<String> readForCache(String key, String coordinator, long cacheTtlMillis) {
+        //kept for twice the coordinator's time to live, so it outlives the entry however late the value arrives
+        long expiresAt = System.currentTimeMillis() + 2 * cacheTtlMillis;
+        coordinators.compute(key, (k, registered) -> {
+            Map<String, Long> updated = registered == null ? new HashMap<>() : registered;
+            updated.put(coordinator, expiresAt);
+            return updated;
+        });
+        return rebalancer.get(key);
+    }
+
+    /**
+     * Tells the coordinators caching any of the keys to drop them, called by the primary once a write is applied.
+     * The invalidations are sent from the executor, since connecting to a coordinator that crashed or is slow may
+     * block, and the write mustn't wait for that.
+     * @param keys the keys written
+     */
+    public void keysWritten(List<String> keys) {
+        Map<String, List<String>> invalidations = new HashMap<>();
+        for (String key : keys) {
+            Map<String, Long> registered = coordinators.remove(key);
+            if (registered != null) {
+                for (String coordinator : registered.keySet()) {
+                    invalidations.computeIfAbsent(coordinator, c -> new ArrayList<>()).add(key);
+                }
+            }
+        }
+        if (invalidations.isEmpty()) {
+            return;
+        }
+        try {
+            executor.execute(() -> sendInvalidations(invalidations));
+        } catch (RejectedExecutionException e) {
+            //the coordinators' entries expire by themselves
+            int dropped = invalidations.values().stream().mapToInt(List::size).sum();
+            metrics.counter("nearCache.invalidationFailures").add(dropped);
+            logger.log(Level.WARNING, "Failed to invalidate " + dropped + " keys cached by other nodes, the executor is full", e);
+        }
+    }
+
+    private void sendInvalidations(Map<String, List<String>> invalidations) {
+        for (Map.Entry<String, List<String>> invalidation : invalidations.entrySet()) {
+            String coordinator = invalidation.getKey();
+            List<String> invalidated = invalidation.getValue();
+            connectionPool.sendRequestAsync(coordinator, PeerMessageHandler.MessageType.CACHE_INVALIDATE_REQUEST, PeerPayloadCodec.encodeKeys(invalidated))
+                    .whenComplete((response, error) -> {
+                        if (error == null && response.messageType == PeerMessageHandler.MessageType.OPERATION_SUCCESS_RESPONSE.getByteCode()) {
+                            metrics.counter("nearCache.invalidationsSent").add(invalidated.size());
+                        } else {
+                            //the coordinator's entries expire by themselves
+                            metrics.counter("nearCache.invalidationFailures").add(invalidated.size());
+                            logger.log(Level.WARNING, "Failed to invalidate " + invalidated.size() + " keys cached by " + coordinator, error);
+                        }
+                    });
+        }
+    }
+
+    public void close() {
+        sweepTimer.shutdownNow();
+    }
+
+    /**
+     * Reads a miss from the key's primary, registering this node as a coordinator caching it. If the primary can't be
+     * asked the key is read from its replicas instead, and the value isn't cached since no one would invalidate it.
+     */
+    private CompletableFuture<Fetched> fetchFromPrimary(String primary, String key) {
+        return withProtocolVersion(primary).thenCompose(version -> {
+            if (version < PeerMessageFramer.PROTOCOL_V10) {
+                return readUncached(key);
+            }
+            byte[] payload = PeerPayloadCodec.encodeKeys(List.of(key, selfAddressString, Long.toString(ttlMillis)));
+            return connectionPool.sendRequestAsync(primary, PeerMessageHandler.MessageType.NEAR_CACHE_GET_REQUEST, payload)
+                    .thenApply(response -> {
+                        PeerMessageHandler.MessageType type = PeerMessageHandler.MessageType.fromByteCode(response.messageType);
+                        try {
+                            return switch (type) {
+                                case VALUE_RESPONSE -> new Fetched(ExpiringValues.live(PeerPayloadCodec.decodeKeyValue(response).getValue()), true);
+                                case KEY_NOT_FOUND_RESPONSE -> new Fetched(null, true);
+                                default -> throw new IOException("Unexpected response " + type + " from " + primary);
+                            };
+                        } catch (IOException e) {
+                            throw new CompletionException(e);
+                        }
+                    });
+        }).exceptionallyCompose(error -> {
+            logger.log(Level.WARNING, "Failed to read key " + key + " from its primary " + primary + ", reading it from the replicas", error);
+            return readUncached(key);
+        });
+    }
+
+    private CompletableFuture<Integer> withProtocolVersion(String peerAddress) {
+        int version = connectionPool.connectedProtocolVersion(peerAddress);
+        if (version != PeerConnectionPool.VERSION_UNKNOWN) {
+            return CompletableFuture.completedFuture(version);
+        }
+        //negotiating the first time may block on connecting, so it runs on the executor rather than the caller
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return connectionPool.protocolVersion(peerAddress);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private CompletableFuture<Fetched> readUncached(String key) {
+        return replicaReader.readStored(key, ConsistencyLevel.ONE).thenApply(stored -> new Fetched(stored, false));
+    }
+
+    private void sweepRegistrations() {
+        long now = System.currentTimeMillis();
+        for (String key : coordinators.keySet()) {
+            coordinators.computeIfPresent(key, (k, registered) -> {
+                registered.values().removeIf(expiresAt -> expiresAt < now);
+                return registered.isEmpty() ? null : registered;
+            });
+        }
+    }
+
+    /**
+     * A value read for the near cache as it is stored, null if the key isn't stored or expired
+     * @param cacheable false if the value came from somewhere that doesn't invalidate it
+     */
+    private record Fetched(String value, boolean cacheable) {
+    }
+}
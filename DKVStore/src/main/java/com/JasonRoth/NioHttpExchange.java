@@ -0,0 +1,295 @@
+package com.JasonRoth;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One request of a {@link NioHttpServer} connection and the response to it. The request body is the array it was
+ * read into and the response is handed to the connection as buffers once the exchange is closed, so a body passed to
+ * {@link #sendResponse(int, byte[])} is written to the socket without being copied.
+ */
+public class NioHttpExchange extends HttpExchange {
+    private final String method;
+    private final URI uri;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final byte[] requestBody;
+    private final Headers responseHeaders = new Headers();
+    private final boolean keepAlive;
+    private final InetSocketAddress localAddress;
+    private final InetSocketAddress remoteAddress;
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    private final Runnable onComplete;
+    private HttpContext context;
+    private InputStream in;
+    private OutputStream out;
+    private ResponseBody bufferedBody;
+    private int responseCode = -1;
+    private long responseLength;
+    private volatile ByteBuffer[] response; //set once the exchange is closed, empty if the connection must be dropped
+    private volatile boolean closeConnection;
+
+    /**
+     * @param onComplete tells the connection the response is ready, called once from the thread that closes the
+     *                   exchange
+     */
+    NioHttpExchange(String method, URI uri, String protocol, Headers requestHeaders, byte[] requestBody, boolean keepAlive,
+                    InetSocketAddress localAddress, InetSocketAddress remoteAddress, Runnable onComplete) {
+        this.method = method;
+        this.uri = uri;
+        this.protocol = protocol;
+        this.requestHeaders = requestHeaders;
+        this.requestBody = requestBody;
+        this.keepAlive = keepAlive;
+        this.localAddress = localAddress;
+        this.remoteAddress = remoteAddress;
+        this.onComplete = onComplete;
+        this.in = new ByteArrayInputStream(requestBody);
+    }
+
+    /**
+     * @return the request body, the array itself rather than a copy
+     */
+    public byte[] getRequestBytes() {
+        return requestBody;
+    }
+
+    /**
+     * Sends a complete response and closes the exchange. The body is written as it is, so the caller must not
+     * modify it afterwards.
+     */
+    public void sendResponse(int code, byte[] body) throws IOException {
+        startResponse(code, body.length);
+        finish(body, body.length);
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return context;
+    }
+
+    void setHttpContext(HttpContext context) {
+        this.context = context;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (response != null) {
+            return;
+        }
+        if (responseCode == -1) {
+            //closed without a response, like the JDK server the connection is dropped
+            abort();
+            return;
+        }
+        if (bufferedBody == null) {
+            finish(new byte[0], 0);
+        } else {
+            finish(bufferedBody.buffer(), bufferedBody.size());
+        }
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return in;
+    }
+
+    @Override
+    public synchronized OutputStream getResponseBody() {
+        if (out == null) {
+            bufferedBody = new ResponseBody();
+            out = bufferedBody;
+        }
+        return out;
+    }
+
+    @Override
+    public synchronized void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        startResponse(rCode, responseLength);
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (value == null) {
+            attributes.remove(name);
+        } else {
+            attributes.put(name, value);
+        }
+    }
+
+    @Override
+    public synchronized void setStreams(InputStream i, OutputStream o) {
+        if (i != null) {
+            in = i;
+        }
+        if (o != null) {
+            getResponseBody();
+            out = o;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    /**
+     * Drops the connection once the responses before this one are written, for a handler that failed
+     */
+    synchronized void abort() {
+        if (response == null) {
+            closeConnection = true;
+            response = new ByteBuffer[0];
+            onComplete.run();
+        }
+    }
+
+    /**
+     * @return the response, null until the exchange is closed and empty if the connection must be dropped instead
+     */
+    ByteBuffer[] response() {
+        return response;
+    }
+
+    /**
+     * @return true if the connection is closed after the response
+     */
+    boolean closesConnection() {
+        return closeConnection;
+    }
+
+    private synchronized void startResponse(int code, long length) throws IOException {
+        if (responseCode != -1) {
+            throw new IOException("Response headers already sent");
+        }
+        responseCode = code;
+        responseLength = length;
+    }
+
+    /**
+     * Builds the response head, the body length is only known here when the handler didn't give one
+     */
+    private synchronized void finish(byte[] body, int bodyLength) {
+        if (response != null) {
+            return;
+        }
+        if (responseLength > 0 && bodyLength != responseLength) {
+            //a short or long body would desynchronize every pipelined response after it
+            abort();
+            return;
+        }
+        boolean noBody = method.equals("HEAD") || responseCode == 204 || responseCode == 304 || responseLength == -1;
+        closeConnection = !keepAlive;
+        StringBuilder head = new StringBuilder(128);
+        head.append("HTTP/1.1 ").append(responseCode).append(' ').append(reasonPhrase(responseCode)).append("\r\n");
+        for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+            for (String value : header.getValue()) {
+                head.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        if (responseCode != 204 && responseCode != 304) {
+            head.append("Content-Length: ").append(noBody ? 0 : bodyLength).append("\r\n");
+        }
+        if (closeConnection) {
+            head.append("Connection: close\r\n");
+        }
+        head.append("\r\n");
+        ByteBuffer headBuffer = ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        response = noBody || bodyLength == 0 ? new ByteBuffer[]{headBuffer} : new ByteBuffer[]{headBuffer, ByteBuffer.wrap(body, 0, bodyLength)};
+        onComplete.run();
+    }
+
+    static String reasonPhrase(int code) {
+        return switch (code) {
+            case 100 -> "Continue";
+            case 200 -> "OK";
+            case 201 -> "Created";
+            case 204 -> "No Content";
+            case 207 -> "Multi-Status";
+            case 304 -> "Not Modified";
+            case 400 -> "Bad Request";
+            case 404 -> "Not Found";
+            case 405 -> "Method Not Allowed";
+            case 413 -> "Content Too Large";
+            case 431 -> "Request Header Fields Too Large";
+            case 500 -> "Internal Server Error";
+            case 501 -> "Not Implemented";
+            case 503 -> "Service Unavailable";
+            default -> "";
+        };
+    }
+
+    /**
+     * A response body written through {@link #getResponseBody()}, closing it closes the exchange like the JDK's
+     */
+    private class ResponseBody extends ByteArrayOutputStream {
+        private byte[] buffer() {
+            return buf;
+        }
+
+        @Override
+        public void close() {
+            NioHttpExchange.this.close();
+        }
+    }
+}
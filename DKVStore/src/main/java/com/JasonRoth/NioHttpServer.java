@@ -0,0 +1,707 @@
+package com.JasonRoth;
+
+import com.JasonRoth.Logging.LoggingServer;
+import com.JasonRoth.util.DirectBufferPool;
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking HTTP/1.1 server with the contexts and handlers of the JDK's HttpServer. A small fixed set of event
+ * loop threads owns all client connections. Connections are kept alive and requests pipelined on them: requests are
+ * parsed as they arrive and handed to the executor, gets in parallel and anything else once the requests before it
+ * are answered, and the responses are written back in request order as their exchanges are closed. A connection with
+ * MAX_PIPELINED_REQUESTS requests in flight isn't read until some are answered.
+ *
+ * Request bodies stay the byte array they were read into and response bodies the array they were serialized into,
+ * see {@link NioHttpExchange}. Bodies must have a Content-Length, chunked requests are answered with 501.
+ */
+public class NioHttpServer extends HttpServer implements LoggingServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024; //also the largest request line and headers
+    private static final int MAX_POOLED_BUFFERS = 256;
+    private static final int MAX_PIPELINED_REQUESTS = 64;
+    private static final int MAX_BODY_BYTES = 64 * 1024 * 1024;
+    private static final byte[] HEAD_END = {'\r', '\n', '\r', '\n'};
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector acceptSelector;
+    private final EventLoop[] eventLoops;
+    private final DirectBufferPool bufferPool = new DirectBufferPool(READ_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    private final Map<String, Context> contexts = new ConcurrentHashMap<>();
+    private final Logger logger;
+    private final Thread acceptor;
+    private volatile Executor executor;
+    private volatile boolean running = true;
+
+    /**
+     * @param address the address to listen on
+     * @param eventLoopThreads how many threads multiplex the connections
+     */
+    public NioHttpServer(InetSocketAddress address, int eventLoopThreads) throws IOException {
+        logger = initializeLogging(this.getClass().getCanonicalName() + "_Port:" + address.getPort());
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        eventLoops = new EventLoop[Math.max(1, eventLoopThreads)];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop("http-event-loop-" + address.getPort() + "-" + i);
+        }
+        acceptor = new Thread(this::accept, "http-acceptor-" + address.getPort());
+    }
+
+    @Override
+    public void bind(InetSocketAddress addr, int backlog) throws IOException {
+        throw new BindException("NioHttpServer is bound when it is created");
+    }
+
+    @Override
+    public void start() {
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+        acceptor.start();
+    }
+
+    /**
+     * @param executor runs the handlers, without one they run on the event loops and must not block
+     */
+    @Override
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones, responses still in flight are dropped
+     */
+    @Override
+    public void stop(int delay) {
+        running = false;
+        try {
+            serverChannel.close();
+            acceptSelector.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to close HTTP server socket", e);
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+        logger.log(Level.INFO, "NioHttpServer shutting down");
+    }
+
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler) {
+        Context context = new Context(path, handler);
+        if (contexts.putIfAbsent(path, context) != null) {
+            throw new IllegalArgumentException("A context already exists for " + path);
+        }
+        return context;
+    }
+
+    @Override
+    public HttpContext createContext(String path) {
+        return createContext(path, null);
+    }
+
+    @Override
+    public void removeContext(String path) {
+        if (contexts.remove(path) == null) {
+            throw new IllegalArgumentException("No context exists for " + path);
+        }
+    }
+
+    @Override
+    public void removeContext(HttpContext context) {
+        contexts.remove(context.getPath(), context);
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        try {
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Accepts connections and spreads them over the event loops round robin
+     */
+    private void accept() {
+        int next = 0;
+        while (running) {
+            try {
+                acceptSelector.select();
+                Iterator<SelectionKey> keys = acceptSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    keys.next();
+                    keys.remove();
+                    SocketChannel channel;
+                    while ((channel = serverChannel.accept()) != null) {
+                        channel.configureBlocking(false);
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        eventLoops[next++ % eventLoops.length].register(channel);
+                    }
+                }
+            } catch (ClosedSelectorException | ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if (running) {
+                    logger.log(Level.SEVERE, "Error accepting HTTP connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the context with the longest path the request path starts with, like the JDK's server, or null
+     */
+    private Context contextFor(String path) {
+        Context match = null;
+        for (Context context : contexts.values()) {
+            if (path.startsWith(context.path) && (match == null || context.path.length() > match.path.length())) {
+                match = context;
+            }
+        }
+        return match;
+    }
+
+    /**
+     * A path and the handler of the requests under it
+     */
+    private class Context extends HttpContext {
+        private final String path;
+        private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+        private final List<Filter> filters = new CopyOnWriteArrayList<>();
+        private volatile HttpHandler handler;
+        private volatile Authenticator authenticator; //kept for callers, requests aren't authenticated
+
+        private Context(String path, HttpHandler handler) {
+            this.path = path;
+            this.handler = handler;
+        }
+
+        @Override
+        public HttpHandler getHandler() {
+            return handler;
+        }
+
+        @Override
+        public void setHandler(HttpHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public HttpServer getServer() {
+            return NioHttpServer.this;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public List<Filter> getFilters() {
+            return filters;
+        }
+
+        @Override
+        public Authenticator setAuthenticator(Authenticator auth) {
+            Authenticator previous = authenticator;
+            authenticator = auth;
+            return previous;
+        }
+
+        @Override
+        public Authenticator getAuthenticator() {
+            return authenticator;
+        }
+    }
+
+    /**
+     * A thread multiplexing many client connections over one selector
+     */
+    private class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingResponses = new ConcurrentLinkedQueue<>();
+
+        private EventLoop(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        private void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Called from the thread that closed an exchange, the event loop writes the responses that are ready
+         */
+        private void responseReady(Connection connection) {
+            pendingResponses.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = pendingRegistrations.poll()) != null) {
+                        Connection connection = new Connection(channel, this);
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    }
+                    Connection ready;
+                    while ((ready = pendingResponses.poll()) != null) {
+                        try {
+                            ready.writeResponses();
+                        } catch (IOException | CancelledKeyException e) {
+                            ready.close();
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.close();
+                        }
+                    }
+                } catch (ClosedSelectorException e) {
+                    break;
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Error in event loop " + getName(), e);
+                }
+            }
+        }
+
+        private void shutdown() {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection connection) {
+                        connection.close();
+                    }
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                logger.log(Level.WARNING, "Failed to close selector", e);
+            }
+        }
+    }
+
+    /**
+     * State of one client connection, only touched by its event loop. Exchanges are closed on other threads and
+     * hand their responses over through {@link EventLoop#responseReady}.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final EventLoop eventLoop;
+        private final InetSocketAddress localAddress;
+        private final InetSocketAddress remoteAddress;
+        private final ArrayDeque<NioHttpExchange> inFlight = new ArrayDeque<>(); //in request order
+        private final ArrayDeque<NioHttpExchange> waiting = new ArrayDeque<>(); //parsed but not started yet, see startReady
+        private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+        private SelectionKey key;
+        private ByteBuffer readBuffer; //pooled, only held while a partial request is buffered, kept ready for reading
+        private PartialRequest partial; //a request whose body is still arriving
+        private boolean paused; //too many requests in flight, reading waits for responses
+        private boolean lastRequest; //a request asked to close the connection or couldn't be parsed
+        private boolean closeAfterWrite;
+
+        private Connection(SocketChannel channel, EventLoop eventLoop) throws IOException {
+            this.channel = channel;
+            this.eventLoop = eventLoop;
+            this.localAddress = (InetSocketAddress) channel.getLocalAddress();
+            this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+        }
+
+        private void read() throws IOException {
+            if (partial != null && partial.remaining() >= READ_BUFFER_SIZE) {
+                //a large body is read straight into its array
+                int read = channel.read(ByteBuffer.wrap(partial.body, partial.filled, partial.remaining()));
+                if (read == -1) {
+                    throw new ClosedChannelException();
+                }
+                partial.filled += read;
+                if (partial.remaining() == 0) {
+                    PartialRequest complete = partial;
+                    partial = null;
+                    dispatch(complete);
+                }
+                return;
+            }
+            if (readBuffer == null) {
+                readBuffer = bufferPool.acquire();
+            }
+            if (channel.read(readBuffer) == -1) {
+                throw new ClosedChannelException();
+            }
+            parseBuffered();
+        }
+
+        /**
+         * Dispatches every complete request in the read buffer
+         */
+        private void parseBuffered() {
+            readBuffer.flip();
+            while (!paused && !lastRequest && readBuffer.hasRemaining()) {
+                if (partial != null) {
+                    int length = Math.min(partial.remaining(), readBuffer.remaining());
+                    readBuffer.get(partial.body, partial.filled, length);
+                    partial.filled += length;
+                    if (partial.remaining() > 0) {
+                        break;
+                    }
+                    PartialRequest complete = partial;
+                    partial = null;
+                    dispatch(complete);
+                    continue;
+                }
+                int headEnd = indexOf(readBuffer, HEAD_END);
+                if (headEnd < 0) {
+                    if (readBuffer.remaining() == readBuffer.capacity()) {
+                        reject(431);
+                    }
+                    break;
+                }
+                byte[] head = new byte[headEnd - readBuffer.position()];
+                readBuffer.get(head);
+                readBuffer.position(readBuffer.position() + HEAD_END.length);
+                parseHead(new String(head, StandardCharsets.ISO_8859_1));
+            }
+            if (readBuffer.hasRemaining()) {
+                readBuffer.compact();
+            } else {
+                //nothing buffered, give the buffer back so idle connections don't hold one
+                bufferPool.release(readBuffer);
+                readBuffer = null;
+            }
+            updateInterest();
+        }
+
+        /**
+         * Parses a request line and headers and starts collecting the body
+         */
+        private void parseHead(String head) {
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                reject(400);
+                return;
+            }
+            Headers headers = new Headers();
+            for (int i = 1; i < lines.length; i++) {
+                int separator = lines[i].indexOf(':');
+                if (separator <= 0) {
+                    reject(400);
+                    return;
+                }
+                headers.add(lines[i].substring(0, separator).trim(), lines[i].substring(separator + 1).trim());
+            }
+            if (headers.containsKey("Transfer-Encoding")) {
+                reject(501);
+                return;
+            }
+            long length;
+            URI uri;
+            try {
+                String contentLength = headers.getFirst("Content-Length");
+                length = contentLength == null ? 0 : Long.parseLong(contentLength);
+                uri = URI.create(requestLine[1]);
+            } catch (IllegalArgumentException e) {
+                reject(400);
+                return;
+            }
+            if (length < 0) {
+                reject(400);
+                return;
+            }
+            if (length > MAX_BODY_BYTES) {
+                reject(413);
+                return;
+            }
+            String connectionHeader = headers.getFirst("Connection");
+            boolean keepAlive = requestLine[2].equals("HTTP/1.0")
+                    ? "keep-alive".equalsIgnoreCase(connectionHeader)
+                    : !"close".equalsIgnoreCase(connectionHeader);
+            partial = new PartialRequest(requestLine[0], uri, requestLine[2], headers, new byte[(int) length], keepAlive);
+            if (length == 0) {
+                PartialRequest complete = partial;
+                partial = null;
+                dispatch(complete);
+            } else if ("100-continue".equalsIgnoreCase(headers.getFirst("Expect")) && readBuffer.remaining() < length && inFlight.isEmpty()) {
+                //only sent when nothing is in flight, it must not overtake an earlier response
+                writeQueue.add(ByteBuffer.wrap(CONTINUE));
+                try {
+                    flush();
+                } catch (IOException e) {
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Queues an error response and stops reading, the connection is closed once it is written
+         */
+        private void reject(int code) {
+            lastRequest = true;
+            NioHttpExchange exchange = new NioHttpExchange("GET", URI.create("/"), "HTTP/1.1", new Headers(), new byte[0], false,
+                    localAddress, remoteAddress, () -> eventLoop.responseReady(this));
+            inFlight.add(exchange);
+            try {
+                exchange.sendResponse(code, new byte[0]);
+            } catch (IOException e) {
+                exchange.abort();
+            }
+        }
+
+        private void dispatch(PartialRequest request) {
+            if (!request.keepAlive) {
+                lastRequest = true;
+            }
+            NioHttpExchange exchange = new NioHttpExchange(request.method, request.uri, request.protocol, request.headers, request.body,
+                    request.keepAlive, localAddress, remoteAddress, () -> eventLoop.responseReady(this));
+            inFlight.add(exchange);
+            if (inFlight.size() >= MAX_PIPELINED_REQUESTS) {
+                paused = true;
+                updateInterest();
+            }
+            Context context = contextFor(request.uri.getPath() == null ? "/" : request.uri.getPath());
+            if (context == null || context.handler == null) {
+                try {
+                    exchange.sendResponse(404, "{\"error\":\"No context found for request\"}".getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    exchange.abort();
+                }
+                return;
+            }
+            exchange.setHttpContext(context);
+            waiting.add(exchange);
+            startReady();
+        }
+
+        /**
+         * Starts the waiting requests in order until one must wait. A request that may change data waits for every
+         * request before it to be answered and the requests after it wait for it, so a pipelined get after a put sees
+         * the put, while pipelined gets run in parallel.
+         */
+        private void startReady() {
+            NioHttpExchange next;
+            while ((next = waiting.peek()) != null && mayStart(next)) {
+                waiting.poll();
+                start(next);
+            }
+        }
+
+        private boolean mayStart(NioHttpExchange exchange) {
+            boolean safe = isSafe(exchange);
+            for (NioHttpExchange earlier : inFlight) {
+                if (earlier == exchange) {
+                    return true;
+                }
+                if (earlier.response() == null && (!safe || !isSafe(earlier))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void start(NioHttpExchange exchange) {
+            HttpContext context = exchange.getHttpContext();
+            Runnable handle = () -> {
+                try {
+                    new Filter.Chain(context.getFilters(), context.getHandler()).doFilter(exchange);
+                } catch (IOException | RuntimeException e) {
+                    logger.log(Level.WARNING, "Handler of " + exchange.getRequestURI().getPath() + " failed", e);
+                    exchange.abort();
+                }
+            };
+            Executor current = executor;
+            if (current == null) {
+                handle.run();
+                return;
+            }
+            try {
+                current.execute(handle);
+            } catch (RejectedExecutionException e) {
+                try {
+                    exchange.sendResponse(503, "{\"error\":\"Server is overloaded\"}".getBytes(StandardCharsets.UTF_8));
+                } catch (IOException ioe) {
+                    exchange.abort();
+                }
+            }
+        }
+
+        /**
+         * Queues the responses that are ready in request order, stopping at the first exchange still open
+         */
+        private void writeResponses() throws IOException {
+            startReady();
+            NioHttpExchange head;
+            while ((head = inFlight.peek()) != null && head.response() != null) {
+                inFlight.poll();
+                ByteBuffer[] response = head.response();
+                if (response.length == 0) {
+                    //the handler failed or sent a body of the wrong length, drop the connection after what was sent
+                    closeAfterWrite = true;
+                    break;
+                }
+                writeQueue.addAll(List.of(response));
+                if (head.closesConnection()) {
+                    closeAfterWrite = true;
+                    break;
+                }
+            }
+            if (paused && inFlight.size() < MAX_PIPELINED_REQUESTS && !closeAfterWrite) {
+                paused = false;
+                if (readBuffer != null) {
+                    //requests already buffered were waiting on this
+                    parseBuffered();
+                }
+            }
+            flush();
+        }
+
+        private void flush() throws IOException {
+            ByteBuffer head;
+            while ((head = writeQueue.peek()) != null) {
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    updateInterest();
+                    return; //socket buffer is full, wait for the next write event
+                }
+                writeQueue.poll();
+            }
+            if (closeAfterWrite) {
+                close();
+                return;
+            }
+            updateInterest();
+        }
+
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = (paused || lastRequest) ? 0 : SelectionKey.OP_READ;
+            if (!writeQueue.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        private void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                //the connection is being discarded anyway
+            }
+            if (readBuffer != null) {
+                bufferPool.release(readBuffer);
+                readBuffer = null;
+            }
+        }
+    }
+
+    /**
+     * A parsed request line and headers, and as much of the body as has arrived
+     */
+    private static class PartialRequest {
+        private final String method;
+        private final URI uri;
+        private final String protocol;
+        private final Headers headers;
+        private final byte[] body;
+        private final boolean keepAlive;
+        private int filled;
+
+        private PartialRequest(String method, URI uri, String protocol, Headers headers, byte[] body, boolean keepAlive) {
+            this.method = method;
+            this.uri = uri;
+            this.protocol = protocol;
+            this.headers = headers;
+            this.body = body;
+            this.keepAlive = keepAlive;
+        }
+
+        private int remaining() {
+            return body.length - filled;
+        }
+    }
+
+    /**
+     * @return true if the request doesn't change data and may run alongside the requests around it
+     */
+    private static boolean isSafe(NioHttpExchange exchange) {
+        return exchange.getRequestMethod().equals("GET") || exchange.getRequestMethod().equals("HEAD");
+    }
+
+    /**
+     * @return the index of the first occurrence of the pattern between the buffer's position and limit, or -1
+     */
+    private static int indexOf(ByteBuffer buffer, byte[] pattern) {
+        int last = buffer.limit() - pattern.length;
+        outer:
+        for (int i = buffer.position(); i <= last; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buffer.get(i + j) != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,306 @@
+package com.JasonRoth;
+
+import com.JasonRoth.Logging.LoggingServer;
+import com.JasonRoth.Messaging.PeerMessageFramer;
+import com.JasonRoth.Messaging.PeerMessageHandler;
+import com.JasonRoth.Messaging.PeerMessageProcessor;
+import com.JasonRoth.util.DirectBufferPool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking TCP server for internode communication. A small fixed set of event loop threads owns all peer
+ * connections, decodes frames from pooled direct buffers and hands complete messages to a bounded worker pool.
+ * When the worker queue is full requests are rejected with an ERROR_RESPONSE instead of queueing without bound, and
+ * a request that fails while it is processed is answered with one too.
+ */
+public class NioTCPServer extends Thread implements PeerServer, LoggingServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 256;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector acceptSelector;
+    private final EventLoop[] eventLoops;
+    private final ThreadPoolExecutor workers;
+    private final DirectBufferPool bufferPool = new DirectBufferPool(READ_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    private final PeerMessageProcessor processor;
+    private final Logger logger;
+    private volatile boolean running = true;
+
+    public NioTCPServer(int port, PeerMessageProcessor processor, ServerConfig config) throws IOException {
+        logger = initializeLogging(this.getClass().getCanonicalName() + "_Port:" + port);
+        this.processor = processor;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        AtomicInteger workerCount = new AtomicInteger();
+        workers = new ThreadPoolExecutor(config.getPeerWorkerThreads(), config.getPeerWorkerThreads(), 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(config.getPeerWorkerQueueCapacity()),
+                r -> new Thread(r, "peer-worker-" + port + "-" + workerCount.incrementAndGet()));
+        eventLoops = new EventLoop[config.getNioEventLoopThreads()];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop("peer-event-loop-" + port + "-" + i);
+        }
+        setName("peer-acceptor-" + port);
+    }
+
+    /**
+     * Accepts connections and spreads them over the event loops round robin
+     */
+    @Override
+    public void run() {
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+        int next = 0;
+        while (running) {
+            try {
+                acceptSelector.select();
+                Iterator<SelectionKey> keys = acceptSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    keys.next();
+                    keys.remove();
+                    SocketChannel channel;
+                    while ((channel = serverChannel.accept()) != null) {
+                        logger.log(Level.INFO, "Accepted connection from " + channel.getRemoteAddress());
+                        channel.configureBlocking(false);
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        eventLoops[next++ % eventLoops.length].register(channel);
+                    }
+                }
+            } catch (ClosedSelectorException | ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if (running) {
+                    logger.log(Level.SEVERE, "Error accepting peer connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Shutdown the TCP Server
+     */
+    @Override
+    public void shutdown() {
+        running = false;
+        try {
+            serverChannel.close();
+            acceptSelector.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+        workers.shutdownNow();
+        logger.log(Level.INFO, "NioTCPServer shutting down");
+    }
+
+    /**
+     * A thread multiplexing many peer connections over one selector
+     */
+    private class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+        private EventLoop(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        private void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Called from worker threads once a response is queued, the event loop switches on write interest
+         */
+        private void requestWrite(Connection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = pendingRegistrations.poll()) != null) {
+                        Connection connection = new Connection(channel, this);
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    }
+                    Connection writer;
+                    while ((writer = pendingWrites.poll()) != null) {
+                        if (writer.key.isValid()) {
+                            writer.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            logger.log(Level.INFO, "Closing peer connection {0}: {1}", new Object[]{connection.remoteAddress, e.getMessage()});
+                            connection.close();
+                        }
+                    }
+                } catch (ClosedSelectorException e) {
+                    break;
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Error in event loop " + getName(), e);
+                }
+            }
+        }
+
+        private void shutdown() {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection connection) {
+                    connection.close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to close selector", e);
+            }
+        }
+    }
+
+    /**
+     * State of one peer connection, only touched by its event loop except for the write queue
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final EventLoop eventLoop;
+        private final String remoteAddress;
+        private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        private SelectionKey key;
+        private volatile int protocolVersion = PeerMessageFramer.PROTOCOL_V1;
+        private ByteBuffer readBuffer; //pooled, only held while a partial frame is buffered
+        private ByteBuffer largeFrame; //heap buffer for a frame that doesn't fit in a pooled buffer
+
+        private Connection(SocketChannel channel, EventLoop eventLoop) throws IOException {
+            this.channel = channel;
+            this.eventLoop = eventLoop;
+            this.remoteAddress = String.valueOf(channel.getRemoteAddress());
+        }
+
+        private void read() throws IOException {
+            if (largeFrame != null) {
+                if (channel.read(largeFrame) == -1) {
+                    throw new ClosedChannelException();
+                }
+                if (!largeFrame.hasRemaining()) {
+                    largeFrame.flip();
+                    PeerMessageFramer.FramedMessage message = PeerMessageFramer.decodeFrame(largeFrame, protocolVersion);
+                    largeFrame = null;
+                    dispatch(message);
+                }
+                return;
+            }
+            if (readBuffer == null) {
+                readBuffer = bufferPool.acquire();
+            }
+            if (channel.read(readBuffer) == -1) {
+                throw new ClosedChannelException();
+            }
+            readBuffer.flip();
+            PeerMessageFramer.FramedMessage message;
+            while ((message = PeerMessageFramer.decodeFrame(readBuffer, protocolVersion)) != null) {
+                dispatch(message);
+            }
+            if (readBuffer.remaining() >= 4 && 4 + PeerMessageFramer.peekFrameLength(readBuffer) > readBuffer.capacity()) {
+                //the frame is bigger than a pooled buffer, collect the rest of it in a buffer of its own
+                largeFrame = ByteBuffer.allocate(4 + PeerMessageFramer.peekFrameLength(readBuffer));
+                largeFrame.put(readBuffer);
+            }
+            if (readBuffer.hasRemaining()) {
+                readBuffer.compact();
+            } else {
+                //nothing buffered, give the buffer back so idle connections don't hold one
+                bufferPool.release(readBuffer);
+                readBuffer = null;
+            }
+        }
+
+        private void dispatch(PeerMessageFramer.FramedMessage message) {
+            if (message.messageType == PeerMessageHandler.MessageType.HELLO.getByteCode() && protocolVersion == PeerMessageFramer.PROTOCOL_V1) {
+                //the reply is still a version 1 frame, later frames use the agreed version
+                int agreedVersion = PeerMessageFramer.agreeOnVersion(message.payload);
+                queueWrite(PeerMessageFramer.encodeFrame(PeerMessageFramer.PROTOCOL_V1, PeerMessageHandler.MessageType.HELLO.getByteCode(), 0,
+                        PeerMessageFramer.helloPayload(agreedVersion, null)));
+                protocolVersion = agreedVersion;
+                logger.log(Level.INFO, "Negotiated protocol version {0} with {1}", new Object[]{agreedVersion, remoteAddress});
+                return;
+            }
+            final int version = protocolVersion;
+            try {
+                //requests that wait on other nodes release the worker and are answered from the completing callback,
+                //requests that fail are answered with an error
+                workers.execute(() -> processor.processOrError(message).thenAccept(response ->
+                        queueWrite(PeerMessageFramer.encodeFrame(version, response.messageType, message.requestId, response.payload))));
+            } catch (RejectedExecutionException e) {
+                logger.log(Level.WARNING, "Peer worker queue is full, rejecting request from {0}", remoteAddress);
+                queueWrite(PeerMessageFramer.encodeFrame(version, PeerMessageHandler.MessageType.ERROR_RESPONSE.getByteCode(), message.requestId, null));
+            }
+        }
+
+        private void queueWrite(ByteBuffer frame) {
+            writeQueue.add(frame);
+            eventLoop.requestWrite(this);
+        }
+
+        private void flush() throws IOException {
+            ByteBuffer head;
+            while ((head = writeQueue.peek()) != null) {
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    return; //socket buffer is full, wait for the next write event
+                }
+                writeQueue.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                //the connection is being discarded anyway
+            }
+            if (readBuffer != null) {
+                bufferPool.release(readBuffer);
+                readBuffer = null;
+            }
+        }
+    }
+}
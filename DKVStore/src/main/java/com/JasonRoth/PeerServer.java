@@ -0,0 +1,18 @@
+package com.JasonRoth;
+
+/**
+ * A server that accepts connections from peer nodes and handles internode messages.
+ * {@link ServerConfig.PeerServerType} selects the implementation.
+ */
+public interface PeerServer {
+
+    /**
+     * Starts accepting peer connections in the background
+     */
+    void start();
+
+    /**
+     * Stops accepting connections and closes the open ones
+     */
+    void shutdown();
+}
@@ -0,0 +1,510 @@
+package com.JasonRoth;
+
+import com.JasonRoth.Messaging.KeyResult;
+import com.JasonRoth.Messaging.PeerConnectionPool;
+import com.JasonRoth.Messaging.PeerMessageFramer;
+import com.JasonRoth.Messaging.PeerMessageHandler;
+import com.JasonRoth.Messaging.PeerPayloadCodec;
+import com.JasonRoth.metrics.MetricsRegistry;
+import com.JasonRoth.storage.WriteBatch;
+import com.JasonRoth.storage.merkle.MerkleTrackingStorageEngine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves data when the ring's membership changes. Every node compares the ring before and after a change, and for
+ * every token range that gained a replica the first old replica still live streams the range's pairs to the new
+ * ones. The keys of all ranges of a change are collected in a single scan of the store, and once the scan is done
+ * their current values are sent in chunks of at most chunkBytes that are checksummed, acknowledged and resent on
+ * failure, at no more than rateBytesPerSecond so a join doesn't starve the foreground traffic. The scan never waits on
+ * the network, so it doesn't hold on to files the store would otherwise delete. A chunk lists the ranges it completes,
+ * and the last one is sent even if the scan failed, what it missed is left to anti-entropy.
+ *
+ * Until its ranges are complete a new replica answers reads of keys it doesn't have from the old replica, so a scale
+ * out doesn't turn into a wave of misses. A transfer that sends nothing for STALL_TIMEOUT_MILLIS is given up, what
+ * it didn't send is left to anti-entropy. Streamed pairs are only stored if the key isn't, a write that reached the
+ * new replica after the change is newer. The old replica keeps its copy.
+ *
+ * Changing the ring's placement, such as switching its hash function, can move almost every key, so it is streamed
+ * key by key instead of by range: the first live replica of a key under the old placement sends it to the replicas it
+ * gained under the new one, and every node ends its transfer to every other node with a whole-ring range. A node
+ * falls back to a key's old replicas until all of them have. Writes are applied under the new placement right away,
+ * so the change is best made while few keys are written.
+ */
+public class Rebalancer implements Closeable {
+    private static final int REPLICATION_FACTOR = 3;
+    private static final long REQUEST_TIMEOUT_SECONDS = 30;
+    private static final int CHUNK_ATTEMPTS = 5;
+    private static final long RETRY_MILLIS = 1000;
+    private static final long STALL_TIMEOUT_MILLIS = 30_000;
+    //the completed range of a placement change, with start equal to end it contains every token
+    private static final ConsistentHashingManager.TokenRange WHOLE_RING = new ConsistentHashingManager.TokenRange(0, 0, List.of());
+
+    private final String selfAddressString;
+    private final MerkleTrackingStorageEngine dataStore;
+    private final ConsistentHashingManager hashingManager;
+    private final PeerConnectionPool connectionPool;
+    private final int chunkBytes;
+    private final long rateBytesPerSecond;
+    private final MetricsRegistry metrics;
+    private final Logger logger;
+    private final ExecutorService streamer;
+    private final List<IncomingRange> incoming = new CopyOnWriteArrayList<>(); //ranges this node is waiting for
+    private volatile long lastProgress; //when a chunk last arrived or a range was last expected, in millis
+    private volatile Migration migration; //the placement change still streaming in, null if there is none
+
+    /**
+     * A range streamed to this node, and the old replica that answers for it until it is complete
+     */
+    private record IncomingRange(ConsistentHashingManager.TokenRange range, String source) {
+    }
+
+    /**
+     * A placement change, the ring before it and the nodes that haven't finished sending to this node
+     */
+    private record Migration(ConsistentHashingManager before, List<String> liveNodes, AtomicInteger pendingSenders) {
+    }
+
+    /**
+     * @param selfAddressString this node's internode address
+     * @param dataStore this node's storage engine
+     * @param hashingManager the ring after every change
+     * @param connectionPool connections to the other nodes
+     * @param chunkBytes most key and value bytes in one chunk
+     * @param rateBytesPerSecond most bytes streamed per second, 0 doesn't limit them
+     * @param metrics where streamed pairs and fallback reads are counted
+     * @param logger the logger of this node
+     */
+    public Rebalancer(String selfAddressString, MerkleTrackingStorageEngine dataStore, ConsistentHashingManager hashingManager,
+                      PeerConnectionPool connectionPool, int chunkBytes, long rateBytesPerSecond, MetricsRegistry metrics, Logger logger) {
+        this.selfAddressString = selfAddressString;
+        this.dataStore = dataStore;
+        this.hashingManager = hashingManager;
+        this.connectionPool = connectionPool;
+        this.chunkBytes = Math.max(1, chunkBytes);
+        this.rateBytesPerSecond = rateBytesPerSecond;
+        this.metrics = metrics;
+        this.logger = logger;
+        metrics.gauge("rebalance.pendingRanges", () -> incoming.size());
+        this.streamer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "rebalance");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Works out the ranges that changed hands, starts streaming the ones this node sends and expects the ones it
+     * receives
+     * @param previousWeights the nodes of the ring before the change and their weights
+     * @param liveWeights the nodes of the ring after it and their weights
+     */
+    public void membershipChanged(Map<String, Double> previousWeights, Map<String, Double> liveWeights) {
+        ConsistentHashingManager before = hashingManager.withNodes(previousWeights);
+        ConsistentHashingManager after = hashingManager.withNodes(liveWeights);
+        Set<String> liveNodes = liveWeights.keySet();
+        List<ConsistentHashingManager.TokenRange> oldRanges = before.getTokenRanges(REPLICATION_FACTOR);
+        List<ConsistentHashingManager.TokenRange> newRanges = after.getTokenRanges(REPLICATION_FACTOR);
+        if (oldRanges == null || newRanges == null) {
+            return; //nothing was stored before, or nothing is left to stream to
+        }
+        //the ranges of both rings split at the tokens of either, so every piece has one set of replicas in each
+        TreeSet<Long> tokens = new TreeSet<>();
+        oldRanges.forEach(range -> tokens.add(range.end()));
+        newRanges.forEach(range -> tokens.add(range.end()));
+        Map<String, List<ConsistentHashingManager.TokenRange>> outgoing = new LinkedHashMap<>();
+        long start = tokens.last();
+        for (long end : tokens) {
+            List<String> oldReplicas = before.getNodesForToken(end, REPLICATION_FACTOR);
+            List<String> gained = new ArrayList<>(after.getNodesForToken(end, REPLICATION_FACTOR));
+            gained.removeAll(oldReplicas);
+            String source = oldReplicas.stream().filter(liveNodes::contains).findFirst().orElse(null);
+            ConsistentHashingManager.TokenRange piece = new ConsistentHashingManager.TokenRange(start, end, gained);
+            start = end;
+            if (gained.isEmpty() || source == null) {
+                continue; //unchanged, or every copy of the range left with its replicas
+            }
+            if (gained.contains(selfAddressString)) {
+                incoming.add(new IncomingRange(piece, source));
+                lastProgress = System.currentTimeMillis();
+            }
+            if (source.equals(selfAddressString)) {
+                for (String target : gained) {
+                    outgoing.computeIfAbsent(target, t -> new ArrayList<>()).add(piece);
+                }
+            }
+        }
+        if (!outgoing.isEmpty()) {
+            logger.log(Level.INFO, "Streaming moved ranges to {0}", outgoing.keySet());
+            streamer.execute(() -> stream(outgoing));
+        }
+    }
+
+    /**
+     * Starts streaming the keys whose replicas changed with the ring's placement, and expects the keys this node
+     * gained from every other node
+     * @param before the ring over the same nodes with the previous placement
+     * @param liveWeights the nodes of the ring and their weights
+     */
+    public void placementChanged(ConsistentHashingManager before, Map<String, Double> liveWeights) {
+        ConsistentHashingManager after = hashingManager.withNodes(liveWeights);
+        List<String> liveNodes = List.copyOf(liveWeights.keySet());
+        List<String> others = liveNodes.stream().filter(node -> !node.equals(selfAddressString)).toList();
+        if (others.isEmpty()) {
+            return;
+        }
+        migration = new Migration(before, liveNodes, new AtomicInteger(others.size()));
+        lastProgress = System.currentTimeMillis();
+        logger.log(Level.INFO, "Ring placement changed from {0} to {1}, streaming moved keys to {2}",
+                new Object[]{before.getPlacement(), after.getPlacement(), others});
+        streamer.execute(() -> migrate(before, after, liveNodes, others));
+    }
+
+    /**
+     * Reads a key from this node's store, or from the old replica if the key's range is still streaming in
+     * @return a future completed with the value, or null if the key isn't stored. It never completes exceptionally,
+     * if the old replica doesn't answer the local miss stands.
+     */
+    public CompletableFuture<String> get(String key) {
+        String value = dataStore.get(key);
+        if (value != null || (incoming.isEmpty() && migration == null)) {
+            return CompletableFuture.completedFuture(value);
+        }
+        String source = sourceOf(key);
+        if (source == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        metrics.counter("rebalance.fallbackReads").increment();
+        List<String> keys = List.of(key);
+        //a MULTI_GET is answered from the source's own store, so two nodes with different views can't bounce a read
+        return connectionPool.sendRequestAsync(source, PeerMessageHandler.MessageType.MULTI_GET_REQUEST, PeerPayloadCodec.encodeKeys(keys))
+                .thenApply(response -> {
+                    try {
+                        if (response.messageType != PeerMessageHandler.MessageType.MULTI_RESPONSE.getByteCode()) {
+                            throw new IOException("Unexpected response " + PeerMessageHandler.MessageType.fromByteCode(response.messageType) + " from " + source);
+                        }
+                        KeyResult result = PeerPayloadCodec.decodeKeyResults(response, keys).get(0);
+                        return result.getStatus() == KeyResult.Status.SUCCESS ? result.getValue() : null;
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                })
+                .exceptionally(error -> {
+                    logger.log(Level.WARNING, "Failed to read key " + key + " from " + source + " while its range streams in", error);
+                    return null;
+                });
+    }
+
+    /**
+     * Reads keys with {@link #get(String)}
+     * @return a future completed with one result per key in request order, it never completes exceptionally
+     */
+    public CompletableFuture<List<KeyResult>> get(List<String> keys) {
+        List<CompletableFuture<KeyResult>> results = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            results.add(get(key).thenApply(value -> value == null ? KeyResult.notFound(key) : KeyResult.success(key, value)));
+        }
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]))
+                .thenApply(done -> results.stream().map(CompletableFuture::join).toList());
+    }
+
+    /**
+     * Applies a chunk streamed to this node, answers a REBALANCE_CHUNK_REQUEST
+     */
+    public void receive(PeerPayloadCodec.StreamChunk chunk) {
+        lastProgress = System.currentTimeMillis();
+        long stored = 0;
+        for (WriteBatch.Operation pair : chunk.pairs().getOperations()) {
+            if (!pair.isDelete() && dataStore.putIfUnchanged(pair.key(), null, pair.value())) {
+                stored++;
+            }
+        }
+        metrics.counter("rebalance.keysReceived").add(stored);
+        for (PeerPayloadCodec.StreamedRange completed : chunk.completed()) {
+            if (completed.start() == completed.end()) {
+                finishMigration();
+                continue;
+            }
+            ConsistentHashingManager.TokenRange range = new ConsistentHashingManager.TokenRange(completed.start(), completed.end(), List.of());
+            incoming.removeIf(waiting -> range.contains(waiting.range().end())
+                    && (waiting.range().start() == range.start() || range.contains(waiting.range().start())));
+        }
+        if (!chunk.completed().isEmpty()) {
+            logger.log(Level.INFO, "{0} ranges streamed in, {1} still pending", new Object[]{chunk.completed().size(), incoming.size()});
+        }
+    }
+
+    @Override
+    public void close() {
+        streamer.shutdownNow();
+    }
+
+    /**
+     * One sender finished streaming the keys of a placement change to this node
+     */
+    private void finishMigration() {
+        Migration current = migration;
+        if (current != null && current.pendingSenders().decrementAndGet() <= 0) {
+            migration = null;
+            logger.log(Level.INFO, "Keys moved by the ring placement change streamed in");
+        }
+    }
+
+    /**
+     * @return the node a key is streaming in from, null if it isn't
+     */
+    private String sourceOf(String key) {
+        if (System.currentTimeMillis() - lastProgress > STALL_TIMEOUT_MILLIS) {
+            if (!incoming.isEmpty() || migration != null) {
+                logger.log(Level.WARNING, "Gave up waiting for {0} ranges, nothing was streamed in for {1} ms",
+                        new Object[]{incoming.size() + (migration == null ? 0 : 1), STALL_TIMEOUT_MILLIS});
+                incoming.clear();
+                migration = null;
+            }
+            return null;
+        }
+        Migration current = migration;
+        if (current != null) {
+            List<String> oldReplicas = current.before().getNodesForKey(key, REPLICATION_FACTOR);
+            //if this node was a replica before the change its miss is as good as any
+            if (oldReplicas != null && !oldReplicas.contains(selfAddressString)) {
+                return oldReplicas.stream().filter(current.liveNodes()::contains).findFirst().orElse(null);
+            }
+        }
+        long token = hashingManager.tokenOf(key);
+        for (IncomingRange waiting : incoming) {
+            if (waiting.range().contains(token)) {
+                return waiting.source();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sends the pairs of the given ranges to each target in one scan of the store
+     * @param outgoing the ranges each target gained
+     */
+    private void stream(Map<String, List<ConsistentHashingManager.TokenRange>> outgoing) {
+        long start = System.nanoTime();
+        List<Transfer> transfers = new ArrayList<>();
+        //the targets of every range, keyed by its end token
+        NavigableMap<Long, List<Transfer>> byEnd = new TreeMap<>();
+        NavigableMap<Long, ConsistentHashingManager.TokenRange> ranges = new TreeMap<>();
+        for (Map.Entry<String, List<ConsistentHashingManager.TokenRange>> target : outgoing.entrySet()) {
+            Transfer transfer = new Transfer(target.getKey(), target.getValue());
+            transfers.add(transfer);
+            for (ConsistentHashingManager.TokenRange range : target.getValue()) {
+                byEnd.computeIfAbsent(range.end(), end -> new ArrayList<>()).add(transfer);
+                ranges.put(range.end(), range);
+            }
+        }
+        for (Transfer transfer : transfers) {
+            try {
+                if (connectionPool.protocolVersion(transfer.target) < PeerMessageFramer.PROTOCOL_V9) {
+                    logger.log(Level.INFO, "Not streaming to {0}, it predates rebalancing", transfer.target);
+                    transfer.failed = true;
+                }
+            } catch (IOException e) {
+                //it may not be listening yet, the chunks are retried
+                logger.log(Level.WARNING, "Failed to connect to rebalancing target " + transfer.target, e);
+            }
+        }
+        try {
+            dataStore.forEach((key, value) -> {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                long token = hashingManager.tokenOf(key);
+                Map.Entry<Long, ConsistentHashingManager.TokenRange> range = ranges.ceilingEntry(token);
+                if (range == null) {
+                    range = ranges.firstEntry();
+                }
+                if (!range.getValue().contains(token)) {
+                    return;
+                }
+                for (Transfer transfer : byEnd.get(range.getKey())) {
+                    transfer.add(key);
+                }
+            });
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Failed to scan the store for moved ranges, anti-entropy repairs what wasn't streamed", e);
+        }
+        for (Transfer transfer : transfers) {
+            transfer.sendAll();
+        }
+        metrics.timer("rebalance.stream").recordSince(start);
+    }
+
+    /**
+     * Sends every key this node is the first live old replica of to the replicas it gained under the new placement,
+     * in one scan of the store
+     */
+    private void migrate(ConsistentHashingManager before, ConsistentHashingManager after, List<String> liveNodes, List<String> others) {
+        long start = System.nanoTime();
+        Map<String, Transfer> transfers = new LinkedHashMap<>();
+        for (String target : others) {
+            Transfer transfer = new Transfer(target, List.of(WHOLE_RING));
+            transfers.put(target, transfer);
+            try {
+                if (connectionPool.protocolVersion(target) < PeerMessageFramer.PROTOCOL_V9) {
+                    logger.log(Level.INFO, "Not streaming to {0}, it predates rebalancing", target);
+                    transfer.failed = true;
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to connect to rebalancing target " + target, e);
+            }
+        }
+        try {
+            dataStore.forEach((key, value) -> {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                List<String> oldReplicas = before.getNodesForKey(key, REPLICATION_FACTOR);
+                String source = oldReplicas.stream().filter(liveNodes::contains).findFirst().orElse(null);
+                if (!selfAddressString.equals(source)) {
+                    return;
+                }
+                for (String target : after.getNodesForKey(key, REPLICATION_FACTOR)) {
+                    if (!oldReplicas.contains(target)) {
+                        transfers.get(target).add(key);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Failed to scan the store for moved keys, anti-entropy repairs what wasn't streamed", e);
+        }
+        for (Transfer transfer : transfers.values()) {
+            transfer.sendAll();
+        }
+        metrics.timer("rebalance.stream").recordSince(start);
+    }
+
+    /**
+     * The ranges streamed to one target, the keys the scan found in them and the chunk being filled for it
+     */
+    private class Transfer {
+        private final String target;
+        private final List<ConsistentHashingManager.TokenRange> ranges;
+        private final List<String> keys = new ArrayList<>();
+        private WriteBatch chunk = new WriteBatch();
+        private long chunkSize = 0;
+        private long sentBytes = 0;
+        private long startNanos;
+        private boolean failed;
+
+        private Transfer(String target, List<ConsistentHashingManager.TokenRange> ranges) {
+            this.target = target;
+            this.ranges = ranges;
+        }
+
+        private void add(String key) {
+            if (!failed) {
+                keys.add(key);
+            }
+        }
+
+        /**
+         * Sends the current values of the keys the scan found in chunks, then the last chunk
+         */
+        private void sendAll() {
+            startNanos = System.nanoTime();
+            try {
+                for (String key : keys) {
+                    if (failed || Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
+                    String value = dataStore.get(key);
+                    if (value == null) {
+                        continue; //deleted since the scan
+                    }
+                    chunk.put(key, value);
+                    chunkSize += key.length() + value.length();
+                    if (chunkSize >= chunkBytes) {
+                        send(List.of());
+                    }
+                }
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Failed to read the keys streamed to " + target + ", anti-entropy repairs what wasn't sent", e);
+            }
+            finish();
+        }
+
+        /**
+         * Sends the last chunk, marking every range complete
+         */
+        private void finish() {
+            if (failed) {
+                return;
+            }
+            send(ranges.stream().map(range -> new PeerPayloadCodec.StreamedRange(range.start(), range.end())).toList());
+            if (!failed) {
+                logger.log(Level.INFO, "Streamed {0} ranges to {1}", new Object[]{ranges.size(), target});
+            }
+        }
+
+        /**
+         * Sends the chunk, waits for it to be acknowledged and then for the rate limit. Gives up on the target after
+         * CHUNK_ATTEMPTS failed attempts.
+         */
+        private void send(List<PeerPayloadCodec.StreamedRange> completed) {
+            byte[] payload = PeerPayloadCodec.encodeStreamChunk(new PeerPayloadCodec.StreamChunk(chunk, completed));
+            try {
+                for (int attempt = 1; attempt <= CHUNK_ATTEMPTS; attempt++) {
+                    try {
+                        PeerMessageFramer.FramedMessage response = connectionPool.sendRequestAsync(target,
+                                PeerMessageHandler.MessageType.REBALANCE_CHUNK_REQUEST, payload).get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                        if (response.messageType == PeerMessageHandler.MessageType.OPERATION_SUCCESS_RESPONSE.getByteCode()) {
+                            metrics.counter("rebalance.keysStreamed").add(chunk.size());
+                            metrics.counter("rebalance.bytesStreamed").add(payload.length);
+                            sentBytes += payload.length;
+                            chunk = new WriteBatch();
+                            chunkSize = 0;
+                            throttle();
+                            return;
+                        }
+                        logger.log(Level.WARNING, "Rebalance chunk rejected by {0} on attempt {1}", new Object[]{target, attempt});
+                    } catch (ExecutionException | TimeoutException e) {
+                        logger.log(Level.WARNING, "Failed to send rebalance chunk to " + target + " on attempt " + attempt, e);
+                    }
+                    metrics.counter("rebalance.chunkFailures").increment();
+                    Thread.sleep(RETRY_MILLIS);
+                }
+                logger.log(Level.SEVERE, "Gave up streaming to {0}, anti-entropy repairs what wasn't sent", target);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            failed = true;
+        }
+
+        private void throttle() throws InterruptedException {
+            if (rateBytesPerSecond <= 0) {
+                return;
+            }
+            long dueNanos = startNanos + sentBytes * 1_000_000_000L / rateBytesPerSecond;
+            long waitNanos = dueNanos - System.nanoTime();
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+    }
+}
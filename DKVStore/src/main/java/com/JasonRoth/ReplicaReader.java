@@ -0,0 +1,315 @@
+package com.JasonRoth;
+
+import com.JasonRoth.Messaging.PeerConnectionPool;
+import com.JasonRoth.Messaging.PeerMessageFramer;
+import com.JasonRoth.Messaging.PeerMessageHandler;
+import com.JasonRoth.Messaging.PeerPayloadCodec;
+import com.JasonRoth.Messaging.ReplicationBatcher;
+import com.JasonRoth.metrics.MetricsRegistry;
+import com.JasonRoth.storage.StorageEngine;
+import com.JasonRoth.storage.ttl.ExpiringValues;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads keys from their replicas at a given consistency level.
+ *
+ * ONE reads from a single replica, this node if it holds one and otherwise the replicas in turn, so reads of a hot
+ * key are spread over all of them. QUORUM and ALL read from the primary and as many other replicas as the level
+ * needs, and the primary's value is the answer since every write goes through it first. If a replica doesn't answer
+ * the next one is asked in its place, and without the primary the value most of the answers agree on wins.
+ *
+ * Once every replica asked has answered, replicas whose value differs from the primary's are repaired in the
+ * background. The repair asks the primary to replicate its current value to them again, so it is queued behind every
+ * write the primary already sent them and can't overwrite a newer value. A replica that has a value the primary
+ * doesn't is left alone, without tombstones a missing key can't be told apart from a lost write.
+ *
+ * Replicas answer with values as they are stored. An expired value counts as the key not being stored, whether or
+ * not the replica has reclaimed it yet.
+ */
+public class ReplicaReader {
+    private static final int REPLICATION_FACTOR = 3;
+    private static final Object NOT_STORED = new Object(); //the vote of a replica that doesn't have the key
+
+    private final String selfAddressString;
+    private final StorageEngine dataStore;
+    private final ConsistentHashingManager hashingManager;
+    private final PeerConnectionPool connectionPool;
+    private final ReplicationBatcher replicator;
+    private final Rebalancer rebalancer;
+    private final MetricsRegistry metrics;
+    private final Logger logger;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    /**
+     * @param selfAddressString this node's internode address
+     * @param dataStore this node's storage engine
+     * @param hashingManager the ring that decides a key's replicas
+     * @param connectionPool connections to the other nodes
+     * @param replicator resends values to stale replicas when this node is the primary
+     * @param rebalancer reads this node's keys, falling back to their old replica while their range streams in
+     * @param metrics where reads and repairs are counted
+     * @param logger the logger of this node
+     */
+    public ReplicaReader(String selfAddressString, StorageEngine dataStore, ConsistentHashingManager hashingManager,
+                         PeerConnectionPool connectionPool, ReplicationBatcher replicator, Rebalancer rebalancer,
+                         MetricsRegistry metrics, Logger logger) {
+        this.selfAddressString = selfAddressString;
+        this.dataStore = dataStore;
+        this.hashingManager = hashingManager;
+        this.connectionPool = connectionPool;
+        this.replicator = replicator;
+        this.rebalancer = rebalancer;
+        this.metrics = metrics;
+        this.logger = logger;
+    }
+
+    /**
+     * @param key the key to read
+     * @param level how many replicas must answer
+     * @return a future completed with the value, or null if the key isn't stored or expired. It completes
+     * exceptionally with an IOException if too few replicas answered.
+     */
+    public CompletableFuture<String> read(String key, ConsistencyLevel level) {
+        return readStored(key, level).thenApply(ExpiringValues::decode);
+    }
+
+    /**
+     * Like {@link #read}, but completes with the value as it is stored, with its expiry
+     */
+    public CompletableFuture<String> readStored(String key, ConsistencyLevel level) {
+        metrics.counter("read." + level.name().toLowerCase()).increment();
+        List<String> replicas = hashingManager.getNodesForKey(key, REPLICATION_FACTOR);
+        int required = level.requiredReplicas(REPLICATION_FACTOR);
+        if (replicas == null || replicas.size() < required) {
+            return CompletableFuture.failedFuture(new IOException("Not enough nodes available for a " + level + " read"));
+        }
+        ReadRound round = new ReadRound(key, replicas.get(0), orderTargets(replicas, level), required, level != ConsistencyLevel.ONE);
+        round.start();
+        return round.result;
+    }
+
+    /**
+     * Resends this node's value of a key to replicas that answered a read with a different value. Runs on the
+     * primary, where the resend is queued behind the writes already sent to those replicas.
+     * @param key the key to repair
+     * @param replicas the replicas to send the value to
+     */
+    public void repairAsPrimary(String key, List<String> replicas) {
+        String value = ExpiringValues.live(dataStore.get(key));
+        if (value == null) {
+            return;
+        }
+        for (String replica : replicas) {
+            if (replica.equals(selfAddressString)) {
+                continue;
+            }
+            replicator.replicatePut(replica, key, value).thenAccept(acked -> {
+                metrics.counter(acked ? "read.repairs" : "read.repairFailures").increment();
+                logger.log(acked ? Level.INFO : Level.WARNING, "Read repair of key {0} on {1} {2}",
+                        new Object[]{key, replica, acked ? "succeeded" : "failed"});
+            });
+        }
+    }
+
+    /**
+     * @return the replicas in the order they are asked, the first ones are asked right away and the rest replace
+     * any that don't answer
+     */
+    private List<String> orderTargets(List<String> replicas, ConsistencyLevel level) {
+        List<String> targets = new ArrayList<>(replicas.size());
+        List<String> others = new ArrayList<>(replicas);
+        if (level != ConsistencyLevel.ONE) {
+            //the primary decides the answer, so it is always asked
+            targets.add(others.remove(0));
+        }
+        if (others.remove(selfAddressString)) {
+            //a local read costs no round trip
+            targets.add(selfAddressString);
+        }
+        //rotate the rest so reads of the same key are spread over its replicas
+        int offset = others.isEmpty() ? 0 : Math.floorMod(nextReplica.getAndIncrement(), others.size());
+        for (int i = 0; i < others.size(); i++) {
+            targets.add(others.get((offset + i) % others.size()));
+        }
+        return targets;
+    }
+
+    private CompletableFuture<String> fetch(String node, String key) {
+        if (node.equals(selfAddressString)) {
+            return rebalancer.get(key).thenApply(ExpiringValues::live);
+        }
+        return connectionPool.sendRequestAsync(node, PeerMessageHandler.MessageType.FORWARD_GET_REQUEST, key.getBytes(StandardCharsets.UTF_8))
+                .thenApply(response -> {
+                    PeerMessageHandler.MessageType type = PeerMessageHandler.MessageType.fromByteCode(response.messageType);
+                    try {
+                        return switch (type) {
+                            case VALUE_RESPONSE -> ExpiringValues.live(PeerPayloadCodec.decodeKeyValue(response).getValue());
+                            case KEY_NOT_FOUND_RESPONSE -> null;
+                            default -> throw new IOException("Unexpected response " + type + " from " + node);
+                        };
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                });
+    }
+
+    private void requestRepair(String key, String primary, List<String> staleReplicas) {
+        if (primary.equals(selfAddressString)) {
+            repairAsPrimary(key, staleReplicas);
+            return;
+        }
+        List<String> payload = new ArrayList<>(staleReplicas.size() + 1);
+        payload.add(key);
+        payload.addAll(staleReplicas);
+        try {
+            //the read already connected to the primary, so this doesn't block on negotiating
+            if (connectionPool.protocolVersion(primary) < PeerMessageFramer.PROTOCOL_V6) {
+                logger.log(Level.INFO, "Skipping read repair of key {0}, primary {1} predates it", new Object[]{key, primary});
+                return;
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to request read repair of key " + key + " from " + primary, e);
+            metrics.counter("read.repairFailures").increment();
+            return;
+        }
+        connectionPool.sendRequestAsync(primary, PeerMessageHandler.MessageType.READ_REPAIR_REQUEST, PeerPayloadCodec.encodeKeys(payload))
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        metrics.counter("read.repairFailures").increment();
+                        logger.log(Level.WARNING, "Failed to request read repair of key " + key + " from " + primary, error);
+                    }
+                });
+    }
+
+    /**
+     * The replies of one read, replicas are asked until enough have answered or none are left
+     */
+    private class ReadRound {
+        private final String key;
+        private final String primary;
+        private final List<String> targets;
+        private final int required;
+        private final boolean repair;
+        private final Map<String, String> answers = new LinkedHashMap<>(); //null values are keys that aren't stored
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        private int nextTarget = 0;
+        private int pending = 0;
+        private boolean starting;
+
+        private ReadRound(String key, String primary, List<String> targets, int required, boolean repair) {
+            this.key = key;
+            this.primary = primary;
+            this.targets = targets;
+            this.required = required;
+            this.repair = repair;
+        }
+
+        private synchronized void start() {
+            starting = true;
+            for (int i = 0; i < required; i++) {
+                askNext();
+            }
+            starting = false;
+            checkDone();
+        }
+
+        /**
+         * The caller holds the lock, a local read answers before this returns
+         */
+        private void askNext() {
+            String node = targets.get(nextTarget++);
+            pending++;
+            CompletableFuture<String> answer;
+            try {
+                answer = fetch(node, key);
+            } catch (RuntimeException e) {
+                answer = CompletableFuture.failedFuture(e);
+            }
+            answer.whenComplete((value, error) -> onAnswer(node, value, error));
+        }
+
+        private synchronized void onAnswer(String node, String value, Throwable error) {
+            pending--;
+            if (error != null) {
+                logger.log(Level.WARNING, "Replica " + node + " failed to answer a read of key " + key, error);
+                if (nextTarget < targets.size()) {
+                    askNext();
+                }
+            } else {
+                answers.put(node, value);
+            }
+            //a local answer arrives while start is still asking the others
+            if (!starting) {
+                checkDone();
+            }
+        }
+
+        private void checkDone() {
+            if (!result.isDone()) {
+                if (answers.size() >= required) {
+                    result.complete(resolve());
+                } else if (answers.size() + pending < required) {
+                    result.completeExceptionally(new IOException("Only " + answers.size() + " of " + required + " replicas answered"));
+                }
+            }
+            if (pending == 0 && repair && result.isDone()) {
+                repairStaleReplicas();
+            }
+        }
+
+        /**
+         * @return the primary's answer, or else the answer most replicas gave, ties going to the earlier replica in
+         * the preference list
+         */
+        private String resolve() {
+            if (answers.containsKey(primary)) {
+                return answers.get(primary);
+            }
+            Map<Object, Integer> votes = new HashMap<>();
+            String winner = null;
+            int winnerVotes = 0;
+            for (String node : targets) {
+                if (!answers.containsKey(node)) {
+                    continue;
+                }
+                String value = answers.get(node);
+                int count = votes.merge(value == null ? NOT_STORED : value, 1, Integer::sum);
+                if (count > winnerVotes) {
+                    winner = value;
+                    winnerVotes = count;
+                }
+            }
+            return winner;
+        }
+
+        private void repairStaleReplicas() {
+            //only the primary's value is known to be current
+            if (!answers.containsKey(primary) || answers.get(primary) == null) {
+                return;
+            }
+            String current = answers.get(primary);
+            List<String> stale = new ArrayList<>();
+            for (Map.Entry<String, String> answer : answers.entrySet()) {
+                if (!current.equals(answer.getValue())) {
+                    stale.add(answer.getKey());
+                }
+            }
+            if (!stale.isEmpty()) {
+                logger.log(Level.INFO, "Replicas {0} are stale for key {1}, requesting repair from {2}", new Object[]{stale, key, primary});
+                requestRepair(key, primary, stale);
+            }
+        }
+    }
+}
@@ -0,0 +1,734 @@
+package com.JasonRoth;
+
+import com.JasonRoth.Logging.LoggingServer;
+import com.JasonRoth.Messaging.KeyResult;
+import com.JasonRoth.storage.WriteBatch;
+import com.JasonRoth.util.DirectBufferPool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Client facing listener for a subset of the Redis protocol (RESP), so Redis clients and benchmarking tools can talk
+ * to the cluster without JSON or HTTP. It serves PING, GET, SET, DEL, MGET, MSET and QUIT, both as RESP arrays and as
+ * inline commands, SET with an optional EX or PX expiry. GET is read through the {@link ReplicaReader} at the node's
+ * default read consistency, and the other commands go through the {@link BatchCoordinator} like the HTTP endpoints,
+ * writes at the node's default write consistency.
+ *
+ * Connections are multiplexed over a few event loop threads like {@link NioHttpServer}. Pipelined commands are parsed
+ * as they arrive and started on the executor, the replies are written back in command order. A command waits for the
+ * earlier commands of its connection that share a key with it, when either of them writes, so a pipelined GET after a
+ * SET of the same key sees the SET while commands on different keys run in parallel.
+ */
+public class RespServer implements LoggingServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024; //also the longest inline command or length line
+    private static final int MAX_POOLED_BUFFERS = 256;
+    private static final int MAX_PIPELINED_COMMANDS = 256;
+    private static final int MAX_ARGUMENTS = 1024 * 1024;
+    private static final int MAX_BULK_BYTES = 64 * 1024 * 1024;
+    private static final byte[] OK = "+OK\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PONG = "+PONG\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL_BULK = "$-1\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector acceptSelector;
+    private final EventLoop[] eventLoops;
+    private final DirectBufferPool bufferPool = new DirectBufferPool(READ_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    private final BatchCoordinator batchCoordinator;
+    private final ReplicaReader replicaReader;
+    private final ConsistencyLevel readConsistency;
+    private final ConsistencyLevel writeConsistency;
+    private final Executor executor;
+    private final Logger logger;
+    private final Thread acceptor;
+    private volatile boolean running = true;
+
+    /**
+     * @param address the address to listen on
+     * @param executor starts the commands that read or write keys
+     */
+    public RespServer(InetSocketAddress address, BatchCoordinator batchCoordinator, ReplicaReader replicaReader, ServerConfig config,
+                      Executor executor) throws IOException {
+        this.batchCoordinator = batchCoordinator;
+        this.replicaReader = replicaReader;
+        this.readConsistency = config.getReadConsistency();
+        this.writeConsistency = config.getWriteConsistency();
+        this.executor = executor;
+        logger = initializeLogging(this.getClass().getCanonicalName() + "_Port:" + address.getPort());
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        eventLoops = new EventLoop[Math.max(1, config.getRespEventLoopThreads())];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop("resp-event-loop-" + address.getPort() + "-" + i);
+        }
+        acceptor = new Thread(this::accept, "resp-acceptor-" + address.getPort());
+    }
+
+    public void start() {
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+        acceptor.start();
+        logger.log(Level.INFO, "RespServer listening on " + serverChannel.socket().getLocalSocketAddress());
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones, replies still in flight are dropped
+     */
+    public void shutdown() {
+        running = false;
+        try {
+            serverChannel.close();
+            acceptSelector.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to close RESP server socket", e);
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+        logger.log(Level.INFO, "RespServer shutting down");
+    }
+
+    /**
+     * Accepts connections and spreads them over the event loops round robin
+     */
+    private void accept() {
+        int next = 0;
+        while (running) {
+            try {
+                acceptSelector.select();
+                Iterator<SelectionKey> keys = acceptSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    keys.next();
+                    keys.remove();
+                    SocketChannel channel;
+                    while ((channel = serverChannel.accept()) != null) {
+                        channel.configureBlocking(false);
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        eventLoops[next++ % eventLoops.length].register(channel);
+                    }
+                }
+            } catch (ClosedSelectorException | ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if (running) {
+                    logger.log(Level.SEVERE, "Error accepting RESP connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a command that reads or writes keys
+     * @return a future completed with its reply
+     */
+    private CompletableFuture<byte[]> execute(Command command) {
+        byte[][] args = command.args;
+        switch (command.name) {
+            case "GET" -> {
+                String key = command.keys[0];
+                return replicaReader.read(key, readConsistency).handle((value, error) -> error != null
+                        ? error("ERR read failed, " + cause(error).getMessage())
+                        : bulk(value));
+            }
+            case "SET" -> {
+                String key = command.keys[0];
+                if (!batchCoordinator.hasEnoughReplicas(key, writeConsistency)) {
+                    return CompletableFuture.completedFuture(error("ERR not enough nodes available to meet " + writeConsistency));
+                }
+                WriteBatch batch = new WriteBatch().put(key, new String(args[2], StandardCharsets.UTF_8));
+                return batchCoordinator.write(batch, writeConsistency, command.ttlMillis).handle(RespServer::okUnlessFailed);
+            }
+            case "MSET" -> {
+                WriteBatch batch = new WriteBatch();
+                for (int i = 1; i < args.length; i += 2) {
+                    batch.put(command.keys[i / 2], new String(args[i + 1], StandardCharsets.UTF_8));
+                }
+                return batchCoordinator.write(batch, writeConsistency).handle(RespServer::okUnlessFailed);
+            }
+            case "DEL" -> {
+                WriteBatch batch = new WriteBatch();
+                for (String key : command.keys) {
+                    batch.delete(key);
+                }
+                return batchCoordinator.write(batch, writeConsistency).handle((results, error) -> {
+                    if (error != null || KeyResult.anyFailed(results)) {
+                        return okUnlessFailed(results, error);
+                    }
+                    //keys that weren't stored are reported as not found, like Redis they aren't counted
+                    return integer(results.stream().filter(result -> result.getStatus() == KeyResult.Status.SUCCESS).count());
+                });
+            }
+            case "MGET" -> {
+                return batchCoordinator.get(List.of(command.keys)).handle((results, error) -> {
+                    if (error != null) {
+                        return error("ERR " + cause(error).getMessage());
+                    }
+                    byte[][] replies = new byte[results.size()][];
+                    for (int i = 0; i < replies.length; i++) {
+                        KeyResult result = results.get(i);
+                        replies[i] = result.getStatus() == KeyResult.Status.FAILED ? error("ERR " + result.getError()) : bulk(result.getValue());
+                    }
+                    return array(replies);
+                });
+            }
+            default -> throw new IllegalStateException("Command " + command.name + " has no keys to execute");
+        }
+    }
+
+    private static byte[] okUnlessFailed(List<KeyResult> results, Throwable error) {
+        if (error != null) {
+            return error("ERR " + cause(error).getMessage());
+        }
+        for (KeyResult result : results) {
+            if (result.getStatus() == KeyResult.Status.FAILED) {
+                return error("ERR " + result.getError());
+            }
+        }
+        return OK;
+    }
+
+    private static Throwable cause(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private static byte[] error(String message) {
+        //a line break would end the reply early
+        return ("-" + message.replace('\r', ' ').replace('\n', ' ') + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] integer(long value) {
+        return (":" + value + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] bulk(String value) {
+        return value == null ? NULL_BULK : bulk(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] bulk(byte[] value) {
+        byte[] header = ("$" + value.length + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] reply = new byte[header.length + value.length + CRLF.length];
+        System.arraycopy(header, 0, reply, 0, header.length);
+        System.arraycopy(value, 0, reply, header.length, value.length);
+        System.arraycopy(CRLF, 0, reply, header.length + value.length, CRLF.length);
+        return reply;
+    }
+
+    private static byte[] array(byte[][] elements) {
+        byte[] header = ("*" + elements.length + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        int length = header.length;
+        for (byte[] element : elements) {
+            length += element.length;
+        }
+        byte[] reply = new byte[length];
+        System.arraycopy(header, 0, reply, 0, header.length);
+        int offset = header.length;
+        for (byte[] element : elements) {
+            System.arraycopy(element, 0, reply, offset, element.length);
+            offset += element.length;
+        }
+        return reply;
+    }
+
+    /**
+     * A parsed command, its keys and once it is done its reply
+     */
+    private static final class Command {
+        private final String name;
+        private final byte[][] args;
+        private final String[] keys;
+        private final boolean write;
+        private final boolean quit;
+        private final long ttlMillis; //of a SET with EX or PX, 0 otherwise
+        private volatile byte[] reply; //null until the command is done
+
+        private Command(byte[][] args) {
+            this.args = args;
+            this.name = new String(args[0], StandardCharsets.UTF_8).toUpperCase(Locale.ROOT);
+            String[] keys = new String[0];
+            boolean write = false;
+            long ttlMillis = 0;
+            byte[] reply = null;
+            switch (name) {
+                case "PING" -> reply = args.length == 1 ? PONG : args.length == 2 ? bulk(args[1]) : wrongArity();
+                case "QUIT" -> reply = OK;
+                case "GET", "MGET", "DEL" -> {
+                    if (args.length < 2 || (name.equals("GET") && args.length != 2)) {
+                        reply = wrongArity();
+                    } else {
+                        keys = keys(args, 1, 1);
+                        write = name.equals("DEL");
+                    }
+                }
+                case "SET" -> {
+                    if (args.length < 3) {
+                        reply = wrongArity();
+                    } else if (args.length == 4 || args.length > 5) {
+                        reply = error("ERR SET options other than EX and PX are not supported");
+                    } else {
+                        if (args.length == 5) {
+                            String option = new String(args[3], StandardCharsets.UTF_8).toUpperCase(Locale.ROOT);
+                            long amount;
+                            try {
+                                amount = Long.parseLong(new String(args[4], StandardCharsets.UTF_8));
+                            } catch (NumberFormatException e) {
+                                amount = 0;
+                            }
+                            if (!option.equals("EX") && !option.equals("PX")) {
+                                reply = error("ERR SET options other than EX and PX are not supported");
+                            } else if (amount <= 0 || amount > Long.MAX_VALUE / 1000 / 2) {
+                                reply = error("ERR invalid expire time in 'set' command");
+                            } else {
+                                ttlMillis = option.equals("EX") ? amount * 1000 : amount;
+                            }
+                        }
+                        if (reply == null) {
+                            keys = keys(args, 1, 2);
+                            write = true;
+                        }
+                    }
+                }
+                case "MSET" -> {
+                    if (args.length < 3 || args.length % 2 == 0) {
+                        reply = wrongArity();
+                    } else {
+                        keys = keys(args, 1, 2);
+                        write = true;
+                    }
+                }
+                default -> reply = error("ERR unknown command '" + new String(args[0], StandardCharsets.UTF_8) + "'");
+            }
+            this.keys = keys;
+            this.write = write;
+            this.quit = name.equals("QUIT");
+            this.ttlMillis = ttlMillis;
+            this.reply = reply;
+        }
+
+        private byte[] wrongArity() {
+            return error("ERR wrong number of arguments for '" + name.toLowerCase(Locale.ROOT) + "' command");
+        }
+
+        private static String[] keys(byte[][] args, int first, int step) {
+            String[] keys = new String[(args.length - first + step - 1) / step];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = new String(args[first + i * step], StandardCharsets.UTF_8);
+            }
+            return keys;
+        }
+
+        /**
+         * @return true if this command must wait for an earlier one that isn't done
+         */
+        private boolean conflictsWith(Command earlier) {
+            if (!write && !earlier.write) {
+                return false;
+            }
+            for (String key : keys) {
+                for (String other : earlier.keys) {
+                    if (key.equals(other)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A thread multiplexing many client connections over one selector
+     */
+    private class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingReplies = new ConcurrentLinkedQueue<>();
+
+        private EventLoop(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        private void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Called from the thread that completed a command, the event loop writes the replies that are ready
+         */
+        private void replyReady(Connection connection) {
+            pendingReplies.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = pendingRegistrations.poll()) != null) {
+                        Connection connection = new Connection(channel, this);
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    }
+                    Connection ready;
+                    while ((ready = pendingReplies.poll()) != null) {
+                        try {
+                            ready.writeReplies();
+                        } catch (IOException | CancelledKeyException e) {
+                            ready.close();
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.close();
+                        }
+                    }
+                } catch (ClosedSelectorException e) {
+                    break;
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Error in event loop " + getName(), e);
+                }
+            }
+        }
+
+        private void shutdown() {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection connection) {
+                        connection.close();
+                    }
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                logger.log(Level.WARNING, "Failed to close selector", e);
+            }
+        }
+    }
+
+    /**
+     * State of one client connection, only touched by its event loop. Commands complete on other threads and hand
+     * their replies over through {@link EventLoop#replyReady}.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final EventLoop eventLoop;
+        private final ArrayDeque<Command> inFlight = new ArrayDeque<>(); //in command order
+        private final ArrayDeque<Command> waiting = new ArrayDeque<>(); //parsed but not started yet, see startReady
+        private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+        private SelectionKey key;
+        private ByteBuffer readBuffer; //pooled, only held while a partial command is buffered, kept ready for reading
+        private byte[][] args; //the arguments of a command being parsed, null between commands
+        private int argCount; //how many of them are parsed
+        private byte[] bulk; //the argument being read, null between arguments
+        private int bulkFilled;
+        private boolean paused; //too many commands in flight, reading waits for replies
+        private boolean lastCommand; //QUIT or a protocol error, nothing after it is read
+        private boolean closeAfterWrite;
+
+        private Connection(SocketChannel channel, EventLoop eventLoop) {
+            this.channel = channel;
+            this.eventLoop = eventLoop;
+        }
+
+        private void read() throws IOException {
+            if (readBuffer == null) {
+                readBuffer = bufferPool.acquire();
+            }
+            if (channel.read(readBuffer) == -1) {
+                throw new ClosedChannelException();
+            }
+            parseBuffered();
+        }
+
+        /**
+         * Dispatches every complete command in the read buffer. A bulk string is copied into its argument as it
+         * arrives, so arguments may be larger than the buffer.
+         */
+        private void parseBuffered() {
+            readBuffer.flip();
+            while (!paused && !lastCommand && readBuffer.hasRemaining()) {
+                if (args == null) {
+                    if (readBuffer.get(readBuffer.position()) != '*') {
+                        String line = readLine();
+                        if (line == null) {
+                            break;
+                        }
+                        String[] words = line.trim().split("\\s+");
+                        if (!words[0].isEmpty()) {
+                            byte[][] inline = new byte[words.length][];
+                            for (int i = 0; i < words.length; i++) {
+                                inline[i] = words[i].getBytes(StandardCharsets.UTF_8);
+                            }
+                            dispatch(inline);
+                        }
+                        continue;
+                    }
+                    Integer count = readLength('*');
+                    if (count == null) {
+                        break;
+                    }
+                    if (count > MAX_ARGUMENTS) {
+                        protocolError("invalid multibulk length");
+                        break;
+                    }
+                    if (count > 0) {
+                        args = new byte[count][];
+                        argCount = 0;
+                    }
+                    continue;
+                }
+                if (bulk == null) {
+                    Integer length = readLength('$');
+                    if (length == null) {
+                        break;
+                    }
+                    if (length < 0 || length > MAX_BULK_BYTES) {
+                        protocolError("invalid bulk length");
+                        break;
+                    }
+                    bulk = new byte[length];
+                    bulkFilled = 0;
+                }
+                int copied = Math.min(bulk.length - bulkFilled, readBuffer.remaining());
+                readBuffer.get(bulk, bulkFilled, copied);
+                bulkFilled += copied;
+                if (bulkFilled < bulk.length || readBuffer.remaining() < CRLF.length) {
+                    break;
+                }
+                if (readBuffer.get() != '\r' || readBuffer.get() != '\n') {
+                    protocolError("expected CRLF after bulk string");
+                    break;
+                }
+                args[argCount++] = bulk;
+                bulk = null;
+                if (argCount == args.length) {
+                    byte[][] complete = args;
+                    args = null;
+                    dispatch(complete);
+                }
+            }
+            if (readBuffer.hasRemaining() && !lastCommand) {
+                readBuffer.compact();
+            } else {
+                //nothing buffered, give the buffer back so idle connections don't hold one
+                bufferPool.release(readBuffer);
+                readBuffer = null;
+            }
+            updateInterest();
+        }
+
+        /**
+         * @return the next line without its CRLF, or null if it hasn't fully arrived
+         */
+        private String readLine() {
+            int start = readBuffer.position();
+            for (int i = start; i < readBuffer.limit() - 1; i++) {
+                if (readBuffer.get(i) == '\r' && readBuffer.get(i + 1) == '\n') {
+                    byte[] line = new byte[i - start];
+                    readBuffer.get(line);
+                    readBuffer.position(i + 2);
+                    return new String(line, StandardCharsets.UTF_8);
+                }
+            }
+            if (readBuffer.remaining() == readBuffer.capacity()) {
+                protocolError("too big inline request");
+            }
+            return null;
+        }
+
+        /**
+         * @return the length on a line starting with the given prefix, or null if the line hasn't fully arrived or
+         * isn't one
+         */
+        private Integer readLength(char prefix) {
+            String line = readLine();
+            if (line == null) {
+                return null;
+            }
+            try {
+                if (line.isEmpty() || line.charAt(0) != prefix) {
+                    throw new NumberFormatException(line);
+                }
+                return Integer.parseInt(line, 1, line.length(), 10);
+            } catch (NumberFormatException e) {
+                protocolError(prefix == '*' ? "invalid multibulk length" : "invalid bulk length");
+                return null;
+            }
+        }
+
+        /**
+         * Replies with an error and closes the connection once it is written, like Redis
+         */
+        private void protocolError(String message) {
+            Command command = new Command(new byte[][]{"QUIT".getBytes(StandardCharsets.US_ASCII)});
+            command.reply = error("ERR Protocol error: " + message);
+            inFlight.add(command);
+            lastCommand = true;
+            eventLoop.replyReady(this);
+        }
+
+        private void dispatch(byte[][] commandArgs) {
+            Command command = new Command(commandArgs);
+            if (command.quit) {
+                lastCommand = true;
+            }
+            inFlight.add(command);
+            if (inFlight.size() >= MAX_PIPELINED_COMMANDS) {
+                paused = true;
+            }
+            if (command.reply != null) {
+                //answered while parsing, it only waits for the replies before it
+                eventLoop.replyReady(this);
+                return;
+            }
+            waiting.add(command);
+            startReady();
+        }
+
+        /**
+         * Starts the waiting commands in order until one conflicts with an earlier command that isn't done
+         */
+        private void startReady() {
+            Command next;
+            while ((next = waiting.peek()) != null && mayStart(next)) {
+                waiting.poll();
+                start(next);
+            }
+        }
+
+        private boolean mayStart(Command command) {
+            for (Command earlier : inFlight) {
+                if (earlier == command) {
+                    return true;
+                }
+                if (earlier.reply == null && command.conflictsWith(earlier)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void start(Command command) {
+            try {
+                executor.execute(() -> {
+                    CompletableFuture<byte[]> reply;
+                    try {
+                        reply = execute(command);
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, "Command " + command.name + " failed", e);
+                        reply = CompletableFuture.completedFuture(error("ERR " + e.getMessage()));
+                    }
+                    reply.whenComplete((bytes, error) -> {
+                        command.reply = error == null ? bytes : error("ERR " + cause(error).getMessage());
+                        eventLoop.replyReady(this);
+                    });
+                });
+            } catch (RejectedExecutionException e) {
+                command.reply = error("ERR server is overloaded");
+                eventLoop.replyReady(this);
+            }
+        }
+
+        /**
+         * Queues the replies that are ready in command order, stopping at the first command that isn't done
+         */
+        private void writeReplies() throws IOException {
+            startReady();
+            Command head;
+            while ((head = inFlight.peek()) != null && head.reply != null) {
+                inFlight.poll();
+                writeQueue.add(ByteBuffer.wrap(head.reply));
+                if (head.quit) {
+                    closeAfterWrite = true;
+                    break;
+                }
+            }
+            if (paused && inFlight.size() < MAX_PIPELINED_COMMANDS && !closeAfterWrite) {
+                paused = false;
+                if (readBuffer != null) {
+                    //commands already buffered were waiting on this
+                    parseBuffered();
+                }
+            }
+            flush();
+        }
+
+        private void flush() throws IOException {
+            while (!writeQueue.isEmpty()) {
+                //pipelined replies go out in one gathering write
+                channel.write(writeQueue.toArray(new ByteBuffer[0]));
+                while (!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining()) {
+                    writeQueue.poll();
+                }
+                if (!writeQueue.isEmpty()) {
+                    updateInterest();
+                    return; //socket buffer is full, wait for the next write event
+                }
+            }
+            if (closeAfterWrite) {
+                close();
+                return;
+            }
+            updateInterest();
+        }
+
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = (paused || lastCommand) ? 0 : SelectionKey.OP_READ;
+            if (!writeQueue.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        private void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                //the connection is being discarded anyway
+            }
+            if (readBuffer != null) {
+                bufferPool.release(readBuffer);
+                readBuffer = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.JasonRoth;
+
+import com.JasonRoth.util.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * How keys and virtual nodes are placed on the ring. Every node of a cluster must use the same function, which is
+ * why the cluster's choice is kept in ZooKeeper rather than in each node's config.
+ */
+public enum RingHashFunction {
+    /**
+     * The first 4 bytes of the MD5 digest, the placement of clusters created before the choice was configurable.
+     * Tokens only use 32 of the 64 bits and MD5 dominates the cost of a lookup.
+     */
+    MD5 {
+        @Override
+        public long hash(byte[] key, int offset, int length) {
+            MessageDigest md = DIGESTS.get();
+            byte[] digest = DIGEST_BUFFER.get();
+            try {
+                md.update(key, offset, length);
+                md.digest(digest, 0, digest.length);
+            } catch (DigestException e) {
+                throw new IllegalStateException("MD5 digest doesn't fit 16 bytes", e);
+            }
+            long h = 0;
+            for (int i = 0; i < 4; i++) {
+                h <<= 8;
+                h |= ((int) digest[i]) & 0xFF;
+            }
+            return h;
+        }
+
+        @Override
+        public long hash(String key) {
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            return hash(bytes, 0, bytes.length);
+        }
+
+        @Override
+        public double fraction(long start, long end) {
+            return start == end ? 1 : Math.floorMod(end - start, 1L << 32) / 0x1p32;
+        }
+    },
+    /**
+     * 64 bits of MurmurHash3, a non-cryptographic hash that is many times faster than MD5 and uses the whole token
+     * space
+     */
+    MURMUR3 {
+        @Override
+        public long hash(byte[] key, int offset, int length) {
+            return Hashing.murmur3(key, offset, length);
+        }
+
+        @Override
+        public long hash(String key) {
+            return Hashing.murmur3(key);
+        }
+
+        @Override
+        public double fraction(long start, long end) {
+            long length = end - start;
+            //the length is unsigned, it wraps around past Long.MAX_VALUE
+            return start == end ? 1 : (length >= 0 ? length : length + 0x1p64) / 0x1p64;
+        }
+    };
+
+    //MessageDigest isn't thread safe, and getInstance is too slow to call per lookup
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("MD5 not found", e);
+        }
+    });
+    private static final ThreadLocal<byte[]> DIGEST_BUFFER = ThreadLocal.withInitial(() -> new byte[16]);
+
+    /**
+     * @param key the UTF-8 bytes of a key, e.g. straight out of a frame's payload
+     * @param offset where they start
+     * @param length how many there are
+     * @return the key's token
+     */
+    public abstract long hash(byte[] key, int offset, int length);
+
+    /**
+     * @return the token of a key, the same as hashing its UTF-8 bytes
+     */
+    public abstract long hash(String key);
+
+    /**
+     * @param start the token the range starts after
+     * @param end the last token of the range, equal to start for the whole ring
+     * @return the share of all tokens the function produces that the range holds
+     */
+    public abstract double fraction(long start, long end);
+
+    /**
+     * @param value a function name in any case, e.g. "murmur3"
+     * @return the function
+     * @throws IllegalArgumentException if the name isn't a function
+     */
+    public static RingHashFunction parse(String value) {
+        return valueOf(value.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,66 @@
+package com.JasonRoth;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * How the ring places nodes and keys, settings every node of a cluster must agree on. They are kept in ZooKeeper as
+ * key=value settings, e.g. hash=MURMUR3;vnodes=64;loadBound=1.25.
+ * @param hashFunction places keys and virtual nodes
+ * @param virtualNodes the virtual nodes of a node with weight 1, a node with weight 2 gets twice as many
+ * @param loadBound the most token space a node is primary for as a multiple of its weighted share, ranges past it
+ *                  spill to the next node clockwise. 0 doesn't bound loads.
+ */
+public record RingPlacement(RingHashFunction hashFunction, int virtualNodes, double loadBound) {
+    /**
+     * The placement of clusters created before it was recorded
+     */
+    public static final RingPlacement LEGACY = new RingPlacement(RingHashFunction.MD5, 10, 0);
+
+    private static final String HASH = "hash";
+    private static final String VIRTUAL_NODES = "vnodes";
+    private static final String LOAD_BOUND = "loadBound";
+
+    public RingPlacement {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("A ring needs at least one virtual node per node, not " + virtualNodes);
+        }
+        if (loadBound != 0 && loadBound < 1) {
+            throw new IllegalArgumentException("A load bound below 1 can't fit every range, not " + loadBound);
+        }
+    }
+
+    /**
+     * @param weight a node's capacity relative to a node of weight 1
+     * @return how many virtual nodes it gets, at least one
+     */
+    public int virtualNodes(double weight) {
+        return (int) Math.max(1, Math.round(virtualNodes * weight));
+    }
+
+    /**
+     * @return the placement as ZooKeeper settings
+     */
+    public Map<String, String> toSettings() {
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put(HASH, hashFunction.name());
+        settings.put(VIRTUAL_NODES, Integer.toString(virtualNodes));
+        settings.put(LOAD_BOUND, Double.toString(loadBound));
+        return settings;
+    }
+
+    /**
+     * @param settings the ZooKeeper settings of a ring, those recorded before a setting existed keep its legacy value
+     * @return the placement they describe
+     * @throws IllegalArgumentException if a setting isn't valid or the hash function is missing
+     */
+    public static RingPlacement fromSettings(Map<String, String> settings) {
+        String hash = settings.get(HASH);
+        if (hash == null) {
+            throw new IllegalArgumentException("Ring settings " + settings + " have no " + HASH);
+        }
+        return new RingPlacement(RingHashFunction.parse(hash),
+                Integer.parseInt(settings.getOrDefault(VIRTUAL_NODES, Integer.toString(LEGACY.virtualNodes))),
+                Double.parseDouble(settings.getOrDefault(LOAD_BOUND, Double.toString(LEGACY.loadBound))));
+    }
+}
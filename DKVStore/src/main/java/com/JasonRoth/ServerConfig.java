@@ -0,0 +1,433 @@
+package com.JasonRoth;
+
+import com.JasonRoth.storage.WriteAheadLog;
+
+/**
+ * Tunable settings for a node. Defaults can be overridden with system properties, e.g. -Ddkv.peerServer=NIO
+ */
+public class ServerConfig {
+
+    /**
+     * Implementations of the internode server
+     */
+    public enum PeerServerType {
+        BLOCKING, //ServerSocket with a thread per connection
+        NIO //Selector based event loops with a bounded worker pool
+    }
+
+    /**
+     * Implementations of the client facing HTTP server
+     */
+    public enum HttpServerType {
+        JDK, //the JDK's HttpServer, a dispatcher thread and a connection per client
+        NIO //Selector based event loops with keep-alive, pipelining and request bodies read without copies
+    }
+
+    /**
+     * How threads are provided to the HTTP server, the peer server and outgoing peer requests
+     */
+    public enum ExecutionModel {
+        CACHED, //unbounded cached pools of platform threads
+        FIXED, //fixed size pools of platform threads, see fixedPoolThreads
+        VIRTUAL //a new virtual thread per task
+    }
+
+    /**
+     * Implementations of a node's local storage
+     */
+    public enum StorageEngineType {
+        MEMORY, //ConcurrentHashMap on the heap
+        LSM, //log-structured merge tree on disk, for data sets larger than memory
+        OFF_HEAP //hash index and slab allocated entries in direct memory, invisible to the garbage collector
+    }
+
+    private PeerServerType peerServerType = PeerServerType.BLOCKING;
+    private ExecutionModel executionModel = ExecutionModel.CACHED;
+    private int fixedPoolThreads = 64;
+    private int nioEventLoopThreads = 2;
+    private int peerWorkerThreads = Runtime.getRuntime().availableProcessors() * 2;
+    private int peerWorkerQueueCapacity = 10_000;
+    private String dataDirectory = "data";
+    private WriteAheadLog.DurabilityMode walDurability = WriteAheadLog.DurabilityMode.BATCHED;
+    private long walSyncIntervalMillis = 100;
+    private StorageEngineType storageEngineType = StorageEngineType.MEMORY;
+    private long lsmMemtableBytes = 4 * 1024 * 1024;
+    private long offHeapMaxBytes = 1024L * 1024 * 1024;
+    private long snapshotIntervalSeconds = 300;
+    private int replicationBatchMaxEntries = 256;
+    private long replicationBatchMaxBytes = 1024 * 1024;
+    private long replicationLingerMicros = 100;
+    private ConsistencyLevel readConsistency = ConsistencyLevel.ONE;
+    private ConsistencyLevel writeConsistency = ConsistencyLevel.QUORUM;
+    private long hintMaxBytes = 64 * 1024 * 1024;
+    private int hintReplayRatePerSecond = 1000;
+    private long antiEntropyIntervalSeconds = 60;
+    private int rebalanceChunkBytes = 256 * 1024;
+    private long rebalanceRateBytesPerSecond = 8 * 1024 * 1024;
+    private RingHashFunction ringHash = RingHashFunction.MURMUR3;
+    private int virtualNodes = 64;
+    private double ringLoadBound = 0;
+    private double weight = 1;
+    private HttpServerType httpServerType = HttpServerType.JDK;
+    private int httpEventLoopThreads = 2;
+    private int respPortOffset = 0;
+    private int respEventLoopThreads = 2;
+    private long nearCacheMaxBytes = 0;
+    private long nearCacheTtlMillis = 5000;
+    private long ttlTickMillis = 100;
+
+    /**
+     * Builds a config from the defaults, overridden by any dkv.* system properties that are set
+     * @return the config
+     */
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.setPeerServerType(PeerServerType.valueOf(System.getProperty("dkv.peerServer", config.peerServerType.name()).toUpperCase()));
+        config.setExecutionModel(ExecutionModel.valueOf(System.getProperty("dkv.executionModel", config.executionModel.name()).toUpperCase()));
+        config.setFixedPoolThreads(Integer.getInteger("dkv.fixedPoolThreads", config.fixedPoolThreads));
+        config.setNioEventLoopThreads(Integer.getInteger("dkv.nioEventLoopThreads", config.nioEventLoopThreads));
+        config.setPeerWorkerThreads(Integer.getInteger("dkv.peerWorkerThreads", config.peerWorkerThreads));
+        config.setPeerWorkerQueueCapacity(Integer.getInteger("dkv.peerWorkerQueueCapacity", config.peerWorkerQueueCapacity));
+        config.setDataDirectory(System.getProperty("dkv.dataDir", config.dataDirectory));
+        config.setWalDurability(WriteAheadLog.DurabilityMode.valueOf(System.getProperty("dkv.walDurability", config.walDurability.name()).toUpperCase()));
+        config.setWalSyncIntervalMillis(Long.getLong("dkv.walSyncIntervalMillis", config.walSyncIntervalMillis));
+        config.setStorageEngineType(StorageEngineType.valueOf(System.getProperty("dkv.storageEngine", config.storageEngineType.name()).toUpperCase()));
+        config.setLsmMemtableBytes(Long.getLong("dkv.lsmMemtableBytes", config.lsmMemtableBytes));
+        config.setOffHeapMaxBytes(Long.getLong("dkv.offHeapMaxBytes", config.offHeapMaxBytes));
+        config.setSnapshotIntervalSeconds(Long.getLong("dkv.snapshotIntervalSeconds", config.snapshotIntervalSeconds));
+        config.setReplicationBatchMaxEntries(Integer.getInteger("dkv.replicationBatchMaxEntries", config.replicationBatchMaxEntries));
+        config.setReplicationBatchMaxBytes(Long.getLong("dkv.replicationBatchMaxBytes", config.replicationBatchMaxBytes));
+        config.setReplicationLingerMicros(Long.getLong("dkv.replicationLingerMicros", config.replicationLingerMicros));
+        config.setReadConsistency(ConsistencyLevel.parse(System.getProperty("dkv.readConsistency", config.readConsistency.name())));
+        config.setWriteConsistency(ConsistencyLevel.parse(System.getProperty("dkv.writeConsistency", config.writeConsistency.name())));
+        config.setHintMaxBytes(Long.getLong("dkv.hintMaxBytes", config.hintMaxBytes));
+        config.setHintReplayRatePerSecond(Integer.getInteger("dkv.hintReplayRatePerSecond", config.hintReplayRatePerSecond));
+        config.setAntiEntropyIntervalSeconds(Long.getLong("dkv.antiEntropyIntervalSeconds", config.antiEntropyIntervalSeconds));
+        config.setRebalanceChunkBytes(Integer.getInteger("dkv.rebalanceChunkBytes", config.rebalanceChunkBytes));
+        config.setRebalanceRateBytesPerSecond(Long.getLong("dkv.rebalanceRateBytesPerSecond", config.rebalanceRateBytesPerSecond));
+        config.setRingHash(RingHashFunction.parse(System.getProperty("dkv.ringHash", config.ringHash.name())));
+        config.setVirtualNodes(Integer.getInteger("dkv.virtualNodes", config.virtualNodes));
+        config.setRingLoadBound(Double.parseDouble(System.getProperty("dkv.ringLoadBound", Double.toString(config.ringLoadBound))));
+        config.setWeight(Double.parseDouble(System.getProperty("dkv.weight", Double.toString(config.weight))));
+        config.setHttpServerType(HttpServerType.valueOf(System.getProperty("dkv.httpServer", config.httpServerType.name()).toUpperCase()));
+        config.setHttpEventLoopThreads(Integer.getInteger("dkv.httpEventLoopThreads", config.httpEventLoopThreads));
+        config.setRespPortOffset(Integer.getInteger("dkv.respPortOffset", config.respPortOffset));
+        config.setRespEventLoopThreads(Integer.getInteger("dkv.respEventLoopThreads", config.respEventLoopThreads));
+        config.setNearCacheMaxBytes(Long.getLong("dkv.nearCacheMaxBytes", config.nearCacheMaxBytes));
+        config.setNearCacheTtlMillis(Long.getLong("dkv.nearCacheTtlMillis", config.nearCacheTtlMillis));
+        config.setTtlTickMillis(Long.getLong("dkv.ttlTickMillis", config.ttlTickMillis));
+        return config;
+    }
+
+    public PeerServerType getPeerServerType() {
+        return peerServerType;
+    }
+
+    public void setPeerServerType(PeerServerType peerServerType) {
+        this.peerServerType = peerServerType;
+    }
+
+    public ExecutionModel getExecutionModel() {
+        return executionModel;
+    }
+
+    public void setExecutionModel(ExecutionModel executionModel) {
+        this.executionModel = executionModel;
+    }
+
+    public int getFixedPoolThreads() {
+        return fixedPoolThreads;
+    }
+
+    public void setFixedPoolThreads(int fixedPoolThreads) {
+        this.fixedPoolThreads = fixedPoolThreads;
+    }
+
+    public int getNioEventLoopThreads() {
+        return nioEventLoopThreads;
+    }
+
+    public void setNioEventLoopThreads(int nioEventLoopThreads) {
+        this.nioEventLoopThreads = nioEventLoopThreads;
+    }
+
+    public int getPeerWorkerThreads() {
+        return peerWorkerThreads;
+    }
+
+    public void setPeerWorkerThreads(int peerWorkerThreads) {
+        this.peerWorkerThreads = peerWorkerThreads;
+    }
+
+    public int getPeerWorkerQueueCapacity() {
+        return peerWorkerQueueCapacity;
+    }
+
+    public void setPeerWorkerQueueCapacity(int peerWorkerQueueCapacity) {
+        this.peerWorkerQueueCapacity = peerWorkerQueueCapacity;
+    }
+
+    public String getDataDirectory() {
+        return dataDirectory;
+    }
+
+    public void setDataDirectory(String dataDirectory) {
+        this.dataDirectory = dataDirectory;
+    }
+
+    public WriteAheadLog.DurabilityMode getWalDurability() {
+        return walDurability;
+    }
+
+    public void setWalDurability(WriteAheadLog.DurabilityMode walDurability) {
+        this.walDurability = walDurability;
+    }
+
+    public long getWalSyncIntervalMillis() {
+        return walSyncIntervalMillis;
+    }
+
+    public void setWalSyncIntervalMillis(long walSyncIntervalMillis) {
+        this.walSyncIntervalMillis = walSyncIntervalMillis;
+    }
+
+    public StorageEngineType getStorageEngineType() {
+        return storageEngineType;
+    }
+
+    public void setStorageEngineType(StorageEngineType storageEngineType) {
+        this.storageEngineType = storageEngineType;
+    }
+
+    public long getLsmMemtableBytes() {
+        return lsmMemtableBytes;
+    }
+
+    public void setLsmMemtableBytes(long lsmMemtableBytes) {
+        this.lsmMemtableBytes = lsmMemtableBytes;
+    }
+
+    public long getOffHeapMaxBytes() {
+        return offHeapMaxBytes;
+    }
+
+    public void setOffHeapMaxBytes(long offHeapMaxBytes) {
+        this.offHeapMaxBytes = offHeapMaxBytes;
+    }
+
+    public long getSnapshotIntervalSeconds() {
+        return snapshotIntervalSeconds;
+    }
+
+    public void setSnapshotIntervalSeconds(long snapshotIntervalSeconds) {
+        this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+    }
+
+    public int getReplicationBatchMaxEntries() {
+        return replicationBatchMaxEntries;
+    }
+
+    public void setReplicationBatchMaxEntries(int replicationBatchMaxEntries) {
+        this.replicationBatchMaxEntries = replicationBatchMaxEntries;
+    }
+
+    public long getReplicationBatchMaxBytes() {
+        return replicationBatchMaxBytes;
+    }
+
+    public void setReplicationBatchMaxBytes(long replicationBatchMaxBytes) {
+        this.replicationBatchMaxBytes = replicationBatchMaxBytes;
+    }
+
+    public long getReplicationLingerMicros() {
+        return replicationLingerMicros;
+    }
+
+    public void setReplicationLingerMicros(long replicationLingerMicros) {
+        this.replicationLingerMicros = replicationLingerMicros;
+    }
+
+    public ConsistencyLevel getReadConsistency() {
+        return readConsistency;
+    }
+
+    public void setReadConsistency(ConsistencyLevel readConsistency) {
+        this.readConsistency = readConsistency;
+    }
+
+    public ConsistencyLevel getWriteConsistency() {
+        return writeConsistency;
+    }
+
+    public void setWriteConsistency(ConsistencyLevel writeConsistency) {
+        this.writeConsistency = writeConsistency;
+    }
+
+    public long getHintMaxBytes() {
+        return hintMaxBytes;
+    }
+
+    public void setHintMaxBytes(long hintMaxBytes) {
+        this.hintMaxBytes = hintMaxBytes;
+    }
+
+    public int getHintReplayRatePerSecond() {
+        return hintReplayRatePerSecond;
+    }
+
+    public void setHintReplayRatePerSecond(int hintReplayRatePerSecond) {
+        this.hintReplayRatePerSecond = hintReplayRatePerSecond;
+    }
+
+    public long getAntiEntropyIntervalSeconds() {
+        return antiEntropyIntervalSeconds;
+    }
+
+    public void setAntiEntropyIntervalSeconds(long antiEntropyIntervalSeconds) {
+        this.antiEntropyIntervalSeconds = antiEntropyIntervalSeconds;
+    }
+
+    public int getRebalanceChunkBytes() {
+        return rebalanceChunkBytes;
+    }
+
+    public void setRebalanceChunkBytes(int rebalanceChunkBytes) {
+        this.rebalanceChunkBytes = rebalanceChunkBytes;
+    }
+
+    public long getRebalanceRateBytesPerSecond() {
+        return rebalanceRateBytesPerSecond;
+    }
+
+    public void setRebalanceRateBytesPerSecond(long rebalanceRateBytesPerSecond) {
+        this.rebalanceRateBytesPerSecond = rebalanceRateBytesPerSecond;
+    }
+
+    /**
+     * @return the hash function a new cluster places keys with, a node joining an existing one uses the cluster's
+     */
+    public RingHashFunction getRingHash() {
+        return ringHash;
+    }
+
+    public void setRingHash(RingHashFunction ringHash) {
+        this.ringHash = ringHash;
+    }
+
+    /**
+     * @return the virtual nodes of a node with weight 1 when a node creates the cluster
+     */
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    public void setVirtualNodes(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * @return the load bound of the ring when a node creates the cluster, 0 doesn't bound loads
+     */
+    public double getRingLoadBound() {
+        return ringLoadBound;
+    }
+
+    public void setRingLoadBound(double ringLoadBound) {
+        this.ringLoadBound = ringLoadBound;
+    }
+
+    /**
+     * @return the placement this node proposes when it creates the cluster
+     */
+    public RingPlacement getRingPlacement() {
+        return new RingPlacement(ringHash, virtualNodes, ringLoadBound);
+    }
+
+    /**
+     * @return this node's capacity relative to the other nodes, it gets virtual nodes in proportion
+     */
+    public double getWeight() {
+        return weight;
+    }
+
+    public void setWeight(double weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("A node's weight must be positive, not " + weight);
+        }
+        this.weight = weight;
+    }
+
+    public HttpServerType getHttpServerType() {
+        return httpServerType;
+    }
+
+    public void setHttpServerType(HttpServerType httpServerType) {
+        this.httpServerType = httpServerType;
+    }
+
+    /**
+     * @return how many event loop threads the NIO HTTP server multiplexes client connections over
+     */
+    public int getHttpEventLoopThreads() {
+        return httpEventLoopThreads;
+    }
+
+    public void setHttpEventLoopThreads(int httpEventLoopThreads) {
+        this.httpEventLoopThreads = httpEventLoopThreads;
+    }
+
+    /**
+     * @return the port of the RESP listener relative to the node's HTTP port, 0 if the node has none
+     */
+    public int getRespPortOffset() {
+        return respPortOffset;
+    }
+
+    public void setRespPortOffset(int respPortOffset) {
+        this.respPortOffset = respPortOffset;
+    }
+
+    /**
+     * @return how many event loop threads the RESP listener multiplexes client connections over
+     */
+    public int getRespEventLoopThreads() {
+        return respEventLoopThreads;
+    }
+
+    public void setRespEventLoopThreads(int respEventLoopThreads) {
+        this.respEventLoopThreads = respEventLoopThreads;
+    }
+
+    /**
+     * @return most bytes of values a node caches from the other nodes, 0 if it has no near cache
+     */
+    public long getNearCacheMaxBytes() {
+        return nearCacheMaxBytes;
+    }
+
+    public void setNearCacheMaxBytes(long nearCacheMaxBytes) {
+        this.nearCacheMaxBytes = nearCacheMaxBytes;
+    }
+
+    /**
+     * @return how long a value in the near cache is served when no invalidation reaches it
+     */
+    public long getNearCacheTtlMillis() {
+        return nearCacheTtlMillis;
+    }
+
+    public void setNearCacheTtlMillis(long nearCacheTtlMillis) {
+        this.nearCacheTtlMillis = nearCacheTtlMillis;
+    }
+
+    /**
+     * @return the resolution of the timing wheel that deletes expired keys, keys are deleted up to a tick after they expire
+     */
+    public long getTtlTickMillis() {
+        return ttlTickMillis;
+    }
+
+    public void setTtlTickMillis(long ttlTickMillis) {
+        this.ttlTickMillis = ttlTickMillis;
+    }
+}
@@ -2,31 +2,34 @@ package com.JasonRoth;
 
 import com.JasonRoth.Logging.LoggingServer;
 import com.JasonRoth.Messaging.PeerMessageHandler;
+import com.JasonRoth.Messaging.PeerMessageProcessor;
+import com.JasonRoth.util.ExecutorFactory;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Map;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * TCP server being run on specified port, handles internode communication
+ * TCP server being run on specified port, handles internode communication with a blocking thread per connection
  */
-public class TCPServer extends Thread implements LoggingServer {
+public class TCPServer extends Thread implements PeerServer, LoggingServer {
     private ServerSocket serverSocket;
     private Logger logger;
     private volatile boolean running = true;
     private Thread currentThread;
-    private ExecutorService executor = Executors.newCachedThreadPool();
-    private Map<String, String> dataStore;
+    private ExecutorService executor; //runs one PeerMessageHandler per connection
+    private ExecutorService requestExecutor; //runs pipelined requests
+    private PeerMessageProcessor processor;
 
-    public TCPServer(int port, Map<String, String> dataStore) throws IOException {
+    public TCPServer(int port, PeerMessageProcessor processor, ServerConfig config) throws IOException {
         serverSocket = new ServerSocket(port);
         logger = initializeLogging(this.getClass().getCanonicalName() + "_Port:" + port);
-        this.dataStore = dataStore;
+        this.processor = processor;
+        this.executor = ExecutorFactory.createForLongRunningTasks(config.getExecutionModel(), "peer-connection-" + port);
+        this.requestExecutor = ExecutorFactory.create(config.getExecutionModel(), "peer-request-" + port, config.getFixedPoolThreads());
     }
 
     /**
@@ -38,8 +41,10 @@ public class TCPServer extends Thread implements LoggingServer {
         while(running && !this.isInterrupted()) {
             try {
                 Socket connection = serverSocket.accept();
+                //responses to pipelined requests are small writes, Nagle would hold each one back until the previous is acked
+                connection.setTcpNoDelay(true);
                 logger.log(Level.INFO, "Accepted connection from " + connection.getRemoteSocketAddress());
-                PeerMessageHandler peerMessageHandler = new PeerMessageHandler(connection, logger, dataStore);
+                PeerMessageHandler peerMessageHandler = new PeerMessageHandler(connection, logger, processor, requestExecutor);
                 executor.execute(peerMessageHandler);
             } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -50,6 +55,7 @@ public class TCPServer extends Thread implements LoggingServer {
     /**
      * Shutdown the TCP Server
      */
+    @Override
     public void shutdown(){
         try {
             serverSocket.close();
@@ -61,6 +67,7 @@ public class TCPServer extends Thread implements LoggingServer {
             currentThread.interrupt();
         }
         executor.shutdownNow();
+        requestExecutor.shutdownNow();
         logger.log(Level.INFO, "TCPServer shutting down");
     }
 
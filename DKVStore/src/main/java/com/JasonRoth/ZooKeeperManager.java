@@ -3,19 +3,35 @@ package com.JasonRoth;
 import org.apache.zookeeper.*;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeMap;
 import java.util.concurrent.CountDownLatch;
 
 public class ZooKeeperManager {
     private static final String ZK_CONNECTION_STRING = "localhost:2181";
     private static final int SESSION_TIMEOUT = 5000;
-    static final String ZK_NODES_PATH = "/dkv_nodes";
+    public static final String ZK_NODES_PATH = "/dkv_nodes";
+    //settings every node of the ring must agree on, as key=value pairs separated by ';'
+    public static final String ZK_RING_PATH = "/dkv_ring";
+    //a node's znode holds its settings in the same format
+    private static final String WEIGHT_SETTING = "weight";
 
     private ZooKeeper zooKeeper;
 
     public void connect() throws IOException, InterruptedException {
+        connect(ZK_CONNECTION_STRING);
+    }
+
+    /**
+     * @param connectString the ZooKeeper servers, e.g. localhost:2181
+     */
+    public void connect(String connectString) throws IOException, InterruptedException {
         final CountDownLatch connectedSignal = new CountDownLatch(1);
-        zooKeeper = new ZooKeeper(ZK_CONNECTION_STRING, SESSION_TIMEOUT, event -> {
+        zooKeeper = new ZooKeeper(connectString, SESSION_TIMEOUT, event -> {
             if(event.getState() == Watcher.Event.KeeperState.SyncConnected) {
                 connectedSignal.countDown();
             }
@@ -23,7 +39,12 @@ public class ZooKeeperManager {
         connectedSignal.await();
     }
 
-    public void registerNode(String address, Watcher watcher) throws KeeperException, InterruptedException {
+    /**
+     * @param address this node's internode address
+     * @param weight this node's capacity relative to the others, published in its znode
+     * @param watcher notified when nodes join or leave
+     */
+    public void registerNode(String address, double weight, Watcher watcher) throws KeeperException, InterruptedException {
         //ensure parent path exists
         if(zooKeeper.exists(ZK_NODES_PATH, false) == null){
             zooKeeper.create(ZK_NODES_PATH, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
@@ -35,12 +56,59 @@ public class ZooKeeperManager {
             //clean up previous stale node if exists
             zooKeeper.delete(znodePath, -1);
         }
-        zooKeeper.create(znodePath, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+        zooKeeper.create(znodePath, formatSettings(Map.of(WEIGHT_SETTING, Double.toString(weight))), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
 
         //Set a watch on the parent nodes path to get notified of changes
         zooKeeper.getChildren(ZK_NODES_PATH, watcher);
     }
 
+    /**
+     * Creates the ring's settings from the given placement unless the cluster already has them. A cluster whose nodes
+     * registered before the settings existed was placed the legacy way, so it is recorded as
+     * {@link RingPlacement#LEGACY} instead.
+     * @param proposed the placement of a new cluster
+     * @param watcher notified when the cluster's placement changes
+     * @return the cluster's placement
+     */
+    public RingPlacement ensureRingPlacement(RingPlacement proposed, Watcher watcher) throws KeeperException, InterruptedException {
+        if(zooKeeper.exists(ZK_RING_PATH, false) == null){
+            boolean existingCluster = zooKeeper.exists(ZK_NODES_PATH, false) != null && !zooKeeper.getChildren(ZK_NODES_PATH, false).isEmpty();
+            RingPlacement placement = existingCluster ? RingPlacement.LEGACY : proposed;
+            try{
+                zooKeeper.create(ZK_RING_PATH, formatSettings(placement.toSettings()), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            }catch (KeeperException.NodeExistsException e){
+                //another node created it first, its choice wins
+            }
+        }
+        return getRingPlacement(watcher);
+    }
+
+    /**
+     * @param watcher notified when the ring's settings change
+     * @return the cluster's placement
+     */
+    public RingPlacement getRingPlacement(Watcher watcher) throws KeeperException, InterruptedException {
+        return RingPlacement.fromSettings(parseSettings(zooKeeper.getData(ZK_RING_PATH, watcher, null)));
+    }
+
+    /**
+     * @param watcher notified when nodes join or leave
+     * @return the weight of every live node by address, in address order. Nodes that registered without one have
+     * weight 1.
+     */
+    public Map<String, Double> getLiveNodeWeights(Watcher watcher) throws KeeperException, InterruptedException {
+        Map<String, Double> weights = new TreeMap<>();
+        for(String node : zooKeeper.getChildren(ZK_NODES_PATH, watcher)){
+            try{
+                String weight = parseSettings(zooKeeper.getData(ZK_NODES_PATH + "/" + node, false, null)).get(WEIGHT_SETTING);
+                weights.put(node, weight == null ? 1.0 : Double.parseDouble(weight));
+            }catch (KeeperException.NoNodeException e){
+                //left since the children were listed, the watch reports it
+            }
+        }
+        return weights;
+    }
+
     public List<String> getLiveNodes(Watcher watcher) throws KeeperException, InterruptedException {
         return zooKeeper.getChildren(ZK_NODES_PATH, watcher);
     }
@@ -50,5 +118,24 @@ public class ZooKeeperManager {
             zooKeeper.close();
         }
     }
-}
 
+    private static byte[] formatSettings(Map<String, String> settings) {
+        StringJoiner data = new StringJoiner(";");
+        settings.forEach((key, value) -> data.add(key + "=" + value));
+        return data.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> parseSettings(byte[] data) {
+        Map<String, String> settings = new LinkedHashMap<>();
+        if(data == null){
+            return settings;
+        }
+        for(String setting : new String(data, StandardCharsets.UTF_8).split(";")){
+            int separator = setting.indexOf('=');
+            if(separator > 0){
+                settings.put(setting.substring(0, separator).trim(), setting.substring(separator + 1).trim());
+            }
+        }
+        return settings;
+    }
+}
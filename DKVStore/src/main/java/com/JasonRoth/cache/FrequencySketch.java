@@ -0,0 +1,87 @@
+package com.JasonRoth.cache;
+
+import com.JasonRoth.util.Hashing;
+
+/**
+ * Approximate access counts of keys for the admission policy of a {@link NearCache}, a count-min sketch of 4 bit
+ * counters. Each key has one counter in each of four rows and its frequency is the smallest of them, so collisions
+ * can only overestimate it.
+ *
+ * Counts age: once the sketch has counted ten times as many accesses as the cache holds entries, every counter is
+ * halved, so keys that were popular a while ago don't keep out the ones that are popular now.
+ *
+ * Not thread safe, the cache calls it while holding its lock.
+ */
+class FrequencySketch {
+    private static final int ROWS = 4;
+    private static final int MAX_COUNT = 15;
+    private static final long RESET_MASK = 0x7777777777777777L; //clears the bit each counter shifts into its neighbour
+    private static final long[] SEEDS = {0x97cb3127c3a5c85cL, 0x6fbe98f273b492b6L, 0x2f90404f9ae16a3bL, 0x84222325cbf29ce4L};
+
+    private final long[] table; //16 counters per long
+    private final int sampleSize;
+    private int additions = 0;
+
+    /**
+     * @param expectedEntries about how many entries the cache holds
+     */
+    FrequencySketch(int expectedEntries) {
+        int entries = Math.max(64, Math.min(expectedEntries, 1 << 24));
+        //each row spreads its counters over the whole table, about one long per entry keeps collisions rare
+        table = new long[Integer.highestOneBit(entries - 1) << 1];
+        sampleSize = 10 * entries;
+    }
+
+    /**
+     * @return the estimated number of recent accesses of the key, at most 15
+     */
+    int frequency(String key) {
+        long hash = Hashing.murmur3(key);
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < ROWS; row++) {
+            long slot = slot(hash, row);
+            frequency = Math.min(frequency, (int) ((table[index(slot)] >>> shift(slot)) & MAX_COUNT));
+        }
+        return frequency;
+    }
+
+    /**
+     * Counts an access of the key
+     */
+    void increment(String key) {
+        long hash = Hashing.murmur3(key);
+        boolean added = false;
+        for (int row = 0; row < ROWS; row++) {
+            long slot = slot(hash, row);
+            int index = index(slot);
+            int shift = shift(slot);
+            if (((table[index] >>> shift) & MAX_COUNT) < MAX_COUNT) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private static long slot(long hash, int row) {
+        long slot = (hash + SEEDS[row]) * SEEDS[row];
+        return slot ^ (slot >>> 29);
+    }
+
+    private int index(long slot) {
+        return (int) slot & (table.length - 1);
+    }
+
+    private static int shift(long slot) {
+        return (int) (slot >>> 60) << 2;
+    }
+}
@@ -0,0 +1,233 @@
+package com.JasonRoth.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of values, sized in bytes, with W-TinyLFU eviction and a time to live.
+ *
+ * New entries go into a small LRU window that takes 1% of the bytes. An entry pushed out of the window is only
+ * admitted to the main area if its key has been accessed more often than the entry it would replace, according to a
+ * {@link FrequencySketch} of recent accesses, so a scan of keys read once can't flush the hot ones. The main area is
+ * a segmented LRU: entries start out on probation and move to the protected segment, 80% of the main area, when
+ * they are read again.
+ *
+ * Entries expire ttlMillis after they were put, however often they are read. Every method holds the cache's lock,
+ * the work under it is a few list operations and sketch lookups.
+ */
+public class NearCache {
+    private static final long ENTRY_OVERHEAD_BYTES = 96; //the entry, its node and the map's slot, roughly
+    private static final int AVERAGE_ENTRY_BYTES = 256; //only sizes the sketch
+
+    private final long maxBytes;
+    private final long windowMaxBytes;
+    private final long protectedMaxBytes;
+    private final long ttlNanos;
+    private final FrequencySketch sketch;
+    private final Map<String, Node> entries = new HashMap<>();
+    private final Segment window = new Segment();
+    private final Segment probation = new Segment();
+    private final Segment protectedSegment = new Segment();
+    private long evictions = 0;
+
+    /**
+     * @param maxBytes most bytes of keys and values held, with an estimate of the overhead of each entry
+     * @param ttlMillis how long an entry is served after it was put
+     */
+    public NearCache(long maxBytes, long ttlMillis) {
+        this.maxBytes = maxBytes;
+        this.windowMaxBytes = Math.max(1, maxBytes / 100);
+        this.protectedMaxBytes = (maxBytes - windowMaxBytes) * 8 / 10;
+        this.ttlNanos = ttlMillis * 1_000_000;
+        this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, maxBytes / AVERAGE_ENTRY_BYTES));
+    }
+
+    /**
+     * Looks up a key and counts the access, hit or miss, towards its frequency
+     * @return the cached value, null if the key isn't cached or its entry expired
+     */
+    public synchronized String get(String key) {
+        sketch.increment(key);
+        Node node = entries.get(key);
+        if (node == null) {
+            return null;
+        }
+        if (System.nanoTime() - node.expiresAt > 0) {
+            remove(node);
+            return null;
+        }
+        if (node.segment == probation) {
+            //read again while on probation, so it is worth protecting
+            probation.unlink(node);
+            protectedSegment.addFirst(node);
+            demoteProtectedOverflow();
+        } else {
+            node.segment.moveToFront(node);
+        }
+        return node.value;
+    }
+
+    /**
+     * Caches a value, replacing the key's entry if it has one. Values too large for the main area aren't cached.
+     */
+    public synchronized void put(String key, String value) {
+        long weight = weigh(key, value);
+        Node existing = entries.remove(key);
+        if (existing != null) {
+            existing.segment.unlink(existing);
+        }
+        if (weight > maxBytes - windowMaxBytes) {
+            return;
+        }
+        Node node = new Node(key, value, weight, System.nanoTime() + ttlNanos);
+        entries.put(key, node);
+        window.addFirst(node);
+        while (window.bytes > windowMaxBytes) {
+            Node candidate = window.tail();
+            window.unlink(candidate);
+            admit(candidate);
+        }
+    }
+
+    /**
+     * Drops a key's entry
+     * @return true if the key was cached
+     */
+    public synchronized boolean invalidate(String key) {
+        Node node = entries.get(key);
+        if (node == null) {
+            return false;
+        }
+        remove(node);
+        return true;
+    }
+
+    /**
+     * Drops every entry, the access frequencies are kept
+     */
+    public synchronized void clear() {
+        entries.clear();
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+    }
+
+    /**
+     * @return how many entries are cached, expired ones included until they are read or evicted
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the estimated bytes of the cached entries
+     */
+    public synchronized long weightedSize() {
+        return window.bytes + probation.bytes + protectedSegment.bytes;
+    }
+
+    /**
+     * @return how many entries were evicted or refused by the admission policy to stay within the size bound
+     */
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    /**
+     * Moves an entry that left the window into the main area if it is accessed more often than the entries it
+     * would push out, and otherwise evicts it
+     */
+    private void admit(Node candidate) {
+        long mainMaxBytes = maxBytes - windowMaxBytes;
+        while (probation.bytes + protectedSegment.bytes + candidate.weight > mainMaxBytes) {
+            Node victim = probation.tail() != null ? probation.tail() : protectedSegment.tail();
+            evictions++;
+            if (sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                entries.remove(candidate.key);
+                return;
+            }
+            remove(victim);
+        }
+        probation.addFirst(candidate);
+    }
+
+    private void demoteProtectedOverflow() {
+        while (protectedSegment.bytes > protectedMaxBytes) {
+            Node demoted = protectedSegment.tail();
+            protectedSegment.unlink(demoted);
+            probation.addFirst(demoted);
+        }
+    }
+
+    private void remove(Node node) {
+        node.segment.unlink(node);
+        entries.remove(node.key);
+    }
+
+    private static long weigh(String key, String value) {
+        return 2L * (key.length() + value.length()) + ENTRY_OVERHEAD_BYTES;
+    }
+
+    private static class Node {
+        private final String key;
+        private final String value;
+        private final long weight;
+        private final long expiresAt;
+        private Segment segment;
+        private Node prev;
+        private Node next;
+
+        private Node(String key, String value, long weight, long expiresAt) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * A doubly linked LRU list of entries, most recently used first, with the bytes of its entries
+     */
+    private static class Segment {
+        private final Node head = new Node(null, null, 0, 0); //sentinel, head.next is the first entry and head.prev the last
+        private long bytes = 0;
+
+        private Segment() {
+            head.prev = head;
+            head.next = head;
+        }
+
+        private Node tail() {
+            return head.prev == head ? null : head.prev;
+        }
+
+        private void addFirst(Node node) {
+            node.segment = this;
+            node.prev = head;
+            node.next = head.next;
+            head.next.prev = node;
+            head.next = node;
+            bytes += node.weight;
+        }
+
+        private void unlink(Node node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            node.segment = null;
+            bytes -= node.weight;
+        }
+
+        private void moveToFront(Node node) {
+            unlink(node);
+            addFirst(node);
+        }
+
+        private void clear() {
+            head.prev = head;
+            head.next = head;
+            bytes = 0;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.JasonRoth.client;
+
+import com.JasonRoth.BatchCoordinator;
+import com.JasonRoth.ConsistencyLevel;
+import com.JasonRoth.ConsistentHashingManager;
+import com.JasonRoth.Messaging.KeyResult;
+import com.JasonRoth.Messaging.PeerConnectionPool;
+import com.JasonRoth.ReplicaReader;
+import com.JasonRoth.RingPlacement;
+import com.JasonRoth.ServerConfig;
+import com.JasonRoth.ZooKeeperManager;
+import com.JasonRoth.metrics.MetricsRegistry;
+import com.JasonRoth.storage.WriteBatch;
+import com.JasonRoth.util.ExecutorFactory;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A client that sends every request straight to the nodes that store its keys, so requests skip the hop through a
+ * coordinator node that the HTTP endpoints take for keys the node they land on doesn't own.
+ *
+ * The client keeps its own copy of the ring. It watches the live nodes and the ring's placement in ZooKeeper like
+ * the nodes do and rebuilds its {@link ConsistentHashingManager} when either changes. Requests go over the internode
+ * protocol through a {@link PeerConnectionPool}, a few pooled connections per node that pipeline any number of
+ * requests:
+ * - reads go to the key's replicas through a {@link ReplicaReader}, at ONE a single replica taken in turn
+ * - single-key writes are coalesced per primary by a {@link WriteBatcher} and sent as MULTI_WRITE_REQUESTs, which the
+ *   primary applies and replicates at the write's consistency level
+ * - multi-key reads and writes are scattered to each primary by a {@link BatchCoordinator}
+ * The client never stores keys itself. Its address isn't a node of the ring, so the reader and coordinator never take
+ * the paths that read or write a node's own storage.
+ *
+ * Every operation has an async variant returning a future and a blocking one that throws IOException on failure.
+ */
+public class DKVClient implements Closeable, Watcher {
+    private static final int DEFAULT_BATCH_MAX_ENTRIES = 256;
+    private static final long DEFAULT_LINGER_MICROS = 100;
+    private static final AtomicInteger CLIENT_IDS = new AtomicInteger();
+
+    private final String zooKeeperConnectString;
+    private final ConsistencyLevel readConsistency;
+    private final ConsistencyLevel writeConsistency;
+    private final String clientAddress; //sent to the nodes in place of a node address, never a node of the ring
+    private final Logger logger = Logger.getLogger(DKVClient.class.getName());
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final ZooKeeperManager zkManager = new ZooKeeperManager();
+    private final ConsistentHashingManager hashingManager = new ConsistentHashingManager(RingPlacement.LEGACY);
+    private final ExecutorService executor;
+    private final PeerConnectionPool connectionPool;
+    private final BatchCoordinator batchCoordinator;
+    private final ReplicaReader replicaReader;
+    private final WriteBatcher writeBatcher;
+
+    /**
+     * A client reading at ONE and writing at QUORUM, the defaults of the nodes
+     * @param zooKeeperConnectString the cluster's ZooKeeper, e.g. localhost:2181
+     */
+    public DKVClient(String zooKeeperConnectString) {
+        this(zooKeeperConnectString, ConsistencyLevel.ONE, ConsistencyLevel.QUORUM, DEFAULT_BATCH_MAX_ENTRIES, DEFAULT_LINGER_MICROS);
+    }
+
+    /**
+     * @param zooKeeperConnectString the cluster's ZooKeeper, e.g. localhost:2181
+     * @param readConsistency the level of reads that don't name one
+     * @param writeConsistency the level of writes that don't name one
+     * @param batchMaxEntries most single-key writes sent to a primary in one batch
+     * @param lingerMicros how long a single-key write waits for others to share its batch, 0 sends right away
+     */
+    public DKVClient(String zooKeeperConnectString, ConsistencyLevel readConsistency, ConsistencyLevel writeConsistency,
+                     int batchMaxEntries, long lingerMicros) {
+        this.zooKeeperConnectString = zooKeeperConnectString;
+        this.readConsistency = readConsistency;
+        this.writeConsistency = writeConsistency;
+        this.clientAddress = "client-" + ProcessHandle.current().pid() + "-" + CLIENT_IDS.getAndIncrement();
+        executor = ExecutorFactory.create(ServerConfig.ExecutionModel.CACHED, clientAddress, 0);
+        connectionPool = new PeerConnectionPool(clientAddress, executor, logger);
+        //the client owns no keys, so the storage, hinted handoff, rebalancing and near cache of a node are never used
+        batchCoordinator = new BatchCoordinator(clientAddress, null, hashingManager, connectionPool, null, null, null, executor, metrics, logger);
+        replicaReader = new ReplicaReader(clientAddress, null, hashingManager, connectionPool, null, null, metrics, logger);
+        writeBatcher = new WriteBatcher(batchCoordinator, hashingManager, batchMaxEntries, lingerMicros, logger);
+    }
+
+    /**
+     * Connects to ZooKeeper and builds the ring
+     * @throws IOException if the cluster can't be reached or has no ring yet
+     */
+    public void connect() throws IOException, InterruptedException {
+        zkManager.connect(zooKeeperConnectString);
+        try {
+            RingPlacement placement = zkManager.getRingPlacement(this);
+            hashingManager.updateNodes(zkManager.getLiveNodeWeights(this), placement);
+        } catch (KeeperException e) {
+            throw new IOException("Could not read the ring from ZooKeeper", e);
+        }
+        logger.log(Level.INFO, "Client {0} connected to a ring of {1} nodes", new Object[]{clientAddress, hashingManager.getWeights().size()});
+    }
+
+    /**
+     * @return a future completed with the value, or null if the key isn't stored
+     */
+    public CompletableFuture<String> getAsync(String key) {
+        return getAsync(key, readConsistency);
+    }
+
+    /**
+     * @param level how many replicas must answer
+     * @return a future completed with the value, or null if the key isn't stored
+     */
+    public CompletableFuture<String> getAsync(String key, ConsistencyLevel level) {
+        return replicaReader.read(key, level);
+    }
+
+    /**
+     * @return the value, or null if the key isn't stored
+     * @throws IOException if too few replicas answered
+     */
+    public String get(String key) throws IOException {
+        return await(getAsync(key));
+    }
+
+    /**
+     * Reads several keys from their primaries, one request per primary
+     * @return a future completed with one result per key in request order
+     */
+    public CompletableFuture<List<KeyResult>> getAllAsync(List<String> keys) {
+        return batchCoordinator.get(keys);
+    }
+
+    /**
+     * @return a future completed with the write's result, batched with the client's other writes to the same primary
+     */
+    public CompletableFuture<KeyResult> putAsync(String key, String value) {
+        return putAsync(key, value, writeConsistency);
+    }
+
+    /**
+     * @param level how many replicas must have the write before it succeeds
+     * @return a future completed with the write's result, batched with the client's other writes to the same primary
+     */
+    public CompletableFuture<KeyResult> putAsync(String key, String value, ConsistencyLevel level) {
+        if (value == null) {
+            throw new IllegalArgumentException("Values can't be null, use delete to remove key " + key);
+        }
+        return writeBatcher.add(key, value, level);
+    }
+
+    /**
+     * @throws IOException if the write failed
+     */
+    public void put(String key, String value) throws IOException {
+        KeyResult result = await(putAsync(key, value));
+        if (result.getStatus() == KeyResult.Status.FAILED) {
+            throw new IOException("Put of key " + key + " failed: " + result.getError());
+        }
+    }
+
+    /**
+     * @return a future completed with the delete's result, NOT_FOUND if the key wasn't stored
+     */
+    public CompletableFuture<KeyResult> deleteAsync(String key) {
+        return deleteAsync(key, writeConsistency);
+    }
+
+    /**
+     * @param level how many replicas must have the delete before it succeeds
+     * @return a future completed with the delete's result, NOT_FOUND if the key wasn't stored
+     */
+    public CompletableFuture<KeyResult> deleteAsync(String key, ConsistencyLevel level) {
+        return writeBatcher.add(key, null, level);
+    }
+
+    /**
+     * @return true if the key was deleted, false if it wasn't stored
+     * @throws IOException if the delete failed
+     */
+    public boolean delete(String key) throws IOException {
+        KeyResult result = await(deleteAsync(key));
+        if (result.getStatus() == KeyResult.Status.FAILED) {
+            throw new IOException("Delete of key " + key + " failed: " + result.getError());
+        }
+        return result.getStatus() == KeyResult.Status.SUCCESS;
+    }
+
+    /**
+     * Applies several writes through their primaries right away, one request per primary
+     * @return a future completed with one result per write in batch order
+     */
+    public CompletableFuture<List<KeyResult>> writeAsync(WriteBatch batch, ConsistencyLevel level) {
+        return batchCoordinator.write(batch, level);
+    }
+
+    /**
+     * @return the client's read and write counters and timers
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        writeBatcher.close();
+        connectionPool.close();
+        executor.shutdownNow();
+        try {
+            zkManager.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //ZooKeeper watch, the ring is rebuilt like the nodes rebuild theirs
+    @Override
+    public void process(WatchedEvent event) {
+        try {
+            if (event.getType() == Event.EventType.NodeChildrenChanged && event.getPath().equals(ZooKeeperManager.ZK_NODES_PATH)) {
+                Map<String, Double> previousWeights = hashingManager.getWeights();
+                Map<String, Double> liveWeights = zkManager.getLiveNodeWeights(this);
+                hashingManager.updateNodes(liveWeights);
+                //drop pooled connections to nodes that left the ring
+                for (String node : previousWeights.keySet()) {
+                    if (!liveWeights.containsKey(node)) {
+                        connectionPool.evict(node);
+                    }
+                }
+                logger.log(Level.INFO, "Client {0} sees ring membership {1}", new Object[]{clientAddress, liveWeights.keySet()});
+            } else if (event.getType() == Event.EventType.NodeDataChanged && event.getPath().equals(ZooKeeperManager.ZK_RING_PATH)) {
+                RingPlacement placement = zkManager.getRingPlacement(this);
+                hashingManager.updateNodes(hashingManager.getWeights(), placement);
+                logger.log(Level.INFO, "Client {0} sees ring placement {1}", new Object[]{clientAddress, placement});
+            }
+        } catch (KeeperException e) {
+            logger.log(Level.SEVERE, "Error updating the client's ring from ZooKeeper", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the cluster", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null ? e.getCause().getCause() : e.getCause();
+            throw cause instanceof IOException io ? io : new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.JasonRoth.client;
+
+import com.JasonRoth.BatchCoordinator;
+import com.JasonRoth.ConsistencyLevel;
+import com.JasonRoth.ConsistentHashingManager;
+import com.JasonRoth.Messaging.KeyResult;
+import com.JasonRoth.storage.WriteBatch;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces the single-key writes of a {@link DKVClient} into batches, like the nodes' ReplicationBatcher does for
+ * replication. Writes are queued by their primary and consistency level, and each queue is sent as one
+ * MULTI_WRITE_REQUEST to the primary once it reaches maxEntries or lingerMicros after its first write.
+ *
+ * At most one batch per queue is in flight, so the writes to a key are applied in the order they were made. Writes
+ * that arrive meanwhile wait for the batch to finish, so batches grow with load by themselves.
+ */
+class WriteBatcher implements Closeable {
+    private final BatchCoordinator batchCoordinator;
+    private final ConsistentHashingManager hashingManager;
+    private final int maxEntries;
+    private final long lingerNanos;
+    private final Logger logger;
+    private final ScheduledExecutorService lingerTimer;
+    private final Map<QueueKey, PrimaryQueue> queues = new ConcurrentHashMap<>();
+
+    /**
+     * @param batchCoordinator sends each batch to the primaries of its keys
+     * @param hashingManager the ring the writes are queued by
+     * @param maxEntries most writes in one batch
+     * @param lingerMicros how long a write waits for others to share its batch, 0 sends right away
+     * @param logger the logger of the client
+     */
+    WriteBatcher(BatchCoordinator batchCoordinator, ConsistentHashingManager hashingManager, int maxEntries, long lingerMicros, Logger logger) {
+        this.batchCoordinator = batchCoordinator;
+        this.hashingManager = hashingManager;
+        this.maxEntries = maxEntries;
+        this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+        this.logger = logger;
+        this.lingerTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "client-write-linger");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @param value the value to put, null to delete the key
+     * @return a future completed with the write's result once its batch is done, it never completes exceptionally
+     */
+    CompletableFuture<KeyResult> add(String key, String value, ConsistencyLevel level) {
+        String primary = hashingManager.getNodeForKey(key);
+        if (primary == null) {
+            return CompletableFuture.completedFuture(KeyResult.failed(key, "No nodes available"));
+        }
+        return queues.computeIfAbsent(new QueueKey(primary, level), PrimaryQueue::new).add(key, value);
+    }
+
+    @Override
+    public void close() {
+        lingerTimer.shutdownNow();
+        for (PrimaryQueue queue : queues.values()) {
+            queue.failPending();
+        }
+        queues.clear();
+    }
+
+    private record QueueKey(String primary, ConsistencyLevel level) {
+    }
+
+    /**
+     * A queued write, a null value is a delete
+     */
+    private record Entry(String key, String value, CompletableFuture<KeyResult> future) {
+    }
+
+    private class PrimaryQueue {
+        private final ConsistencyLevel level;
+        private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+        private boolean inFlight = false;
+        private boolean lingerScheduled = false;
+
+        private PrimaryQueue(QueueKey queueKey) {
+            this.level = queueKey.level();
+        }
+
+        private CompletableFuture<KeyResult> add(String key, String value) {
+            CompletableFuture<KeyResult> future = new CompletableFuture<>();
+            synchronized (this) {
+                pending.add(new Entry(key, value, future));
+                if (!inFlight) {
+                    if (lingerNanos == 0 || pending.size() >= maxEntries) {
+                        dispatch();
+                    } else if (!lingerScheduled) {
+                        lingerScheduled = true;
+                        try {
+                            lingerTimer.schedule(this::lingerExpired, lingerNanos, TimeUnit.NANOSECONDS);
+                        } catch (RejectedExecutionException e) {
+                            lingerScheduled = false;
+                            dispatch(); //closing, send what there is
+                        }
+                    }
+                }
+            }
+            return future;
+        }
+
+        private synchronized void lingerExpired() {
+            lingerScheduled = false;
+            if (!inFlight && !pending.isEmpty()) {
+                dispatch();
+            }
+        }
+
+        /**
+         * Takes the next batch off the queue and sends it, the caller holds the lock
+         */
+        private void dispatch() {
+            List<Entry> batch = new ArrayList<>();
+            WriteBatch writes = new WriteBatch();
+            while (!pending.isEmpty() && batch.size() < maxEntries) {
+                Entry entry = pending.poll();
+                batch.add(entry);
+                if (entry.value() == null) {
+                    writes.delete(entry.key());
+                } else {
+                    writes.put(entry.key(), entry.value());
+                }
+            }
+            inFlight = true;
+            //the coordinator groups by primary again, so a batch queued before a ring change still reaches the new one
+            batchCoordinator.write(writes, level).whenComplete((results, error) -> {
+                for (int i = 0; i < batch.size(); i++) {
+                    Entry entry = batch.get(i);
+                    entry.future().complete(error == null ? results.get(i) : KeyResult.failed(entry.key(), error.getMessage()));
+                }
+                if (error != null) {
+                    logger.log(Level.WARNING, "Failed to write batch of " + batch.size() + " writes", error);
+                }
+                batchDone();
+            });
+        }
+
+        private synchronized void batchDone() {
+            inFlight = false;
+            if (!pending.isEmpty()) {
+                //these writes already waited a round trip, send them without lingering
+                dispatch();
+            }
+        }
+
+        private void failPending() {
+            List<Entry> dropped;
+            synchronized (this) {
+                dropped = new ArrayList<>(pending);
+                pending.clear();
+            }
+            for (Entry entry : dropped) {
+                entry.future().complete(KeyResult.failed(entry.key(), "Client closed"));
+            }
+        }
+    }
+}
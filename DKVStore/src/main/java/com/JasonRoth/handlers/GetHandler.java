@@ -1,38 +1,33 @@
 package com.JasonRoth.handlers;
 
-import com.JasonRoth.ConsistentHashingManager;
+import com.JasonRoth.ConsistencyLevel;
 import com.JasonRoth.Messaging.KeyValue;
-import com.JasonRoth.Messaging.PeerMessageFramer;
-import com.JasonRoth.Messaging.PeerMessageHandler;
 import com.JasonRoth.Messaging.ResponseMessage;
+import com.JasonRoth.NearCacheService;
 import com.JasonRoth.util.HttpUtils;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Handles the get requests for the key value store
+ * Handles the get requests for the key value store. Reads are served by the key's replicas at the consistency level
+ * of the request, given with the consistency query parameter or the X-Consistency-Level header. Reads at ONE of keys
+ * this node holds no replica of are served from its near cache if it has one.
  */
 public class GetHandler implements HttpHandler {
     private final Logger logger;
-    private Map<String, String> dataStore;
-    private ConsistentHashingManager hashingManager;
-    private String selfAddressString;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private NearCacheService nearCache; //reads through the near cache, or from the replicas without one
+    private ConsistencyLevel defaultConsistency;
 
-    public GetHandler(String selfAddressString, Map <String, String> dataStore, ConsistentHashingManager hashingManager, Logger logger) {
-        this.selfAddressString = selfAddressString;
-        this.dataStore = dataStore;
-        this.hashingManager = hashingManager;
+    public GetHandler(NearCacheService nearCache, ConsistencyLevel defaultConsistency, Logger logger) {
+        this.nearCache = nearCache;
+        this.defaultConsistency = defaultConsistency;
         this.logger = logger;
 
     }
@@ -50,49 +45,41 @@ public class GetHandler implements HttpHandler {
     @Override
     public void handle(HttpExchange exchange) throws IOException {
         String requestMethod = exchange.getRequestMethod();
-        ObjectMapper mapper = new ObjectMapper();
         if (requestMethod.equals("GET")) {
             Map<String, String> params = HttpUtils.getQueryParams(exchange);
             //The Key is passed as a url parameter
             String key = params.get("key");
             if (key == null) {
                 ResponseMessage valueErr = new ResponseMessage("Failed", "NULL");
-                String message = mapper.writeValueAsString(valueErr);
+                byte[] message = mapper.writeValueAsBytes(valueErr);
                 HttpUtils.sendResponse(exchange, 404, message);
+                return;
             }
-            logger.log(Level.INFO, "Received GET request for key: " + key);
-            String ownerNode = hashingManager.getNodeForKey(key);
-            logger.log(Level.INFO, "Key Owner Node Address: " + ownerNode);
-            if(ownerNode.equals(selfAddressString)){
-                logger.log(Level.INFO, "Processing Delete request on this Node");
-                String value = dataStore.get(key);
-                if (value != null) {
+            ConsistencyLevel level;
+            try {
+                level = HttpUtils.getConsistencyLevel(exchange, params, defaultConsistency);
+            } catch (IllegalArgumentException e) {
+                HttpUtils.sendResponse(exchange, 400, "{\"error\":\"Consistency level must be ONE, QUORUM or ALL\"}");
+                return;
+            }
+            logger.log(Level.INFO, "Received GET request for key {0} at consistency {1}", new Object[]{key, level});
+
+            //the response is sent once enough replicas answered, without holding this thread meanwhile
+            ConsistencyLevel readLevel = level;
+            HttpUtils.sendWhenComplete(exchange, nearCache.read(key, level), (value, error) -> {
+                if (error != null) {
+                    logger.log(Level.WARNING, "Read of key " + key + " at " + readLevel + " failed", error);
+                    HttpUtils.sendResponse(exchange, 503, mapper.writeValueAsBytes(Map.of("error", "Read failed, " + error.getMessage())));
+                } else if (value != null) {
                     KeyValue kv = new KeyValue(key, value);
-                    String message = mapper.writeValueAsString(kv);
+                    byte[] message = mapper.writeValueAsBytes(kv);
                     HttpUtils.sendResponse(exchange, 200, message);
                 } else {
                     ResponseMessage valueErr = new ResponseMessage("Failed", key);
-                    String message = mapper.writeValueAsString(valueErr);
+                    byte[] message = mapper.writeValueAsBytes(valueErr);
                     HttpUtils.sendResponse(exchange, 404, message);
                 }
-            }else{
-                String[] ownerAddressString = ownerNode.split(":");
-                String ownerHost = ownerAddressString[0];
-                int ownerPort = Integer.parseInt(ownerAddressString[1]);
-                try(Socket socket = new Socket(ownerHost, ownerPort);
-                    DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                    DataInputStream dis = new DataInputStream(socket.getInputStream())){
-                    PeerMessageFramer.writeMessage(dos, PeerMessageHandler.MessageType.FORWARD_GET_REQUEST.getByteCode(), key.getBytes(StandardCharsets.UTF_8));
-                    logger.log(Level.INFO, "Forwarding GET request to " + ownerNode);
-                    //get the response back from the owner node
-                    PeerMessageFramer.FramedMessage response = PeerMessageFramer.readNextMessage(dis);
-                    PeerMessageHandler.MessageType type = PeerMessageHandler.MessageType.fromByteCode(response.messageType);
-                    logger.log(Level.INFO, "Received " + type + " from peer: " + ownerNode);
-
-                    String message = response.getPayloadAsString();
-                    HttpUtils.sendResponse(exchange, 200, message);
-                }
-            }
+            });
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,30 @@
+package com.JasonRoth.handlers;
+
+import com.JasonRoth.metrics.MetricsRegistry;
+import com.JasonRoth.util.HttpUtils;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+
+/**
+ * Serves this node's metrics as a JSON object
+ */
+public class MetricsHandler implements HttpHandler {
+    private final MetricsRegistry metrics;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    public MetricsHandler(MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (exchange.getRequestMethod().equals("GET")) {
+            HttpUtils.sendResponse(exchange, 200, mapper.writeValueAsBytes(metrics.snapshot()));
+        } else {
+            HttpUtils.sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.JasonRoth.handlers;
+
+import com.JasonRoth.BatchCoordinator;
+import com.JasonRoth.ConsistencyLevel;
+import com.JasonRoth.Messaging.KeyResult;
+import com.JasonRoth.Messaging.ResponseMessage;
+import com.JasonRoth.storage.WriteBatch;
+import com.JasonRoth.util.HttpUtils;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Handles requests that delete several keys at once. The body is a JSON array of keys, for example
+ * ["key1", "key2"], and the response holds a result per key in the same order. Keys that aren't stored are reported
+ * as not found, and the consistency level is given like for a single DELETE.
+ */
+public class MultiDeleteHandler implements HttpHandler {
+    private final BatchCoordinator batchCoordinator;
+    private final ConsistencyLevel defaultConsistency;
+    private final Logger logger;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    public MultiDeleteHandler(BatchCoordinator batchCoordinator, ConsistencyLevel defaultConsistency, Logger logger) {
+        this.batchCoordinator = batchCoordinator;
+        this.defaultConsistency = defaultConsistency;
+        this.logger = logger;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            HttpUtils.sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+            return;
+        }
+        List<String> keys;
+        try {
+            keys = mapper.readValue(HttpUtils.readRequestBytes(exchange), new TypeReference<List<String>>() {});
+        } catch (JsonProcessingException e) {
+            keys = null;
+        }
+        if (keys == null || keys.isEmpty() || keys.contains(null)) {
+            ResponseMessage error = new ResponseMessage("Failed - Request body must be a JSON array of keys", "NULL");
+            HttpUtils.sendResponse(exchange, 400, mapper.writeValueAsBytes(error));
+            return;
+        }
+        ConsistencyLevel level;
+        try {
+            level = HttpUtils.getConsistencyLevel(exchange, HttpUtils.getQueryParams(exchange), defaultConsistency);
+        } catch (IllegalArgumentException e) {
+            HttpUtils.sendResponse(exchange, 400, "{\"error\":\"Consistency level must be ONE, QUORUM or ALL\"}");
+            return;
+        }
+        logger.log(Level.INFO, "Received MDELETE request for {0} keys at consistency {1}", new Object[]{keys.size(), level});
+
+        WriteBatch batch = new WriteBatch();
+        for (String key : keys) {
+            batch.delete(key);
+        }
+        //the groups complete on peer callbacks, the response is sent once the last one has
+        HttpUtils.sendWhenComplete(exchange, batchCoordinator.write(batch, level), (results, error) -> {
+            if (error != null) {
+                HttpUtils.sendResponse(exchange, 500, mapper.writeValueAsBytes(Map.of("error", error.getMessage())));
+            } else {
+                HttpUtils.sendResponse(exchange, KeyResult.anyFailed(results) ? 207 : 200, mapper.writeValueAsBytes(results));
+            }
+        });
+    }
+}
@@ -0,0 +1,61 @@
+package com.JasonRoth.handlers;
+
+import com.JasonRoth.BatchCoordinator;
+import com.JasonRoth.Messaging.KeyResult;
+import com.JasonRoth.Messaging.ResponseMessage;
+import com.JasonRoth.util.HttpUtils;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Handles requests that read several keys at once. The body is a JSON array of keys, for example
+ * ["key1", "key2"], and the response holds a result per key in the same order.
+ */
+public class MultiGetHandler implements HttpHandler {
+    private final BatchCoordinator batchCoordinator;
+    private final Logger logger;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    public MultiGetHandler(BatchCoordinator batchCoordinator, Logger logger) {
+        this.batchCoordinator = batchCoordinator;
+        this.logger = logger;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            HttpUtils.sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+            return;
+        }
+        List<String> keys;
+        try {
+            keys = mapper.readValue(HttpUtils.readRequestBytes(exchange), new TypeReference<List<String>>() {});
+        } catch (JsonProcessingException e) {
+            keys = null;
+        }
+        if (keys == null || keys.isEmpty() || keys.contains(null)) {
+            ResponseMessage error = new ResponseMessage("Failed - Request body must be a JSON array of keys", "NULL");
+            HttpUtils.sendResponse(exchange, 400, mapper.writeValueAsBytes(error));
+            return;
+        }
+        logger.log(Level.INFO, "Received MGET request for {0} keys", keys.size());
+
+        //the groups complete on peer callbacks, the response is sent once the last one has
+        HttpUtils.sendWhenComplete(exchange, batchCoordinator.get(keys), (results, error) -> {
+            if (error != null) {
+                HttpUtils.sendResponse(exchange, 500, mapper.writeValueAsBytes(Map.of("error", error.getMessage())));
+            } else {
+                HttpUtils.sendResponse(exchange, KeyResult.anyFailed(results) ? 207 : 200, mapper.writeValueAsBytes(results));
+            }
+        });
+    }
+}
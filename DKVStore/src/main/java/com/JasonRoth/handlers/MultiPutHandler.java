@@ -0,0 +1,80 @@
+package com.JasonRoth.handlers;
+
+import com.JasonRoth.BatchCoordinator;
+import com.JasonRoth.ConsistencyLevel;
+import com.JasonRoth.Messaging.KeyResult;
+import com.JasonRoth.Messaging.KeyValue;
+import com.JasonRoth.Messaging.ResponseMessage;
+import com.JasonRoth.storage.WriteBatch;
+import com.JasonRoth.util.HttpUtils;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Handles requests that write several key value pairs at once. The body is a JSON array of pairs, for example
+ * [{"key": "key1", "value": "value1"}, {"key": "key2", "value": "value2"}], and the response holds a result per
+ * pair in the same order. Pairs for the same key are applied in order, and the consistency level is given like
+ * for a single PUT.
+ */
+public class MultiPutHandler implements HttpHandler {
+    private final BatchCoordinator batchCoordinator;
+    private final ConsistencyLevel defaultConsistency;
+    private final Logger logger;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    public MultiPutHandler(BatchCoordinator batchCoordinator, ConsistencyLevel defaultConsistency, Logger logger) {
+        this.batchCoordinator = batchCoordinator;
+        this.defaultConsistency = defaultConsistency;
+        this.logger = logger;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (!exchange.getRequestMethod().equals("POST") || !"application/json".equals(contentType)) {
+            HttpUtils.sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+            return;
+        }
+        List<KeyValue> pairs;
+        try {
+            pairs = mapper.readValue(HttpUtils.readRequestBytes(exchange), new TypeReference<List<KeyValue>>() {});
+        } catch (JsonProcessingException e) {
+            pairs = null;
+        }
+        if (pairs == null || pairs.isEmpty() || pairs.stream().anyMatch(kv -> kv == null || kv.getKey() == null || kv.getValue() == null)) {
+            ResponseMessage error = new ResponseMessage("Failed - Request body must be a JSON array of key value pairs", "NULL");
+            HttpUtils.sendResponse(exchange, 400, mapper.writeValueAsBytes(error));
+            return;
+        }
+        ConsistencyLevel level;
+        try {
+            level = HttpUtils.getConsistencyLevel(exchange, HttpUtils.getQueryParams(exchange), defaultConsistency);
+        } catch (IllegalArgumentException e) {
+            HttpUtils.sendResponse(exchange, 400, "{\"error\":\"Consistency level must be ONE, QUORUM or ALL\"}");
+            return;
+        }
+        logger.log(Level.INFO, "Received MPUT request for {0} keys at consistency {1}", new Object[]{pairs.size(), level});
+
+        WriteBatch batch = new WriteBatch();
+        for (KeyValue kv : pairs) {
+            batch.put(kv.getKey(), kv.getValue());
+        }
+        //the groups complete on peer callbacks, the response is sent once the last one has
+        HttpUtils.sendWhenComplete(exchange, batchCoordinator.write(batch, level), (results, error) -> {
+            if (error != null) {
+                HttpUtils.sendResponse(exchange, 500, mapper.writeValueAsBytes(Map.of("error", error.getMessage())));
+            } else {
+                HttpUtils.sendResponse(exchange, KeyResult.anyFailed(results) ? 207 : 200, mapper.writeValueAsBytes(results));
+            }
+        });
+    }
+}
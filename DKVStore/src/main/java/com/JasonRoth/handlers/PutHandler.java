@@ -1,47 +1,36 @@
 package com.JasonRoth.handlers;
 
-import com.JasonRoth.ConsistentHashingManager;
-import com.JasonRoth.Messaging.PeerMessageFramer;
-import com.JasonRoth.Messaging.PeerMessageHandler;
-import com.JasonRoth.util.HttpUtils;
+import com.JasonRoth.BatchCoordinator;
+import com.JasonRoth.ConsistencyLevel;
+import com.JasonRoth.Messaging.KeyResult;
 import com.JasonRoth.Messaging.KeyValue;
 import com.JasonRoth.Messaging.ResponseMessage;
-import com.fasterxml.jackson.databind.JsonMappingException;
+import com.JasonRoth.storage.WriteBatch;
+import com.JasonRoth.util.HttpUtils;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
-import java.util.List;
 import java.util.Map;
-import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 /**
- * Handles put requests for the key value store
+ * Handles put requests for the key value store. The write is applied by the key's primary and acknowledged at the
+ * request's consistency level, given with the consistency query parameter or the X-Consistency-Level header. A ttl
+ * query parameter or X-TTL header makes the key expire that many seconds after the write.
  */
 public class PutHandler implements HttpHandler {
-    private Map<String, String> dataStore;
-    private ConsistentHashingManager hashingManager;
     private final Logger logger;
-    private String selfAddressString;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private BatchCoordinator batchCoordinator; //runs the write on the key's primary as a batch of one
+    private ConsistencyLevel defaultConsistency;
 
-    private static final int REPLICATION_FACTOR = 3;
-    private static final int QUORUM = (REPLICATION_FACTOR / 2) + 1;
-    private static final ExecutorService replicationExecutor = Executors.newCachedThreadPool();
-
-    public PutHandler(String selfAddressString, Map<String, String> dataStore, ConsistentHashingManager hashingManager, Logger logger) {
-        this.selfAddressString = selfAddressString;
-        this.dataStore = dataStore;
-        this.hashingManager = hashingManager;
+    public PutHandler(BatchCoordinator batchCoordinator, ConsistencyLevel defaultConsistency, Logger logger) {
+        this.batchCoordinator = batchCoordinator;
+        this.defaultConsistency = defaultConsistency;
         this.logger = logger;
     }
 
@@ -69,132 +58,62 @@ public class PutHandler implements HttpHandler {
              * }
              *
              */
-            ObjectMapper mapper = new ObjectMapper();
 
-            String requestBody = HttpUtils.readRequestBody(exchange);
+            byte[] requestBody = HttpUtils.readRequestBytes(exchange);
 
-            if(requestBody.isEmpty()){ //send error since no request body was provided
+            if(requestBody.length == 0){ //send error since no request body was provided
                 ResponseMessage error = new ResponseMessage("Failed - Request body is empty", "NULL");
-                String message = mapper.writeValueAsString(error);
+                byte[] message = mapper.writeValueAsBytes(error);
                 HttpUtils.sendResponse(exchange, 404, message);
+                return;
             }
             KeyValue kv = null;
             try{
                 kv = mapper.readValue(requestBody, KeyValue.class);
-            }catch (JsonMappingException jme){
+            }catch (JsonProcessingException jpe){
                 ResponseMessage error = new ResponseMessage("Failed to parse request body", "NULL");
-                String message = mapper.writeValueAsString(error);
+                byte[] message = mapper.writeValueAsBytes(error);
                 HttpUtils.sendResponse(exchange, 500, message);
+                return;
             }
-            logger.log(Level.INFO, "Received PUT request for key: " + kv.getKey());
-
-            List<String> responsibleNodes = hashingManager.getNodesForKey(kv.getKey(), REPLICATION_FACTOR);
-            if (responsibleNodes.size() < QUORUM) {
-                HttpUtils.sendResponse(exchange, 503, "{\"error\":\"Not enough nodes available to meet quorum\"}");
+            Map<String, String> params = HttpUtils.getQueryParams(exchange);
+            ConsistencyLevel level;
+            try{
+                level = HttpUtils.getConsistencyLevel(exchange, params, defaultConsistency);
+            }catch (IllegalArgumentException iae){
+                HttpUtils.sendResponse(exchange, 400, "{\"error\":\"Consistency level must be ONE, QUORUM or ALL\"}");
                 return;
             }
-
-            String ownerNode = responsibleNodes.get(0);
-
-            logger.log(Level.INFO, "Key Primary Node Address: " + ownerNode);
-            //Using Partition Manager
-            if(ownerNode.equals(selfAddressString)){
-                //The Key belongs to this node partition
-                logger.log(Level.INFO, "This node is PRIMARY for key: {0}", kv.getKey());
-                // --- QUORUM WRITE LOGIC ---
-                final CountDownLatch latch = new CountDownLatch(QUORUM -1);
-                final AtomicInteger successCount = new AtomicInteger(1); // Count self as one success
-                //Write locally
-                dataStore.put(kv.getKey(), kv.getValue());
-
-                //Asynchronously replicate to followers
-                List<String> replicas = responsibleNodes.stream().filter(n -> !n.equals(selfAddressString)).toList();
-                for(String replicaAddress : replicas){
-                    CompletableFuture.runAsync(() -> {
-                       if(replicateToNode(replicaAddress, PeerMessageHandler.MessageType.REPLICATE_PUT_REQUEST, requestBody)){
-                            successCount.incrementAndGet();
-                       }
-                       latch.countDown();
-                    }, replicationExecutor);
-                }
-
-                //wait for qurom of acks or timeout
-                try{
-                    if(latch.await(5, TimeUnit.SECONDS)){
-                        if(successCount.get() >= QUORUM){
-                            logger.log(Level.INFO, "Quorum of {0} ACKs received for key {1}. Write successful.", new Object[]{QUORUM, kv.getKey()});
-                            ResponseMessage success = new ResponseMessage("Success", kv.getKey());
-                            String message = mapper.writeValueAsString(success);
-                            HttpUtils.sendResponse(exchange, 200, message);
-                        }else{
-                            logger.log(Level.WARNING, "Write failed for key {0}, Quorum not met. Successes: {1}", new Object[]{kv.getKey(), successCount.get()});
-                            //TODO trigger a rollback
-                            HttpUtils.sendResponse(exchange, 500, "{\"error\":\"Write failed, quorum not met\"}");
-                        }
-                    }else{
-                        //timeout occurred
-                        logger.log(Level.WARNING, "Write timed out for key {0}. Quorum not met.", kv.getKey());
-                        //TODO trigger a rollback
-                        HttpUtils.sendResponse(exchange, 504, "{\"error\":\"Write timed out, quorum not met\"}");
-                    }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    logger.log(Level.SEVERE, "Quorum wait interrupted for key " + kv.getKey(), e);
-                    HttpUtils.sendResponse(exchange, 500, "{\"error\":\"Server error during write operation\"}");
-                }
-                // --- END QUORUM WRITE LOGIC ---
-            }else{
-                String[] ownerAddressString = ownerNode.split(":");
-                String ownerHost = ownerAddressString[0];
-                int ownerPort = Integer.parseInt(ownerAddressString[1]);
-                try(Socket socket = new Socket(ownerHost, ownerPort);
-                    DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                    DataInputStream dis = new DataInputStream(socket.getInputStream())){
-
-                    logger.log(Level.INFO, "Forwarding PUT request to " + ownerNode);
-                    PeerMessageFramer.writeMessage(dos, PeerMessageHandler.MessageType.FORWARD_PUT_REQUEST.getByteCode(), requestBody.getBytes(StandardCharsets.UTF_8));
-
-                    //get the response back from the owner node
-                    PeerMessageFramer.FramedMessage response = PeerMessageFramer.readNextMessage(dis);
-                    PeerMessageHandler.MessageType type = PeerMessageHandler.MessageType.fromByteCode(response.messageType);
-                    logger.log(Level.INFO, "Received " + type + " from peer: " + ownerNode);
-                    ResponseMessage responseMessage = new ResponseMessage(response.getPayloadAsString(), kv.getKey());
-                    String message = mapper.writeValueAsString(responseMessage);
-                    HttpUtils.sendResponse(exchange, 200, message);
-                }
+            long ttlMillis;
+            try{
+                ttlMillis = HttpUtils.getTtlMillis(exchange, params);
+            }catch (IllegalArgumentException iae){
+                HttpUtils.sendResponse(exchange, 400, "{\"error\":\"ttl must be a positive number of seconds\"}");
+                return;
             }
-        }
-    }
+            logger.log(Level.INFO, "Received PUT request for key {0} at consistency {1}", new Object[]{kv.getKey(), level});
 
-    /**
-     * Helper method now returns a boolean indicating success.
-     */
-    private boolean replicateToNode(String nodeAddress, PeerMessageHandler.MessageType messageType, String payload) {
-        try {
-            String[] parts = nodeAddress.split(":");
-            String host = parts[0];
-            int port = Integer.parseInt(parts[1]) + 2;
-
-            // Use a short timeout for replication attempts
-            try (Socket socket = new Socket()) {
-                socket.connect(new java.net.InetSocketAddress(host, port), 2000); // 2-second connect timeout
-                socket.setSoTimeout(3000); // 3-second read timeout
-
-                DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                DataInputStream dis = new DataInputStream(socket.getInputStream());
-
-                PeerMessageFramer.writeMessage(dos, messageType.getByteCode(), payload.getBytes(StandardCharsets.UTF_8));
+            if(!batchCoordinator.hasEnoughReplicas(kv.getKey(), level)){
+                HttpUtils.sendResponse(exchange, 503, "{\"error\":\"Not enough nodes available to meet " + level + "\"}");
+                return;
+            }
 
-                // Wait for the REPLICATION_ACK from the follower
-                PeerMessageFramer.FramedMessage response = PeerMessageFramer.readNextMessage(dis);
-                if (response.messageType == PeerMessageHandler.MessageType.REPLICATION_ACK.getByteCode()) {
-                    logger.log(Level.INFO, "Successfully replicated {0} to {1}", new Object[]{messageType, nodeAddress});
-                    return true;
+            //the primary writes locally and waits for as many replica acks as the level needs, which is none at ONE.
+            //This thread returns right away, the response is sent by whichever ack meets the level
+            String key = kv.getKey();
+            HttpUtils.sendWhenComplete(exchange, batchCoordinator.write(new WriteBatch().put(key, kv.getValue()), level, ttlMillis), (results, error) -> {
+                KeyResult result = error == null ? results.get(0) : KeyResult.failed(key, error.getMessage());
+                if(result.getStatus() == KeyResult.Status.SUCCESS){
+                    logger.log(Level.INFO, "Write of key {0} met {1}", new Object[]{key, level});
+                    ResponseMessage success = new ResponseMessage("Success", key);
+                    byte[] message = mapper.writeValueAsBytes(success);
+                    HttpUtils.sendResponse(exchange, 200, message);
+                }else{
+                    logger.log(Level.WARNING, "Write failed for key {0}: {1}", new Object[]{key, result.getError()});
+                    //TODO trigger a rollback
+                    HttpUtils.sendResponse(exchange, 500, mapper.writeValueAsBytes(Map.of("error", result.getError())));
                 }
-            }
-        } catch (IOException e) {
-            logger.log(Level.SEVERE, "Failed to replicate to node " + nodeAddress, e);
+            });
         }
-        return false;
     }
 }
@@ -0,0 +1,56 @@
+package com.JasonRoth.handlers;
+
+import com.JasonRoth.ConsistentHashingManager;
+import com.JasonRoth.RingPlacement;
+import com.JasonRoth.util.HttpUtils;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serves the ring as this node sees it as a JSON object: its placement, and the weight, virtual nodes and share of
+ * the token space every node is primary for
+ */
+public class RingHandler implements HttpHandler {
+    private final ConsistentHashingManager hashingManager;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    public RingHandler(ConsistentHashingManager hashingManager) {
+        this.hashingManager = hashingManager;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (exchange.getRequestMethod().equals("GET")) {
+            HttpUtils.sendResponse(exchange, 200, mapper.writeValueAsBytes(report()));
+        } else {
+            HttpUtils.sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+        }
+    }
+
+    private Map<String, Object> report() {
+        //read once, a ring change between the calls only mixes two consecutive rings
+        RingPlacement placement = hashingManager.getPlacement();
+        Map<String, Double> weights = hashingManager.getWeights();
+        Map<String, Double> ownership = hashingManager.getOwnership();
+        Map<String, Object> nodes = new LinkedHashMap<>();
+        for (Map.Entry<String, Double> node : ownership.entrySet()) {
+            double weight = weights.getOrDefault(node.getKey(), 1.0);
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("weight", weight);
+            entry.put("virtualNodes", placement.virtualNodes(weight));
+            entry.put("ownership", node.getValue());
+            nodes.put(node.getKey(), entry);
+        }
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("hash", placement.hashFunction().name());
+        report.put("virtualNodes", placement.virtualNodes());
+        report.put("loadBound", placement.loadBound());
+        report.put("nodes", nodes);
+        return report;
+    }
+}
@@ -0,0 +1,107 @@
+package com.JasonRoth.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Named counters, timers and gauges of a node, served as JSON by the /metrics endpoint. Metrics are created on first
+ * use, so components just ask the registry for the metric they want to update.
+ */
+public class MetricsRegistry {
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * A count that only goes up
+     */
+    public static class Counter {
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long amount) {
+            count.add(amount);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+    }
+
+    /**
+     * Counts how often something happened and how long it took
+     */
+    public static class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        public void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        /**
+         * Records the time since the given start
+         * @param startNanos a value of System.nanoTime() taken when the operation started
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        private Map<String, Object> snapshot() {
+            long n = count.sum();
+            long total = totalNanos.sum();
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("count", n);
+            values.put("totalMillis", toMillis(total));
+            values.put("meanMillis", n == 0 ? 0.0 : toMillis(total / n));
+            values.put("maxMillis", toMillis(maxNanos.get()));
+            return values;
+        }
+
+        private static double toMillis(long nanos) {
+            return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    public Timer timer(String name) {
+        return timers.computeIfAbsent(name, n -> new Timer());
+    }
+
+    /**
+     * Registers a value that is read whenever the metrics are served, replacing any gauge of the same name
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * @return every metric by name, sorted
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.get()));
+        timers.forEach((name, timer) -> values.put(name, timer.snapshot()));
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return values;
+    }
+}
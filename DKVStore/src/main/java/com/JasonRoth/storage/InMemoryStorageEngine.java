@@ -0,0 +1,42 @@
+package com.JasonRoth.storage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Keeps every key value pair on the heap in a ConcurrentHashMap. Fast, but limited to what fits in the heap.
+ */
+public class InMemoryStorageEngine implements StorageEngine {
+    private final Map<String, String> dataStore = new ConcurrentHashMap<>();
+
+    @Override
+    public String get(String key) {
+        return dataStore.get(key);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        dataStore.put(key, value);
+    }
+
+    @Override
+    public void delete(String key) {
+        dataStore.remove(key);
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return dataStore.containsKey(key);
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        dataStore.forEach(action);
+    }
+
+    @Override
+    public void close() {
+        dataStore.clear();
+    }
+}
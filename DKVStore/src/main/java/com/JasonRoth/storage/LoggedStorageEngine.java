@@ -0,0 +1,168 @@
+package com.JasonRoth.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Write path of a node. Every PUT and DELETE is appended to the {@link WriteAheadLog} and then applied to the
+ * underlying engine, and only returns once the log record is durable. The engine reserves the space of a PUT before it
+ * is logged, so a write the engine has no room for fails without leaving a record that can't be replayed. Writers hold
+ * a shared lock from the append until the write is applied, so {@link #checkpoint()} can cut the log at a point where
+ * every earlier record is already visible in the engine.
+ */
+public class LoggedStorageEngine implements StorageEngine {
+    private final StorageEngine engine;
+    private final WriteAheadLog writeAheadLog;
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+
+    /**
+     * @param engine the engine writes are applied to
+     * @param writeAheadLog the log writes are recorded in first
+     */
+    public LoggedStorageEngine(StorageEngine engine, WriteAheadLog writeAheadLog) {
+        this.engine = engine;
+        this.writeAheadLog = writeAheadLog;
+    }
+
+    @Override
+    public String get(String key) {
+        return engine.get(key);
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return engine.containsKey(key);
+    }
+
+    /**
+     * @throws UncheckedIOException if the engine is full or the write could not be logged, the engine is left unchanged
+     */
+    @Override
+    public void put(String key, String value) {
+        long lsn;
+        checkpointLock.readLock().lock();
+        try {
+            lsn = logAndPut(key, value);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        sync(lsn);
+    }
+
+    /**
+     * @throws UncheckedIOException if the delete could not be logged, the engine is left unchanged
+     */
+    @Override
+    public void delete(String key) {
+        long lsn;
+        checkpointLock.readLock().lock();
+        try {
+            lsn = writeAheadLog.appendDelete(key);
+            engine.delete(key);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to log DELETE for key " + key, e);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        sync(lsn);
+    }
+
+    /**
+     * Logs and applies every write of the batch, then waits for the log once for all of them
+     * @throws PartialWriteException if the engine is full or a write could not be logged, the writes before it stay
+     * applied and are synced
+     * @throws UncheckedIOException if the log could not be synced
+     */
+    @Override
+    public void write(WriteBatch batch) {
+        long lsn = 0;
+        int applied = 0;
+        UncheckedIOException failure = null;
+        checkpointLock.readLock().lock();
+        try {
+            for (WriteBatch.Operation operation : batch.getOperations()) {
+                if (operation.isDelete()) {
+                    lsn = writeAheadLog.appendDelete(operation.key());
+                    engine.delete(operation.key());
+                } else {
+                    lsn = logAndPut(operation.key(), operation.value());
+                }
+                applied++;
+            }
+        } catch (IOException e) {
+            failure = new UncheckedIOException("Failed to log write batch", e);
+        } catch (UncheckedIOException e) {
+            failure = e;
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        if (lsn > 0) {
+            sync(lsn);
+        }
+        if (failure != null) {
+            throw new PartialWriteException(applied, failure.getCause());
+        }
+    }
+
+    /**
+     * Logs and applies a PUT, the caller holds the checkpoint lock
+     * @return the sequence number of its log record
+     */
+    private long logAndPut(String key, String value) {
+        //fails before anything is logged if the engine has no room for the value
+        long reservation = engine.reserve(key, value);
+        long lsn;
+        try {
+            lsn = writeAheadLog.appendPut(key, value);
+        } catch (IOException e) {
+            engine.release(key, value, reservation);
+            throw new UncheckedIOException("Failed to log PUT for key " + key, e);
+        }
+        engine.put(key, value, reservation);
+        return lsn;
+    }
+
+    private void sync(long lsn) {
+        try {
+            writeAheadLog.sync(lsn);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to sync the write-ahead log", e);
+        }
+    }
+
+    /**
+     * Rolls the log over to a new segment while no write is between its append and its apply
+     * @return the sequence number of the last record before the cut, every write up to it is visible in the engine
+     * @throws IOException if the log can't be rolled over
+     */
+    public long checkpoint() throws IOException {
+        checkpointLock.writeLock().lock();
+        try {
+            return writeAheadLog.rollover();
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        engine.forEach(action);
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return engine.isPersistent();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        engine.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        engine.close();
+    }
+}
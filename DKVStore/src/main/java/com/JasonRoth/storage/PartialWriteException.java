@@ -0,0 +1,30 @@
+package com.JasonRoth.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Thrown by {@link StorageEngine#write(WriteBatch)} when a write of a batch fails after the writes before it were
+ * applied. Those writes stay applied, and are as durable as a write that succeeded.
+ */
+public class PartialWriteException extends UncheckedIOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int applied;
+
+    /**
+     * @param applied how many writes at the start of the batch were applied
+     * @param cause why the next write failed
+     */
+    public PartialWriteException(int applied, IOException cause) {
+        super("Applied " + applied + " writes of the batch before failing", cause);
+        this.applied = applied;
+    }
+
+    /**
+     * @return how many writes at the start of the batch were applied
+     */
+    public int getApplied() {
+        return applied;
+    }
+}
@@ -0,0 +1,107 @@
+package com.JasonRoth.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.function.BiConsumer;
+
+/**
+ * Local storage of a node's key value pairs. Implementations must be thread safe, every HTTP handler and peer
+ * request thread of a node shares one engine.
+ */
+public interface StorageEngine extends Closeable {
+
+    /**
+     * @param key the key to look up
+     * @return the value stored for the key, or null if there is none
+     */
+    String get(String key);
+
+    /**
+     * Stores a value, replacing any existing value for the key
+     * @param key the key to write
+     * @param value the value to write
+     */
+    void put(String key, String value);
+
+    /**
+     * Takes the space a PUT of the value needs ahead of applying it, so a write the engine has no room for can be
+     * refused before it is logged rather than after. The reservation must be handed to
+     * {@link #put(String, String, long)} or to {@link #release}. Engines without a bound on their space reserve
+     * nothing.
+     * @param key the key that will be written
+     * @param value the value that will be written
+     * @return the reservation, 0 if nothing was reserved
+     * @throws java.io.UncheckedIOException if the engine is full
+     */
+    default long reserve(String key, String value) {
+        return 0;
+    }
+
+    /**
+     * Stores a value in the space reserved for it, see {@link #reserve}
+     * @param key the key the space was reserved for
+     * @param value the value the space was reserved for
+     * @param reservation what {@link #reserve} returned
+     */
+    default void put(String key, String value, long reservation) {
+        put(key, value);
+    }
+
+    /**
+     * Gives back the space of a reservation whose write was abandoned
+     * @param key the key the space was reserved for
+     * @param value the value the space was reserved for
+     * @param reservation what {@link #reserve} returned
+     */
+    default void release(String key, String value, long reservation) {
+    }
+
+    /**
+     * Removes a key, does nothing if the key isn't stored
+     * @param key the key to remove
+     */
+    void delete(String key);
+
+    /**
+     * Applies the writes of a batch in order
+     * @param batch the writes to apply
+     */
+    default void write(WriteBatch batch) {
+        for (WriteBatch.Operation operation : batch.getOperations()) {
+            if (operation.isDelete()) {
+                delete(operation.key());
+            } else {
+                put(operation.key(), operation.value());
+            }
+        }
+    }
+
+    /**
+     * @param key the key to look up
+     * @return true if a value is stored for the key
+     */
+    default boolean containsKey(String key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Visits every stored pair without blocking writers. The iteration is weakly consistent, writes made while it
+     * runs may or may not be seen, and a pair may be visited more than once.
+     * @param action called with each key and value
+     */
+    void forEach(BiConsumer<String, String> action);
+
+    /**
+     * @return true if the engine keeps its data on disk by itself, so it needs no snapshots to survive a restart
+     */
+    default boolean isPersistent() {
+        return false;
+    }
+
+    /**
+     * Makes every write applied so far durable, a no-op for engines that aren't persistent
+     * @throws IOException if the data can't be written
+     */
+    default void flush() throws IOException {
+    }
+}
@@ -0,0 +1,30 @@
+package com.JasonRoth.storage;
+
+import com.JasonRoth.ServerConfig;
+import com.JasonRoth.storage.lsm.LsmStorageEngine;
+import com.JasonRoth.storage.offheap.OffHeapStorageEngine;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+
+/**
+ * Creates a node's {@link StorageEngine} according to the configured {@link ServerConfig.StorageEngineType}
+ */
+public class StorageEngineFactory {
+
+    /**
+     * @param config the node's config
+     * @param nodeDirectory the node's data directory, engines that keep files use a subdirectory of it
+     * @param logger the logger of this node
+     * @return a new engine, the caller is responsible for closing it
+     * @throws IOException if the engine's files can't be opened
+     */
+    public static StorageEngine create(ServerConfig config, Path nodeDirectory, Logger logger) throws IOException {
+        return switch (config.getStorageEngineType()) {
+            case MEMORY -> new InMemoryStorageEngine();
+            case LSM -> new LsmStorageEngine(nodeDirectory.resolve("lsm"), config.getLsmMemtableBytes(), logger);
+            case OFF_HEAP -> new OffHeapStorageEngine(config.getOffHeapMaxBytes());
+        };
+    }
+}
@@ -0,0 +1,389 @@
+package com.JasonRoth.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of every PUT and DELETE applied to a node's data store, replayed on startup to rebuild it.
+ * Records are framed as:
+ * 4 bytes - length of the record body
+ * 4 bytes - CRC32 of the record body
+ * body - 8 byte log sequence number, 1 byte operation, 4 byte key length, key, 4 byte value length, value
+ * A torn record at the end of the log, left behind by a crash in the middle of a write, is discarded on replay. The
+ * segments before the last were forced when they were rolled over, so a bad record in one of them is real corruption
+ * and replay fails rather than skip the rest of it and apply later writes over the gap.
+ *
+ * The log is split into segment files named after the first sequence number they may hold. A checkpoint rolls over
+ * to a new segment, once the data up to that point is safely stored elsewhere the older segments are deleted.
+ */
+public class WriteAheadLog implements Closeable {
+
+    /**
+     * When an append is considered durable
+     */
+    public enum DurabilityMode {
+        PER_OP, //every append is forced to disk before it returns
+        BATCHED, //group commit, appends that arrive while a force is in progress share the next force
+        PERIODIC //appends return immediately, the log is forced in the background every sync interval
+    }
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String LEGACY_LOG_FILE_NAME = "wal.log"; //single file log written before segments existed
+
+    private final Path directory;
+    private final DurabilityMode durabilityMode;
+    private final Logger logger;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition syncFinished = syncLock.newCondition();
+    private final ScheduledExecutorService periodicSyncExecutor;
+
+    private volatile FileChannel channel; //current segment, replaced by rollover while holding both locks
+    private Path segmentFile; //guarded by writeLock
+    private long nextLsn = 1; //guarded by writeLock
+    private volatile long writtenLsn = 0; //highest lsn written to the channel
+    private long syncedLsn = 0; //highest lsn forced to disk, guarded by syncLock
+    private boolean syncInProgress = false; //guarded by syncLock
+
+    /**
+     * Opens the log in the given directory, appends are only accepted once {@link #replay} has run
+     * @param directory the node's data directory
+     * @param durabilityMode when appends are forced to disk
+     * @param syncIntervalMillis how often the log is forced in PERIODIC mode
+     * @param logger the logger of this node
+     * @throws IOException if the log can't be opened
+     */
+    public WriteAheadLog(Path directory, DurabilityMode durabilityMode, long syncIntervalMillis, Logger logger) throws IOException {
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.durabilityMode = durabilityMode;
+        this.logger = logger;
+        if (durabilityMode == DurabilityMode.PERIODIC) {
+            periodicSyncExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "wal-sync");
+                t.setDaemon(true);
+                return t;
+            });
+            periodicSyncExecutor.scheduleWithFixedDelay(this::periodicSync, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            periodicSyncExecutor = null;
+        }
+    }
+
+    /**
+     * Appends a PUT record. The record is written but not necessarily durable, see {@link #sync(long)}.
+     * @param key the key being written
+     * @param value the value being written
+     * @return the sequence number of the record
+     * @throws IOException if the record could not be written
+     */
+    public long appendPut(String key, String value) throws IOException {
+        return append(OP_PUT, key, value);
+    }
+
+    /**
+     * Appends a DELETE record. The record is written but not necessarily durable, see {@link #sync(long)}.
+     * @param key the key being deleted
+     * @return the sequence number of the record
+     * @throws IOException if the record could not be written
+     */
+    public long appendDelete(String key) throws IOException {
+        return append(OP_DELETE, key, null);
+    }
+
+    /**
+     * Waits until the record is durable according to the durability mode
+     * @param lsn the sequence number returned by the append
+     * @throws IOException if the log could not be forced to disk
+     */
+    public void sync(long lsn) throws IOException {
+        if (durabilityMode == DurabilityMode.BATCHED) {
+            awaitDurable(lsn);
+        }
+    }
+
+    /**
+     * Re-applies the records of every segment, oldest first. Must be called before the node starts taking writes.
+     * @param dataStore the storage engine to rebuild
+     * @param afterLsn records up to and including this sequence number are skipped, they are already in a snapshot
+     * @return the number of records replayed
+     * @throws IOException if the log can't be read, or a segment before the last is corrupt
+     */
+    public long replay(StorageEngine dataStore, long afterLsn) throws IOException {
+        long records = 0;
+        long lastLsn = afterLsn;
+        List<Path> segments = listSegments();
+        for (int i = 0; i < segments.size(); i++) {
+            Path segment = segments.get(i);
+            long validLength = 0;
+            long fileLength;
+            try (FileChannel readChannel = FileChannel.open(segment, StandardOpenOption.READ);
+                 DataInputStream dis = new DataInputStream(new BufferedInputStream(Channels.newInputStream(readChannel), 64 * 1024))) {
+                fileLength = readChannel.size();
+                CRC32 crc = new CRC32();
+                while (validLength + HEADER_SIZE <= fileLength) {
+                    int length = dis.readInt();
+                    int checksum = dis.readInt();
+                    if (length <= 0 || validLength + HEADER_SIZE + length > fileLength) {
+                        break; //torn write at the end of the log
+                    }
+                    byte[] body = new byte[length];
+                    dis.readFully(body);
+                    crc.reset();
+                    crc.update(body);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                    validLength += HEADER_SIZE + length;
+                    ByteBuffer record = ByteBuffer.wrap(body);
+                    long lsn = record.getLong();
+                    lastLsn = Math.max(lastLsn, lsn);
+                    if (lsn <= afterLsn) {
+                        continue;
+                    }
+                    byte op = record.get();
+                    String key = readString(record);
+                    if (op == OP_PUT) {
+                        dataStore.put(key, readString(record));
+                    } else {
+                        dataStore.delete(key);
+                    }
+                    records++;
+                }
+            }
+            if (validLength < fileLength && i < segments.size() - 1) {
+                throw new IOException("Corrupt record at offset " + validLength + " of " + segment
+                        + ", a log segment before the last, the log is not replayed past it");
+            }
+            if (validLength < fileLength) {
+                logger.log(Level.WARNING, "Discarding {0} bytes of incomplete records at the end of {1}", new Object[]{fileLength - validLength, segment});
+                try (FileChannel truncateChannel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                    truncateChannel.truncate(validLength);
+                }
+            }
+        }
+        writeLock.lock();
+        try {
+            nextLsn = lastLsn + 1;
+            writtenLsn = lastLsn;
+            openSegment();
+        } finally {
+            writeLock.unlock();
+        }
+        syncLock.lock();
+        try {
+            syncedLsn = lastLsn;
+        } finally {
+            syncLock.unlock();
+        }
+        logger.log(Level.INFO, "Replayed {0} records from {1} log segments in {2}", new Object[]{records, segments.size(), directory});
+        return records;
+    }
+
+    /**
+     * Forces the current segment and starts a new one. The caller must make sure no append is in progress if it
+     * needs the returned sequence number to be an exact cut.
+     * @return the sequence number of the last record in the old segments
+     * @throws IOException if the new segment can't be created
+     */
+    public long rollover() throws IOException {
+        writeLock.lock();
+        try {
+            syncLock.lock();
+            try {
+                while (syncInProgress) {
+                    syncFinished.awaitUninterruptibly();
+                }
+                long cut = nextLsn - 1;
+                channel.force(false);
+                channel.close();
+                syncedLsn = cut;
+                openSegment();
+                return cut;
+            } finally {
+                syncLock.unlock();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes every segment older than the current one, called once their records are stored elsewhere
+     * @return the number of segments deleted
+     * @throws IOException if a segment can't be deleted
+     */
+    public int deleteSegmentsBeforeCurrent() throws IOException {
+        Path current;
+        writeLock.lock();
+        try {
+            current = segmentFile;
+        } finally {
+            writeLock.unlock();
+        }
+        int deleted = 0;
+        for (Path segment : listSegments()) {
+            if (!segment.equals(current)) {
+                Files.delete(segment);
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    private void openSegment() throws IOException {
+        segmentFile = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, nextLsn, SEGMENT_SUFFIX));
+        FileChannel newChannel = FileChannel.open(segmentFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        newChannel.position(newChannel.size());
+        channel = newChannel;
+    }
+
+    /**
+     * @return every segment, oldest first
+     */
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        Path legacy = directory.resolve(LEGACY_LOG_FILE_NAME);
+        if (Files.exists(legacy)) {
+            segments.add(legacy);
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> {
+                String name = file.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().forEach(segments::add); //zero padded sequence numbers sort by name
+        }
+        return segments;
+    }
+
+    private long append(byte op, String key, String value) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = 8 + 1 + 4 + keyBytes.length + 4 + valueBytes.length;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + bodyLength);
+        record.position(HEADER_SIZE);
+        record.putLong(0); //lsn is filled in under the write lock
+        record.put(op);
+        record.putInt(keyBytes.length).put(keyBytes);
+        record.putInt(valueBytes.length).put(valueBytes);
+
+        writeLock.lock();
+        try {
+            if (channel == null) {
+                throw new IllegalStateException("The write-ahead log must be replayed before it is written");
+            }
+            long lsn = nextLsn++;
+            record.putLong(HEADER_SIZE, lsn);
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), HEADER_SIZE, bodyLength);
+            record.putInt(0, bodyLength);
+            record.putInt(4, (int) crc.getValue());
+            record.rewind();
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            if (durabilityMode == DurabilityMode.PER_OP) {
+                channel.force(false);
+            }
+            writtenLsn = lsn;
+            return lsn;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Group commit. The first writer to arrive forces everything written so far, writers that arrive while it is
+     * forcing wait and are usually covered by that force or by the next one, so many appends share one fsync.
+     */
+    private void awaitDurable(long lsn) throws IOException {
+        syncLock.lock();
+        try {
+            while (syncedLsn < lsn) {
+                if (syncInProgress) {
+                    syncFinished.await();
+                    continue;
+                }
+                syncInProgress = true;
+                long target = writtenLsn;
+                FileChannel toForce = channel;
+                IOException failure = null;
+                syncLock.unlock();
+                try {
+                    toForce.force(false);
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    syncLock.lock();
+                }
+                syncInProgress = false;
+                if (failure == null) {
+                    syncedLsn = Math.max(syncedLsn, target);
+                }
+                syncFinished.signalAll();
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the write-ahead log to sync");
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private void periodicSync() {
+        try {
+            if (channel != null) {
+                awaitDurable(writtenLsn);
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to sync write-ahead log in " + directory, e);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (periodicSyncExecutor != null) {
+            periodicSyncExecutor.shutdownNow();
+        }
+        writeLock.lock();
+        try {
+            if (channel != null && channel.isOpen()) {
+                channel.force(false);
+                channel.close();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
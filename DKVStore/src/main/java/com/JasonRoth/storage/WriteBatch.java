@@ -0,0 +1,40 @@
+package com.JasonRoth.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An ordered list of PUTs and DELETEs applied together with {@link StorageEngine#write(WriteBatch)}
+ */
+public class WriteBatch {
+
+    /**
+     * A single write, a null value deletes the key
+     */
+    public record Operation(String key, String value) {
+        public boolean isDelete() {
+            return value == null;
+        }
+    }
+
+    private final List<Operation> operations = new ArrayList<>();
+
+    public WriteBatch put(String key, String value) {
+        operations.add(new Operation(key, value));
+        return this;
+    }
+
+    public WriteBatch delete(String key) {
+        operations.add(new Operation(key, null));
+        return this;
+    }
+
+    public List<Operation> getOperations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    public int size() {
+        return operations.size();
+    }
+}
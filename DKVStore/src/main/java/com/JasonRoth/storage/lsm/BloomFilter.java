@@ -0,0 +1,83 @@
+package com.JasonRoth.storage.lsm;
+
+import com.JasonRoth.util.Hashing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter over the keys of one SSTable, lets a get skip tables that can't hold the key without touching disk.
+ * Uses double hashing, probe i is h1 + i * h2, so one 64 bit hash per key is enough.
+ */
+class BloomFilter {
+    static final int BITS_PER_KEY = 10; //about a 1% false positive rate with 7 probes
+
+    private final long[] words;
+    private final int numProbes;
+    private final long numBits;
+
+    private BloomFilter(long[] words, int numProbes) {
+        this.words = words;
+        this.numProbes = numProbes;
+        this.numBits = (long) words.length * 64;
+    }
+
+    /**
+     * @param keyHashes the {@link #hash(byte[])} of every key in the table
+     * @param count how many of the hashes are used
+     */
+    static BloomFilter build(long[] keyHashes, int count) {
+        long bits = Math.max(64, (long) count * BITS_PER_KEY);
+        int numProbes = Math.max(1, (int) Math.round(BITS_PER_KEY * Math.log(2)));
+        BloomFilter filter = new BloomFilter(new long[(int) ((bits + 63) / 64)], numProbes);
+        for (int i = 0; i < count; i++) {
+            filter.add(keyHashes[i]);
+        }
+        return filter;
+    }
+
+    private void add(long hash) {
+        long h1 = hash;
+        long h2 = (hash >>> 32) | 1;
+        for (int i = 0; i < numProbes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(long hash) {
+        long h1 = hash;
+        long h2 = (hash >>> 32) | 1;
+        for (int i = 0; i < numProbes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int serializedSize() {
+        return 4 + 4 + words.length * 8;
+    }
+
+    void writeTo(ByteBuffer buffer) {
+        buffer.putInt(numProbes);
+        buffer.putInt(words.length);
+        for (long word : words) {
+            buffer.putLong(word);
+        }
+    }
+
+    static BloomFilter readFrom(ByteBuffer buffer) {
+        int numProbes = buffer.getInt();
+        long[] words = new long[buffer.getInt()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = buffer.getLong();
+        }
+        return new BloomFilter(words, numProbes);
+    }
+
+    static long hash(byte[] key) {
+        return Hashing.hash64(key);
+    }
+}
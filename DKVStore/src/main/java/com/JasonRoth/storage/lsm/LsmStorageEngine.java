@@ -0,0 +1,619 @@
+package com.JasonRoth.storage.lsm;
+
+import com.JasonRoth.storage.StorageEngine;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Log-structured merge tree. Writes go to an in-memory {@link MemTable}, which is flushed to an immutable
+ * {@link SSTable} in level 0 once it is full. A background thread merges tables down the levels:
+ * - level 0 holds whole flushed memtables whose key ranges overlap, once it has {@link #LEVEL0_COMPACTION_TRIGGER}
+ *   tables they are all merged into level 1
+ * - levels 1 and up hold tables with disjoint key ranges, each level may be {@link #LEVEL_SIZE_MULTIPLIER} times
+ *   larger than the one above it, when it grows past that one of its tables is merged into the next level
+ * A get checks the memtables and then at most one table per level below 0, the in-memory Bloom filters skip almost
+ * every table that doesn't have the key, so a lookup usually costs a single block read.
+ *
+ * The current memtables and tables are published as an immutable {@link State}. Readers never lock, tables replaced
+ * by a compaction are only closed after a grace period so reads that started on the old state can finish.
+ */
+public class LsmStorageEngine implements StorageEngine {
+    static final int LEVEL0_COMPACTION_TRIGGER = 4;
+    static final int LEVEL_SIZE_MULTIPLIER = 10;
+    private static final int MAX_LEVELS = 7;
+    private static final int MAX_IMMUTABLE_MEMTABLES = 4; //writers stall once this many memtables are waiting to flush
+    private static final long RETIRED_TABLE_GRACE_SECONDS = 30;
+    private static final String MANIFEST = "MANIFEST";
+    private static final String TABLE_SUFFIX = ".sst";
+
+    private final Path directory;
+    private final long memtableBytes;
+    private final long targetFileBytes;
+    private final long level1MaxBytes;
+    private final Logger logger;
+    private final ScheduledExecutorService flushExecutor;
+    private final ScheduledExecutorService compactionExecutor;
+    //writers hold the read lock while writing to the active memtable, swapping it out takes the write lock
+    private final ReentrantReadWriteLock rotationLock = new ReentrantReadWriteLock();
+    private final Object stateLock = new Object(); //serializes state changes, reads use the volatile field
+    private final Object flushMonitor = new Object(); //stalled writers wait here for a flush to finish
+    private final AtomicLong nextFileNumber = new AtomicLong(1);
+    private final int[] compactionPointers = new int[MAX_LEVELS]; //round robin choice of table to push down
+    private volatile State state;
+    private volatile boolean closed = false;
+
+    /**
+     * The memtables and tables that make up the tree at one point in time, never modified once published
+     * @param active the memtable taking writes
+     * @param immutables frozen memtables waiting to be flushed, newest first
+     * @param levels level 0 newest first, every other level sorted by key range
+     */
+    private record State(MemTable active, List<MemTable> immutables, List<List<SSTable>> levels) {
+    }
+
+    /**
+     * Opens the tree in the given directory, loading the tables listed in its manifest
+     * @param directory where the tables and manifest are kept
+     * @param memtableBytes how large a memtable grows before it is flushed, also sizes the files and levels
+     * @param logger the logger of this node
+     * @throws IOException if existing tables can't be opened
+     */
+    public LsmStorageEngine(Path directory, long memtableBytes, Logger logger) throws IOException {
+        this.directory = directory;
+        this.memtableBytes = memtableBytes;
+        this.targetFileBytes = memtableBytes * 2;
+        this.level1MaxBytes = memtableBytes * LEVEL0_COMPACTION_TRIGGER * 4;
+        this.logger = logger;
+        Files.createDirectories(directory);
+        this.state = new State(new MemTable(), List.of(), loadManifest());
+        String name = directory.getFileName().toString();
+        this.flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "lsm-flush-" + name));
+        this.compactionExecutor = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "lsm-compaction-" + name));
+        compactionExecutor.execute(this::compact);
+    }
+
+    @Override
+    public String get(String key) {
+        State current = state;
+        byte[] value = current.active.get(key);
+        for (int i = 0; value == null && i < current.immutables.size(); i++) {
+            value = current.immutables.get(i).get(key);
+        }
+        if (value == null) {
+            value = getFromTables(current.levels, key);
+        }
+        return value == null || value == MemTable.TOMBSTONE ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    private byte[] getFromTables(List<List<SSTable>> levels, String key) {
+        long keyHash = BloomFilter.hash(key.getBytes(StandardCharsets.UTF_8));
+        for (SSTable table : levels.get(0)) {
+            byte[] value = table.get(key, keyHash);
+            if (value != null) {
+                return value;
+            }
+        }
+        for (int level = 1; level < levels.size(); level++) {
+            SSTable table = findTable(levels.get(level), key);
+            if (table != null) {
+                byte[] value = table.get(key, keyHash);
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the table of a sorted, non overlapping level whose range covers the key, or null
+     */
+    private static SSTable findTable(List<SSTable> level, String key) {
+        int low = 0;
+        int high = level.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            SSTable table = level.get(mid);
+            if (table.maxKey.compareTo(key) < 0) {
+                low = mid + 1;
+            } else if (table.minKey.compareTo(key) > 0) {
+                high = mid - 1;
+            } else {
+                return table;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        write(key, MemTable.encode(value));
+    }
+
+    @Override
+    public void delete(String key) {
+        write(key, MemTable.TOMBSTONE);
+    }
+
+    private void write(String key, byte[] value) {
+        if (closed) {
+            throw new IllegalStateException("Storage engine is closed");
+        }
+        MemTable active;
+        rotationLock.readLock().lock();
+        try {
+            active = state.active;
+            active.put(key, value);
+        } finally {
+            rotationLock.readLock().unlock();
+        }
+        if (active.approximateBytes() >= memtableBytes) {
+            rotate(active);
+        }
+    }
+
+    /**
+     * Merges the memtables and every table of the current state. Tables replaced by a compaction while this runs
+     * stay readable for the retirement grace period, so very long iterations can fail.
+     */
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        State current = state;
+        List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<>();
+        sources.add(current.active.iterator());
+        for (MemTable memTable : current.immutables) {
+            sources.add(memTable.iterator());
+        }
+        for (List<SSTable> level : current.levels) {
+            for (SSTable table : level) {
+                sources.add(table.iterator());
+            }
+        }
+        MergeIterator merged = new MergeIterator(sources);
+        while (merged.hasNext()) {
+            Map.Entry<String, byte[]> entry = merged.next();
+            if (entry.getValue() != MemTable.TOMBSTONE) {
+                action.accept(entry.getKey(), new String(entry.getValue(), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+
+    /**
+     * Freezes the active memtable and waits until every memtable has been flushed to a table
+     */
+    @Override
+    public void flush() throws IOException {
+        MemTable active = state.active;
+        if (!active.isEmpty()) {
+            rotate(active);
+        }
+        synchronized (flushMonitor) {
+            while (!state.immutables.isEmpty() && !closed) {
+                try {
+                    flushMonitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while flushing memtables");
+                }
+            }
+        }
+    }
+
+    /**
+     * Freezes the given memtable if it is still the active one and schedules its flush. Blocks while too many
+     * memtables are already waiting to be flushed so memory stays bounded when writes outrun the disk.
+     */
+    private void rotate(MemTable full) {
+        synchronized (flushMonitor) {
+            while (state.immutables.size() >= MAX_IMMUTABLE_MEMTABLES && !closed) {
+                try {
+                    flushMonitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        rotationLock.writeLock().lock();
+        try {
+            synchronized (stateLock) {
+                State current = state;
+                if (current.active != full) {
+                    return; //another writer already rotated it
+                }
+                List<MemTable> immutables = new ArrayList<>(current.immutables.size() + 1);
+                immutables.add(full);
+                immutables.addAll(current.immutables);
+                state = new State(new MemTable(), List.copyOf(immutables), current.levels);
+            }
+        } finally {
+            rotationLock.writeLock().unlock();
+        }
+        flushExecutor.execute(() -> flush(full));
+    }
+
+    /**
+     * Writes a frozen memtable to a new level 0 table and swaps it into the state
+     */
+    private void flush(MemTable memTable) {
+        try {
+            SSTable table = null;
+            if (!memTable.isEmpty()) {
+                try (SSTable.Writer writer = newWriter()) {
+                    Iterator<Map.Entry<String, byte[]>> entries = memTable.iterator();
+                    while (entries.hasNext()) {
+                        Map.Entry<String, byte[]> entry = entries.next();
+                        writer.add(entry.getKey(), entry.getValue());
+                    }
+                    table = writer.finish();
+                }
+            }
+            synchronized (stateLock) {
+                State current = state;
+                List<MemTable> immutables = new ArrayList<>(current.immutables);
+                immutables.remove(memTable);
+                List<List<SSTable>> levels = new ArrayList<>(current.levels);
+                if (table != null) {
+                    List<SSTable> level0 = new ArrayList<>(levels.get(0).size() + 1);
+                    level0.add(table);
+                    level0.addAll(levels.get(0));
+                    levels.set(0, List.copyOf(level0));
+                }
+                writeManifest(levels);
+                state = new State(current.active, List.copyOf(immutables), List.copyOf(levels));
+            }
+            if (table != null) {
+                logger.log(Level.INFO, "Flushed memtable with {0} entries to {1}", new Object[]{memTable.size(), table.file.getFileName()});
+            }
+        } catch (IOException | RuntimeException e) {
+            //the memtable stays in the state and keeps serving reads, try again shortly
+            logger.log(Level.SEVERE, "Failed to flush memtable, retrying", e);
+            if (!closed) {
+                flushExecutor.schedule(() -> flush(memTable), 1, TimeUnit.SECONDS);
+            }
+            return;
+        }
+        synchronized (flushMonitor) {
+            flushMonitor.notifyAll();
+        }
+        if (!closed) {
+            compactionExecutor.execute(this::compact);
+        }
+    }
+
+    /**
+     * Runs compactions until every level is within its size limit
+     */
+    private void compact() {
+        try {
+            while (!closed) {
+                State current = state;
+                List<List<SSTable>> levels = current.levels;
+                if (levels.get(0).size() >= LEVEL0_COMPACTION_TRIGGER) {
+                    List<SSTable> inputs = levels.get(0);
+                    compactInto(1, inputs, overlapping(levels.get(1), inputs));
+                    continue;
+                }
+                int level = overfullLevel(levels);
+                if (level < 0) {
+                    return;
+                }
+                List<SSTable> tables = levels.get(level);
+                SSTable input = tables.get(compactionPointers[level]++ % tables.size());
+                compactInto(level + 1, List.of(input), overlapping(levels.get(level + 1), List.of(input)));
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Compaction failed, retrying", e);
+            if (!closed) {
+                compactionExecutor.schedule(this::compact, 5, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    /**
+     * @return the first level from 1 down that is larger than it may be, or -1
+     */
+    private int overfullLevel(List<List<SSTable>> levels) {
+        long maxBytes = level1MaxBytes;
+        for (int level = 1; level < MAX_LEVELS - 1; level++) {
+            long bytes = 0;
+            for (SSTable table : levels.get(level)) {
+                bytes += table.sizeBytes;
+            }
+            if (bytes > maxBytes) {
+                return level;
+            }
+            maxBytes *= LEVEL_SIZE_MULTIPLIER;
+        }
+        return -1;
+    }
+
+    private static List<SSTable> overlapping(List<SSTable> level, List<SSTable> inputs) {
+        String from = inputs.get(0).minKey;
+        String to = inputs.get(0).maxKey;
+        for (SSTable input : inputs) {
+            from = input.minKey.compareTo(from) < 0 ? input.minKey : from;
+            to = input.maxKey.compareTo(to) > 0 ? input.maxKey : to;
+        }
+        List<SSTable> result = new ArrayList<>();
+        for (SSTable table : level) {
+            if (table.overlaps(from, to)) {
+                result.add(table);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Merges the upper tables with the overlapping tables of the output level and replaces them with the result
+     * @param outputLevel the level the merged tables are written to
+     * @param upper tables from the level above, newest first
+     * @param lower tables of the output level whose ranges overlap the upper tables
+     */
+    private void compactInto(int outputLevel, List<SSTable> upper, List<SSTable> lower) throws IOException {
+        List<SSTable> sources = new ArrayList<>(upper);
+        sources.addAll(lower); //earlier sources are newer and win when keys collide
+        boolean bottom = true;
+        for (int level = outputLevel + 1; level < state.levels.size(); level++) {
+            bottom &= state.levels.get(level).isEmpty();
+        }
+
+        List<SSTable> outputs = new ArrayList<>();
+        SSTable.Writer writer = null;
+        try {
+            List<Iterator<Map.Entry<String, byte[]>>> iterators = new ArrayList<>();
+            for (SSTable source : sources) {
+                iterators.add(source.iterator());
+            }
+            MergeIterator merged = new MergeIterator(iterators);
+            while (merged.hasNext()) {
+                Map.Entry<String, byte[]> entry = merged.next();
+                if (bottom && entry.getValue() == MemTable.TOMBSTONE) {
+                    continue; //nothing below can hold an older value, the tombstone has done its job
+                }
+                if (writer == null) {
+                    writer = newWriter();
+                }
+                writer.add(entry.getKey(), entry.getValue());
+                if (writer.estimatedSize() >= targetFileBytes) {
+                    outputs.add(writer.finish());
+                    writer = null;
+                }
+            }
+            if (writer != null) {
+                outputs.add(writer.finish());
+                writer = null;
+            }
+        } catch (IOException | RuntimeException e) {
+            if (writer != null) {
+                writer.close();
+            }
+            for (SSTable output : outputs) {
+                output.closeAndDelete();
+            }
+            throw e;
+        }
+
+        synchronized (stateLock) {
+            State current = state;
+            List<List<SSTable>> levels = new ArrayList<>(current.levels);
+            int inputLevel = outputLevel - 1;
+            List<SSTable> remainingUpper = new ArrayList<>(levels.get(inputLevel));
+            remainingUpper.removeAll(upper);
+            levels.set(inputLevel, List.copyOf(remainingUpper));
+            List<SSTable> newLower = new ArrayList<>(levels.get(outputLevel));
+            newLower.removeAll(lower);
+            newLower.addAll(outputs);
+            newLower.sort(Comparator.comparing(table -> table.minKey));
+            levels.set(outputLevel, List.copyOf(newLower));
+            writeManifest(levels);
+            state = new State(current.active, current.immutables, List.copyOf(levels));
+        }
+        logger.log(Level.INFO, "Compacted {0} tables from level {1} and {2} from level {3} into {4} tables",
+                new Object[]{upper.size(), outputLevel - 1, lower.size(), outputLevel, outputs.size()});
+        retire(sources);
+    }
+
+    /**
+     * Deletes tables that are no longer part of the state once in-flight reads have had time to finish
+     */
+    private void retire(List<SSTable> tables) {
+        compactionExecutor.schedule(() -> {
+            for (SSTable table : tables) {
+                try {
+                    table.closeAndDelete();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to delete " + table.file, e);
+                }
+            }
+        }, RETIRED_TABLE_GRACE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private SSTable.Writer newWriter() throws IOException {
+        long fileNumber = nextFileNumber.getAndIncrement();
+        return new SSTable.Writer(directory.resolve(String.format("%06d%s", fileNumber, TABLE_SUFFIX)), fileNumber);
+    }
+
+    /**
+     * Records which table belongs to which level, one "level fileNumber" line per table. Written to a temporary
+     * file and renamed so a crash leaves either the old or the new manifest.
+     */
+    private void writeManifest(List<List<SSTable>> levels) throws IOException {
+        StringBuilder manifest = new StringBuilder();
+        for (int level = 0; level < levels.size(); level++) {
+            for (SSTable table : levels.get(level)) {
+                manifest.append(level).append(' ').append(table.fileNumber).append('\n');
+            }
+        }
+        Path temp = directory.resolve(MANIFEST + ".tmp");
+        Files.writeString(temp, manifest.toString(), StandardCharsets.UTF_8);
+        Files.move(temp, directory.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Opens the tables listed in the manifest and deletes any table file it doesn't list, those are left over from
+     * a flush or compaction that didn't finish
+     */
+    private List<List<SSTable>> loadManifest() throws IOException {
+        List<List<SSTable>> levels = new ArrayList<>();
+        for (int level = 0; level < MAX_LEVELS; level++) {
+            levels.add(new ArrayList<>());
+        }
+        Set<Long> live = new HashSet<>();
+        Path manifest = directory.resolve(MANIFEST);
+        if (Files.exists(manifest)) {
+            for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                String[] parts = line.trim().split(" ");
+                int level = Integer.parseInt(parts[0]);
+                long fileNumber = Long.parseLong(parts[1]);
+                levels.get(level).add(SSTable.open(directory.resolve(String.format("%06d%s", fileNumber, TABLE_SUFFIX)), fileNumber));
+                live.add(fileNumber);
+            }
+        }
+        long maxFileNumber = 0;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                String fileName = file.getFileName().toString();
+                if (!fileName.endsWith(TABLE_SUFFIX)) {
+                    continue;
+                }
+                long fileNumber = Long.parseLong(fileName.substring(0, fileName.length() - TABLE_SUFFIX.length()));
+                maxFileNumber = Math.max(maxFileNumber, fileNumber);
+                if (!live.contains(fileNumber)) {
+                    Files.delete(file);
+                }
+            }
+        }
+        nextFileNumber.set(maxFileNumber + 1);
+        //the manifest keeps level 0 newest first already, the other levels are sorted by range
+        for (int level = 1; level < MAX_LEVELS; level++) {
+            levels.get(level).sort(Comparator.comparing(table -> table.minKey));
+        }
+        List<List<SSTable>> result = new ArrayList<>();
+        for (List<SSTable> level : levels) {
+            result.add(List.copyOf(level));
+        }
+        logger.log(Level.INFO, "Opened LSM tree in {0} with {1} tables", new Object[]{directory, live.size()});
+        return List.copyOf(result);
+    }
+
+    /**
+     * Flushes the memtables so nothing written is lost and stops the background threads
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        MemTable active = state.active;
+        if (!active.isEmpty()) {
+            rotate(active);
+        }
+        closed = true;
+        synchronized (flushMonitor) {
+            flushMonitor.notifyAll();
+        }
+        flushExecutor.shutdown();
+        try {
+            if (!flushExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.log(Level.WARNING, "Timed out flushing memtables on close");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compactionExecutor.shutdownNow();
+        for (List<SSTable> level : state.levels) {
+            for (SSTable table : level) {
+                table.close();
+            }
+        }
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Merges sorted iterators into one sorted stream, for keys present in several sources only the entry from the
+     * earliest (newest) source is returned
+     */
+    private static class MergeIterator implements Iterator<Map.Entry<String, byte[]>> {
+        private final PriorityQueue<Source> heap = new PriorityQueue<>((a, b) -> {
+            int comparison = a.current.getKey().compareTo(b.current.getKey());
+            return comparison != 0 ? comparison : Integer.compare(a.rank, b.rank);
+        });
+
+        private static class Source {
+            final Iterator<Map.Entry<String, byte[]>> entries;
+            final int rank;
+            Map.Entry<String, byte[]> current;
+
+            Source(Iterator<Map.Entry<String, byte[]>> entries, int rank) {
+                this.entries = entries;
+                this.rank = rank;
+            }
+
+            boolean advance() {
+                current = entries.hasNext() ? entries.next() : null;
+                return current != null;
+            }
+        }
+
+        MergeIterator(List<Iterator<Map.Entry<String, byte[]>>> sources) {
+            for (int i = 0; i < sources.size(); i++) {
+                Source source = new Source(sources.get(i), i);
+                if (source.advance()) {
+                    heap.add(source);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heap.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<String, byte[]> next() {
+            Source newest = heap.poll();
+            if (newest == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, byte[]> result = newest.current;
+            if (newest.advance()) {
+                heap.add(newest);
+            }
+            //skip older versions of the same key
+            while (!heap.isEmpty() && heap.peek().current.getKey().equals(result.getKey())) {
+                Source older = heap.poll();
+                if (older.advance()) {
+                    heap.add(older);
+                }
+            }
+            return result;
+        }
+    }
+}
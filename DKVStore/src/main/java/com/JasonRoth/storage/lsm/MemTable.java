@@ -0,0 +1,62 @@
+package com.JasonRoth.storage.lsm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sorted in-memory buffer of the most recent writes. Once it grows past the configured size it is frozen and
+ * flushed to an SSTable in the background while a new memtable takes the writes.
+ */
+class MemTable {
+    /**
+     * Marks a deleted key, compared by identity. A tombstone shadows older values of the key until compaction
+     * drops it from the bottom level.
+     */
+    static final byte[] TOMBSTONE = new byte[0];
+
+    private static final int ENTRY_OVERHEAD = 64; //rough cost of a skip list node and the key and value objects
+
+    private final ConcurrentSkipListMap<String, byte[]> entries = new ConcurrentSkipListMap<>();
+    private final AtomicLong approximateBytes = new AtomicLong();
+
+    void put(String key, byte[] value) {
+        byte[] previous = entries.put(key, value);
+        long delta = value.length;
+        if (previous == null) {
+            delta += key.length() * 2L + ENTRY_OVERHEAD;
+        } else {
+            delta -= previous.length;
+        }
+        approximateBytes.addAndGet(delta);
+    }
+
+    /**
+     * @return the value, {@link #TOMBSTONE} if the key was deleted, or null if this memtable doesn't know the key
+     */
+    byte[] get(String key) {
+        return entries.get(key);
+    }
+
+    long approximateBytes() {
+        return approximateBytes.get();
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    Iterator<Map.Entry<String, byte[]>> iterator() {
+        return entries.entrySet().iterator();
+    }
+
+    static byte[] encode(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,323 @@
+package com.JasonRoth.storage.lsm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Immutable sorted file of key value pairs. The file is laid out as:
+ * data blocks - entries of 4 byte key length, key, 4 byte value length (-1 for a tombstone), value
+ * block index - 4 byte block count, then the first key, 8 byte offset and 4 byte length of every block, then the last key
+ * bloom filter - see {@link BloomFilter}
+ * footer - 8 byte index offset, 8 byte bloom filter offset, 8 byte entry count, 4 byte magic number
+ * The block index and Bloom filter are kept in memory, so a get reads at most one block from disk.
+ */
+class SSTable {
+    static final int BLOCK_SIZE = 4 * 1024;
+    private static final int FOOTER_SIZE = 8 + 8 + 8 + 4;
+    private static final int MAGIC = 0x44534B56; //"DSKV"
+    private static final int TOMBSTONE_LENGTH = -1;
+
+    final long fileNumber;
+    final Path file;
+    final String minKey;
+    final String maxKey;
+    final long sizeBytes;
+    final long entryCount;
+
+    private final FileChannel channel;
+    private final String[] blockFirstKeys;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final BloomFilter bloomFilter;
+
+    private SSTable(long fileNumber, Path file, FileChannel channel, String[] blockFirstKeys, long[] blockOffsets,
+                    int[] blockLengths, String maxKey, BloomFilter bloomFilter, long entryCount) throws IOException {
+        this.fileNumber = fileNumber;
+        this.file = file;
+        this.channel = channel;
+        this.blockFirstKeys = blockFirstKeys;
+        this.blockOffsets = blockOffsets;
+        this.blockLengths = blockLengths;
+        this.minKey = blockFirstKeys[0];
+        this.maxKey = maxKey;
+        this.bloomFilter = bloomFilter;
+        this.entryCount = entryCount;
+        this.sizeBytes = channel.size();
+    }
+
+    /**
+     * Opens an existing table and loads its block index and Bloom filter
+     */
+    static SSTable open(Path file, long fileNumber) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            ByteBuffer footer = readFully(channel, size - FOOTER_SIZE, FOOTER_SIZE);
+            long indexOffset = footer.getLong();
+            long bloomOffset = footer.getLong();
+            long entryCount = footer.getLong();
+            if (footer.getInt() != MAGIC) {
+                throw new IOException("Not an SSTable: " + file);
+            }
+            ByteBuffer index = readFully(channel, indexOffset, (int) (bloomOffset - indexOffset));
+            int blockCount = index.getInt();
+            String[] firstKeys = new String[blockCount];
+            long[] offsets = new long[blockCount];
+            int[] lengths = new int[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                firstKeys[i] = readString(index);
+                offsets[i] = index.getLong();
+                lengths[i] = index.getInt();
+            }
+            String maxKey = readString(index);
+            BloomFilter bloomFilter = BloomFilter.readFrom(readFully(channel, bloomOffset, (int) (size - FOOTER_SIZE - bloomOffset)));
+            return new SSTable(fileNumber, file, channel, firstKeys, offsets, lengths, maxKey, bloomFilter, entryCount);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param key the key to look up
+     * @param keyHash the {@link BloomFilter#hash(byte[])} of the key
+     * @return the value, {@link MemTable#TOMBSTONE} if the key was deleted, or null if the table doesn't have the key
+     */
+    byte[] get(String key, long keyHash) {
+        if (!overlaps(key, key) || !bloomFilter.mightContain(keyHash)) {
+            return null;
+        }
+        //the last block whose first key is <= key
+        int low = 0;
+        int high = blockFirstKeys.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (blockFirstKeys[mid].compareTo(key) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        ByteBuffer block = readBlock(low);
+        while (block.hasRemaining()) {
+            String entryKey = readString(block);
+            int valueLength = block.getInt();
+            int comparison = entryKey.compareTo(key);
+            if (comparison == 0) {
+                return valueLength == TOMBSTONE_LENGTH ? MemTable.TOMBSTONE : readBytes(block, valueLength);
+            }
+            if (comparison > 0) {
+                return null;
+            }
+            if (valueLength > 0) {
+                block.position(block.position() + valueLength);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if this table's key range intersects [from, to]
+     */
+    boolean overlaps(String from, String to) {
+        return minKey.compareTo(to) <= 0 && maxKey.compareTo(from) >= 0;
+    }
+
+    /**
+     * Iterates all entries in key order, reading one block at a time. Tombstones are returned as {@link MemTable#TOMBSTONE}.
+     */
+    Iterator<Map.Entry<String, byte[]>> iterator() {
+        return new Iterator<>() {
+            private int nextBlock = 0;
+            private ByteBuffer block;
+
+            @Override
+            public boolean hasNext() {
+                while ((block == null || !block.hasRemaining()) && nextBlock < blockOffsets.length) {
+                    block = readBlock(nextBlock++);
+                }
+                return block != null && block.hasRemaining();
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String key = readString(block);
+                int valueLength = block.getInt();
+                byte[] value = valueLength == TOMBSTONE_LENGTH ? MemTable.TOMBSTONE : readBytes(block, valueLength);
+                return new AbstractMap.SimpleImmutableEntry<>(key, value);
+            }
+        };
+    }
+
+    private ByteBuffer readBlock(int blockIndex) {
+        try {
+            return readFully(channel, blockOffsets[blockIndex], blockLengths[blockIndex]);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read block " + blockIndex + " of " + file, e);
+        }
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            //the table is being discarded anyway
+        }
+    }
+
+    void closeAndDelete() throws IOException {
+        close();
+        Files.deleteIfExists(file);
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException("Unexpected end of SSTable");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes a new table from entries added in increasing key order
+     */
+    static class Writer implements Closeable {
+        private final Path file;
+        private final long fileNumber;
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(BLOCK_SIZE + 1024);
+        private final DataOutputStream block = new DataOutputStream(blockBytes);
+        private final List<String> blockFirstKeys = new ArrayList<>();
+        private final List<long[]> blockPositions = new ArrayList<>(); //offset and length of every block
+        private long[] keyHashes = new long[1024];
+        private int entryCount = 0;
+        private long position = 0;
+        private String lastKey;
+        private boolean finished = false;
+
+        Writer(Path file, long fileNumber) throws IOException {
+            this.file = file;
+            this.fileNumber = fileNumber;
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), 64 * 1024));
+        }
+
+        void add(String key, byte[] value) throws IOException {
+            if (blockBytes.size() == 0) {
+                blockFirstKeys.add(key);
+            }
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            block.writeInt(keyBytes.length);
+            block.write(keyBytes);
+            if (value == MemTable.TOMBSTONE) {
+                block.writeInt(TOMBSTONE_LENGTH);
+            } else {
+                block.writeInt(value.length);
+                block.write(value);
+            }
+            if (entryCount == keyHashes.length) {
+                keyHashes = Arrays.copyOf(keyHashes, keyHashes.length * 2);
+            }
+            keyHashes[entryCount++] = BloomFilter.hash(keyBytes);
+            lastKey = key;
+            if (blockBytes.size() >= BLOCK_SIZE) {
+                finishBlock();
+            }
+        }
+
+        /**
+         * @return roughly how big the table is so far, used to split compaction output into files
+         */
+        long estimatedSize() {
+            return position + blockBytes.size();
+        }
+
+        boolean isEmpty() {
+            return entryCount == 0;
+        }
+
+        private void finishBlock() throws IOException {
+            blockPositions.add(new long[]{position, blockBytes.size()});
+            blockBytes.writeTo(out);
+            position += blockBytes.size();
+            blockBytes.reset();
+        }
+
+        /**
+         * Writes the index, Bloom filter and footer, syncs the file and opens it for reading
+         */
+        SSTable finish() throws IOException {
+            if (blockBytes.size() > 0) {
+                finishBlock();
+            }
+            long indexOffset = position;
+            ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+            DataOutputStream index = new DataOutputStream(indexBytes);
+            index.writeInt(blockFirstKeys.size());
+            for (int i = 0; i < blockFirstKeys.size(); i++) {
+                byte[] firstKey = blockFirstKeys.get(i).getBytes(StandardCharsets.UTF_8);
+                index.writeInt(firstKey.length);
+                index.write(firstKey);
+                index.writeLong(blockPositions.get(i)[0]);
+                index.writeInt((int) blockPositions.get(i)[1]);
+            }
+            byte[] lastKeyBytes = lastKey.getBytes(StandardCharsets.UTF_8);
+            index.writeInt(lastKeyBytes.length);
+            index.write(lastKeyBytes);
+            indexBytes.writeTo(out);
+            long bloomOffset = indexOffset + indexBytes.size();
+
+            BloomFilter bloomFilter = BloomFilter.build(keyHashes, entryCount);
+            ByteBuffer bloom = ByteBuffer.allocate(bloomFilter.serializedSize());
+            bloomFilter.writeTo(bloom);
+            out.write(bloom.array());
+
+            out.writeLong(indexOffset);
+            out.writeLong(bloomOffset);
+            out.writeLong(entryCount);
+            out.writeInt(MAGIC);
+            out.flush();
+            out.close();
+            finished = true;
+            try (FileChannel syncChannel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                syncChannel.force(true);
+            }
+            return SSTable.open(file, fileNumber);
+        }
+
+        /**
+         * Closes the writer, deleting the partial file unless {@link #finish()} completed
+         */
+        @Override
+        public void close() throws IOException {
+            if (!finished) {
+                out.close();
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
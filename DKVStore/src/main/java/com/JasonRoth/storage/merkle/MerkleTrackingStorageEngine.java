@@ -0,0 +1,330 @@
+package com.JasonRoth.storage.merkle;
+
+import com.JasonRoth.storage.PartialWriteException;
+import com.JasonRoth.storage.StorageEngine;
+import com.JasonRoth.storage.WriteBatch;
+import com.JasonRoth.util.Hashing;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Keeps a {@link MerkleTree} per token range of the ring up to date with every write. A write reads the key's current
+ * value first, and both are folded into the tree of the key's range under a lock striped by key, so concurrent writes
+ * of the same key can't leave the tree behind the engine.
+ *
+ * The trees are rebuilt from a scan of the engine whenever the ring's ranges change. Writes wait while that scan runs,
+ * since a pair visited twice would cancel itself out of its leaf.
+ */
+public class MerkleTrackingStorageEngine implements StorageEngine {
+    private static final int LOCK_STRIPES = 256;
+
+    private final StorageEngine engine;
+    private final ToLongFunction<String> tokenizer;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    private final ReentrantReadWriteLock rebuildLock = new ReentrantReadWriteLock();
+    private volatile NavigableMap<Long, TrackedRange> ranges = new TreeMap<>(); //keyed by the range's end token
+
+    /**
+     * A range's start token and its tree
+     */
+    private record TrackedRange(long start, MerkleTree tree) {
+    }
+
+    /**
+     * @param engine the engine writes are applied to
+     * @param tokenizer the ring position of a key
+     */
+    public MerkleTrackingStorageEngine(StorageEngine engine, ToLongFunction<String> tokenizer) {
+        this.engine = engine;
+        this.tokenizer = tokenizer;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Replaces the trees with one per range of the ring, built from every stored pair
+     * @param rangeEnds the end token of every range, each range starts after the previous end and the first one
+     *                  after the last end
+     */
+    public void rebuild(Collection<Long> rangeEnds) {
+        TreeSet<Long> ends = new TreeSet<>(rangeEnds);
+        NavigableMap<Long, TrackedRange> rebuilt = new TreeMap<>();
+        long start = ends.isEmpty() ? 0 : ends.last();
+        for (long end : ends) {
+            rebuilt.put(end, new TrackedRange(start, new MerkleTree()));
+            start = end;
+        }
+        rebuildLock.writeLock().lock();
+        try {
+            engine.forEach((key, value) -> {
+                TrackedRange range = rangeOf(rebuilt, key);
+                if (range != null) {
+                    range.tree().toggle(MerkleTree.leafOf(keyHash(key)), entryHash(key, value));
+                }
+            });
+            ranges = rebuilt;
+        } finally {
+            rebuildLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param start the range's start token
+     * @param end the range's end token
+     * @param nodes node numbers of the range's tree
+     * @return the hash of each node, or null if the ring this node knows has no such range
+     */
+    public long[] hashes(long start, long end, int[] nodes) {
+        TrackedRange range = ranges.get(end);
+        if (range == null || range.start() != start) {
+            return null;
+        }
+        return range.tree().hashes(nodes);
+    }
+
+    /**
+     * Scans the engine for the entries of some leaves
+     * @param leaves the leaves wanted, by the end token of their range
+     * @return the hash of every entry in those leaves, by key
+     */
+    public Map<String, Long> entryHashes(Map<Long, BitSet> leaves) {
+        NavigableMap<Long, TrackedRange> current = ranges;
+        Map<String, Long> entries = new LinkedHashMap<>();
+        engine.forEach((key, value) -> {
+            Map.Entry<Long, TrackedRange> range = rangeEntryOf(current, key);
+            if (range == null) {
+                return;
+            }
+            BitSet wanted = leaves.get(range.getKey());
+            if (wanted != null && wanted.get(MerkleTree.leafOf(keyHash(key)))) {
+                entries.put(key, entryHash(key, value));
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * @return the hash of a stored pair as it is folded into its leaf
+     */
+    public static long entryHash(String key, String value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        byte[] entry = new byte[keyBytes.length + 1 + valueBytes.length];
+        System.arraycopy(keyBytes, 0, entry, 0, keyBytes.length);
+        entry[keyBytes.length] = (byte) 0xFF; //not valid UTF-8, so key and value can't run into each other
+        System.arraycopy(valueBytes, 0, entry, keyBytes.length + 1, valueBytes.length);
+        return Hashing.hash64(entry);
+    }
+
+    @Override
+    public String get(String key) {
+        return engine.get(key);
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return engine.containsKey(key);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        ReentrantLock lock = lockFor(key);
+        rebuildLock.readLock().lock();
+        lock.lock();
+        try {
+            String previous = engine.get(key);
+            engine.put(key, value);
+            track(key, previous, value);
+        } finally {
+            lock.unlock();
+            rebuildLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores a value only if the key's entry is still the one a decision was based on
+     * @param expectedEntryHash the {@link #entryHash} of the current entry, null if the key shouldn't be stored
+     * @return false if the key was written in the meantime
+     */
+    public boolean putIfUnchanged(String key, Long expectedEntryHash, String value) {
+        ReentrantLock lock = lockFor(key);
+        rebuildLock.readLock().lock();
+        lock.lock();
+        try {
+            String previous = engine.get(key);
+            Long current = previous == null ? null : entryHash(key, previous);
+            if (current == null ? expectedEntryHash != null : !current.equals(expectedEntryHash)) {
+                return false;
+            }
+            engine.put(key, value);
+            track(key, previous, value);
+            return true;
+        } finally {
+            lock.unlock();
+            rebuildLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a key only if its entry is still the one a decision was based on
+     * @param expectedEntryHash the {@link #entryHash} of the entry to remove
+     * @return false if the key was written in the meantime
+     */
+    public boolean deleteIfUnchanged(String key, long expectedEntryHash) {
+        ReentrantLock lock = lockFor(key);
+        rebuildLock.readLock().lock();
+        lock.lock();
+        try {
+            String previous = engine.get(key);
+            if (previous == null || entryHash(key, previous) != expectedEntryHash) {
+                return false;
+            }
+            engine.delete(key);
+            track(key, previous, null);
+            return true;
+        } finally {
+            lock.unlock();
+            rebuildLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(String key) {
+        ReentrantLock lock = lockFor(key);
+        rebuildLock.readLock().lock();
+        lock.lock();
+        try {
+            String previous = engine.get(key);
+            engine.delete(key);
+            track(key, previous, null);
+        } finally {
+            lock.unlock();
+            rebuildLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Applies the batch in one call to the engine, holding the locks of all its keys
+     */
+    @Override
+    public void write(WriteBatch batch) {
+        //stripes are locked in index order, so two batches can't wait on each other
+        BitSet stripes = new BitSet(LOCK_STRIPES);
+        for (WriteBatch.Operation operation : batch.getOperations()) {
+            stripes.set(stripeOf(operation.key()));
+        }
+        rebuildLock.readLock().lock();
+        for (int stripe = stripes.nextSetBit(0); stripe >= 0; stripe = stripes.nextSetBit(stripe + 1)) {
+            locks[stripe].lock();
+        }
+        try {
+            //the value each write replaces, earlier writes of the batch included
+            Map<String, String> current = new HashMap<>();
+            String[] previous = new String[batch.size()];
+            int i = 0;
+            for (WriteBatch.Operation operation : batch.getOperations()) {
+                String key = operation.key();
+                previous[i++] = current.containsKey(key) ? current.get(key) : engine.get(key);
+                current.put(key, operation.value());
+            }
+            List<WriteBatch.Operation> operations = batch.getOperations();
+            try {
+                engine.write(batch);
+            } catch (PartialWriteException e) {
+                //the writes that were applied still change the tree
+                for (i = 0; i < e.getApplied(); i++) {
+                    track(operations.get(i).key(), previous[i], operations.get(i).value());
+                }
+                throw e;
+            }
+            for (i = 0; i < operations.size(); i++) {
+                track(operations.get(i).key(), previous[i], operations.get(i).value());
+            }
+        } finally {
+            for (int stripe = stripes.nextSetBit(0); stripe >= 0; stripe = stripes.nextSetBit(stripe + 1)) {
+                locks[stripe].unlock();
+            }
+            rebuildLock.readLock().unlock();
+        }
+    }
+
+    private void track(String key, String previous, String value) {
+        if (previous == null ? value == null : previous.equals(value)) {
+            return;
+        }
+        TrackedRange range = rangeOf(ranges, key);
+        if (range == null) {
+            return;
+        }
+        int leaf = MerkleTree.leafOf(keyHash(key));
+        if (previous != null) {
+            range.tree().toggle(leaf, entryHash(key, previous));
+        }
+        if (value != null) {
+            range.tree().toggle(leaf, entryHash(key, value));
+        }
+    }
+
+    private TrackedRange rangeOf(NavigableMap<Long, TrackedRange> map, String key) {
+        Map.Entry<Long, TrackedRange> entry = rangeEntryOf(map, key);
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * @return the range whose end is the first at or after the key's token, wrapping around to the first range
+     */
+    private Map.Entry<Long, TrackedRange> rangeEntryOf(NavigableMap<Long, TrackedRange> map, String key) {
+        if (map.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, TrackedRange> entry = map.ceilingEntry(tokenizer.applyAsLong(key));
+        return entry == null ? map.firstEntry() : entry;
+    }
+
+    private static long keyHash(String key) {
+        return Hashing.hash64(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private int stripeOf(String key) {
+        return (key.hashCode() & 0x7fffffff) % LOCK_STRIPES;
+    }
+
+    private ReentrantLock lockFor(String key) {
+        return locks[stripeOf(key)];
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        engine.forEach(action);
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return engine.isPersistent();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        engine.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        engine.close();
+    }
+}
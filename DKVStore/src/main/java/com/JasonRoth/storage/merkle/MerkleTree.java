@@ -0,0 +1,79 @@
+package com.JasonRoth.storage.merkle;
+
+/**
+ * Fixed depth binary hash tree over the keys of one token range. Keys are spread over the leaves by a hash of the
+ * key, and a leaf holds the XOR of the hashes of its entries, so a write updates it without knowing the leaf's other
+ * keys and a delete takes its entry back out. Inner nodes hash their two children, and are updated on the way up
+ * from every changed leaf.
+ *
+ * Nodes are numbered as in a binary heap, the root is 1, the children of node i are 2i and 2i + 1 and the leaves
+ * are LEAVES to 2 * LEAVES - 1. Two replicas with the same entries in a range have the same root, and where they
+ * differ the differing leaves are found by following the differing children down from the root.
+ */
+public class MerkleTree {
+    public static final int DEPTH = 8;
+    public static final int LEAVES = 1 << DEPTH;
+    public static final int ROOT = 1;
+
+    private final long[] nodes = new long[2 * LEAVES];
+
+    public MerkleTree() {
+        for (int node = LEAVES - 1; node >= ROOT; node--) {
+            nodes[node] = combine(nodes[2 * node], nodes[2 * node + 1]);
+        }
+    }
+
+    /**
+     * @param keyHash the hash of a key
+     * @return the leaf, from 0 to LEAVES - 1, the key's entry is in
+     */
+    public static int leafOf(long keyHash) {
+        return (int) (keyHash >>> (64 - DEPTH));
+    }
+
+    /**
+     * Adds an entry to a leaf, or removes it if it is already there
+     * @param leaf the leaf of the entry's key
+     * @param entryHash the hash of the entry's key and value
+     */
+    public synchronized void toggle(int leaf, long entryHash) {
+        int node = LEAVES + leaf;
+        nodes[node] ^= entryHash;
+        for (node >>= 1; node >= ROOT; node >>= 1) {
+            nodes[node] = combine(nodes[2 * node], nodes[2 * node + 1]);
+        }
+    }
+
+    /**
+     * @param indexes node numbers
+     * @return the hash of each node
+     */
+    public synchronized long[] hashes(int[] indexes) {
+        long[] hashes = new long[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            hashes[i] = nodes[indexes[i]];
+        }
+        return hashes;
+    }
+
+    /**
+     * @return true if the node number is inside the tree
+     */
+    public static boolean isNode(int index) {
+        return index >= ROOT && index < 2 * LEAVES;
+    }
+
+    public static boolean isLeaf(int index) {
+        return index >= LEAVES && index < 2 * LEAVES;
+    }
+
+    private static long combine(long left, long right) {
+        long h = left * 0x9e3779b97f4a7c15L + right;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
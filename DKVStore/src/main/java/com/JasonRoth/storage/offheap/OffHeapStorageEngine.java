@@ -0,0 +1,375 @@
+package com.JasonRoth.storage.offheap;
+
+import com.JasonRoth.storage.StorageEngine;
+import com.JasonRoth.util.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * In-memory engine that keeps keys and values outside the Java heap, so millions of entries add nothing for the
+ * garbage collector to trace. Entries are stored as UTF-8 in chunks from a {@link SlabAllocator}, laid out as
+ * 4 byte key length, 4 byte value length, key, value.
+ *
+ * The index is an open addressing hash table with linear probing, itself in direct memory. Each 16 byte slot holds
+ * the key's 64 bit hash and the address of its chunk, so probes only touch an entry when the full hash matches.
+ * The table is split into segments by the top bits of the hash, each with its own lock and table, which keeps
+ * writers from serializing on one lock and each table well below the 2GB limit of a single buffer.
+ *
+ * A reservation is the chunk the entry will be written to, allocated before the write is logged so a full store
+ * refuses the write up front.
+ */
+public class OffHeapStorageEngine implements StorageEngine {
+    private static final int SEGMENT_BITS = 6;
+    private static final int SLOT_SIZE = 16;
+    private static final int INITIAL_SLOTS = 1024;
+    private static final double MAX_LOAD = 0.75;
+    private static final long DELETED = -1; //slot of a removed entry, probing continues past it
+    private static final int FOR_EACH_BATCH_SLOTS = 4096; //slots copied out per read lock hold while iterating
+
+    private final SlabAllocator allocator;
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+    /**
+     * @param maxBytes the most off-heap memory used for entries, writes fail once it is reached
+     */
+    public OffHeapStorageEngine(long maxBytes) {
+        allocator = new SlabAllocator(maxBytes);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = Hashing.hash64(keyBytes);
+        Segment segment = segmentFor(hash);
+        segment.lock.readLock().lock();
+        try {
+            int slot = segment.find(hash, keyBytes);
+            if (slot < 0) {
+                return null;
+            }
+            long address = segment.addressAt(slot);
+            ByteBuffer buffer = allocator.buffer(address);
+            int offset = allocator.offset(address);
+            int keyLength = buffer.getInt(offset);
+            byte[] value = new byte[buffer.getInt(offset + 4)];
+            buffer.get(offset + 8 + keyLength, value);
+            return new String(value, StandardCharsets.UTF_8);
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = Hashing.hash64(keyBytes);
+        Segment segment = segmentFor(hash);
+        segment.lock.readLock().lock();
+        try {
+            return segment.find(hash, keyBytes) >= 0;
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(String key, String value) {
+        put(key, value, SlabAllocator.NO_ADDRESS);
+    }
+
+    /**
+     * @return the chunk the entry will be written to
+     * @throws java.io.UncheckedIOException if the memory limit has been reached
+     */
+    @Override
+    public long reserve(String key, String value) {
+        return allocator.allocate(entrySize(key, value));
+    }
+
+    @Override
+    public void put(String key, String value, long reservation) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        long hash = Hashing.hash64(keyBytes);
+        int size = 8 + keyBytes.length + valueBytes.length;
+        Segment segment = segmentFor(hash);
+        segment.lock.writeLock().lock();
+        try {
+            int slot = segment.find(hash, keyBytes);
+            if (slot >= 0) {
+                long oldAddress = segment.addressAt(slot);
+                int oldSize = entrySize(oldAddress);
+                if (allocator.sameSizeClass(size, oldSize)) {
+                    //the new value fits the old chunk, overwrite it in place
+                    writeEntry(oldAddress, keyBytes, valueBytes);
+                    if (reservation != SlabAllocator.NO_ADDRESS) {
+                        allocator.free(reservation, size);
+                    }
+                    return;
+                }
+                long address = reservation != SlabAllocator.NO_ADDRESS ? reservation : allocator.allocate(size);
+                writeEntry(address, keyBytes, valueBytes);
+                segment.setSlot(slot, hash, address);
+                allocator.free(oldAddress, oldSize);
+                return;
+            }
+            long address = reservation != SlabAllocator.NO_ADDRESS ? reservation : allocator.allocate(size);
+            writeEntry(address, keyBytes, valueBytes);
+            segment.insert(hash, address);
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void release(String key, String value, long reservation) {
+        if (reservation != SlabAllocator.NO_ADDRESS) {
+            allocator.free(reservation, entrySize(key, value));
+        }
+    }
+
+    @Override
+    public void delete(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = Hashing.hash64(keyBytes);
+        Segment segment = segmentFor(hash);
+        segment.lock.writeLock().lock();
+        try {
+            int slot = segment.find(hash, keyBytes);
+            if (slot >= 0) {
+                long address = segment.addressAt(slot);
+                segment.setSlot(slot, hash, DELETED);
+                segment.size--;
+                segment.deleted++;
+                allocator.free(address, entrySize(address));
+            }
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copies entries out a batch of slots at a time so writers to a segment are only held up briefly. If the
+     * segment's table is resized between batches its iteration starts over, which can visit entries twice.
+     */
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        List<String[]> batch = new ArrayList<>();
+        for (Segment segment : segments) {
+            ByteBuffer table = null;
+            int slot = 0;
+            boolean done = false;
+            while (!done) {
+                batch.clear();
+                segment.lock.readLock().lock();
+                try {
+                    if (segment.table != table) {
+                        table = segment.table;
+                        slot = 0;
+                    }
+                    int end = Math.min(slot + FOR_EACH_BATCH_SLOTS, segment.mask + 1);
+                    for (; slot < end; slot++) {
+                        long address = segment.addressAt(slot);
+                        if (address != SlabAllocator.NO_ADDRESS && address != DELETED) {
+                            batch.add(readEntry(address));
+                        }
+                    }
+                    done = slot > segment.mask;
+                } finally {
+                    segment.lock.readLock().unlock();
+                }
+                for (String[] entry : batch) {
+                    action.accept(entry[0], entry[1]);
+                }
+            }
+        }
+    }
+
+    private String[] readEntry(long address) {
+        ByteBuffer buffer = allocator.buffer(address);
+        int offset = allocator.offset(address);
+        byte[] key = new byte[buffer.getInt(offset)];
+        byte[] value = new byte[buffer.getInt(offset + 4)];
+        buffer.get(offset + 8, key);
+        buffer.get(offset + 8 + key.length, value);
+        return new String[]{new String(key, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8)};
+    }
+
+    /**
+     * @return the number of entries stored
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            segment.lock.readLock().lock();
+            try {
+                size += segment.size;
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return off-heap bytes reserved for entries
+     */
+    public long reservedBytes() {
+        return allocator.reservedBytes();
+    }
+
+    /**
+     * Drops every entry. Direct buffers can't be freed explicitly, the memory is returned once they are collected.
+     */
+    @Override
+    public void close() {
+        for (Segment segment : segments) {
+            segment.lock.writeLock().lock();
+            try {
+                segment.clear();
+            } finally {
+                segment.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> (64 - SEGMENT_BITS))];
+    }
+
+    private static int entrySize(String key, String value) {
+        return 8 + key.getBytes(StandardCharsets.UTF_8).length + value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private int entrySize(long address) {
+        ByteBuffer buffer = allocator.buffer(address);
+        int offset = allocator.offset(address);
+        return 8 + buffer.getInt(offset) + buffer.getInt(offset + 4);
+    }
+
+    private void writeEntry(long address, byte[] key, byte[] value) {
+        ByteBuffer buffer = allocator.buffer(address);
+        int offset = allocator.offset(address);
+        buffer.putInt(offset, key.length);
+        buffer.putInt(offset + 4, value.length);
+        buffer.put(offset + 8, key);
+        buffer.put(offset + 8 + key.length, value);
+    }
+
+    private boolean keyEquals(long address, byte[] key) {
+        ByteBuffer buffer = allocator.buffer(address);
+        int offset = allocator.offset(address);
+        if (buffer.getInt(offset) != key.length) {
+            return false;
+        }
+        int keyOffset = offset + 8;
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(keyOffset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * One hash table of the index, guarded by its lock. Readers take the read lock so a chunk can't be freed and
+     * reused while they copy out of it.
+     */
+    private class Segment {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        ByteBuffer table;
+        int mask;
+        int size;
+        int deleted;
+
+        Segment() {
+            clear();
+        }
+
+        void clear() {
+            table = ByteBuffer.allocateDirect(INITIAL_SLOTS * SLOT_SIZE);
+            mask = INITIAL_SLOTS - 1;
+            size = 0;
+            deleted = 0;
+        }
+
+        long addressAt(int slot) {
+            return table.getLong(slot * SLOT_SIZE + 8);
+        }
+
+        void setSlot(int slot, long hash, long address) {
+            table.putLong(slot * SLOT_SIZE, hash);
+            table.putLong(slot * SLOT_SIZE + 8, address);
+        }
+
+        /**
+         * @return the slot holding the key, or -1
+         */
+        int find(long hash, byte[] key) {
+            int slot = (int) hash & mask;
+            while (true) {
+                long address = addressAt(slot);
+                if (address == SlabAllocator.NO_ADDRESS) {
+                    return -1;
+                }
+                if (address != DELETED && table.getLong(slot * SLOT_SIZE) == hash && keyEquals(address, key)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        /**
+         * Adds an entry for a key that isn't in the table yet
+         */
+        void insert(long hash, long address) {
+            if (size + deleted + 1 > (mask + 1) * MAX_LOAD) {
+                resize();
+            }
+            int slot = (int) hash & mask;
+            long existing;
+            while ((existing = addressAt(slot)) != SlabAllocator.NO_ADDRESS && existing != DELETED) {
+                slot = (slot + 1) & mask;
+            }
+            if (existing == DELETED) {
+                deleted--;
+            }
+            setSlot(slot, hash, address);
+            size++;
+        }
+
+        /**
+         * Rebuilds the table without deleted slots, doubling it if live entries alone would pass half the capacity
+         */
+        private void resize() {
+            int capacity = mask + 1;
+            while ((size + 1) > capacity * MAX_LOAD / 2) {
+                capacity *= 2;
+            }
+            ByteBuffer oldTable = table;
+            int oldSlots = mask + 1;
+            table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+            mask = capacity - 1;
+            deleted = 0;
+            for (int i = 0; i < oldSlots; i++) {
+                long address = oldTable.getLong(i * SLOT_SIZE + 8);
+                if (address != SlabAllocator.NO_ADDRESS && address != DELETED) {
+                    long hash = oldTable.getLong(i * SLOT_SIZE);
+                    int slot = (int) hash & mask;
+                    while (addressAt(slot) != SlabAllocator.NO_ADDRESS) {
+                        slot = (slot + 1) & mask;
+                    }
+                    setSlot(slot, hash, address);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.JasonRoth.storage.offheap;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out chunks of off-heap memory, in the style of memcached's slab allocator. Memory is reserved from the OS in
+ * large direct buffers (slabs), which are cut into pages. Each size class takes whole pages and carves them into
+ * chunks of its size. Freed chunks go on a per class free list that is threaded through the free chunks themselves,
+ * so the allocator keeps no per chunk state on the heap.
+ *
+ * A chunk is identified by a long address, the slab number plus one in the high 32 bits and the offset in the low 32
+ * bits, so 0 is never a valid address. Chunks too big for a page get a direct buffer of their own instead.
+ */
+class SlabAllocator {
+    static final int PAGE_SIZE = 1024 * 1024;
+    static final long NO_ADDRESS = 0;
+    private static final int SLAB_SIZE = 64 * PAGE_SIZE;
+    private static final int MIN_CHUNK_SIZE = 64;
+    private static final double GROWTH_FACTOR = 1.25;
+    private static final long LARGE_CHUNK_FLAG = 1L << 62;
+
+    private final long maxBytes;
+    private final int slabSize;
+    private final int[] chunkSizes;
+    private final SizeClass[] sizeClasses;
+    private final Map<Long, ByteBuffer> largeChunks = new ConcurrentHashMap<>();
+    private final AtomicLong nextLargeChunkId = new AtomicLong(1);
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+    private int pagesUsedInLastSlab = 0; //guarded by this
+
+    /**
+     * Free list and current page of one chunk size
+     */
+    private static class SizeClass {
+        final int chunkSize;
+        long freeHead = NO_ADDRESS;
+        long nextInPage = NO_ADDRESS;
+        int remainingInPage = 0;
+
+        SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+    }
+
+    /**
+     * @param maxBytes the most off-heap memory the allocator reserves for chunks
+     */
+    SlabAllocator(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.slabSize = (int) Math.max(PAGE_SIZE, Math.min(SLAB_SIZE, maxBytes / PAGE_SIZE * PAGE_SIZE));
+        int count = 0;
+        int[] sizes = new int[64];
+        for (double size = MIN_CHUNK_SIZE; size < PAGE_SIZE; size *= GROWTH_FACTOR) {
+            int aligned = ((int) size + 7) & ~7;
+            if (count == 0 || aligned > sizes[count - 1]) {
+                sizes[count++] = aligned;
+            }
+        }
+        sizes[count++] = PAGE_SIZE;
+        this.chunkSizes = Arrays.copyOf(sizes, count);
+        this.sizeClasses = new SizeClass[count];
+        for (int i = 0; i < count; i++) {
+            sizeClasses[i] = new SizeClass(chunkSizes[i]);
+        }
+    }
+
+    /**
+     * @param size bytes needed
+     * @return the address of a chunk of at least size bytes
+     * @throws UncheckedIOException if the memory limit has been reached
+     */
+    long allocate(int size) {
+        int sizeClass = sizeClassOf(size);
+        if (sizeClass < 0) {
+            reserve(size);
+            long address = LARGE_CHUNK_FLAG | nextLargeChunkId.getAndIncrement();
+            largeChunks.put(address, ByteBuffer.allocateDirect(size));
+            return address;
+        }
+        SizeClass sc = sizeClasses[sizeClass];
+        synchronized (sc) {
+            if (sc.freeHead != NO_ADDRESS) {
+                long address = sc.freeHead;
+                sc.freeHead = buffer(address).getLong(offset(address));
+                return address;
+            }
+            if (sc.remainingInPage == 0) {
+                sc.nextInPage = allocatePage();
+                sc.remainingInPage = PAGE_SIZE / sc.chunkSize;
+            }
+            long address = sc.nextInPage;
+            sc.nextInPage += sc.chunkSize;
+            sc.remainingInPage--;
+            return address;
+        }
+    }
+
+    /**
+     * Returns a chunk to its free list, the chunk must not be read after this
+     * @param address the chunk
+     * @param size the size it was allocated with
+     */
+    void free(long address, int size) {
+        if ((address & LARGE_CHUNK_FLAG) != 0) {
+            largeChunks.remove(address);
+            reservedBytes.addAndGet(-size);
+            return;
+        }
+        SizeClass sc = sizeClasses[sizeClassOf(size)];
+        synchronized (sc) {
+            buffer(address).putLong(offset(address), sc.freeHead);
+            sc.freeHead = address;
+        }
+    }
+
+    /**
+     * @return true if chunks allocated for both sizes come from the same size class, so one can be reused for the other
+     */
+    boolean sameSizeClass(int size, int otherSize) {
+        int sizeClass = sizeClassOf(size);
+        return sizeClass >= 0 && sizeClass == sizeClassOf(otherSize);
+    }
+
+    /**
+     * @return the buffer holding the chunk, use with {@link #offset(long)}
+     */
+    ByteBuffer buffer(long address) {
+        if ((address & LARGE_CHUNK_FLAG) != 0) {
+            return largeChunks.get(address);
+        }
+        return slabs[(int) (address >>> 32) - 1];
+    }
+
+    /**
+     * @return where the chunk starts in its buffer
+     */
+    int offset(long address) {
+        return (address & LARGE_CHUNK_FLAG) != 0 ? 0 : (int) address;
+    }
+
+    long reservedBytes() {
+        return reservedBytes.get();
+    }
+
+    private int sizeClassOf(int size) {
+        if (size > PAGE_SIZE) {
+            return -1;
+        }
+        int index = Arrays.binarySearch(chunkSizes, size);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private synchronized long allocatePage() {
+        ByteBuffer[] current = slabs;
+        if (current.length == 0 || pagesUsedInLastSlab == slabSize / PAGE_SIZE) {
+            reserve(slabSize);
+            ByteBuffer[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = ByteBuffer.allocateDirect(slabSize);
+            slabs = grown;
+            pagesUsedInLastSlab = 0;
+        }
+        int slabNumber = slabs.length; //one based
+        return ((long) slabNumber << 32) | ((long) pagesUsedInLastSlab++ * PAGE_SIZE);
+    }
+
+    private void reserve(long bytes) {
+        if (reservedBytes.addAndGet(bytes) > maxBytes) {
+            reservedBytes.addAndGet(-bytes);
+            //reported like a full disk, so the write paths fail the write as they would any storage error
+            throw new UncheckedIOException(new IOException("Off-heap storage is full, " + maxBytes + " bytes reserved"));
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.JasonRoth.storage.snapshot;
+
+import com.JasonRoth.storage.StorageEngine;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Lets a restarted node serve requests while its snapshot is still being loaded. Reads go to the engine first and fall
+ * through to the memory mapped {@link Snapshot}, while {@link #hydrate()} copies the snapshot into the engine in the
+ * background. A key written or deleted during the restore is never overwritten by the older snapshot value, and once
+ * hydration finishes the snapshot is dropped and this is a plain pass-through.
+ */
+public class RecoveringStorageEngine implements StorageEngine {
+    private static final int LOCK_STRIPES = 256;
+
+    private final StorageEngine engine;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    //keys deleted while restoring, their snapshot values must stay hidden
+    private final Set<String> deletedKeys = ConcurrentHashMap.newKeySet();
+    private volatile Snapshot snapshot;
+
+    /**
+     * @param engine the engine that ends up holding every pair
+     */
+    public RecoveringStorageEngine(StorageEngine engine) {
+        this.engine = engine;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Starts serving the snapshot's pairs underneath the engine's. Must be called before any write.
+     * @param snapshot the snapshot to restore
+     */
+    public void restoreFrom(Snapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @return true until the snapshot being restored has been fully copied into the engine
+     */
+    public boolean isRestoring() {
+        return snapshot != null;
+    }
+
+    /**
+     * Copies every snapshot pair the engine doesn't already have a newer value or a delete for into the engine, then
+     * drops the snapshot
+     * @return the number of pairs copied
+     * @throws IOException if the snapshot can't be closed
+     */
+    public long hydrate() throws IOException {
+        Snapshot restoring = snapshot;
+        if (restoring == null) {
+            return 0;
+        }
+        long[] copied = {0};
+        restoring.forEach((key, value) -> {
+            synchronized (lockFor(key)) {
+                if (!deletedKeys.contains(key) && !engine.containsKey(key)) {
+                    engine.put(key, value);
+                    copied[0]++;
+                }
+            }
+        });
+        snapshot = null;
+        restoring.close();
+        return copied[0];
+    }
+
+    @Override
+    public String get(String key) {
+        Snapshot restoring = snapshot;
+        String value = engine.get(key);
+        if (value != null || restoring == null || deletedKeys.contains(key)) {
+            return value;
+        }
+        return restoring.get(key);
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        Snapshot restoring = snapshot;
+        if (engine.containsKey(key)) {
+            return true;
+        }
+        return restoring != null && !deletedKeys.contains(key) && restoring.get(key) != null;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        if (snapshot == null) {
+            engine.put(key, value);
+            return;
+        }
+        synchronized (lockFor(key)) {
+            engine.put(key, value);
+        }
+    }
+
+    @Override
+    public long reserve(String key, String value) {
+        return engine.reserve(key, value);
+    }
+
+    @Override
+    public void put(String key, String value, long reservation) {
+        if (snapshot == null) {
+            engine.put(key, value, reservation);
+            return;
+        }
+        synchronized (lockFor(key)) {
+            engine.put(key, value, reservation);
+        }
+    }
+
+    @Override
+    public void release(String key, String value, long reservation) {
+        engine.release(key, value, reservation);
+    }
+
+    @Override
+    public void delete(String key) {
+        if (snapshot == null) {
+            engine.delete(key);
+            return;
+        }
+        synchronized (lockFor(key)) {
+            deletedKeys.add(key);
+            engine.delete(key);
+        }
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        Snapshot restoring = snapshot;
+        engine.forEach(action);
+        if (restoring != null) {
+            restoring.forEach((key, value) -> {
+                if (!deletedKeys.contains(key) && !engine.containsKey(key)) {
+                    action.accept(key, value);
+                }
+            });
+        }
+    }
+
+    private Object lockFor(String key) {
+        return locks[(key.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return engine.isPersistent();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        engine.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        Snapshot restoring = snapshot;
+        if (restoring != null) {
+            restoring.close();
+        }
+        engine.close();
+    }
+}
@@ -0,0 +1,295 @@
+package com.JasonRoth.storage.snapshot;
+
+import com.JasonRoth.storage.StorageEngine;
+import com.JasonRoth.util.Hashing;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * A point-in-time copy of a node's data in one file, read through memory mapping so a restarted node can serve
+ * lookups straight from it while the OS pages it in on demand. The file is laid out as:
+ * header - 4 byte magic number, 4 byte format version, 8 byte log sequence number of the cut, 8 byte entry count,
+ *          8 byte index offset
+ * data - entries of 4 byte key length, 4 byte value length, key, value
+ * index - 8 byte key hash and 8 byte entry offset for every entry, sorted by hash
+ * A lookup binary searches the index and reads a single entry, nothing is loaded up front.
+ */
+public class Snapshot implements Closeable {
+    private static final int MAGIC = 0x534E4150; //"SNAP"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final long REGION_SIZE = 1L << 30; //a single mapping is limited to 2GB
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] regions;
+    private final long cutLsn;
+    private final long entryCount;
+    private final long indexOffset;
+
+    private Snapshot(Path file, FileChannel channel) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        long size = channel.size();
+        regions = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) / REGION_SIZE)];
+        for (int i = 0; i < regions.length; i++) {
+            long start = i * REGION_SIZE;
+            regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, size - start));
+        }
+        if (size < HEADER_SIZE || readInt(0) != MAGIC || readInt(4) != FORMAT_VERSION) {
+            throw new IOException("Not a snapshot: " + file);
+        }
+        cutLsn = readLong(8);
+        entryCount = readLong(16);
+        indexOffset = readLong(24);
+        if (indexOffset + entryCount * INDEX_ENTRY_SIZE != size) {
+            throw new IOException("Truncated snapshot: " + file);
+        }
+    }
+
+    /**
+     * Maps a snapshot file, only the header is read
+     * @param file the snapshot
+     * @return the mapped snapshot
+     * @throws IOException if the file can't be mapped or isn't a complete snapshot
+     */
+    public static Snapshot open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new Snapshot(file, channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes every pair of the engine to a new snapshot file. The engine keeps taking writes while it is copied,
+     * so the snapshot is fuzzy: it holds every write up to the cut plus some later ones, replaying the log from the
+     * cut on top of it gives the exact state.
+     * @param file where to write the snapshot
+     * @param cutLsn the log sequence number every write up to which is in the engine
+     * @param engine the engine to copy
+     * @return the number of entries written
+     * @throws IOException if the file can't be written
+     */
+    public static long write(Path file, long cutLsn, StorageEngine engine) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            channel.position(HEADER_SIZE);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 256 * 1024));
+            long[] position = {HEADER_SIZE};
+            IndexBuilder index = new IndexBuilder();
+            try {
+                engine.forEach((key, value) -> {
+                    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                    byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+                    try {
+                        out.writeInt(keyBytes.length);
+                        out.writeInt(valueBytes.length);
+                        out.write(keyBytes);
+                        out.write(valueBytes);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    index.add(Hashing.hash64(keyBytes), position[0]);
+                    position[0] += 8 + keyBytes.length + valueBytes.length;
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            long indexOffset = position[0];
+            index.sort();
+            for (int i = 0; i < index.size; i++) {
+                out.writeLong(index.hashes[i]);
+                out.writeLong(index.offsets[i]);
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(cutLsn).putLong(index.size).putLong(indexOffset).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+            return index.size;
+        }
+    }
+
+    /**
+     * @param key the key to look up
+     * @return the value in the snapshot, or null
+     */
+    public String get(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = Hashing.hash64(keyBytes);
+        //first index entry with this hash
+        long low = 0;
+        long high = entryCount;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (readLong(indexOffset + mid * INDEX_ENTRY_SIZE) < hash) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (long i = low; i < entryCount && readLong(indexOffset + i * INDEX_ENTRY_SIZE) == hash; i++) {
+            long offset = readLong(indexOffset + i * INDEX_ENTRY_SIZE + 8);
+            int keyLength = readInt(offset);
+            if (keyLength != keyBytes.length) {
+                continue;
+            }
+            byte[] candidate = new byte[keyLength];
+            read(offset + 8, candidate);
+            if (Arrays.equals(candidate, keyBytes)) {
+                byte[] value = new byte[readInt(offset + 4)];
+                read(offset + 8 + keyLength, value);
+                return new String(value, StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Visits every entry in file order
+     */
+    public void forEach(BiConsumer<String, String> action) {
+        long offset = HEADER_SIZE;
+        while (offset < indexOffset) {
+            byte[] key = new byte[readInt(offset)];
+            byte[] value = new byte[readInt(offset + 4)];
+            read(offset + 8, key);
+            read(offset + 8 + key.length, value);
+            action.accept(new String(key, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8));
+            offset += 8 + key.length + value.length;
+        }
+    }
+
+    public long getCutLsn() {
+        return cutLsn;
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    private void read(long position, byte[] destination) {
+        int copied = 0;
+        while (copied < destination.length) {
+            MappedByteBuffer region = regions[(int) (position / REGION_SIZE)];
+            int inRegion = (int) (position % REGION_SIZE);
+            int length = Math.min(destination.length - copied, region.capacity() - inRegion);
+            region.get(inRegion, destination, copied, length);
+            copied += length;
+            position += length;
+        }
+    }
+
+    private int readInt(long position) {
+        MappedByteBuffer region = regions[(int) (position / REGION_SIZE)];
+        int inRegion = (int) (position % REGION_SIZE);
+        if (inRegion + 4 <= region.capacity()) {
+            return region.getInt(inRegion);
+        }
+        byte[] bytes = new byte[4];
+        read(position, bytes);
+        return ByteBuffer.wrap(bytes).getInt();
+    }
+
+    private long readLong(long position) {
+        MappedByteBuffer region = regions[(int) (position / REGION_SIZE)];
+        int inRegion = (int) (position % REGION_SIZE);
+        if (inRegion + 8 <= region.capacity()) {
+            return region.getLong(inRegion);
+        }
+        byte[] bytes = new byte[8];
+        read(position, bytes);
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    /**
+     * Closes the file, the mappings stay valid until they are garbage collected
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Hash and offset of every written entry, in two parallel arrays so a large snapshot doesn't need an object per entry
+     */
+    private static class IndexBuilder {
+        long[] hashes = new long[1024];
+        long[] offsets = new long[1024];
+        int size = 0;
+
+        void add(long hash, long offset) {
+            if (size == hashes.length) {
+                hashes = Arrays.copyOf(hashes, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            hashes[size] = hash;
+            offsets[size] = offset;
+            size++;
+        }
+
+        void sort() {
+            quicksort(0, size - 1);
+        }
+
+        private void quicksort(int low, int high) {
+            while (high - low > 16) {
+                long pivot = hashes[(low + high) >>> 1];
+                int i = low;
+                int j = high;
+                while (i <= j) {
+                    while (hashes[i] < pivot) {
+                        i++;
+                    }
+                    while (hashes[j] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(i++, j--);
+                    }
+                }
+                //recurse into the smaller half so the stack stays shallow
+                if (j - low < high - i) {
+                    quicksort(low, j);
+                    low = i;
+                } else {
+                    quicksort(i, high);
+                    high = j;
+                }
+            }
+            for (int i = low + 1; i <= high; i++) {
+                for (int j = i; j > low && hashes[j - 1] > hashes[j]; j--) {
+                    swap(j, j - 1);
+                }
+            }
+        }
+
+        private void swap(int a, int b) {
+            long hash = hashes[a];
+            hashes[a] = hashes[b];
+            hashes[b] = hash;
+            long offset = offsets[a];
+            offsets[a] = offsets[b];
+            offsets[b] = offset;
+        }
+    }
+}
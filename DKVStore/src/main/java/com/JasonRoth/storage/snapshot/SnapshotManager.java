@@ -0,0 +1,198 @@
+package com.JasonRoth.storage.snapshot;
+
+import com.JasonRoth.metrics.MetricsRegistry;
+import com.JasonRoth.storage.LoggedStorageEngine;
+import com.JasonRoth.storage.WriteAheadLog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Recovers a node's data on startup and takes periodic snapshots so the write-ahead log stays short.
+ *
+ * A snapshot is taken without stopping writes: the log is cut at a point where every earlier record is applied,
+ * then the engine is copied out while it keeps changing. On restart the snapshot is mapped and served right away,
+ * the log records after its cut are replayed on top, and the snapshot is copied into the engine in the background.
+ * Engines that persist their own data are flushed at the cut instead of copied.
+ */
+public class SnapshotManager implements Closeable {
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final LoggedStorageEngine dataStore;
+    private final RecoveringStorageEngine recoveringStore;
+    private final WriteAheadLog writeAheadLog;
+    private final long intervalSeconds;
+    private final MetricsRegistry metrics;
+    private final Logger logger;
+    private final ScheduledExecutorService executor;
+    private final AtomicLong lastSnapshotEntries = new AtomicLong();
+    private final AtomicLong lastSnapshotBytes = new AtomicLong();
+
+    /**
+     * @param directory the node's directory, snapshots are kept next to the log
+     * @param dataStore the engine writes go through, used to cut the log
+     * @param recoveringStore the engine below the log, restored from the latest snapshot
+     * @param writeAheadLog the node's log
+     * @param intervalSeconds seconds between snapshots, 0 disables them
+     * @param metrics where snapshot and recovery metrics are recorded
+     * @param logger the node's logger
+     */
+    public SnapshotManager(Path directory, LoggedStorageEngine dataStore, RecoveringStorageEngine recoveringStore,
+                           WriteAheadLog writeAheadLog, long intervalSeconds, MetricsRegistry metrics, Logger logger) {
+        this.directory = directory;
+        this.dataStore = dataStore;
+        this.recoveringStore = recoveringStore;
+        this.writeAheadLog = writeAheadLog;
+        this.intervalSeconds = intervalSeconds;
+        this.metrics = metrics;
+        this.logger = logger;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshot-" + directory.getFileName());
+            t.setDaemon(true);
+            return t;
+        });
+        metrics.gauge("snapshot.lastEntries", lastSnapshotEntries::get);
+        metrics.gauge("snapshot.lastBytes", lastSnapshotBytes::get);
+    }
+
+    /**
+     * Maps the latest snapshot, replays the log after it and starts copying the snapshot into the engine in the
+     * background. Must be called before the node takes any write.
+     * @throws IOException if the snapshot or the log can't be read
+     */
+    public void recover() throws IOException {
+        long afterLsn = 0;
+        Path latest = latestSnapshot();
+        if (latest != null && !recoveringStore.isPersistent()) {
+            long start = System.nanoTime();
+            Snapshot snapshot = Snapshot.open(latest);
+            recoveringStore.restoreFrom(snapshot);
+            afterLsn = snapshot.getCutLsn();
+            lastSnapshotEntries.set(snapshot.getEntryCount());
+            lastSnapshotBytes.set(Files.size(latest));
+            metrics.timer("snapshot.load").recordSince(start);
+            logger.log(Level.INFO, "Mapped snapshot {0} with {1} entries", new Object[]{latest.getFileName(), snapshot.getEntryCount()});
+        }
+
+        long start = System.nanoTime();
+        long replayed = writeAheadLog.replay(recoveringStore, afterLsn);
+        metrics.timer("wal.replay").recordSince(start);
+        metrics.counter("wal.replayedRecords").add(replayed);
+
+        if (recoveringStore.isRestoring()) {
+            executor.execute(this::hydrate);
+        }
+    }
+
+    private void hydrate() {
+        long start = System.nanoTime();
+        try {
+            long copied = recoveringStore.hydrate();
+            metrics.timer("snapshot.hydrate").recordSince(start);
+            logger.log(Level.INFO, "Loaded {0} snapshot entries into the storage engine", copied);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to load snapshot into the storage engine", e);
+        }
+    }
+
+    /**
+     * Starts taking snapshots every intervalSeconds
+     */
+    public void start() {
+        if (intervalSeconds > 0) {
+            executor.scheduleWithFixedDelay(this::snapshotQuietly, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    private void snapshotQuietly() {
+        try {
+            takeSnapshot();
+        } catch (Exception e) {
+            metrics.counter("snapshot.failures").increment();
+            logger.log(Level.SEVERE, "Snapshot failed", e);
+        }
+    }
+
+    /**
+     * Cuts the log, stores everything up to the cut and deletes the log segments it replaces. Skipped while an
+     * earlier snapshot is still being restored.
+     * @throws IOException if the snapshot can't be written
+     */
+    public void takeSnapshot() throws IOException {
+        if (recoveringStore.isRestoring()) {
+            return;
+        }
+        long start = System.nanoTime();
+        long cutLsn = dataStore.checkpoint();
+        Path file = directory.resolve(String.format("%s%020d%s", SNAPSHOT_PREFIX, cutLsn, SNAPSHOT_SUFFIX));
+        if (dataStore.isPersistent()) {
+            dataStore.flush();
+        } else if (!Files.exists(file)) { //no write since the last snapshot otherwise
+            Path temp = directory.resolve(file.getFileName() + TEMP_SUFFIX);
+            Files.deleteIfExists(temp);
+            long entries = Snapshot.write(temp, cutLsn, dataStore);
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            lastSnapshotEntries.set(entries);
+            lastSnapshotBytes.set(Files.size(file));
+            for (Path older : listSnapshots()) {
+                if (!older.equals(file)) {
+                    Files.deleteIfExists(older);
+                }
+            }
+            logger.log(Level.INFO, "Wrote snapshot {0} with {1} entries", new Object[]{file.getFileName(), entries});
+        }
+        int deleted = writeAheadLog.deleteSegmentsBeforeCurrent();
+        metrics.timer("snapshot.create").recordSince(start);
+        logger.log(Level.FINE, "Deleted {0} write-ahead log segments up to {1}", new Object[]{deleted, cutLsn});
+    }
+
+    private Path latestSnapshot() throws IOException {
+        List<Path> snapshots = listSnapshots();
+        return snapshots.isEmpty() ? null : snapshots.get(snapshots.size() - 1);
+    }
+
+    /**
+     * @return the snapshot files, oldest first. Leftovers of interrupted snapshots are deleted.
+     */
+    private List<Path> listSnapshots() throws IOException {
+        List<Path> snapshots = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return snapshots;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SNAPSHOT_PREFIX + "*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    Files.deleteIfExists(file);
+                } else if (name.endsWith(SNAPSHOT_SUFFIX)) {
+                    snapshots.add(file);
+                }
+            }
+        }
+        //the zero padded sequence number makes name order match age
+        snapshots.sort(null);
+        return snapshots;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.JasonRoth.storage.ttl;
+
+/**
+ * The encoding of a value's expiry in the value as it is stored.
+ *
+ * A value that expires is stored behind a header of a NUL character and its expiry time in epoch milliseconds as 16
+ * hex digits. Since the expiry is part of the stored value it travels with it everywhere values go, through
+ * forwarding and replication, hints, streaming to new replicas, anti-entropy, the write-ahead log and snapshots, and
+ * every replica expires the key at the same time. A value that doesn't expire is stored as it is, unless it starts
+ * with a NUL itself, then it gets a header with an expiry of 0 so it can't be mistaken for one.
+ *
+ * Values are encoded where clients hand them to the cluster and decoded where they are handed back, everything in
+ * between moves them as they are stored. Nodes before protocol version 11 don't know the header, they would serve it
+ * as part of the value and never expire the key, so values with a header are only written where every replica
+ * speaks version 11.
+ */
+public final class ExpiringValues {
+    private static final char MARKER = '\u0000';
+    private static final int HEADER_LENGTH = 17; //the marker and 16 hex digits
+
+    private ExpiringValues() {
+    }
+
+    /**
+     * @param value a value as the client gave it
+     * @param expiresAtMillis when it expires in epoch milliseconds, 0 if it doesn't
+     * @return the value as it is stored
+     */
+    public static String encode(String value, long expiresAtMillis) {
+        if (expiresAtMillis == 0 && (value.isEmpty() || value.charAt(0) != MARKER)) {
+            return value;
+        }
+        StringBuilder stored = new StringBuilder(HEADER_LENGTH + value.length()).append(MARKER);
+        String hex = Long.toHexString(expiresAtMillis);
+        for (int i = hex.length(); i < HEADER_LENGTH - 1; i++) {
+            stored.append('0');
+        }
+        return stored.append(hex).append(value).toString();
+    }
+
+    /**
+     * @param stored a value as it is stored
+     * @return when it expires in epoch milliseconds, 0 if it doesn't
+     */
+    public static long expiresAt(String stored) {
+        if (!hasHeader(stored)) {
+            return 0;
+        }
+        return Long.parseUnsignedLong(stored, 1, HEADER_LENGTH, 16);
+    }
+
+    /**
+     * @param stored a value as it is stored, or null
+     * @return the stored value, or null if there is none or it expired
+     */
+    public static String live(String stored) {
+        if (stored == null) {
+            return null;
+        }
+        long expiresAt = expiresAt(stored);
+        return expiresAt != 0 && expiresAt <= System.currentTimeMillis() ? null : stored;
+    }
+
+    /**
+     * @param stored a value as it is stored, or null
+     * @return the value as the client gave it, or null if there is none or it expired
+     */
+    public static String decode(String stored) {
+        String live = live(stored);
+        return live == null || !hasHeader(live) ? live : live.substring(HEADER_LENGTH);
+    }
+
+    /**
+     * @param stored a value as it is stored
+     * @return true if the value has a header, which nodes before protocol version 11 don't understand
+     */
+    public static boolean isEncoded(String stored) {
+        return hasHeader(stored);
+    }
+
+    private static boolean hasHeader(String stored) {
+        if (stored.length() < HEADER_LENGTH || stored.charAt(0) != MARKER) {
+            return false;
+        }
+        for (int i = 1; i < HEADER_LENGTH; i++) {
+            if (Character.digit(stored.charAt(i), 16) < 0) {
+                return false; //stored before expiry existed, a plain value
+            }
+        }
+        return true;
+    }
+}
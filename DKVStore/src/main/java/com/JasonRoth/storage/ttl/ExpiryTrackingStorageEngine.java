@@ -0,0 +1,169 @@
+package com.JasonRoth.storage.ttl;
+
+import com.JasonRoth.metrics.MetricsRegistry;
+import com.JasonRoth.storage.PartialWriteException;
+import com.JasonRoth.storage.StorageEngine;
+import com.JasonRoth.storage.WriteBatch;
+import com.JasonRoth.storage.merkle.MerkleTrackingStorageEngine;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reclaims the keys whose values expired, see {@link ExpiringValues}. Every write passing through is looked at, a
+ * value with an expiry sets a timer for its key in a {@link TimingWheel} and any other write of the key cancels it.
+ * Once a key's timer fires it is deleted through the {@link MerkleTrackingStorageEngine} above, so the delete is
+ * logged and the key's tree kept up to date like any other write, and only if the key still holds the value that
+ * expired. Each replica expires its copy by itself, the delete isn't replicated.
+ *
+ * Reads pass through with the values as they are stored, expired or not, since the layers above must see what is
+ * stored. Reads are kept from returning expired values where they leave the node's internals, by
+ * {@link ExpiringValues#live} and {@link ExpiringValues#decode}, so an expired key is never served even before its
+ * timer fires.
+ */
+public class ExpiryTrackingStorageEngine implements StorageEngine {
+    private final StorageEngine engine;
+    private final long tickMillis;
+    private final TimingWheel wheel;
+    private final MetricsRegistry metrics;
+    private final Logger logger;
+    private final ScheduledExecutorService ticker;
+    private volatile MerkleTrackingStorageEngine trackedStore; //the engine above this one, expired keys are deleted through it
+
+    /**
+     * @param engine the engine writes are applied to
+     * @param tickMillis the resolution of the timing wheel, keys are reclaimed up to a tick after they expire
+     * @param metrics where reclaimed keys are counted
+     * @param logger the logger of this node
+     */
+    public ExpiryTrackingStorageEngine(StorageEngine engine, long tickMillis, MetricsRegistry metrics, Logger logger) {
+        this.engine = engine;
+        this.tickMillis = tickMillis;
+        this.wheel = new TimingWheel(tickMillis, System.currentTimeMillis());
+        this.metrics = metrics;
+        this.logger = logger;
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ttl-wheel");
+            t.setDaemon(true);
+            return t;
+        });
+        metrics.gauge("ttl.scheduledKeys", wheel::size);
+    }
+
+    /**
+     * Sets timers for the expiring keys already stored, which were restored from a snapshot or the log below this
+     * engine, and starts reclaiming expired keys. Scans the engine once.
+     * @param trackedStore the engine above this one
+     */
+    public void start(MerkleTrackingStorageEngine trackedStore) {
+        this.trackedStore = trackedStore;
+        engine.forEach((key, value) -> {
+            long expiresAt = ExpiringValues.expiresAt(value);
+            if (expiresAt != 0) {
+                wheel.schedule(key, expiresAt);
+            }
+        });
+        ticker.scheduleWithFixedDelay(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String get(String key) {
+        return engine.get(key);
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return engine.containsKey(key);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        engine.put(key, value);
+        track(key, value);
+    }
+
+    @Override
+    public void delete(String key) {
+        engine.delete(key);
+        wheel.cancel(key);
+    }
+
+    @Override
+    public void write(WriteBatch batch) {
+        List<WriteBatch.Operation> operations = batch.getOperations();
+        try {
+            engine.write(batch);
+        } catch (PartialWriteException e) {
+            //the writes that were applied still need their timers
+            for (WriteBatch.Operation operation : operations.subList(0, e.getApplied())) {
+                track(operation.key(), operation.value());
+            }
+            throw e;
+        }
+        for (WriteBatch.Operation operation : operations) {
+            track(operation.key(), operation.value());
+        }
+    }
+
+    /**
+     * Sets or cancels the key's timer, the writes of a key are serialized by the engine above
+     * @param value the key's new value, null if it was deleted
+     */
+    private void track(String key, String value) {
+        long expiresAt = value == null ? 0 : ExpiringValues.expiresAt(value);
+        if (expiresAt != 0) {
+            wheel.schedule(key, expiresAt);
+        } else {
+            wheel.cancel(key);
+        }
+    }
+
+    private void tick() {
+        List<TimingWheel.Expiry> expired = wheel.advance(System.currentTimeMillis());
+        long reclaimed = 0;
+        for (TimingWheel.Expiry expiry : expired) {
+            String key = expiry.key();
+            try {
+                String stored = trackedStore.get(key);
+                //a key written since its timer was set has a new timer, or none
+                if (stored != null && ExpiringValues.expiresAt(stored) == expiry.expiresAtMillis()
+                        && trackedStore.deleteIfUnchanged(key, MerkleTrackingStorageEngine.entryHash(key, stored))) {
+                    reclaimed++;
+                }
+            } catch (RuntimeException e) {
+                //the key stays hidden from reads, and is tried again on the next tick. A write since then set the
+                //timer of its own value, which isn't replaced, or cancelled it and this one finds the value changed
+                logger.log(Level.WARNING, "Failed to reclaim expired key " + key, e);
+                wheel.scheduleIfAbsent(key, expiry.expiresAtMillis());
+            }
+        }
+        metrics.counter("ttl.expiredKeys").add(reclaimed);
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        engine.forEach(action);
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return engine.isPersistent();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        engine.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        ticker.shutdownNow();
+        engine.close();
+    }
+}
@@ -0,0 +1,200 @@
+package com.JasonRoth.storage.ttl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A hierarchical timing wheel of key expiries, four levels of 64 slots. A slot of level 0 holds the keys expiring in
+ * one tick, a slot of level n the keys of 64^n ticks. Scheduling, rescheduling and cancelling a key are O(1), they
+ * link or unlink it in the list of its slot, and advancing the wheel a tick only touches the slot that is due.
+ *
+ * When level 0 wraps around, the next slot of level 1 is cascaded: its keys are spread over the slots of level 0 by
+ * their exact expiry, and likewise for the higher levels, so each key is moved at most once per level. A key expiring
+ * further out than the wheel spans, 64^4 ticks, is parked in the top level and placed again each time it comes round.
+ *
+ * A key has at most one timer, scheduling it again replaces the one it has.
+ */
+class TimingWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final Slot[][] wheels = new Slot[LEVELS][SLOTS];
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>(); //read without the lock to skip keys that have none
+    private long currentTick = 0;
+
+    /**
+     * A key's expiry, linked into the slot it is due in
+     */
+    record Expiry(String key, long expiresAtMillis) {
+    }
+
+    /**
+     * @param tickMillis the resolution of the wheel, keys expire up to a tick late
+     * @param nowMillis the current time, the wheel's first tick
+     */
+    TimingWheel(long tickMillis, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.startMillis = nowMillis;
+        for (Slot[] wheel : wheels) {
+            for (int i = 0; i < SLOTS; i++) {
+                wheel[i] = new Slot();
+            }
+        }
+    }
+
+    /**
+     * Sets the key to expire at the given time, replacing its timer if it has one
+     */
+    synchronized void schedule(String key, long expiresAtMillis) {
+        Timer timer = timers.get(key);
+        if (timer != null) {
+            if (timer.expiresAtMillis == expiresAtMillis) {
+                return;
+            }
+            timer.slot.unlink(timer);
+        }
+        //a key that already expired is due on the next tick
+        long deadline = Math.max(Math.ceilDiv(expiresAtMillis - startMillis, tickMillis), currentTick + 1);
+        timer = new Timer(key, expiresAtMillis, deadline);
+        timers.put(key, timer);
+        place(timer);
+    }
+
+    /**
+     * Sets the key to expire at the given time unless it has a timer, which is newer than the expiry
+     */
+    synchronized void scheduleIfAbsent(String key, long expiresAtMillis) {
+        if (!timers.containsKey(key)) {
+            schedule(key, expiresAtMillis);
+        }
+    }
+
+    /**
+     * Removes the key's timer, if it has one
+     */
+    void cancel(String key) {
+        if (!timers.containsKey(key)) {
+            return;
+        }
+        synchronized (this) {
+            Timer timer = timers.remove(key);
+            if (timer != null) {
+                timer.slot.unlink(timer);
+            }
+        }
+    }
+
+    /**
+     * Advances the wheel to the given time
+     * @return the keys whose expiry passed, their timers are removed
+     */
+    synchronized List<Expiry> advance(long nowMillis) {
+        List<Expiry> expired = new ArrayList<>();
+        long targetTick = (nowMillis - startMillis) / tickMillis;
+        while (currentTick < targetTick) {
+            currentTick++;
+            //the higher levels first, so the keys they cascade land in the slots that are due below them
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    Slot slot = wheels[level][slotIndex(currentTick, level)];
+                    for (Timer timer = slot.poll(); timer != null; timer = slot.poll()) {
+                        place(timer);
+                    }
+                }
+            }
+            Slot due = wheels[0][slotIndex(currentTick, 0)];
+            for (Timer timer = due.poll(); timer != null; timer = due.poll()) {
+                timers.remove(timer.key);
+                expired.add(new Expiry(timer.key, timer.expiresAtMillis));
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * @return how many keys have a timer
+     */
+    int size() {
+        return timers.size();
+    }
+
+    /**
+     * Links a timer into the lowest level whose span covers its deadline, the caller holds the lock
+     */
+    private void place(Timer timer) {
+        long ticksLeft = timer.deadline - currentTick;
+        for (int level = 0; level < LEVELS; level++) {
+            if (ticksLeft < 1L << (SLOT_BITS * (level + 1))) {
+                wheels[level][slotIndex(timer.deadline, level)].add(timer);
+                return;
+            }
+        }
+        //beyond the wheel, parked in the top level slot that comes round last
+        long parked = currentTick + (1L << (SLOT_BITS * LEVELS)) - 1;
+        wheels[LEVELS - 1][slotIndex(parked, LEVELS - 1)].add(timer);
+    }
+
+    private static int slotIndex(long tick, int level) {
+        return (int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1);
+    }
+
+    private static class Timer {
+        private final String key;
+        private final long expiresAtMillis;
+        private final long deadline; //the tick the key is due in
+        private Slot slot;
+        private Timer prev;
+        private Timer next;
+
+        private Timer(String key, long expiresAtMillis, long deadline) {
+            this.key = key;
+            this.expiresAtMillis = expiresAtMillis;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * A doubly linked list of the timers due in one slot
+     */
+    private static class Slot {
+        private final Timer head = new Timer(null, 0, 0); //sentinel, head.next is the first timer
+
+        private Slot() {
+            head.prev = head;
+            head.next = head;
+        }
+
+        private void add(Timer timer) {
+            timer.slot = this;
+            timer.prev = head.prev;
+            timer.next = head;
+            head.prev.next = timer;
+            head.prev = timer;
+        }
+
+        private void unlink(Timer timer) {
+            timer.prev.next = timer.next;
+            timer.next.prev = timer.prev;
+            timer.prev = null;
+            timer.next = null;
+            timer.slot = null;
+        }
+
+        /**
+         * @return the first timer, unlinked, or null if the slot is empty
+         */
+        private Timer poll() {
+            if (head.next == head) {
+                return null;
+            }
+            Timer first = head.next;
+            unlink(first);
+            return first;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.JasonRoth.util;
+
+import com.JasonRoth.ServerConfig;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors used across a node according to the configured {@link ServerConfig.ExecutionModel}
+ */
+public class ExecutorFactory {
+
+    /**
+     * @param model the execution model
+     * @param name prefix for the names of the executor's threads
+     * @param fixedThreads the pool size when the model is FIXED
+     * @return a new executor, the caller is responsible for shutting it down
+     */
+    public static ExecutorService create(ServerConfig.ExecutionModel model, String name, int fixedThreads) {
+        return switch (model) {
+            case VIRTUAL -> Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+            case FIXED -> Executors.newFixedThreadPool(fixedThreads, platformThreads(name));
+            case CACHED -> Executors.newCachedThreadPool(platformThreads(name));
+        };
+    }
+
+    /**
+     * Creates an executor for tasks that hold their thread for a long time, such as serving a blocking connection.
+     * Those can't share a fixed pool without starving it, so the FIXED model falls back to a cached pool here.
+     * @param model the execution model
+     * @param name prefix for the names of the executor's threads
+     * @return a new executor, the caller is responsible for shutting it down
+     */
+    public static ExecutorService createForLongRunningTasks(ServerConfig.ExecutionModel model, String name) {
+        if (model == ServerConfig.ExecutionModel.VIRTUAL) {
+            return create(model, name, 0);
+        }
+        return Executors.newCachedThreadPool(platformThreads(name));
+    }
+
+    private static ThreadFactory platformThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
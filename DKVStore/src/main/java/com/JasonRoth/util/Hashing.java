@@ -0,0 +1,130 @@
+package com.JasonRoth.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hash functions shared by the ring and the storage engines
+ */
+public class Hashing {
+    private static final VarHandle LITTLE_ENDIAN_LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final int MAX_BUFFERED_KEY = 4096;
+    //ASCII keys are copied here instead of being encoded into a new array
+    private static final ThreadLocal<byte[]> KEY_BUFFER = ThreadLocal.withInitial(() -> new byte[256]);
+
+    /**
+     * 64 bit FNV-1a followed by the murmur3 finalizer to spread the bits, fast and good enough for hash tables and
+     * Bloom filters but not for anything adversarial
+     * @param data the bytes to hash
+     * @return the hash
+     */
+    public static long hash64(byte[] data) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : data) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * The first 64 bits of MurmurHash3 x64 128 with seed 0, the same as Guava's murmur3_128().asLong()
+     * @param data the bytes to hash
+     * @param offset where they start
+     * @param length how many to hash
+     * @return the hash
+     */
+    public static long murmur3(byte[] data, int offset, int length) {
+        long h1 = 0;
+        long h2 = 0;
+        int end = offset + (length & ~15);
+        for (int i = offset; i < end; i += 16) {
+            long k1 = (long) LITTLE_ENDIAN_LONG.get(data, i);
+            long k2 = (long) LITTLE_ENDIAN_LONG.get(data, i + 8);
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        long k1 = 0;
+        long k2 = 0;
+        int tail = length & 15;
+        for (int i = tail - 1; i >= 8; i--) {
+            k2 = (k2 << 8) | (data[end + i] & 0xFF);
+        }
+        for (int i = Math.min(tail, 8) - 1; i >= 0; i--) {
+            k1 = (k1 << 8) | (data[end + i] & 0xFF);
+        }
+        if (tail > 8) {
+            h2 ^= mixK2(k2);
+        }
+        if (tail > 0) {
+            h1 ^= mixK1(k1);
+        }
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        return h1 + h2;
+    }
+
+    /**
+     * {@link #murmur3(byte[], int, int)} of the UTF-8 bytes of a string, without encoding it into a new array when
+     * it is ASCII
+     */
+    public static long murmur3(String key) {
+        int length = key.length();
+        if (length > MAX_BUFFERED_KEY) {
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            return murmur3(bytes, 0, bytes.length);
+        }
+        byte[] buffer = KEY_BUFFER.get();
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+            KEY_BUFFER.set(buffer);
+        }
+        for (int i = 0; i < length; i++) {
+            char c = key.charAt(i);
+            if (c >= 0x80) {
+                byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+                return murmur3(bytes, 0, bytes.length);
+            }
+            buffer[i] = (byte) c;
+        }
+        return murmur3(buffer, 0, length);
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -1,38 +1,75 @@
 package com.JasonRoth.util;
 
+import com.JasonRoth.ConsistencyLevel;
+import com.JasonRoth.NioHttpExchange;
 import com.sun.net.httpserver.HttpExchange;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
 
 public class HttpUtils {
+
+    /**
+     * Writes the response of an exchange once the result it waited for is ready
+     */
+    @FunctionalInterface
+    public interface ResponseWriter<T> {
+        /**
+         * @param result the result, null if it failed
+         * @param error why it failed, null if it didn't
+         */
+        void write(T result, Throwable error) throws IOException;
+    }
+
     /**
      * Sends any response back to the client using an existing http exchange object
      * @param exchange - the http exchange
      * @param code - status code for the response
-     * @param message - message being sent in the response body as bytes
+     * @param message - message being sent in the response body, encoded as UTF-8
      * @throws IOException
      */
     public static void sendResponse(HttpExchange exchange, int code, String message) throws IOException {
-        byte[] responseBytes = message.getBytes();
+        sendResponse(exchange, code, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends a JSON response that is already encoded. On a {@link NioHttpExchange} the array itself is written to the
+     * socket, so the caller must not modify it afterwards.
+     * @param exchange the http exchange
+     * @param code status code for the response
+     * @param body the response body
+     * @throws IOException
+     */
+    public static void sendResponse(HttpExchange exchange, int code, byte[] body) throws IOException {
         exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(code, responseBytes.length);
-        exchange.getResponseBody().write(responseBytes);
+        if (exchange instanceof NioHttpExchange nioExchange) {
+            nioExchange.sendResponse(code, body);
+            return;
+        }
+        exchange.sendResponseHeaders(code, body.length);
+        exchange.getResponseBody().write(body);
         exchange.close();
     }
 
-    public static String readRequestBody(HttpExchange exchange) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        try(BufferedReader br = new BufferedReader(new InputStreamReader(exchange.getRequestBody()))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                sb.append(line);
-            }
+    /**
+     * @param exchange the http exchange
+     * @return the request body as it was sent, on a {@link NioHttpExchange} the array it was read into
+     * @throws IOException
+     */
+    public static byte[] readRequestBytes(HttpExchange exchange) throws IOException {
+        if (exchange instanceof NioHttpExchange nioExchange) {
+            return nioExchange.getRequestBytes();
+        }
+        try (InputStream in = exchange.getRequestBody()) {
+            return in.readAllBytes();
         }
-        return sb.toString();
     }
 
     public static Map<String, String> getQueryParams(HttpExchange exchange) throws IOException {
@@ -49,4 +86,69 @@ public class HttpUtils {
         }
         return queryParams;
     }
+
+    /**
+     * Reads the consistency level of a request, from the consistency query parameter or else the
+     * X-Consistency-Level header
+     * @param exchange the http exchange
+     * @param queryParams the request's query parameters
+     * @param defaultLevel the level used when the request doesn't name one
+     * @return the level
+     * @throws IllegalArgumentException if the request names a level that doesn't exist
+     */
+    public static ConsistencyLevel getConsistencyLevel(HttpExchange exchange, Map<String, String> queryParams, ConsistencyLevel defaultLevel) {
+        String level = queryParams.get("consistency");
+        if (level == null) {
+            level = exchange.getRequestHeaders().getFirst("X-Consistency-Level");
+        }
+        return level == null ? defaultLevel : ConsistencyLevel.parse(level);
+    }
+
+    /**
+     * Reads the time to live of a request's values, from the ttl query parameter in seconds or else the X-TTL header
+     * @param exchange the http exchange
+     * @param queryParams the request's query parameters
+     * @return the time to live in milliseconds, 0 if the request doesn't give one
+     * @throws IllegalArgumentException if the time to live isn't a positive number of seconds
+     */
+    public static long getTtlMillis(HttpExchange exchange, Map<String, String> queryParams) {
+        String ttl = queryParams.get("ttl");
+        if (ttl == null) {
+            ttl = exchange.getRequestHeaders().getFirst("X-TTL");
+        }
+        if (ttl == null) {
+            return 0;
+        }
+        long seconds = Long.parseLong(ttl.trim());
+        if (seconds <= 0 || seconds > Long.MAX_VALUE / 1000 / 2) {
+            throw new IllegalArgumentException("Invalid time to live " + ttl);
+        }
+        return seconds * 1000;
+    }
+
+    /**
+     * Answers an exchange once a future completes, without holding the handler's thread while it waits. The handler
+     * returns right away and the exchange stays open until the writer has sent the response. The writer runs on the
+     * server's executor, so the thread that completed the future, often a peer connection's reader, isn't held up
+     * writing to the client.
+     * @param exchange the http exchange
+     * @param future the result the response depends on
+     * @param writer sends the response
+     */
+    public static <T> void sendWhenComplete(HttpExchange exchange, CompletableFuture<T> future, ResponseWriter<T> writer) {
+        BiConsumer<T, Throwable> send = (result, error) -> {
+            try {
+                writer.write(result, error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            } catch (IOException | RuntimeException e) {
+                //the client went away or the response couldn't be built, either way the exchange is done
+                exchange.close();
+            }
+        };
+        Executor executor = exchange.getHttpContext().getServer().getExecutor();
+        if (executor == null) {
+            future.whenComplete(send);
+        } else {
+            future.whenCompleteAsync(send, executor);
+        }
+    }
 }